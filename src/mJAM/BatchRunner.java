@@ -0,0 +1,338 @@
+/**
+ * Runs batches of mJAM programs in one JVM
+ */
+package mJAM;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs each object file in a directory, or listed in a manifest, on its own
+ * MjamVM on a pool of worker threads, and writes a summary of the runs as
+ * CSV or JSON: for each program its status, the exit code Interpreter would
+ * have ended with (0 halted, 4 failed, 1 if it could not be run), the
+ * instructions executed and the wall-clock time of the run.
+ *
+ * Machines share no state and nothing here calls System.exit, so programs
+ * run side by side and a failure ends only its own run.  Each program reads
+ * its input file, if it has one, and its output, followed by the status
+ * report Interpreter prints, is written to an output file named after the
+ * object file with extension .out (in the output directory, if given).  A
+ * program that fails writes a MemoryDump with extension .dump beside it.
+ *
+ * For a directory, the programs are its .mJAM files in name order, each
+ * reading the file with extension .in, if there is one.  A manifest is a
+ * text file with a line "objectFile [inputFile]" for each program, where
+ * blank lines and lines starting with # are skipped and paths are relative
+ * to the directory of the manifest.
+ */
+public class BatchRunner {
+
+	// a program of the batch, and the result of its run
+	static class Job {
+		final File objectFile, inputFile;
+		File outputFile;
+		String status = "not run";
+		int exitCode = 1;
+		long instructions;
+		long millis;
+
+		Job(File objectFile, File inputFile) {
+			this.objectFile = objectFile;
+			this.inputFile = inputFile;
+		}
+	}
+
+	// options
+	int workers = Runtime.getRuntime().availableProcessors();
+	boolean fast = false;
+	boolean registers = false;
+	boolean jit = false;
+	int initialDataStoreSize = MjamVM.defaultDataStoreSize;
+	int maxDataStoreSize = MjamVM.defaultDataStoreSize;
+	boolean garbageCollect = false;
+	long instructionQuota = 0;
+	long timeQuota = 0;
+	int heapQuota = 0;
+	int stackQuota = 0;
+	File outputDirectory = null;
+
+	static final String usage =
+			"usage: BatchRunner [options] directory|manifest\n"
+			+ "  -j or --workers <count>:\n"
+			+ "       programs run at once (default: the number of processors)\n"
+			+ "  -f or --fast, -r or --registers, --jit:\n"
+			+ "       engine to run the programs with, as for Interpreter (default: the reference engine)\n"
+			+ "  --data-initial <words>, --data-max <words>, --gc:\n"
+			+ "       data store of each program, as for Interpreter\n"
+			+ "  --max-instructions <count>, --max-time <ms>, --max-heap <words>, --max-stack <words>:\n"
+			+ "       quotas on each program, as for Interpreter\n"
+			+ "  --output-dir <directory>:\n"
+			+ "       directory for the output and dump files (default: beside each object file)\n"
+			+ "  --format csv|json:\n"
+			+ "       format of the summary (default csv)\n"
+			+ "  --summary <file>:\n"
+			+ "       file for the summary (default: the console)";
+
+	public static void main(String[] args) {
+		BatchRunner runner = new BatchRunner();
+		String format = "csv", summaryFileName = null;
+		int argIndex = 0;
+		String option = null;
+		try {
+			while (argIndex < args.length && args[argIndex].startsWith("-")) {
+				option = args[argIndex++];
+				if (option.equals("-j") || option.equals("--workers"))
+					runner.workers = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("-f") || option.equals("--fast"))
+					runner.fast = true;
+				else if (option.equals("-r") || option.equals("--registers"))
+					runner.registers = true;
+				else if (option.equals("--jit"))
+					runner.fast = runner.jit = true;
+				else if (option.equals("--data-initial"))
+					runner.initialDataStoreSize = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--data-max"))
+					runner.maxDataStoreSize = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--gc"))
+					runner.garbageCollect = true;
+				else if (option.equals("--max-instructions"))
+					runner.instructionQuota = Long.parseLong(args[argIndex++]);
+				else if (option.equals("--max-time"))
+					runner.timeQuota = Long.parseLong(args[argIndex++]);
+				else if (option.equals("--max-heap"))
+					runner.heapQuota = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--max-stack"))
+					runner.stackQuota = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--output-dir"))
+					runner.outputDirectory = new File(args[argIndex++]);
+				else if (option.equals("--format"))
+					format = args[argIndex++];
+				else if (option.equals("--summary"))
+					summaryFileName = args[argIndex++];
+				else {
+					System.out.println("Unknown option " + option);
+					argIndex = -1;
+					break;
+				}
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("Missing or invalid value for option " + option);
+			argIndex = -1;
+		}
+		if (argIndex >= 0 && (runner.workers <= 0 || runner.initialDataStoreSize <= 0
+				|| runner.maxDataStoreSize < runner.initialDataStoreSize
+				|| !format.equals("csv") && !format.equals("json"))) {
+			System.out.println("Invalid workers, data store sizes or format");
+			argIndex = -1;
+		}
+		if (argIndex >= 0 && (runner.instructionQuota < 0 || runner.timeQuota < 0
+				|| runner.heapQuota < 0 || runner.stackQuota < 0)) {
+			System.out.println("Quotas must not be negative");
+			argIndex = -1;
+		}
+		if (argIndex < 0 || argIndex != args.length - 1) {
+			System.out.println(usage);
+			return;
+		}
+
+		List<Job> jobs;
+		try {
+			jobs = jobs(new File(args[argIndex]));
+		} catch (IOException e) {
+			System.out.println("Unable to read " + args[argIndex]);
+			return;
+		}
+		if (runner.outputDirectory != null && !runner.outputDirectory.isDirectory()
+				&& !runner.outputDirectory.mkdirs()) {
+			System.out.println("Unable to create output directory " + runner.outputDirectory);
+			return;
+		}
+
+		try {
+			runner.run(jobs);
+		} catch (InterruptedException e) {
+			System.out.println("Batch interrupted");
+			return;
+		}
+
+		PrintStream summary = System.out;
+		if (summaryFileName != null) {
+			try {
+				summary = new PrintStream(summaryFileName);
+			} catch (FileNotFoundException e) {
+				System.out.println("Unable to write summary to " + summaryFileName);
+				return;
+			}
+		}
+		if (format.equals("csv"))
+			writeCsv(summary, jobs);
+		else
+			writeJson(summary, jobs);
+		if (summary != System.out)
+			summary.close();
+	}
+
+	/**
+	 * @return the programs in a directory or listed in a manifest
+	 */
+	static List<Job> jobs(File source) throws IOException {
+		List<Job> jobs = new ArrayList<Job>();
+		if (source.isDirectory()) {
+			File[] files = source.listFiles((dir, name) -> name.endsWith(".mJAM"));
+			if (files == null)
+				throw new IOException("unable to list " + source);
+			Arrays.sort(files);
+			for (File objectFile : files) {
+				File inputFile = new File(source, baseName(objectFile) + "in");
+				jobs.add(new Job(objectFile, inputFile.isFile() ? inputFile : null));
+			}
+			return jobs;
+		}
+		File directory = source.getAbsoluteFile().getParentFile();
+		for (String line : Files.readAllLines(source.toPath())) {
+			String[] fields = line.trim().split("\\s+");
+			if (fields[0].isEmpty() || fields[0].startsWith("#"))
+				continue;
+			jobs.add(new Job(resolve(directory, fields[0]),
+					fields.length > 1 ? resolve(directory, fields[1]) : null));
+		}
+		return jobs;
+	}
+
+	private static File resolve(File directory, String path) {
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(directory, path);
+	}
+
+	// The name of objectFile up to and including the dot before its extension
+	private static String baseName(File objectFile) {
+		String name = objectFile.getName();
+		return name.endsWith(".mJAM") ? name.substring(0, name.length() - 4) : name + ".";
+	}
+
+	/**
+	 * Run the jobs on the worker pool, setting their results
+	 */
+	public void run(List<Job> jobs) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		try {
+			List<Future<?>> runs = new ArrayList<Future<?>>();
+			for (Job job : jobs)
+				runs.add(pool.submit(() -> run(job)));
+			for (int i = 0; i < jobs.size(); i++) {
+				try {
+					runs.get(i).get();
+				} catch (ExecutionException e) {
+					jobs.get(i).status = "error: " + e.getCause();
+					jobs.get(i).exitCode = 1;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Run one job on a new machine
+	 */
+	void run(Job job) {
+		File objectDirectory = job.objectFile.getAbsoluteFile().getParentFile();
+		File directory = outputDirectory != null ? outputDirectory : objectDirectory;
+		String baseName = baseName(job.objectFile);
+		File outputFile = new File(directory, baseName + "out");
+
+		ObjectFile objectFile = new ObjectFile(job.objectFile.getPath());
+		Instruction[] code = objectFile.readCode();
+		if (code == null) {
+			job.status = objectFile.getDiagnostics().isEmpty() ? "unreadable object file"
+					: "rejected: " + objectFile.getDiagnostics().get(0);
+			return;
+		}
+
+		try (InputStream in = job.inputFile != null ? new FileInputStream(job.inputFile)
+				: InputStream.nullInputStream();
+				PrintStream out = new PrintStream(outputFile)) {
+			job.outputFile = outputFile;
+			MjamVM vm = new MjamVM(code, code.length);
+			vm.setDataStoreSize(initialDataStoreSize, maxDataStoreSize);
+			vm.setQuotas(instructionQuota, timeQuota, heapQuota, stackQuota);
+			if (jit)
+				vm.enableJit(JitCompiler.defaultThreshold);
+			if (garbageCollect)
+				vm.enableGarbageCollector();
+			vm.setFailureDump(new File(directory, baseName + "dump").getPath(),
+					SourceMap.read(new File(objectDirectory, baseName + "map").getPath()));
+			vm.setInput(in);
+			vm.setOutput(out);
+
+			long start = System.nanoTime();
+			if (registers)
+				vm.interpretProgramRegisters();
+			else if (fast)
+				vm.interpretProgramFast();
+			else
+				vm.interpretProgram();
+			job.millis = (System.nanoTime() - start) / 1000000;
+			vm.showStatus();
+
+			job.instructions = vm.getInstructionCount();
+			job.status = VmMetrics.statusName(vm.getStatus());
+			job.exitCode = vm.getStatus() == MjamVM.halted || vm.getStatus() == MjamVM.suspended ? 0 : 4;
+		} catch (IOException e) {
+			job.status = "error: " + e;
+		}
+	}
+
+	static void writeCsv(PrintStream out, List<Job> jobs) {
+		out.println("program,status,exit,instructions,millis,output");
+		for (Job job : jobs)
+			out.println(csv(job.objectFile.getPath()) + "," + csv(job.status) + "," + job.exitCode + ","
+					+ job.instructions + "," + job.millis + ","
+					+ csv(job.outputFile == null ? "" : job.outputFile.getPath()));
+	}
+
+	private static String csv(String field) {
+		if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0)
+			return field;
+		return "\"" + field.replace("\"", "\"\"") + "\"";
+	}
+
+	static void writeJson(PrintStream out, List<Job> jobs) {
+		out.println("[");
+		for (int i = 0; i < jobs.size(); i++) {
+			Job job = jobs.get(i);
+			out.println("  {\"program\": " + json(job.objectFile.getPath()) + ", \"status\": "
+					+ json(job.status) + ", \"exit\": " + job.exitCode + ", \"instructions\": "
+					+ job.instructions + ", \"millis\": " + job.millis + ", \"output\": "
+					+ (job.outputFile == null ? "null" : json(job.outputFile.getPath()))
+					+ (i + 1 < jobs.size() ? "}," : "}"));
+		}
+		out.println("]");
+	}
+
+	private static String json(String s) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < ' ')
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,20 @@
+/**
+ * Code generated by the mJAM JIT
+ */
+package mJAM;
+
+/**
+ * A region of mJAM code translated to JVM bytecode by JitCompiler.
+ */
+interface CompiledCode {
+
+	/**
+	 * Execute from the instruction at vm.CP, which must be an entry point of
+	 * this code, using and updating the registers and data store of vm.
+	 * Returns with vm holding the machine state at an instruction boundary:
+	 * either after the RETURN of the method, or at an instruction the code
+	 * leaves to the interpreter (vm.status is set if a primitive failed).
+	 * @return true if the method returned
+	 */
+	boolean run(MjamVM vm);
+}
@@ -0,0 +1,330 @@
+/**
+ * Storage for the words of an mJAM data store
+ */
+package mJAM;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The words of the data store of one MjamVM, indexed from 0 to size()-1.
+ * The reference engine, the heap collector, the free lists, snapshots and
+ * dumps reach the words only through get and set, so they may be held:
+ *
+ *   on the Java heap in an int array (onHeap, the default), which
+ *   FastInterpreter, compiled code and RegisterInterpreter index directly
+ *   and is the only kind those engines accept;
+ *
+ *   off the Java heap in direct buffers (offHeap), so that a large data
+ *   store needs only a small Java heap (direct memory is limited by the
+ *   JVM option -XX:MaxDirectMemorySize);
+ *
+ *   in a file mapped into memory (mapped), which the operating system pages
+ *   in and out as needed, and which keeps the data store and registers when
+ *   the machine or the whole JVM stops.
+ *
+ * A mapped file starts with a header of 16 big-endian ints: a magic number,
+ * the format version, the store size, then HB, status, CP, ST, HT, LB and
+ * OB, written as the machine starts and stops and at its checkpoints (see
+ * MjamVM.nextCheckpoint).  The words follow as big-endian ints; heap
+ * address a is word a - (HB - size).
+ */
+public abstract class DataStore {
+
+	// the words if they are on the Java heap, null for the other kinds.  get
+	// and set index them directly, so the reference engine, whose store is
+	// almost always on the heap, makes no virtual call per word.
+	private final int[] heapWords;
+
+	DataStore(int[] heapWords) {
+		this.heapWords = heapWords;
+	}
+
+	/**
+	 * @return a store of size words held in an int array
+	 */
+	public static DataStore onHeap(int size) {
+		return new OnHeap(new int[size]);
+	}
+
+	/**
+	 * @return a store of size words held in direct buffers
+	 */
+	public static DataStore offHeap(int size) {
+		return OffHeap.direct(size);
+	}
+
+	/**
+	 * @return a store of size words held in fileName, which is created or
+	 *         truncated, and mapped into memory
+	 */
+	public static DataStore mapped(String fileName, int size) throws IOException {
+		return OffHeap.map(new RandomAccessFile(fileName, "rw"), size);
+	}
+
+	// Returns a read-only store of the size words held in channel from
+	// position, as big-endian ints
+	static DataStore view(FileChannel channel, long position, int size) throws IOException {
+		return OffHeap.view(channel, position, size);
+	}
+
+	/**
+	 * @return number of words in the store
+	 */
+	public abstract int size();
+
+	/**
+	 * @return word index
+	 */
+	public final int get(int index) {
+		final int[] w = heapWords;
+		return w != null ? w[index] : word(index);
+	}
+
+	/**
+	 * Set word index to value
+	 */
+	public final void set(int index, int value) {
+		final int[] w = heapWords;
+		if (w != null)
+			w[index] = value;
+		else
+			setWord(index, value);
+	}
+
+	// get and set for a store whose words are not on the Java heap
+	abstract int word(int index);
+
+	abstract void setWord(int index, int value);
+
+	/**
+	 * Set words from..to-1 to value
+	 */
+	public void fill(int from, int to, int value) {
+		for (int i = from; i < to; i++)
+			set(i, value);
+	}
+
+	// Copies words from..from+count-1 to the buffer
+	void copyTo(int from, int count, IntBuffer to) {
+		for (int i = from; i < from + count; i++)
+			to.put(get(i));
+	}
+
+	// Returns a store of the same kind and newSize words, holding the first
+	// low and the last high words of this one at its bottom and top, and
+	// zeros in between.  This store is not used again.
+	abstract DataStore resize(int newSize, int low, int high);
+
+	// Returns the array holding the words, or null if they are not on the
+	// Java heap
+	final int[] words() {
+		return heapWords;
+	}
+
+	// Whether the store keeps the registers given to record
+	boolean recordsRegisters() {
+		return false;
+	}
+
+	// Keeps the registers of vm with the words
+	void record(MjamVM vm) {
+	}
+
+	private final static class OnHeap extends DataStore {
+
+		private final int[] words;
+
+		OnHeap(int[] words) {
+			super(words);
+			this.words = words;
+		}
+
+		@Override
+		public int size() {
+			return words.length;
+		}
+
+		@Override
+		int word(int index) {
+			return words[index];
+		}
+
+		@Override
+		void setWord(int index, int value) {
+			words[index] = value;
+		}
+
+		@Override
+		public void fill(int from, int to, int value) {
+			Arrays.fill(words, from, to, value);
+		}
+
+		@Override
+		void copyTo(int from, int count, IntBuffer to) {
+			to.put(words, from, count);
+		}
+
+		@Override
+		DataStore resize(int newSize, int low, int high) {
+			int[] newWords = new int[newSize];
+			System.arraycopy(words, 0, newWords, 0, low);
+			System.arraycopy(words, words.length - high, newWords, newSize - high, high);
+			return new OnHeap(newWords);
+		}
+	}
+
+	private final static class OffHeap extends DataStore {
+
+		// A buffer holds at most 2^31 bytes, so the words are split into
+		// chunks of 2^chunkBits
+		private final static int chunkBits = 24, chunkMask = (1 << chunkBits) - 1;
+
+		private final static int magic = 0x6D4A4453, version = 1;
+		private final static int headerBytes = 64;
+
+		private final int size;
+		private final IntBuffer[] chunks;
+
+		// the mapped file and its header, null for direct buffers
+		private final RandomAccessFile file;
+		private final IntBuffer header;
+
+		private OffHeap(int size, RandomAccessFile file, IntBuffer header) {
+			super(null);
+			this.size = size;
+			this.chunks = new IntBuffer[(int) (((long) size + chunkMask) >> chunkBits)];
+			this.file = file;
+			this.header = header;
+		}
+
+		static OffHeap direct(int size) {
+			OffHeap store = new OffHeap(size, null, null);
+			for (int c = 0; c < store.chunks.length; c++)
+				store.chunks[c] = ByteBuffer.allocateDirect(4 * store.chunkSize(c))
+						.order(ByteOrder.nativeOrder()).asIntBuffer();
+			return store;
+		}
+
+		static OffHeap map(RandomAccessFile file, int size) throws IOException {
+			file.setLength(0);
+			file.setLength(headerBytes + 4L * size);
+			IntBuffer header = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, headerBytes)
+					.asIntBuffer();
+			header.put(0, magic);
+			header.put(1, version);
+			return mapWords(file, header, size);
+		}
+
+		private static OffHeap mapWords(RandomAccessFile file, IntBuffer header, int size)
+				throws IOException {
+			OffHeap store = new OffHeap(size, file, header);
+			store.mapChunks(file.getChannel(), FileChannel.MapMode.READ_WRITE, headerBytes);
+			header.put(2, size);
+			return store;
+		}
+
+		static OffHeap view(FileChannel channel, long position, int size) throws IOException {
+			OffHeap store = new OffHeap(size, null, null);
+			store.mapChunks(channel, FileChannel.MapMode.READ_ONLY, position);
+			return store;
+		}
+
+		private void mapChunks(FileChannel channel, FileChannel.MapMode mode, long position)
+				throws IOException {
+			for (int c = 0; c < chunks.length; c++)
+				chunks[c] = channel.map(mode, position + ((long) c << chunkBits) * 4, 4L * chunkSize(c))
+						.asIntBuffer();
+		}
+
+		private int chunkSize(int c) {
+			return Math.min(1 << chunkBits, size - (c << chunkBits));
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+
+		@Override
+		int word(int index) {
+			return chunks[index >>> chunkBits].get(index & chunkMask);
+		}
+
+		@Override
+		void setWord(int index, int value) {
+			chunks[index >>> chunkBits].put(index & chunkMask, value);
+		}
+
+		@Override
+		void copyTo(int from, int count, IntBuffer to) {
+			while (count > 0) {
+				int offset = from & chunkMask;
+				int n = Math.min(count, (1 << chunkBits) - offset);
+				IntBuffer chunk = chunks[from >>> chunkBits].duplicate();
+				chunk.position(offset).limit(offset + n);
+				to.put(chunk);
+				from += n;
+				count -= n;
+			}
+		}
+
+		@Override
+		DataStore resize(int newSize, int low, int high) {
+			if (file == null) {
+				OffHeap store = direct(newSize);
+				for (int i = 0; i < low; i++)
+					store.set(i, get(i));
+				for (int i = 0; i < high; i++)
+					store.set(newSize - high + i, get(size - high + i));
+				return store;
+			}
+
+			// move the top words within the file, which only grows and is
+			// zero past the words of the store; the new mapping and this one
+			// see the same pages
+			OffHeap store;
+			try {
+				if (newSize > size)
+					file.setLength(headerBytes + 4L * newSize);
+				store = mapWords(file, header, newSize);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			if (newSize >= size)
+				for (int i = high - 1; i >= 0; i--)
+					store.set(newSize - high + i, get(size - high + i));
+			else {
+				for (int i = 0; i < high; i++)
+					store.set(newSize - high + i, get(size - high + i));
+				fill(newSize, size, 0);
+			}
+			store.fill(low, Math.min(size, newSize - high), 0);
+			return store;
+		}
+
+		@Override
+		boolean recordsRegisters() {
+			return header != null;
+		}
+
+		@Override
+		void record(MjamVM vm) {
+			if (header == null)
+				return;
+			header.put(3, vm.HB);
+			header.put(4, vm.status);
+			header.put(5, vm.CP);
+			header.put(6, vm.ST);
+			header.put(7, vm.HT);
+			header.put(8, vm.LB);
+			header.put(9, vm.OB);
+		}
+	}
+}
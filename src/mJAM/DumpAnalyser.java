@@ -0,0 +1,253 @@
+/**
+ * Offline analysis of mJAM memory dumps
+ */
+package mJAM;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports on a dump written by MemoryDump.write: the registers and the call
+ * stack, then the heap walked block by block through the 2 word headers
+ * written by newobj and newarr (see GarbageCollector), as a histogram of
+ * objects by class descriptor and size, the distribution of array lengths,
+ * and the blocks reachable from the stack.
+ *
+ * Reachability is found as the collector finds it: every stack word, the
+ * OB register and every word of a reachable block that holds an address
+ * inside a block is taken to be a reference.  Objects compiled from
+ * miniJava have no class descriptor (the tag is -1), so they are told apart
+ * only by their number of fields.
+ *
+ * usage: DumpAnalyser [--top rows] dumpFile
+ */
+public class DumpAnalyser {
+
+	private final MemoryDump dump;
+	private final SourceMap symbols;
+
+	// heap blocks in increasing address order: header address, header tag
+	// and payload size, and whether reachable from the stack
+	private int[] blockAddr = new int[16];
+	private int[] blockTag = new int[16];
+	private int[] blockSize = new int[16];
+	private boolean[] reachable;
+	private int blockCount;
+	// header address at which the walk found an invalid header, or -1
+	private int badHeader = -1;
+	private int[] worklist = new int[16];
+	private int top;
+
+	public DumpAnalyser(MemoryDump dump) {
+		this.dump = dump;
+		this.symbols = dump.getSymbols();
+		if (!dump.isRawHeap()) {
+			findBlocks();
+			markFromRoots();
+		}
+	}
+
+	public static void main(String[] args) {
+		int rows = 20;
+		int argIndex = 0;
+		if (args.length >= 2 && args[0].equals("--top")) {
+			rows = Integer.parseInt(args[1]);
+			argIndex = 2;
+		}
+		if (argIndex != args.length - 1) {
+			System.out.println("usage: DumpAnalyser [--top rows] dumpFile");
+			return;
+		}
+		MemoryDump dump = MemoryDump.read(args[argIndex]);
+		if (dump == null) {
+			System.out.println("Unable to read dump file " + args[argIndex]);
+			return;
+		}
+		System.out.println("*** Dump: " + args[argIndex]);
+		new DumpAnalyser(dump).printReport(System.out, rows);
+	}
+
+	private void findBlocks() {
+		int header = dump.getHT(), HB = dump.getHB();
+		while (header < HB) {
+			int size = header + 2 <= HB ? dump.word(header + 1) : -1;
+			if (size < 0 || size > HB - header - 2) {
+				badHeader = header;
+				break;
+			}
+			if (blockCount == blockAddr.length) {
+				blockAddr = Arrays.copyOf(blockAddr, 2 * blockCount);
+				blockTag = Arrays.copyOf(blockTag, 2 * blockCount);
+				blockSize = Arrays.copyOf(blockSize, 2 * blockCount);
+			}
+			blockAddr[blockCount] = header;
+			blockTag[blockCount] = dump.word(header);
+			blockSize[blockCount] = size;
+			blockCount++;
+			header += size + 2;
+		}
+		reachable = new boolean[blockCount];
+	}
+
+	// index of the block whose payload holds addr, or -1 if addr is not a
+	// reference to a block that is not free
+	private int blockContaining(int addr) {
+		if (addr < dump.getHT() + 2 || addr > dump.getHB())
+			return -1;
+		int lo = 0, hi = blockCount - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (blockAddr[mid] + 2 <= addr) {
+				found = mid;
+				lo = mid + 1;
+			} else
+				hi = mid - 1;
+		}
+		if (found == -1)
+			return -1;
+		// an object with no fields is referenced by the address just past its header
+		int payload = blockAddr[found] + 2;
+		if (addr != payload && addr >= payload + blockSize[found])
+			return -1;
+		return blockTag[found] == GarbageCollector.freeTag ? -1 : found;
+	}
+
+	private void markFromRoots() {
+		for (int addr = MjamVM.SB; addr < dump.getST(); addr++)
+			markWord(dump.word(addr));
+		markWord(dump.getOB());
+		while (top > 0) {
+			int block = worklist[--top];
+			int payload = blockAddr[block] + 2;
+			for (int addr = payload; addr < payload + blockSize[block]; addr++)
+				markWord(dump.word(addr));
+		}
+	}
+
+	private void markWord(int word) {
+		int block = blockContaining(word);
+		if (block != -1 && !reachable[block]) {
+			reachable[block] = true;
+			if (top == worklist.length)
+				worklist = Arrays.copyOf(worklist, 2 * top);
+			worklist[top++] = block;
+		}
+	}
+
+	/**
+	 * Write the report, with at most limit rows in each table
+	 */
+	public void printReport(PrintStream out, int limit) {
+		out.println("*** Status: " + VmMetrics.statusName(dump.getStatus()) + " at instruction "
+				+ dump.getCP() + " (" + methodName(dump.getCP()) + ")");
+		out.println("*** Registers: CT=" + dump.getCode().length + " ST=" + dump.getST() + " HT="
+				+ dump.getHT() + " HB=" + dump.getHB() + " LB=" + dump.getLB() + " OB=" + dump.getOB());
+		printStack(out);
+
+		out.println("*** Heap: " + (dump.getHB() - dump.getHT()) + " words");
+		if (dump.isRawHeap()) {
+			out.println("*** Heap holds blocks reserved by alloc, which have no header; it can not be walked");
+			return;
+		}
+		if (badHeader != -1)
+			out.println("*** Heap walk stopped at an invalid header at " + badHeader
+					+ "; the blocks below it are not reported");
+
+		// totals by kind: blocks, words, reachable blocks, reachable words
+		String[] kinds = { "objects", "arrays", "alloc blocks", "free blocks" };
+		long[][] totals = new long[kinds.length][4];
+		Map<Long, long[]> classes = new HashMap<Long, long[]>();
+		long[][] lengths = new long[33][4];
+		for (int b = 0; b < blockCount; b++) {
+			int tag = blockTag[b], size = blockSize[b];
+			int kind = tag == -2 ? 1 : tag == FreeListAllocator.rawTag ? 2 : tag == GarbageCollector.freeTag ? 3 : 0;
+			count(totals[kind], size, reachable[b]);
+			if (kind == 0) {
+				long key = ((long) tag << 32) | size;
+				long[] counts = classes.get(key);
+				if (counts == null)
+					classes.put(key, counts = new long[4]);
+				count(counts, size, reachable[b]);
+			} else if (kind == 1)
+				count(lengths[32 - Integer.numberOfLeadingZeros(size)], size, reachable[b]);
+		}
+
+		out.println(String.format("%-14s %10s %12s %10s %12s", "", "blocks", "words", "reachable",
+				"words"));
+		for (int k = 0; k < kinds.length; k++)
+			out.println(String.format("%-14s %10d %12d %10d %12d", kinds[k], totals[k][0], totals[k][1],
+					totals[k][2], totals[k][3]));
+
+		out.println("*** Heap: objects by class descriptor and fields, by words");
+		out.println(String.format("%10s %12s %10s %12s  %s", "objects", "words", "reachable", "words",
+				"class (descriptor), fields"));
+		List<Map.Entry<Long, long[]>> rows = new ArrayList<Map.Entry<Long, long[]>>(classes.entrySet());
+		rows.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+		for (int i = 0; i < rows.size() && i < limit; i++) {
+			long key = rows.get(i).getKey();
+			long[] counts = rows.get(i).getValue();
+			int tag = (int) (key >> 32);
+			out.println(String.format("%10d %12d %10d %12d  %s (%d), %d", counts[0], counts[1],
+					counts[2], counts[3], className(tag), tag, (int) key));
+		}
+
+		out.println("*** Heap: arrays by length");
+		out.println(String.format("%-22s %10s %12s %10s %12s", "length", "arrays", "words", "reachable",
+				"words"));
+		for (int bucket = 0; bucket < lengths.length; bucket++) {
+			if (lengths[bucket][0] == 0)
+				continue;
+			String range = bucket == 0 ? "0"
+					: bucket == 1 ? "1" : (1L << (bucket - 1)) + ".." + ((1L << bucket) - 1);
+			out.println(String.format("%-22s %10d %12d %10d %12d", range, lengths[bucket][0],
+					lengths[bucket][1], lengths[bucket][2], lengths[bucket][3]));
+		}
+	}
+
+	// counts a block of size payload words, with its header
+	private static void count(long[] counts, int size, boolean reachable) {
+		counts[0]++;
+		counts[1] += size + 2;
+		if (reachable) {
+			counts[2]++;
+			counts[3] += size + 2;
+		}
+	}
+
+	// The frames on the stack, innermost first: a frame at LB holds OB, the
+	// dynamic link and the return address
+	private void printStack(PrintStream out) {
+		out.println("*** Stack: " + (dump.getST() - MjamVM.SB) + " words, innermost frame first");
+		int pc = dump.getCP(), lb = dump.getLB();
+		while (lb > MjamVM.SB && lb + 2 < dump.getST()) {
+			int dynamicLink = dump.word(lb + 1), returnAddr = dump.word(lb + 2);
+			out.println(String.format("%10s %s", "LB=" + lb, methodName(pc) + " at " + pc));
+			if (dynamicLink >= lb || dynamicLink < MjamVM.SB)
+				return; // not a frame
+			pc = returnAddr - 1;
+			lb = dynamicLink;
+		}
+		out.println(String.format("%10s %s", "LB=" + lb, methodName(pc) + " at " + pc));
+	}
+
+	private String methodName(int addr) {
+		int index = symbols.methodIndexAt(addr);
+		return index < 0 ? "?" : symbols.methodName(index);
+	}
+
+	// The class of the methods in the class descriptor at addr, "none" for
+	// the tag -1, or "?"
+	private String className(int addr) {
+		if (addr == -1)
+			return "none";
+		if (addr < MjamVM.SB || addr + 2 >= dump.getST() || dump.word(addr + 1) <= 0)
+			return "?";
+		String method = symbols.methodStartingAt(dump.word(addr + 2));
+		int dot = method == null ? -1 : method.lastIndexOf('.');
+		return dot < 0 ? "?" : method.substring(0, dot);
+	}
+}
@@ -0,0 +1,884 @@
+/**
+ * Non-debug execution engine for mJAM programs
+ */
+package mJAM;
+
+/**
+ * Runs the program held in the code store without any debugger support.
+ *
+ * The code store is translated once, when the program is loaded, into a packed
+ * int array holding two words per instruction: a specialised opcode (with the
+ * n field in bits 8..15) and the operand.  Register-relative addressing on the
+ * constant registers (CB, SB, PB, ZR, ...) is resolved during translation, the
+ * machine registers are kept in locals for the duration of the run and only
+ * written back to the MjamVM when it needs them (failure, dump, or an
+ * instruction delegated to the reference implementation).
+ *
+ * Anything unusual (dynamic registers, CALLD, HALT (n>0), malformed fields) is
+ * translated to GENERIC and executed by MjamVM.interpretOneOperation, so
+ * both engines share a single definition of the less common instructions.
+ * An inline instruction whose checks fail (a full data store, overflow, a bad
+ * array or field reference) is executed again the same way, so the failure
+ * leaves the registers, dump and message exactly as the reference engine does.
+ */
+public final class FastInterpreter {
+
+	// decoded opcodes
+	static final int
+		GENERIC = 0,
+		LOAD_LB = 1, LOAD_SB = 2, LOAD_OB = 3, LOAD_ABS = 4,
+		LOADA_LB = 5, LOADA_SB = 6, LOADA_OB = 7, LOADA_ABS = 8,
+		LOADI = 9, LOADL = 10,
+		STORE_LB = 11, STORE_SB = 12, STORE_OB = 13, STORE_ABS = 14,
+		STOREI = 15,
+		CALL = 16, CALLI = 17, RETURN = 18,
+		PUSH = 19, POP = 20,
+		JUMP = 21, JUMPI = 22, JUMPIF = 23,
+		HALT = 24,
+		BAD_ADDRESS = 25,   // sentinel following the last instruction
+		BAD_INSTRUCTION = 26,
+		// primitives, executed inline
+		P_NOT = 32, P_AND = 33, P_OR = 34, P_NEG = 35,
+		P_ADD = 36, P_SUB = 37, P_MULT = 38,
+		P_LT = 39, P_LE = 40, P_GE = 41, P_GT = 42, P_EQ = 43, P_NE = 44,
+		P_ARRAYLEN = 45, P_ARRAYREF = 46, P_ARRAYUPD = 47,
+		P_FIELDREF = 48, P_FIELDUPD = 49,
+		P_ID = 50,
+		P_UARRAYREF = 51, P_UARRAYUPD = 52,
+		// any other primitive, delegated to MjamVM.callPrimitive
+		P_OTHER = 53,
+		// superinstructions, see Superinstructions; the kind of arithmetic or
+		// comparison is in bits 8..15 and the n field of JUMPIF in bits 16..23
+		F_LB_LIT_ARITH_STORE = 54,
+		F_LB_LIT_CMP_JUMPIF = 55,
+		F_LB_LB_CMP_JUMPIF = 56,
+		F_LB_LIT_FIELDREF = 57,
+		F_LIT_CMP_JUMPIF = 58,
+		F_LIT_ARITH = 59,
+		F_LIT_FIELDREF = 60,
+		F_LOAD_LB2 = 61;
+
+	// Machine.Prim ordinals of the inline primitives, for counting their calls
+	private static final int
+		PRIM_ID = Machine.Prim.id.ordinal(),
+		PRIM_NOT = Machine.Prim.not.ordinal(),
+		PRIM_AND = Machine.Prim.and.ordinal(),
+		PRIM_OR = Machine.Prim.or.ordinal(),
+		PRIM_NEG = Machine.Prim.neg.ordinal(),
+		PRIM_ADD = Machine.Prim.add.ordinal(),
+		PRIM_SUB = Machine.Prim.sub.ordinal(),
+		PRIM_MULT = Machine.Prim.mult.ordinal(),
+		PRIM_LT = Machine.Prim.lt.ordinal(),
+		PRIM_LE = Machine.Prim.le.ordinal(),
+		PRIM_GE = Machine.Prim.ge.ordinal(),
+		PRIM_GT = Machine.Prim.gt.ordinal(),
+		PRIM_EQ = Machine.Prim.eq.ordinal(),
+		PRIM_NE = Machine.Prim.ne.ordinal(),
+		PRIM_ARRAYLEN = Machine.Prim.arraylen.ordinal(),
+		PRIM_ARRAYREF = Machine.Prim.arrayref.ordinal(),
+		PRIM_ARRAYUPD = Machine.Prim.arrayupd.ordinal(),
+		PRIM_FIELDREF = Machine.Prim.fieldref.ordinal(),
+		PRIM_FIELDUPD = Machine.Prim.fieldupd.ordinal(),
+		PRIM_UARRAYREF = Machine.Prim.uarrayref.ordinal(),
+		PRIM_UARRAYUPD = Machine.Prim.uarrayupd.ordinal();
+
+	// the same, indexed by the arithmetic or comparison kind of a superinstruction
+	private static final int[] primitive = new int[P_OTHER];
+
+	static {
+		for (int id = 0; id < Machine.intToPrim.length; id++) {
+			int op = decodePrimitive(id);
+			if (op >= P_NOT && op < P_OTHER)
+				primitive[op] = id;
+		}
+	}
+
+	private FastInterpreter() {
+	}
+
+	/**
+	 * Translate the code store into the packed form executed by run()
+	 * @param code  code store
+	 * @param ct    code top
+	 * @return packed code, 2 words per instruction plus a terminating sentinel
+	 */
+	public static int[] decode(Instruction[] code, int ct) {
+		int[] packed = new int[2 * (ct + 1)];
+		for (int addr = Machine.CB; addr < ct; addr++) {
+			Instruction inst = code[addr];
+			int op = decodeOp(inst, ct);
+			packed[2 * addr] = op | ((inst.n & 0xFF) << 8);
+			packed[2 * addr + 1] = decodeOperand(inst, op, ct);
+		}
+		// falling off the end of the code is an invalid code address
+		packed[2 * ct] = BAD_ADDRESS;
+		return packed;
+	}
+
+	/**
+	 * @return true if r holds a value that can not change during execution
+	 */
+	private static boolean isConstantReg(int r) {
+		return r == Machine.Reg.ZR.ordinal() || r == Machine.Reg.CB.ordinal()
+				|| r == Machine.Reg.PB.ordinal() || r == Machine.Reg.PT.ordinal()
+				|| r == Machine.Reg.SB.ordinal() || r == Machine.Reg.CT.ordinal();
+	}
+
+	private static int constantRegValue(int r, int ct) {
+		switch (Machine.intToReg[r]) {
+		case CB:
+			return Machine.CB;
+		case CT:
+			return ct;
+		case PB:
+			return Machine.PB;
+		case PT:
+			return Machine.PT;
+		case SB:
+			return MjamVM.SB;
+		default:
+			return 0;
+		}
+	}
+
+	private static int decodeOp(Instruction inst, int ct) {
+		if (inst.op < 0 || inst.op >= Machine.intToOp.length
+				|| inst.r < 0 || inst.r >= Machine.intToReg.length)
+			return BAD_INSTRUCTION;
+		int r = inst.r;
+		boolean lb = r == Machine.Reg.LB.ordinal();
+		boolean sb = r == Machine.Reg.SB.ordinal();
+		boolean ob = r == Machine.Reg.OB.ordinal();
+		boolean constant = isConstantReg(r);
+
+		switch (Machine.intToOp[inst.op]) {
+		case LOAD:
+			return lb ? LOAD_LB : sb ? LOAD_SB : ob ? LOAD_OB : constant ? LOAD_ABS : GENERIC;
+		case LOADA:
+			return lb ? LOADA_LB : sb ? LOADA_SB : ob ? LOADA_OB : constant ? LOADA_ABS : GENERIC;
+		case LOADI:
+			return LOADI;
+		case LOADL:
+			return LOADL;
+		case STORE:
+			return lb ? STORE_LB : sb ? STORE_SB : ob ? STORE_OB : constant ? STORE_ABS : GENERIC;
+		case STOREI:
+			return STOREI;
+		case CALL: {
+			if (!constant)
+				return GENERIC;
+			int addr = inst.d + constantRegValue(r, ct);
+			if (addr >= Machine.PB)
+				return decodePrimitive(addr - Machine.PB);
+			// let the reference path report calls outside the code
+			return (addr < Machine.CB || addr >= ct) ? GENERIC : CALL;
+		}
+		case CALLI: {
+			if (!constant)
+				return GENERIC;
+			int addr = inst.d + constantRegValue(r, ct);
+			if (addr >= ct)
+				return BAD_INSTRUCTION;
+			return (addr < Machine.CB) ? GENERIC : CALLI;
+		}
+		case RETURN:
+			return (inst.n == 0 || inst.n == 1) ? RETURN : GENERIC;
+		case PUSH:
+			return PUSH;
+		case POP:
+			return POP;
+		case JUMP:
+		case JUMPIF: {
+			if (!constant)
+				return GENERIC;
+			int addr = inst.d + constantRegValue(r, ct);
+			if (addr < Machine.CB || addr >= ct)
+				return GENERIC; // let the reference path report the failure
+			return inst.op == Machine.Op.JUMP.ordinal() ? JUMP : JUMPIF;
+		}
+		case JUMPI:
+			return JUMPI;
+		case HALT:
+			return inst.n > 0 ? GENERIC : HALT;
+		default:
+			// CALLD
+			return GENERIC;
+		}
+	}
+
+	private static int decodePrimitive(int id) {
+		if (id < 0 || id >= Machine.intToPrim.length)
+			return GENERIC;
+		switch (Machine.intToPrim[id]) {
+		case id:
+			return P_ID;
+		case not:
+			return P_NOT;
+		case and:
+			return P_AND;
+		case or:
+			return P_OR;
+		case neg:
+			return P_NEG;
+		case add:
+			return P_ADD;
+		case sub:
+			return P_SUB;
+		case mult:
+			return P_MULT;
+		case lt:
+			return P_LT;
+		case le:
+			return P_LE;
+		case ge:
+			return P_GE;
+		case gt:
+			return P_GT;
+		case eq:
+			return P_EQ;
+		case ne:
+			return P_NE;
+		case arraylen:
+			return P_ARRAYLEN;
+		case arrayref:
+			return P_ARRAYREF;
+		case arrayupd:
+			return P_ARRAYUPD;
+		case fieldref:
+			return P_FIELDREF;
+		case fieldupd:
+			return P_FIELDUPD;
+		case uarrayref:
+			return P_UARRAYREF;
+		case uarrayupd:
+			return P_UARRAYUPD;
+		default:
+			return P_OTHER;
+		}
+	}
+
+	private static int decodeOperand(Instruction inst, int op, int ct) {
+		switch (op) {
+		case LOAD_ABS:
+		case LOADA_ABS:
+		case STORE_ABS:
+		case CALL:
+		case CALLI:
+		case JUMP:
+		case JUMPIF:
+			// resolved effective address
+			return inst.d + constantRegValue(inst.r, ct);
+		case P_OTHER:
+			return inst.d + constantRegValue(inst.r, ct) - Machine.PB;
+		default:
+			return inst.d;
+		}
+	}
+
+	private static boolean compare(int kind, int x, int y) {
+		switch (kind) {
+		case P_LT:
+			return x < y;
+		case P_LE:
+			return x <= y;
+		case P_GE:
+			return x >= y;
+		case P_GT:
+			return x > y;
+		case P_EQ:
+			return x == y;
+		default:
+			return x != y;
+		}
+	}
+
+	private static long arith(int kind, int x, int y) {
+		switch (kind) {
+		case P_ADD:
+			return (long) x + y;
+		case P_SUB:
+			return (long) x - y;
+		default:
+			return (long) x * y;
+		}
+	}
+
+	/**
+	 * Makes room for spaceNeeded more words between the stack and heap of vm
+	 * @return the (possibly new) data store, or null if the data store is full
+	 */
+	private static int[] reserve(MjamVM vm, int ST, int HT, int spaceNeeded) {
+		vm.ST = ST;
+		vm.HT = HT;
+		if (HT - ST < spaceNeeded)
+			return null;
+		vm.growDataStore(spaceNeeded);
+		return vm.words;
+	}
+
+	/**
+	 * Runs the decoded program from the current register state of vm until
+	 * the program halts or fails.
+	 * @param vm      machine whose data store and registers are used
+	 * @param packed  code produced by decode() from the code store of vm,
+	 *                possibly with superinstructions added by Superinstructions.fuse()
+	 * @return number of instructions executed, counting each instruction of
+	 *         a superinstruction
+	 */
+	public static long run(MjamVM vm, int[] packed) {
+		return run(vm, packed, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Runs the decoded program from the current register state of vm until
+	 * the program halts or fails, or limit instructions have been executed,
+	 * leaving vm running.  Instructions run by compiled code are added to
+	 * vm.jitInstructions instead of the count returned, but use up the limit
+	 * too.
+	 * @return number of instructions executed
+	 */
+	public static long run(MjamVM vm, int[] packed, long limit) {
+		final int HB = vm.HB, CT = vm.CT;
+		int CP = vm.CP, ST = vm.ST, HT = vm.HT, LB = vm.LB, OB = vm.OB;
+		// heap address a is held in data[a - hoff]; the stack may grow up to data[SL - 1]
+		int[] data = vm.words;
+		int hoff = vm.heapOffset;
+		int SL = HT - hoff;
+		int status = MjamVM.running;
+		long count = 0;
+		int addr, index;
+		long acc;
+		// executions of each kind of superinstruction
+		final long[] fused = vm.fusionCounts;
+		// calls of each primitive, see MjamVM, and whether the calls are
+		// counted: only while metrics are enabled
+		final long[] prims = vm.primitiveCalls;
+		final boolean counting = vm.metrics != null;
+		// hot method compiler, if enabled, and the compiled code to be entered at CP
+		final JitCompiler jit = vm.jit;
+		CompiledCode compiled;
+
+		loop:
+		while (true) {
+			enter: {
+				slow: {
+					if (count >= limit)
+						break loop;
+					final int word = packed[2 * CP];
+					final int d = packed[2 * CP + 1];
+					count++;
+					switch (word & 0xFF) {
+					case LOAD_LB:
+						if (SL - ST < 1) {
+							if ((data = reserve(vm, ST, HT, 1)) == null) break slow;
+							SL = HT - (hoff = vm.heapOffset);
+						}
+						data[ST++] = data[LB + d];
+						CP++;
+						break;
+					case LOAD_SB:
+						if (SL - ST < 1) {
+							if ((data = reserve(vm, ST, HT, 1)) == null) break slow;
+							SL = HT - (hoff = vm.heapOffset);
+						}
+						data[ST++] = data[d];
+						CP++;
+						break;
+					case LOAD_OB:
+					case LOAD_ABS:
+						if (SL - ST < 1) {
+							if ((data = reserve(vm, ST, HT, 1)) == null) break slow;
+							SL = HT - (hoff = vm.heapOffset);
+						}
+						addr = (word & 0xFF) == LOAD_OB ? OB + d : d;
+						data[ST++] = data[addr >= HT ? addr - hoff : addr];
+						CP++;
+						break;
+					case LOADA_LB:
+						if (SL - ST < 1) {
+							if ((data = reserve(vm, ST, HT, 1)) == null) break slow;
+							SL = HT - (hoff = vm.heapOffset);
+						}
+						data[ST++] = LB + d;
+						CP++;
+						break;
+					case LOADA_SB:
+					case LOADA_ABS:
+					case LOADL:
+						if (SL - ST < 1) {
+							if ((data = reserve(vm, ST, HT, 1)) == null) break slow;
+							SL = HT - (hoff = vm.heapOffset);
+						}
+						data[ST++] = d;
+						CP++;
+						break;
+					case LOADA_OB:
+						if (SL - ST < 1) {
+							if ((data = reserve(vm, ST, HT, 1)) == null) break slow;
+							SL = HT - (hoff = vm.heapOffset);
+						}
+						data[ST++] = OB + d;
+						CP++;
+						break;
+					case LOADI:
+						addr = data[ST - 1];
+						data[ST - 1] = data[addr >= HT ? addr - hoff : addr];
+						CP++;
+						break;
+					case STORE_LB:
+						data[LB + d] = data[--ST];
+						CP++;
+						break;
+					case STORE_SB:
+						data[d] = data[--ST];
+						CP++;
+						break;
+					case STORE_OB:
+					case STORE_ABS:
+						addr = (word & 0xFF) == STORE_OB ? OB + d : d;
+						data[addr >= HT ? addr - hoff : addr] = data[--ST];
+						CP++;
+						break;
+					case STOREI:
+						addr = data[ST - 1];
+						data[addr >= HT ? addr - hoff : addr] = data[ST - 2];
+						ST -= 2;
+						CP++;
+						break;
+					case CALL:
+						if (SL - ST < 3) {
+							if ((data = reserve(vm, ST, HT, 3)) == null) break slow;
+							SL = HT - (hoff = vm.heapOffset);
+						}
+						data[ST] = OB;
+						data[ST + 1] = LB;
+						data[ST + 2] = CP + 1;
+						OB = Machine.nullRep;
+						LB = ST;
+						ST += 3;
+						CP = d;
+						if (counting) vm.calls++;
+						if (ST > vm.maxST) {
+							vm.maxST = ST;
+							if (vm.stackQuota > 0 && ST - MjamVM.SB > vm.stackQuota) { status = MjamVM.failedStackQuota; break loop; }
+						}
+						if (jit != null && (compiled = jit.enterCall(CP)) != null)
+							break enter;
+						break;
+					case CALLI:
+						if (SL - ST < 2) {
+							if ((data = reserve(vm, ST, HT, 2)) == null) break slow;
+							SL = HT - (hoff = vm.heapOffset);
+						}
+						addr = data[ST - 1];
+						data[ST - 1] = OB;
+						data[ST] = LB;
+						data[ST + 1] = CP + 1;
+						OB = addr;
+						LB = ST - 1;
+						ST += 2;
+						CP = d;
+						if (counting) vm.calls++;
+						if (ST > vm.maxST) {
+							vm.maxST = ST;
+							if (vm.stackQuota > 0 && ST - MjamVM.SB > vm.stackQuota) { status = MjamVM.failedStackQuota; break loop; }
+						}
+						if (jit != null && (compiled = jit.enterCall(CP)) != null)
+							break enter;
+						break;
+					case RETURN: {
+						final int n = (word >>> 8) & 0xFF;
+						addr = LB - d;
+						OB = data[LB];
+						CP = data[LB + 2];
+						LB = data[LB + 1];
+						if (n == 1)
+							data[addr] = data[ST - 1];
+						ST = addr + n;
+						if (CP < Machine.CB || CP >= CT) {
+							status = MjamVM.failedInvalidCodeAddress;
+							break loop;
+						}
+						break;
+					}
+					case PUSH:
+						if (SL - ST < d) {
+							if ((data = reserve(vm, ST, HT, d)) == null) break slow;
+							SL = HT - (hoff = vm.heapOffset);
+						}
+						ST += d;
+						CP++;
+						break;
+					case POP:
+						ST -= d;
+						CP++;
+						break;
+					case JUMP:
+						if (d <= CP && jit != null && (compiled = jit.enterLoop(d)) != null) {
+							CP = d;
+							break enter;
+						}
+						CP = d;
+						break;
+					case JUMPI:
+						CP = data[--ST];
+						if (CP < Machine.CB || CP >= CT) {
+							status = MjamVM.failedInvalidCodeAddress;
+							break loop;
+						}
+						break;
+					case JUMPIF:
+						if (data[--ST] == ((word >>> 8) & 0xFF)) {
+							if (d <= CP && jit != null && (compiled = jit.enterLoop(d)) != null) {
+								CP = d;
+								break enter;
+							}
+							CP = d;
+						} else
+							CP++;
+						break;
+					case HALT:
+						status = MjamVM.halted;
+						break loop;
+					case BAD_ADDRESS:
+						count--;
+						status = MjamVM.failedInvalidCodeAddress;
+						break loop;
+					case BAD_INSTRUCTION:
+						status = MjamVM.failedInvalidInstruction;
+						break loop;
+
+					// primitives
+					case P_ID:
+						if (counting) prims[PRIM_ID]++;
+						CP++;
+						break;
+					case P_NOT:
+						if (counting) prims[PRIM_NOT]++;
+						data[ST - 1] = data[ST - 1] == Machine.trueRep ? Machine.falseRep : Machine.trueRep;
+						CP++;
+						break;
+					case P_AND:
+						if (counting) prims[PRIM_AND]++;
+						ST--;
+						data[ST - 1] = (data[ST - 1] == Machine.trueRep & data[ST] == Machine.trueRep)
+								? Machine.trueRep : Machine.falseRep;
+						CP++;
+						break;
+					case P_OR:
+						if (counting) prims[PRIM_OR]++;
+						ST--;
+						data[ST - 1] = (data[ST - 1] == Machine.trueRep | data[ST] == Machine.trueRep)
+								? Machine.trueRep : Machine.falseRep;
+						CP++;
+						break;
+					case P_NEG:
+						if (counting) prims[PRIM_NEG]++;
+						data[ST - 1] = -data[ST - 1];
+						CP++;
+						break;
+					case P_ADD:
+						acc = (long) data[ST - 2] + data[ST - 1];
+						if (acc != (int) acc) break slow;
+						if (counting) prims[PRIM_ADD]++;
+						data[--ST - 1] = (int) acc;
+						CP++;
+						break;
+					case P_SUB:
+						acc = (long) data[ST - 2] - data[ST - 1];
+						if (acc != (int) acc) break slow;
+						if (counting) prims[PRIM_SUB]++;
+						data[--ST - 1] = (int) acc;
+						CP++;
+						break;
+					case P_MULT:
+						acc = (long) data[ST - 2] * data[ST - 1];
+						if (acc != (int) acc) break slow;
+						if (counting) prims[PRIM_MULT]++;
+						data[--ST - 1] = (int) acc;
+						CP++;
+						break;
+					case P_LT:
+						if (counting) prims[PRIM_LT]++;
+						ST--;
+						data[ST - 1] = data[ST - 1] < data[ST] ? Machine.trueRep : Machine.falseRep;
+						CP++;
+						break;
+					case P_LE:
+						if (counting) prims[PRIM_LE]++;
+						ST--;
+						data[ST - 1] = data[ST - 1] <= data[ST] ? Machine.trueRep : Machine.falseRep;
+						CP++;
+						break;
+					case P_GE:
+						if (counting) prims[PRIM_GE]++;
+						ST--;
+						data[ST - 1] = data[ST - 1] >= data[ST] ? Machine.trueRep : Machine.falseRep;
+						CP++;
+						break;
+					case P_GT:
+						if (counting) prims[PRIM_GT]++;
+						ST--;
+						data[ST - 1] = data[ST - 1] > data[ST] ? Machine.trueRep : Machine.falseRep;
+						CP++;
+						break;
+					case P_EQ:
+						if (counting) prims[PRIM_EQ]++;
+						ST--;
+						data[ST - 1] = data[ST - 1] == data[ST] ? Machine.trueRep : Machine.falseRep;
+						CP++;
+						break;
+					case P_NE:
+						if (counting) prims[PRIM_NE]++;
+						ST--;
+						data[ST - 1] = data[ST - 1] != data[ST] ? Machine.trueRep : Machine.falseRep;
+						CP++;
+						break;
+					case P_ARRAYLEN:
+						addr = data[ST - 1];
+						if (addr == Machine.nullRep || addr < HT + 2 || addr > HB || data[addr - hoff - 2] != -2) break slow;
+						if (counting) prims[PRIM_ARRAYLEN]++;
+						data[ST - 1] = data[addr - hoff - 1];
+						CP++;
+						break;
+					case P_ARRAYREF:
+						addr = data[ST - 2];
+						if (addr == Machine.nullRep || addr < HT + 2 || addr > HB) break slow;
+						addr -= hoff;
+						index = data[ST - 1];
+						if (data[addr - 2] != -2 || index < 0 || index >= data[addr - 1]) break slow;
+						if (counting) prims[PRIM_ARRAYREF]++;
+						data[ST - 2] = data[addr + index];
+						ST--;
+						CP++;
+						break;
+					case P_ARRAYUPD:
+						addr = data[ST - 3];
+						if (addr == Machine.nullRep || addr < HT + 2 || addr > HB) break slow;
+						addr -= hoff;
+						index = data[ST - 2];
+						if (data[addr - 2] != -2 || index < 0 || index >= data[addr - 1]) break slow;
+						if (counting) prims[PRIM_ARRAYUPD]++;
+						data[addr + index] = data[ST - 1];
+						ST -= 3;
+						CP++;
+						break;
+					case P_FIELDREF:
+						addr = data[ST - 2];
+						if (addr == Machine.nullRep || addr < HT + 2 || addr > HB) break slow;
+						addr -= hoff;
+						index = data[ST - 1];
+						if (index < 0 || index >= data[addr - 1]) break slow;
+						if (counting) prims[PRIM_FIELDREF]++;
+						data[ST - 2] = data[addr + index];
+						ST--;
+						CP++;
+						break;
+					case P_FIELDUPD:
+						addr = data[ST - 3];
+						if (addr == Machine.nullRep || addr < HT + 2 || addr > HB) break slow;
+						addr -= hoff;
+						index = data[ST - 2];
+						if (index < 0 || index >= data[addr - 1]) break slow;
+						if (counting) prims[PRIM_FIELDUPD]++;
+						data[addr + index] = data[ST - 1];
+						ST -= 3;
+						CP++;
+						break;
+					case P_UARRAYREF:
+						if (counting) prims[PRIM_UARRAYREF]++;
+						data[ST - 2] = data[data[ST - 2] - hoff + data[ST - 1]];
+						ST--;
+						CP++;
+						break;
+					case P_UARRAYUPD:
+						if (counting) prims[PRIM_UARRAYUPD]++;
+						data[data[ST - 3] - hoff + data[ST - 2]] = data[ST - 1];
+						ST -= 3;
+						CP++;
+						break;
+					case P_OTHER:
+						vm.ST = ST;
+						vm.HT = HT;
+						vm.status = MjamVM.running;
+						vm.callPrimitive(d);
+						ST = vm.ST;
+						HT = vm.HT;
+						data = vm.words;
+						hoff = vm.heapOffset;
+						SL = HT - hoff;
+						if (vm.status != MjamVM.running) {
+							status = vm.status;
+							if (status == MjamVM.suspended)
+								count--; // the primitive runs when the machine resumes
+							else
+								CP++; // as the reference leaves it after a failure
+							break loop;
+						}
+						CP++;
+						break;
+
+					// superinstructions: count covers every instruction replaced.  If
+					// the sequence would fail, or take the count past limit, only its
+					// first instruction is executed, by the reference implementation,
+					// and the rest of the sequence (left in place) follows one by one
+					case F_LB_LIT_ARITH_STORE:
+						if (SL - ST < 2 || count + 3 > limit) break slow;
+						acc = arith((word >>> 8) & 0xFF, data[LB + d], packed[2 * CP + 3]);
+						if (acc != (int) acc) break slow;
+						data[LB + packed[2 * CP + 7]] = (int) acc;
+						CP += 4;
+						count += 3;
+						fused[F_LB_LIT_ARITH_STORE - Superinstructions.FIRST]++;
+						if (counting) prims[primitive[(word >>> 8) & 0xFF]]++;
+						break;
+					case F_LB_LIT_CMP_JUMPIF:
+					case F_LB_LB_CMP_JUMPIF:
+						if (SL - ST < 2 || count + 3 > limit) break slow;
+						index = packed[2 * CP + 3];
+						if ((word & 0xFF) == F_LB_LB_CMP_JUMPIF)
+							index = data[LB + index];
+						count += 3;
+						fused[(word & 0xFF) - Superinstructions.FIRST]++;
+						if (counting) prims[primitive[(word >>> 8) & 0xFF]]++;
+						if ((compare((word >>> 8) & 0xFF, data[LB + d], index) ? Machine.trueRep : Machine.falseRep)
+								== ((word >>> 16) & 0xFF)) {
+							addr = packed[2 * CP + 7];
+							if (addr <= CP && jit != null && (compiled = jit.enterLoop(addr)) != null) {
+								CP = addr;
+								break enter;
+							}
+							CP = addr;
+						} else
+							CP += 4;
+						break;
+					case F_LB_LIT_FIELDREF:
+						if (SL - ST < 2 || count + 2 > limit) break slow;
+						addr = data[LB + d];
+						index = packed[2 * CP + 3];
+						if (addr == Machine.nullRep || addr < HT + 2 || addr > HB
+								|| index < 0 || index >= data[addr - hoff - 1]) break slow;
+						data[ST++] = data[addr - hoff + index];
+						CP += 3;
+						count += 2;
+						fused[F_LB_LIT_FIELDREF - Superinstructions.FIRST]++;
+						if (counting) prims[PRIM_FIELDREF]++;
+						break;
+					case F_LIT_CMP_JUMPIF:
+						if (SL - ST < 1 || count + 2 > limit) break slow;
+						count += 2;
+						fused[F_LIT_CMP_JUMPIF - Superinstructions.FIRST]++;
+						if (counting) prims[primitive[(word >>> 8) & 0xFF]]++;
+						if ((compare((word >>> 8) & 0xFF, data[--ST], d) ? Machine.trueRep : Machine.falseRep)
+								== ((word >>> 16) & 0xFF)) {
+							addr = packed[2 * CP + 5];
+							if (addr <= CP && jit != null && (compiled = jit.enterLoop(addr)) != null) {
+								CP = addr;
+								break enter;
+							}
+							CP = addr;
+						} else
+							CP += 3;
+						break;
+					case F_LIT_ARITH:
+						if (SL - ST < 1 || count + 1 > limit) break slow;
+						acc = arith((word >>> 8) & 0xFF, data[ST - 1], d);
+						if (acc != (int) acc) break slow;
+						data[ST - 1] = (int) acc;
+						CP += 2;
+						count++;
+						fused[F_LIT_ARITH - Superinstructions.FIRST]++;
+						if (counting) prims[primitive[(word >>> 8) & 0xFF]]++;
+						break;
+					case F_LIT_FIELDREF:
+						if (SL - ST < 1 || count + 1 > limit) break slow;
+						addr = data[ST - 1];
+						if (addr == Machine.nullRep || addr < HT + 2 || addr > HB
+								|| d < 0 || d >= data[addr - hoff - 1]) break slow;
+						data[ST - 1] = data[addr - hoff + d];
+						CP += 2;
+						count++;
+						fused[F_LIT_FIELDREF - Superinstructions.FIRST]++;
+						if (counting) prims[PRIM_FIELDREF]++;
+						break;
+					case F_LOAD_LB2:
+						if (SL - ST < 2 || count + 1 > limit) break slow;
+						data[ST] = data[LB + d];
+						data[ST + 1] = data[LB + packed[2 * CP + 3]];
+						ST += 2;
+						CP += 2;
+						count++;
+						fused[F_LOAD_LB2 - Superinstructions.FIRST]++;
+						break;
+
+					default:
+						break slow;
+					}
+					continue;
+				}
+
+				// GENERIC, or an instruction whose checks failed: execute it with
+				// the reference implementation, which also reports any failure
+				vm.CP = CP;
+				vm.ST = ST;
+				vm.HT = HT;
+				vm.LB = LB;
+				vm.OB = OB;
+				vm.status = MjamVM.running;
+				vm.interpretOneOperation();
+				if (vm.status != MjamVM.running) {
+					if (vm.status == MjamVM.suspended && vm.atInputPrimitive)
+						count--; // the primitive runs when the machine resumes
+					return count;
+				}
+				CP = vm.CP;
+				ST = vm.ST;
+				HT = vm.HT;
+				LB = vm.LB;
+				OB = vm.OB;
+				data = vm.words;
+				hoff = vm.heapOffset;
+				SL = HT - hoff;
+				continue;
+			}
+
+			// run compiled code from CP, with what is left of the limit, then
+			// carry on from wherever it stopped
+			vm.CP = CP;
+			vm.ST = ST;
+			vm.HT = HT;
+			vm.LB = LB;
+			vm.OB = OB;
+			vm.status = MjamVM.running;
+			final long before = vm.jitInstructions;
+			vm.jitLimit = limit == Long.MAX_VALUE ? limit : before + limit - count;
+			compiled.run(vm);
+			if (limit != Long.MAX_VALUE)
+				limit -= vm.jitInstructions - before;
+			CP = vm.CP;
+			ST = vm.ST;
+			HT = vm.HT;
+			LB = vm.LB;
+			OB = vm.OB;
+			data = vm.words;
+			hoff = vm.heapOffset;
+			SL = HT - hoff;
+			if (vm.status != MjamVM.running) {
+				status = vm.status;
+				break;
+			}
+			if (CP < Machine.CB || CP >= CT) {
+				status = MjamVM.failedInvalidCodeAddress;
+				break;
+			}
+		}
+
+		vm.CP = CP;
+		vm.ST = ST;
+		vm.HT = HT;
+		vm.LB = LB;
+		vm.OB = OB;
+		vm.status = status;
+		return count;
+	}
+}
@@ -0,0 +1,254 @@
+/**
+ * Size-class free-list allocator for the mJAM heap
+ */
+package mJAM;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Segregated free lists for the heap of one MjamVM.
+ *
+ * Blocks returned by the dispose primitive (or by the collector) are kept on
+ * a list for their size class and reused by newobj, newarr and alloc before
+ * HT is lowered.  Sizes are in words and include the 2 word block header.
+ * Each size below smallLimit has a class of its own; larger sizes share a
+ * class per power of two.  Each list is kept with its lowest address at its
+ * head, so the allocator finds the lowest addressed block that fits, exactly
+ * or with a remainder big enough to hold a header, by looking at the head of
+ * each class large enough.  Only a power-of-two class that may hold a block
+ * of the request's size or one word more, which leaves a remainder too small
+ * for a header, needs to be searched.  That is the block the collector's
+ * address-ordered first fit would choose, so with the collector the free
+ * lists place blocks just as it would and never need a larger data store,
+ * while the search of the other classes does not depend on the number of
+ * free blocks.
+ *
+ * Free blocks keep a header tagged GarbageCollector.freeTag so the heap can
+ * still be walked by the collector.  Blocks reserved by the alloc primitive
+ * are given a header tagged rawTag, so that they can be disposed too.
+ */
+public class FreeListAllocator {
+
+	// header tag of a block reserved by the alloc primitive
+	public final static int rawTag = -4;
+
+	// sizes below this have an exact size class
+	final static int smallLimit = 64;
+
+	private final MjamVM vm;
+
+	// lists[c][0..counts[c]-1] are the header addresses of free blocks in class
+	// c, kept as a binary heap with the lowest address at lists[c][0]
+	private final int[][] lists;
+	private final int[] counts;
+
+	// STATISTICS
+	long hits;
+	long misses;
+	long disposes;
+	long wordsDisposed;
+
+	FreeListAllocator(MjamVM vm) {
+		this.vm = vm;
+		int classes = sizeClass(Integer.MAX_VALUE) + 1;
+		lists = new int[classes][];
+		counts = new int[classes];
+	}
+
+	private static int sizeClass(int size) {
+		if (size < smallLimit)
+			return size;
+		// one class per power of two from smallLimit upwards
+		return smallLimit + Integer.numberOfLeadingZeros(smallLimit)
+				- Integer.numberOfLeadingZeros(size);
+	}
+
+	// smallest block size in class c
+	private static int smallest(int c) {
+		return c < smallLimit ? c : smallLimit << (c - smallLimit);
+	}
+
+	/**
+	 * Forget all free blocks (called when the machine is reset)
+	 */
+	void reset() {
+		for (int c = 0; c < counts.length; c++)
+			counts[c] = 0;
+	}
+
+	/**
+	 * Takes a free block of size words (including its 2 word header)
+	 * @return header address of the block, or -1 if no free block fits
+	 */
+	int allocate(int size) {
+		// the lowest addressed block that fits, either exactly or leaving
+		// room for the header of the remainder, as the collector's first fit
+		// would choose; the lowest block of each class is at the head of its list
+		DataStore data = vm.data;
+		int best = Integer.MAX_VALUE, bestClass = -1, bestIndex = 0;
+		for (int c = sizeClass(size); c < counts.length; c++) {
+			// in a class of one size, or of blocks all at least size + 2 words,
+			// the head is the lowest block that fits if any does; a power-of-two
+			// class that may hold a block of size or size + 1 words (the
+			// request's own, and the next when it starts at size + 1) is searched
+			int n = c < smallLimit || smallest(c) >= size + 2 ? Math.min(counts[c], 1) : counts[c];
+			int[] list = lists[c];
+			for (int i = 0; i < n; i++) {
+				if (list[i] >= best)
+					continue;
+				int remainder = data.get(list[i] - vm.heapOffset + 1) + 2 - size;
+				if (remainder == 0 || remainder >= 2) {
+					best = list[i];
+					bestClass = c;
+					bestIndex = i;
+				}
+			}
+		}
+		if (bestClass == -1) {
+			misses++;
+			return -1;
+		}
+		int remainder = data.get(best - vm.heapOffset + 1) + 2 - size;
+		take(bestClass, bestIndex);
+		if (remainder > 0)
+			addFree(best + size, remainder);
+		hits++;
+		return best;
+	}
+
+	/**
+	 * Removes the i'th entry of the free list for class c
+	 * @return header address of the block
+	 */
+	private int take(int c, int i) {
+		int[] list = lists[c];
+		int header = list[i];
+		int n = --counts[c];
+		if (i < n) {
+			// move the last entry into the hole, then restore the heap order
+			int moved = list[n];
+			int j = i;
+			while (2 * j + 1 < n) {
+				int child = 2 * j + 1;
+				if (child + 1 < n && list[child + 1] < list[child])
+					child++;
+				if (list[child] >= moved)
+					break;
+				list[j] = list[child];
+				j = child;
+			}
+			if (j == i)
+				siftUp(list, i, moved);
+			else
+				list[j] = moved;
+		}
+		return header;
+	}
+
+	/**
+	 * Stores header at index i of a free list, moving it towards the head
+	 * past any entry with a higher address
+	 */
+	private static void siftUp(int[] list, int i, int header) {
+		while (i > 0 && list[(i - 1) / 2] > header) {
+			list[i] = list[(i - 1) / 2];
+			i = (i - 1) / 2;
+		}
+		list[i] = header;
+	}
+
+	/**
+	 * Returns the block with the given header address to its free list
+	 */
+	void free(int header, int size) {
+		if (header == vm.HT) {
+			// block is at the bottom of the heap: give it back to the gap
+			vm.HT += size;
+			return;
+		}
+		addFree(header, size);
+	}
+
+	/**
+	 * Adds the block with the given header address to its free list
+	 */
+	void addFree(int header, int size) {
+		int phys = header - vm.heapOffset;
+		vm.data.set(phys, GarbageCollector.freeTag);
+		vm.data.set(phys + 1, size - 2);
+		int c = sizeClass(size);
+		if (lists[c] == null)
+			lists[c] = new int[8];
+		else if (counts[c] == lists[c].length)
+			lists[c] = Arrays.copyOf(lists[c], 2 * counts[c]);
+		siftUp(lists[c], counts[c]++, header);
+	}
+
+	/**
+	 * Releases the heap block at addr (the address returned by newobj, newarr
+	 * or alloc), for the dispose primitive.  Sets the machine status if addr
+	 * is not the address of an allocated block.
+	 */
+	void dispose(int addr) {
+		if (addr == Machine.nullRep)
+			return;
+		if (addr < vm.HT + 2 || addr > vm.HB) {
+			vm.status = MjamVM.failedHeapRef;
+			return;
+		}
+		int phys = addr - vm.heapOffset;
+		int size = vm.data.get(phys - 1);
+		if (vm.data.get(phys - 2) == GarbageCollector.freeTag || size < 0
+				|| size > vm.HB - addr) {
+			vm.status = MjamVM.failedHeapRef; // not a block, or already disposed
+			return;
+		}
+		disposes++;
+		wordsDisposed += size + 2;
+		free(addr - 2, size + 2);
+	}
+
+	/**
+	 * @return number of words held in free blocks
+	 */
+	public long freeWords() {
+		long words = 0;
+		for (int c = 0; c < counts.length; c++)
+			for (int i = 0; i < counts[c]; i++)
+				words += vm.data.get(lists[c][i] - vm.heapOffset + 1) + 2;
+		return words;
+	}
+
+	/**
+	 * @return size in words of the largest free block
+	 */
+	public int largestFreeBlock() {
+		int largest = 0;
+		for (int c = 0; c < counts.length; c++)
+			for (int i = 0; i < counts[c]; i++)
+				largest = Math.max(largest, vm.data.get(lists[c][i] - vm.heapOffset + 1) + 2);
+		return largest;
+	}
+
+	/**
+	 * Write the allocator statistics
+	 */
+	public void printStatistics(PrintStream out) {
+		long free = freeWords();
+		int blocks = 0;
+		for (int c = 0; c < counts.length; c++)
+			blocks += counts[c];
+		int heap = vm.HB - vm.HT;
+		out.println("*** Allocator: " + hits + " hits, " + misses + " misses, "
+				+ disposes + " disposes (" + wordsDisposed + " words)");
+		// fragmentation: share of the heap held in free blocks, and share of
+		// the free words that are not in the largest free block
+		out.println("*** Allocator: heap " + heap + " words, " + free + " words in "
+				+ blocks + " free blocks ("
+				+ String.format("%.1f", heap == 0 ? 0.0 : 100.0 * free / heap) + "% of heap), "
+				+ "fragmentation "
+				+ String.format("%.1f", free == 0 ? 0.0 : 100.0 * (free - largestFreeBlock()) / free)
+				+ "%");
+	}
+}
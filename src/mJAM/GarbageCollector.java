@@ -0,0 +1,307 @@
+/**
+ * Garbage collector for the mJAM heap
+ */
+package mJAM;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Mark-sweep collector for the heap of one MjamVM.
+ *
+ * Every heap block has the 2 word header written by newobj and newarr: a
+ * class object address (or the array tag -2) followed by the size of the
+ * block in words.  The collector adds a third kind of block, tagged
+ * freeTag, so the heap between HT and HB can always be walked block by
+ * block.
+ *
+ * mJAM data words carry no type, so the collector is conservative: every
+ * stack word (static fields, frames and temporaries in SB..ST-1), the OB
+ * register and every word of a reachable block is treated as a reference if
+ * it holds an address inside a block.  Because any such word may really be
+ * an integer, live blocks are never moved.  Instead the sweep coalesces
+ * adjacent dead blocks into free blocks, raises HT past free space at the
+ * bottom of the heap, and allocate() reuses free blocks (first fit) before
+ * the heap is extended.  When the machine also has a FreeListAllocator,
+ * the free blocks found by the sweep are handed to its size-class lists
+ * instead.
+ *
+ * The alloc primitive reserves raw heap space without a header; once it has
+ * been used the heap can no longer be walked and collection is disabled.
+ */
+public class GarbageCollector {
+
+	// header tag of a free heap block
+	public final static int freeTag = -3;
+
+	private final MjamVM vm;
+
+	// free blocks, as header addresses, in increasing address order
+	private int[] freeBlocks = new int[16];
+	private int freeCount = 0;
+
+	// heap blocks found by the last walk: header address and payload size
+	private int[] blockAddr = new int[16];
+	private int[] blockSize = new int[16];
+	private boolean[] marked = new boolean[16];
+	private int blockCount;
+	private int[] worklist = new int[16];
+
+	// false once the heap holds space reserved by the alloc primitive
+	boolean heapParsable;
+
+	// live blocks at the bottom of the heap pin HT, so collect while this
+	// many words are still left between the stack and heap for the stack
+	final static int stackReserve = 64;
+
+	// STATISTICS
+	long collections;
+	long wordsReclaimed;
+	long liveWordsAfterLast;
+	long totalPauseNanos;
+	long maxPauseNanos;
+	long freeListAllocations;
+
+	GarbageCollector(MjamVM vm) {
+		this.vm = vm;
+		reset();
+	}
+
+	/**
+	 * Forget the contents of the heap (called when the machine is reset)
+	 */
+	void reset() {
+		freeCount = 0;
+		heapParsable = !vm.rawHeap;
+	}
+
+	/**
+	 * Reserves a heap block of size words (including its 2 word header),
+	 * from a free block if one fits, otherwise by collecting when the stack
+	 * and heap are about to meet.
+	 * @return header address of the block, or -1 if the caller should extend
+	 *         the heap at HT as usual
+	 */
+	int allocate(int size) {
+		if (size < 2 || !heapParsable)
+			return -1;
+		// the machine has already tried its size-class free lists, if any
+		int addr = vm.freeLists == null ? allocateFromFreeList(size) : -1;
+		// collect when the heap would reach the stack, or its quota
+		if (addr == -1 && (vm.HT - vm.ST < size + stackReserve
+				|| vm.heapQuota > 0 && vm.HB - vm.HT + size > vm.heapQuota)) {
+			collect();
+			addr = vm.freeLists == null ? allocateFromFreeList(size)
+					: vm.freeLists.allocate(size);
+		}
+		return addr;
+	}
+
+	private int allocateFromFreeList(int size) {
+		DataStore data = vm.data;
+		for (int i = 0; i < freeCount; i++) {
+			int header = freeBlocks[i];
+			int phys = header - vm.heapOffset;
+			int available = data.get(phys + 1) + 2;
+			int remainder = available - size;
+			// a remainder must have room for its own header
+			if (remainder == 0) {
+				System.arraycopy(freeBlocks, i + 1, freeBlocks, i, freeCount - i - 1);
+				freeCount--;
+			} else if (remainder >= 2) {
+				data.set(phys + size, freeTag);
+				data.set(phys + size + 1, remainder - 2);
+				freeBlocks[i] = header + size;
+			} else
+				continue;
+			freeListAllocations++;
+			return header;
+		}
+		return -1;
+	}
+
+	/**
+	 * Collect the heap of the machine
+	 */
+	public void collect() {
+		if (!heapParsable)
+			return;
+		long start = System.nanoTime();
+
+		if (!findBlocks()) {
+			// heap is not in the expected format: leave it alone
+			heapParsable = false;
+			return;
+		}
+		markFromRoots();
+		long reclaimed = sweep();
+
+		long pause = System.nanoTime() - start;
+		collections++;
+		wordsReclaimed += reclaimed;
+		totalPauseNanos += pause;
+		maxPauseNanos = Math.max(maxPauseNanos, pause);
+	}
+
+	/**
+	 * Walk the heap from HT to HB recording each block
+	 * @return false if the headers do not describe the heap exactly
+	 */
+	private boolean findBlocks() {
+		DataStore data = vm.data;
+		int offset = vm.heapOffset;
+		blockCount = 0;
+		int header = vm.HT;
+		while (header < vm.HB) {
+			if (header + 2 > vm.HB)
+				return false;
+			int size = data.get(header - offset + 1);
+			if (size < 0 || size > vm.HB - header - 2)
+				return false;
+			if (blockCount == blockAddr.length) {
+				blockAddr = Arrays.copyOf(blockAddr, 2 * blockCount);
+				blockSize = Arrays.copyOf(blockSize, 2 * blockCount);
+			}
+			blockAddr[blockCount] = header;
+			blockSize[blockCount] = size;
+			blockCount++;
+			header += size + 2;
+		}
+		if (marked.length < blockCount)
+			marked = new boolean[blockAddr.length];
+		else
+			Arrays.fill(marked, 0, blockCount, false);
+		return true;
+	}
+
+	/**
+	 * @return index of the block whose payload holds addr, or -1 if addr is
+	 *         not a reference to a live (non-free) block
+	 */
+	private int blockContaining(int addr) {
+		if (addr < vm.HT + 2 || addr > vm.HB)
+			return -1;
+		// greatest block with header + 2 <= addr
+		int lo = 0, hi = blockCount - 1, found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (blockAddr[mid] + 2 <= addr) {
+				found = mid;
+				lo = mid + 1;
+			} else
+				hi = mid - 1;
+		}
+		if (found == -1)
+			return -1;
+		// an object with no fields is referenced by the address just past its header
+		int payload = blockAddr[found] + 2;
+		if (addr != payload && addr >= payload + blockSize[found])
+			return -1;
+		if (vm.data.get(blockAddr[found] - vm.heapOffset) == freeTag)
+			return -1;
+		return found;
+	}
+
+	private int markWord(int word, int top) {
+		int block = blockContaining(word);
+		if (block != -1 && !marked[block]) {
+			marked[block] = true;
+			if (top == worklist.length)
+				worklist = Arrays.copyOf(worklist, 2 * top);
+			worklist[top++] = block;
+		}
+		return top;
+	}
+
+	private void markFromRoots() {
+		DataStore data = vm.data;
+		int top = 0;
+		for (int addr = MjamVM.SB; addr < vm.ST; addr++)
+			top = markWord(data.get(addr), top);
+		top = markWord(vm.OB, top);
+
+		while (top > 0) {
+			int block = worklist[--top];
+			int phys = blockAddr[block] - vm.heapOffset + 2;
+			int end = phys + blockSize[block];
+			for (int i = phys; i < end; i++)
+				top = markWord(data.get(i), top);
+		}
+	}
+
+	/**
+	 * Turn unmarked blocks into free blocks, merging neighbours, and raise HT
+	 * past any free space at the bottom of the heap
+	 * @return number of words reclaimed
+	 */
+	private long sweep() {
+		DataStore data = vm.data;
+		int offset = vm.heapOffset;
+		long reclaimed = 0, live = 0;
+		freeCount = 0;
+		if (vm.freeLists != null)
+			vm.freeLists.reset();
+
+		int i = 0;
+		while (i < blockCount) {
+			if (marked[i]) {
+				live += blockSize[i] + 2;
+				i++;
+				continue;
+			}
+			// run of dead or free blocks starting at block i
+			int start = blockAddr[i];
+			int end = start;
+			while (i < blockCount && !marked[i]) {
+				if (data.get(blockAddr[i] - offset) != freeTag)
+					reclaimed += blockSize[i] + 2;
+				end = blockAddr[i] + blockSize[i] + 2;
+				i++;
+			}
+			if (start == vm.HT) {
+				// free space at the bottom of the heap is returned to the gap
+				vm.HT = end;
+			} else {
+				data.set(start - offset, freeTag);
+				data.set(start - offset + 1, end - start - 2);
+				if (vm.freeLists != null)
+					vm.freeLists.addFree(start, end - start);
+				else {
+					if (freeCount == freeBlocks.length)
+						freeBlocks = Arrays.copyOf(freeBlocks, 2 * freeCount);
+					freeBlocks[freeCount++] = start;
+				}
+			}
+		}
+		liveWordsAfterLast = live;
+		return reclaimed;
+	}
+
+	/**
+	 * @return number of words currently held in free blocks
+	 */
+	public long freeWords() {
+		if (vm.freeLists != null)
+			return vm.freeLists.freeWords();
+		long words = 0;
+		for (int i = 0; i < freeCount; i++)
+			words += vm.data.get(freeBlocks[i] - vm.heapOffset + 1) + 2;
+		return words;
+	}
+
+	/**
+	 * Write the collector statistics
+	 */
+	public void printStatistics(PrintStream out) {
+		out.println("*** GC: " + collections + " collections, "
+				+ wordsReclaimed + " words reclaimed, "
+				+ liveWordsAfterLast + " words live after last collection");
+		out.println("*** GC: pause total " + String.format("%.3f", totalPauseNanos / 1e6)
+				+ " ms, max " + String.format("%.3f", maxPauseNanos / 1e6) + " ms");
+		out.println("*** GC: heap " + (vm.HB - vm.HT) + " words, "
+				+ freeWords() + " words in free blocks, "
+				+ freeListAllocations + " allocations from free blocks");
+		if (!heapParsable)
+			out.println("*** GC: disabled, heap holds blocks reserved by alloc");
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Inline caches for CALLD dynamic dispatch
+ */
+package mJAM;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Per call-site caches of the method addresses found by CALLD for one MjamVM.
+ *
+ * Each CALLD site has room for up to ways entries, each pairing the address
+ * of a class descriptor with the method address CALLD read from it.  A site
+ * whose instances have so far all had one descriptor is monomorphic and is
+ * answered by its first entry; a site seen with up to ways descriptors is
+ * polymorphic and searches its entries in the order they were added.  Once
+ * a site has seen more descriptors than that it is megamorphic and every
+ * call from it goes through the descriptor again.
+ *
+ * A hit skips the descriptor bounds and method index checks, so a class
+ * descriptor must not be changed once a call has been dispatched through it.
+ * The code generator builds descriptors once, in the static area, before the
+ * first call; the caches are emptied when the machine is reset.
+ */
+public class InlineCaches {
+
+	// entries per call site
+	public final static int ways = 4;
+
+	// entries of site s are descriptors[s*ways + i], targets[s*ways + i] for
+	// i < sizes[s]; sizes[s] is ways + 1 once the site is megamorphic
+	private final int[] descriptors;
+	private final int[] targets;
+	private final byte[] sizes;
+
+	// STATISTICS
+	long hits;
+	long misses;
+
+	InlineCaches(int codeTop) {
+		descriptors = new int[codeTop * ways];
+		targets = new int[codeTop * ways];
+		sizes = new byte[codeTop];
+	}
+
+	/**
+	 * Forget all cached targets (called when the machine is reset)
+	 */
+	void reset() {
+		Arrays.fill(sizes, (byte) 0);
+	}
+
+	/**
+	 * @return the method address cached for a call from site on an instance
+	 *         of the class described at classDescAddr, or -1 on a miss
+	 */
+	int lookup(int site, int classDescAddr) {
+		int base = site * ways;
+		int size = sizes[site];
+		if (size > ways)
+			size = 0;
+		for (int i = 0; i < size; i++)
+			if (descriptors[base + i] == classDescAddr) {
+				hits++;
+				return targets[base + i];
+			}
+		misses++;
+		return -1;
+	}
+
+	/**
+	 * Record the method address found in the descriptor after a miss
+	 */
+	void add(int site, int classDescAddr, int target) {
+		int size = sizes[site];
+		if (size < ways) {
+			descriptors[site * ways + size] = classDescAddr;
+			targets[site * ways + size] = target;
+		}
+		if (size <= ways)
+			sizes[site] = (byte) (size + 1);
+	}
+
+	public void printStatistics(PrintStream out) {
+		int mono = 0, poly = 0, mega = 0;
+		for (byte size : sizes)
+			if (size == 1)
+				mono++;
+			else if (size > ways)
+				mega++;
+			else if (size > 1)
+				poly++;
+		long calls = hits + misses;
+		out.println("*** Inline caches: " + hits + " hits, " + misses + " misses ("
+				+ String.format("%.1f", calls == 0 ? 0.0 : 100.0 * hits / calls) + "% hit rate)");
+		out.println("*** Inline caches: " + mono + " monomorphic, " + poly + " polymorphic, "
+				+ mega + " megamorphic call sites");
+	}
+}
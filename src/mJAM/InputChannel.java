@@ -0,0 +1,228 @@
+/**
+ * Buffered input for the mJAM input primitives
+ */
+package mJAM;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Supplies the bytes read by get, geteol and getint from a buffer refilled a
+ * block at a time from the source stream (System.in by default), or from a
+ * fixed byte array, or from a queue of blocks offered by other threads.
+ *
+ * A queued channel lets a machine be suspended, rather than wait, before an
+ * input primitive whose input has not arrived (see MjamVM.whenInputBlocks
+ * and VmScheduler): ready tells whether the primitive could run without
+ * waiting for another block.
+ *
+ * A channel may be tied to an OutputChannel, which is flushed before the
+ * channel blocks on its source, so that a prompt written by the program is
+ * seen before the program waits for the reply.
+ */
+public class InputChannel {
+
+	public final static int defaultBufferSize = 8192;
+
+	// null for a channel over a fixed array or a queue
+	private final InputStream source;
+	private byte[] buffer;
+	private int position, limit;
+	// blocks offered to a queued channel, null for other channels, and
+	// whether endOfInput has been taken from it
+	private final BlockingQueue<byte[]> queue;
+	private boolean ended;
+	private final static byte[] endOfInput = new byte[0];
+	// bytes read from the source before those in the buffer
+	private long base;
+	private OutputChannel tied;
+
+	public InputChannel(InputStream source) {
+		this(source, defaultBufferSize);
+	}
+
+	public InputChannel(InputStream source, int bufferSize) {
+		this.source = source;
+		buffer = new byte[Math.max(bufferSize, 1)];
+		queue = null;
+	}
+
+	private InputChannel(byte[] bytes, BlockingQueue<byte[]> queue) {
+		source = null;
+		buffer = bytes;
+		limit = bytes.length;
+		this.queue = queue;
+	}
+
+	/**
+	 * @return a channel reading the given bytes, then end of file
+	 */
+	public static InputChannel of(byte[] bytes) {
+		return new InputChannel(bytes.clone(), null);
+	}
+
+	/**
+	 * @return a channel reading the characters of s encoded with the default
+	 *         charset, then end of file
+	 */
+	public static InputChannel of(String s) {
+		return new InputChannel(s.getBytes(), null);
+	}
+
+	/**
+	 * @return a channel reading a file
+	 */
+	public static InputChannel fromFile(String fileName) throws IOException {
+		return new InputChannel(new FileInputStream(fileName));
+	}
+
+	/**
+	 * @return a channel reading the blocks given to offer, in order, then end
+	 *         of file once close is called
+	 */
+	public static InputChannel queued() {
+		return new InputChannel(new byte[0], new LinkedBlockingQueue<byte[]>());
+	}
+
+	/**
+	 * Add bytes to the input of a queued channel; may be called from any
+	 * thread
+	 */
+	public void offer(byte[] bytes) {
+		if (queue == null)
+			throw new IllegalStateException("not a queued channel");
+		if (bytes.length > 0)
+			queue.add(bytes.clone());
+	}
+
+	/**
+	 * Add the characters of s, encoded with the default charset, to the
+	 * input of a queued channel
+	 */
+	public void offer(String s) {
+		offer(s.getBytes());
+	}
+
+	/**
+	 * End the input of a queued channel after the bytes already offered
+	 */
+	public void close() {
+		if (queue == null)
+			throw new IllegalStateException("not a queued channel");
+		queue.add(endOfInput);
+	}
+
+	/**
+	 * @return true if a queued channel holds offered bytes, or the end of
+	 *         input, that have not yet been taken into its buffer
+	 */
+	boolean hasOffers() {
+		return queue != null && !queue.isEmpty();
+	}
+
+	/**
+	 * @return true if the input primitive prim (get, geteol or getint) can
+	 *         run without waiting for bytes to be offered; always true for a
+	 *         channel that is not queued
+	 */
+	boolean ready(Machine.Prim prim) {
+		if (queue == null)
+			return true;
+		take(queue.poll());
+		if (ended)
+			return true;
+		int i = position;
+		switch (prim) {
+		case get:
+			return i < limit;
+		case geteol:
+			while (i < limit && buffer[i] != '\n')
+				i++;
+			return i < limit;
+		default:
+			// as MjamVM.readInt: white space, signs, digits, then the byte
+			// that ends them
+			while (i < limit && Character.isWhitespace((char) (buffer[i] & 0xFF)))
+				i++;
+			while (i < limit && (buffer[i] == '-' || buffer[i] == '+'))
+				i++;
+			while (i < limit && Character.isDigit((char) (buffer[i] & 0xFF)))
+				i++;
+			return i < limit;
+		}
+	}
+
+	// Moves the block, if any, and the others queued after it into the
+	// buffer, keeping the bytes not yet read
+	private void take(byte[] bytes) {
+		for (; bytes != null; bytes = queue.poll()) {
+			if (bytes == endOfInput) {
+				ended = true;
+				continue;
+			}
+			base += position;
+			limit -= position;
+			if (limit + bytes.length > buffer.length)
+				buffer = Arrays.copyOfRange(buffer, position, position
+						+ Math.max(2 * buffer.length, limit + bytes.length));
+			else
+				System.arraycopy(buffer, position, buffer, 0, limit);
+			position = 0;
+			System.arraycopy(bytes, 0, buffer, limit, bytes.length);
+			limit += bytes.length;
+		}
+	}
+
+	/**
+	 * Flush out whenever this channel has to wait for its source
+	 */
+	void tie(OutputChannel out) {
+		tied = out;
+	}
+
+	/**
+	 * @return the next byte (0..255), or -1 at end of file
+	 */
+	int read() throws IOException {
+		if (position == limit && queue != null) {
+			byte[] bytes = queue.poll();
+			if (bytes == null && !ended) {
+				if (tied != null)
+					tied.flush();
+				try {
+					bytes = queue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			take(bytes);
+			if (position == limit)
+				return -1;
+		} else if (position == limit) {
+			if (source == null)
+				return -1;
+			if (tied != null)
+				tied.flush();
+			base += limit;
+			int n = source.read(buffer, 0, buffer.length);
+			position = 0;
+			limit = Math.max(n, 0);
+			if (n <= 0)
+				return -1;
+		}
+		return buffer[position++] & 0xFF;
+	}
+
+	/**
+	 * @return number of bytes read from this channel
+	 */
+	public long position() {
+		return base + position;
+	}
+}
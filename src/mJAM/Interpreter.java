@@ -11,30 +11,19 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
+import javax.management.JMException;
+
 // import mJAM.Machine.Reg;
 
 public class Interpreter {
 
-	// DATA STORE
-	static int[] data = new int[1024];
-
-	// DATA STORE REGISTERS AND OTHER REGISTERS
-	final static int CB = 0, SB = 0, HB = 1024; // = upper bound of data array + 1
-										
-
-	static int CT, CP, ST, HT, LB, OB, status, temp;
-
-	// machine status values
-	final static int running = 0, halted = 1, failedDataStoreFull = 2,
-			failedInvalidCodeAddress = 3, failedInvalidInstruction = 4,
-			failedOverflow = 5, failedZeroDivide = 6, failedIOError = 7,
-			failedArrayIndex = 8, failedNullRef = 9, failedHeapRef =10,
-			failedFieldIndex = 11, failedMethodIndex = 12;
-
-	static long accumulator;
+	// machine run by the command line and debugger entry points
+	static MjamVM vm;
 
 	// Debugger state
 	enum DebuggerStatus {
@@ -45,672 +34,19 @@ public class Interpreter {
 	static ArrayList<Integer> breakpoints = new ArrayList<Integer>();
 	static ArrayList<String> sourceLines;
 
-	static int content(int r) {
-		// Returns the current content of register r,
-		Machine.Reg reg = Machine.intToReg[r];
-		switch (reg) {
-		case CB:
-			return CB;
-		case CT:
-			return CT;
-		case PB:
-			return Machine.PB;
-		case PT:
-			return Machine.PT;
-		case SB:
-			return SB;
-		case ST:
-			return ST;
-		case HB:
-			return HB;
-		case HT:
-			return HT;
-		case LB:
-			return LB;
-		case OB:
-			return OB;
-		case CP:
-			return CP;
-		default:
-			return 0;
-		}
-	}
-
-	// PROGRAM STATUS
-
-	static void dump() {
-		// Writes a summary of the machine state.
-		int addr, dynamicLink;
-		System.out.println("");
-		System.out.println("At instruction " + CP
-				+ ", state of mJAM data store and registers is:");
-		System.out.println("");
-		if (HT == HB)
-			System.out.println("            |--------|          (heap is empty)");
-		else {
-			System.out.println("      HB--> ");
-			System.out.println("            |--------|");
-			for (addr = HB - 1; addr >= HT; addr--) {
-				System.out.print(rightPad(6, addr + ":"));
-				if (addr == OB)
-					System.out.print("OB--> ");
-				else if (addr == HT)
-					System.out.print("HT--> ");
-				else
-					System.out.print("      ");
-				System.out.println("|" + leftPad(8, String.valueOf(data[addr]))
-						+ "|");
-			}
-			System.out.println("            |--------|");
-		}
-		System.out.println("            |////////|");
-		System.out.println("            |////////|");
-		if (ST == SB)
-			System.out.println("            |--------|          (stack is empty)");
-		else {
-			dynamicLink = LB;
-			System.out.println("      ST--> |////////|");
-			System.out.println("            |--------|");
-			for (addr = ST - 1; addr >= SB; addr--) {
-				System.out.print(rightPad(6, addr + ": "));
-				if (addr == SB)
-					System.out.print("SB--> ");
-				else if (addr == LB)
-					System.out.print("LB--> ");
-				else
-					System.out.print("      ");
-				if ((addr == dynamicLink) && (dynamicLink != SB))
-					System.out.print("|OB="
-							+ leftPad(5, String.valueOf(data[addr])) + "|");
-				else if ((addr == dynamicLink + 1) && (dynamicLink != SB))
-					System.out.print("|DL="
-							+ leftPad(5, String.valueOf(data[addr])) + "|");
-				else if ((addr == dynamicLink + 2) && (dynamicLink != SB))
-					System.out.print("|RA="
-							+ leftPad(5, String.valueOf(data[addr])) + "|");
-				else
-					System.out.print("|"
-							+ leftPad(8, String.valueOf(data[addr])) + "|");
-				System.out.println("");
-				if (addr == dynamicLink) {
-					System.out.println("            |--------|");
-					dynamicLink = data[addr + 1];
-				}
-			}
-		}
-		System.out.println("");
-	}
-
-	private static String leftPad(int len, String s) {
-		int aLen = Math.max(len, s.length());
-		StringBuffer buf = new StringBuffer(s);
-		String r = buf.insert(0, "        ").toString();
-		return r.substring(r.length() - aLen, r.length());
-	}
-
-	private static String rightPad(int len, String s) {
-		int aLen = Math.max(len, s.length());
-		String r = s + "        ";
-		return r.substring(0, aLen);
-	}
-
-	static void showStatus() {
-		// Writes an indication of whether and why the program has terminated.
-		System.out.println("");
-		System.out.print("*** ");
-		switch (status) {
-		case running:
-			System.out.println("Program is running.");
-			break;
-		case halted:
-			System.out.println("Program has halted normally.");
-			break;
-		case failedDataStoreFull:
-			System.out.println("Program has failed due to exhaustion of Data Store.");
-			break;
-		case failedInvalidCodeAddress:
-			System.out.println("Program has failed due to an invalid code address.");
-			break;
-		case failedInvalidInstruction:
-			System.out.println("Program has failed due to an invalid instruction.");
-			break;
-		case failedOverflow:
-			System.out.println("Program has failed due to overflow.");
-			break;
-		case failedZeroDivide:
-			System.out.println("Program has failed due to division by zero.");
-			break;
-		case failedIOError:
-			System.out.println("Program has failed due to an IO error.");
-			break;
-		case failedArrayIndex:
-			System.out.println("Program has failed due to an array index error.");
-			break;
-		case failedNullRef:
-			System.out.println("Program has failed due to a null pointer reference.");
-			break;
-		case failedHeapRef:
-			System.out.println("Program has failed due to an invalid Heap reference.");
-			break;
-		case failedFieldIndex:
-			System.out.println("Program has failed due to a field index error.");
-			break;
-		case failedMethodIndex:
-			System.out.println("Program has failed due to an improper method index in CALLD.");
-			break;
-		default:
-			System.out.println("Machine is in an unknown state.");
-			break;
-		}
-		if (status != halted)
-			dump();
-	}
-
 	// INTERPRETATION
 
-	static void checkSpace(int spaceNeeded) {
-		// Signals failure if there is not enough space to expand the stack or
-		// heap by spaceNeeded.
-		if (HT - ST < spaceNeeded)
-			status = failedDataStoreFull;
-	}
-
-	static boolean invalidHeapRef(int addr) {
-		// if addr is null ptr or outside of heap bounds, sets status to failure
-		if (addr == Machine.nullRep)
-			status = failedNullRef;
-		else if (addr < HT + 2 || addr > HB)
-			status = failedHeapRef;
-		return (status != running);
-	}
-
-	static boolean isTrue(int datum) {
-		// Tests whether the given datum represents true.
-		return (datum == Machine.trueRep);
-	}
-
-	static int overflowChecked(long datum) {
-		// Signals failure if the datum is too large to fit into a single word,
-		// otherwise returns the datum as a single word.
-		if ((Machine.minintRep <= datum) && (datum <= Machine.maxintRep))
-			return (int) datum;
-		else {
-			status = failedOverflow;
-			return 0;
-		}
-	}
-
-	static int toInt(boolean b) {
-		return b ? Machine.trueRep : Machine.falseRep;
-	}
-
-	static int currentChar;
-
-	static int readInt() throws java.io.IOException {
-		int temp = 0;
-		int sign = 1;
-
-		do {
-			currentChar = System.in.read();
-		} while (Character.isWhitespace((char) currentChar));
-
-		if ((currentChar == '-') || (currentChar == '+'))
-			do {
-				sign = (currentChar == '-') ? -1 : 1;
-				currentChar = System.in.read();
-			} while ((currentChar == '-') || currentChar == '+');
-
-		if (Character.isDigit((char) currentChar))
-			do {
-				temp = temp * 10 + (currentChar - '0');
-				currentChar = System.in.read();
-			} while (Character.isDigit((char) currentChar));
-
-		return sign * temp;
-	}
-
-	// Invoke primitive operation with argument(s) on the stack
-	// primitives are static and are not supplied an instance on the stack.
-	static void callPrimitive(int id) {
-
-		int addr, size, index;
-		char ch;
-
-		Machine.Prim prim = Machine.intToPrim[id];
-		switch (prim) {
-		case id:
-			break; // nothing to be done
-		case not:
-			data[ST - 1] = toInt(!isTrue(data[ST - 1]));
-			break;
-		case and:
-			ST = ST - 1;
-			data[ST - 1] = toInt(isTrue(data[ST - 1]) & isTrue(data[ST]));
-			break;
-		case or:
-			ST = ST - 1;
-			data[ST - 1] = toInt(isTrue(data[ST - 1]) | isTrue(data[ST]));
-			break;
-		case succ:
-			data[ST - 1] = overflowChecked(data[ST - 1] + 1);
-			break;
-		case pred:
-			data[ST - 1] = overflowChecked(data[ST - 1] - 1);
-			break;
-		case neg:
-			data[ST - 1] = overflowChecked(-data[ST - 1]);
-			break;
-		case add:
-			ST = ST - 1;
-			accumulator = data[ST - 1];
-			data[ST - 1] = overflowChecked(accumulator + data[ST]);
-			break;
-		case sub:
-			ST = ST - 1;
-			accumulator = data[ST - 1];
-			data[ST - 1] = overflowChecked(accumulator - data[ST]);
-			break;
-		case mult:
-			ST = ST - 1;
-			accumulator = data[ST - 1];
-			data[ST - 1] = overflowChecked(accumulator * data[ST]);
-			break;
-		case div:
-			ST = ST - 1;
-			accumulator = data[ST - 1];
-			if (data[ST] != 0)
-				data[ST - 1] = (int) (accumulator / data[ST]);
-			else
-				status = failedZeroDivide;
-			break;
-		case mod:
-			ST = ST - 1;
-			accumulator = data[ST - 1];
-			if (data[ST] != 0)
-				data[ST - 1] = (int) (accumulator % data[ST]);
-			else
-				status = failedZeroDivide;
-			break;
-		case lt:
-			ST = ST - 1;
-			data[ST - 1] = toInt(data[ST - 1] < data[ST]);
-			break;
-		case le:
-			ST = ST - 1;
-			data[ST - 1] = toInt(data[ST - 1] <= data[ST]);
-			break;
-		case ge:
-			ST = ST - 1;
-			data[ST - 1] = toInt(data[ST - 1] >= data[ST]);
-			break;
-		case gt:
-			ST = ST - 1;
-			data[ST - 1] = toInt(data[ST - 1] > data[ST]);
-			break;
-		case eq:
-			ST = ST - 1;
-			data[ST - 1] = toInt(data[ST - 1] == data[ST]);
-			break;
-		case ne:
-			ST = ST - 1;
-			data[ST - 1] = toInt(data[ST - 1] != data[ST]);
-			break;
-		case eol:
-			data[ST] = toInt(currentChar == '\n');
-			ST = ST + 1;
-			break;
-		case eof:
-			data[ST] = toInt(currentChar == -1);
-			ST = ST + 1;
-			break;
-		case get:
-			ST = ST - 1;
-			addr = data[ST];
-			try {
-				currentChar = System.in.read();
-			} catch (java.io.IOException s) {
-				status = failedIOError;
-			}
-			data[addr] = (int) currentChar;
-			break;
-		case put:
-			ST = ST - 1;
-			ch = (char) data[ST];
-			System.out.print(ch);
-			break;
-		case geteol:
-			try {
-				while ((currentChar = System.in.read()) != '\n')
-					;
-			} catch (java.io.IOException s) {
-				status = failedIOError;
-			}
-			break;
-		case puteol:
-			System.out.println("");
-			break;
-		case getint:
-			ST = ST - 1;
-			addr = data[ST];
-			try {
-				accumulator = readInt();
-			} catch (java.io.IOException s) {
-				status = failedIOError;
-			}
-			data[addr] = (int) accumulator;
-			break;
-		case putint:
-			ST = ST - 1;
-			accumulator = data[ST];
-			System.out.print(accumulator);
-			break;
-		// output with prefix for tester
-		case putintnl:
-			ST = ST - 1;
-			accumulator = data[ST];
-			System.out.print(">>> " + accumulator + "\n");
-			break;
-		case alloc:
-			size = data[ST - 1];
-			checkSpace(size);
-			HT = HT - size;
-			data[ST - 1] = HT;
-			break;
-		case dispose:
-			ST = ST - 1; // no action taken at present
-			break;
-		case newobj:
-			// ..., class obj addr, number of fields ==> ..., new obj addr
-			size = data[ST - 1] + 2; // number of fields + 2 word descriptor
-			checkSpace(size);
-			HT = HT - size;          // reserve space
-			data[HT] = data[ST - 2]; // set class object addr
-			data[HT + 1] = size - 2; // set size of object
-			data[ST - 2] = HT + 2;   // addr of new object instance, returned on stack
-			ST = ST - 1;             // net effect of pop 2 args, push 1 result
-			for (int i = 2; i < size; i++) {
-				data[HT + i] = 0;    // zero all fields of new object
-			}
-			break;
-		case newarr:
-			// ..., number of elements ==> ..., new int[] addr
-			size = data[ST - 1] + 2;  // array  + 2 word descriptor
-			checkSpace(size);
-			HT = HT - size;
-			data[HT] = -2;            // tag for array
-			data[HT + 1] = size - 2;  // size of array
-			data[ST - 1] = HT + 2;    // addr of array instance, returned on stack
-			for (int i = 2; i < size; i++) {
-				data[HT + i] = 0;     // zero all elements of new array
-			}
-			break;
-		case arraylen:
-			// ..., array addr a ==> ... , array.length
-			addr = data[ST-1];
-			if (invalidHeapRef(addr))
-				break;                   // invalid heap address
-			if (data[addr - 2] != -2) {
-				status = failedHeapRef;  // not tagged as array in heap
-				break;
-			}
-			data[ST-1] = data[addr - 1]; // return array length field
-			break;
-		case arrayref:
-			// ..., array addr a, element index i ==> ..., a[i]
-			addr = data[ST - 2];
-			if (invalidHeapRef(addr))
-				break;
-			index = data[ST - 1];
-			if (data[addr - 2] != -2 || index < 0 || index >= data[addr - 1]) {
-				status = failedArrayIndex;
-				break;
-			}
-			data[ST - 2] = data[addr + index];  // result element, returned on stack
-			ST = ST - 1;                        // pop two args, return one result
-			break;
-		case arrayupd:
-			// ..., array addr a, element index i, new value v ==> ...
-			// and a[i] := v
-			addr = data[ST - 3];
-			if (invalidHeapRef(addr))
-				break;
-			index = data[ST - 2];
-			if (data[addr - 2] != -2 || index < 0 || index >= data[addr - 1]) {
-				status = failedArrayIndex;
-				break;
-			}
-			data[addr + index] = data[ST - 1]; // update array element
-			ST = ST - 3;                       // pop 3 args, return no result
-			break;
-		case fieldref:
-			// ..., obj addr a, field index i ==> ..., value of ith field of a
-			addr = data[ST - 2];
-			if (invalidHeapRef(addr))
-				break;
-			index = data[ST - 1];
-			if (index < 0 || index >= data[addr - 1]) {
-				status = failedFieldIndex;
-				break;
-			}
-			data[ST - 2] = data[addr + index];   // field to stack top
-			ST = ST - 1;                         // pop two args, return one result
-			break;
-		case fieldupd:
-			// ..., obj addr a, field index i, new value v ==> ...
-			// and a.i := v
-			addr = data[ST - 3];
-			if (invalidHeapRef(addr))
-				break;
-			index = data[ST - 2];
-			if (index < 0 || index >= data[addr - 1]) {
-				status = failedFieldIndex;	
-				break;	
-			}	
-			data[addr + index] = data[ST - 1];	// update field to new value
-			ST = ST - 3;						// pop 3 args, return no result
-			break;
-		}
-	}
-
 	static void interpretOneOperation() {
-		// Fetch instruction ...
-		Instruction currentInstr = Machine.code[CP];
-		// Decode instruction ...
-		int op = currentInstr.op;
-		int r = currentInstr.r;
-		int n = currentInstr.n;
-		int d = currentInstr.d;
-		int addr;
-		// Execute instruction ...
-
-		Machine.Op operation = Machine.intToOp[op];
-
-		switch (operation) {
-		case LOAD:
-			addr = d + content(r);
-			checkSpace(1);
-			data[ST] = data[addr];
-			ST = ST + 1;
-			CP = CP + 1;
-			break;
-		case LOADA:
-			addr = d + content(r);
-			checkSpace(1);
-			data[ST] = addr;
-			ST = ST + 1;
-			CP = CP + 1;
-			break;
-		case LOADI:
-			ST = ST - 1;
-			addr = data[ST];
-			checkSpace(1);
-			data[ST] = data[addr];
-			ST = ST + 1;
-			CP = CP + 1;
-			break;
-		case LOADL:
-			checkSpace(1);
-			data[ST] = d;
-			ST = ST + 1;
-			CP = CP + 1;
-			break;
-		case STORE:
-			addr = d + content(r);
-			ST = ST - 1;
-			data[addr] = data[ST];
-			CP = CP + 1;
-			break;
-		case STOREI:
-			ST = ST - 1;
-			addr = data[ST];
-			ST = ST - 1;
-			data[addr] = data[ST];
-			CP = CP + 1;
-			break;
-			
-		case CALL:
-			// call static method, including primitives
-			// arguments are on stack
-			addr = d + content(r);      // effective address
-			if (addr >= Machine.PB) {
-				callPrimitive(addr - Machine.PB);
-				CP = CP + 1;
-			} else {
-				// static method in code segment, no instance addr on stack
-				checkSpace(3);
-				data[ST] = OB;         // save caller OB in callee frame
-				data[ST + 1] = LB;     // save caller LB in callee frame (dynamic link)
-				data[ST + 2] = CP + 1; // save caller return address in callee frame
-				OB = Machine.nullRep;  // set callee OB (null since no instance) 
-				LB = ST;               // set LB = start of callee frame
-				ST = ST + 3;           // set ST = end of callee frame
-				CP = addr;             // execution resumes at addr specified in CALL inst
-			}
-			break;
-			
-		case CALLI:
-			// call instance method
-			// arguments on stack, followed by instance address
-			addr = d + content(r);      // effective address
-			if (addr >= Machine.CT) {
-				// no instance methods outside of code segment
-				status = failedInvalidInstruction;
-				break;
-			}
-			// instance address is last arg on stack and is overwritten by frame
-			checkSpace(2);
-			temp = data[ST - 1];   // save instance address temporarily
-			data[ST - 1] = OB;     // save caller OB in callee frame
-			data[ST] = LB;         // save caller LB in callee frame (dynamic link)
-			data[ST + 1] = CP + 1; // save caller return address in callee frame
-			OB = temp;             // set OB for callee
-			LB = ST - 1;           // set LB = start of callee frame
-			ST = ST + 2;           // set ST = end of callee frame 
-			CP = addr;             // execution resumes at addr specified in CALL inst
-			break;
-			
-		case RETURN: 
-			// d = number of method args (does not include instance addr for CALLI)
-			// n = size of result (0 or 1)
-			if (n < 0 || n > 1) {
-				status = failedInvalidInstruction;
-				break;
-			}
-			addr = LB - d;          // addr of caller args
-			OB = data[LB];          // restore caller OB, LB, CP
-			CP = data[LB + 2];
-			LB = data[LB + 1];
-			if (n == 1)
-				data[addr] = data[ST - 1];  // return value if any
-			ST = addr + n;          // caller stack top
-			break;
-			
-		case CALLD: 
-			// dynamic method dispatch of method with index d (origin 0)
-			// arguments on stack, followed by instance addr
-			{
-				addr = data[ST - 1];    // instance addr
-				if (invalidHeapRef(addr))
-					break;
-				int classDescAddr = data[addr - 2];
-				if (classDescAddr >= ST || classDescAddr <= SB || d >= data[classDescAddr + 1] || d < 0) {
-					status = failedMethodIndex;
-					break;
-				}
-				ST = ST - 1;
-				checkSpace(3);
-				data[ST] = OB;
-				data[ST + 1] = LB;
-				data[ST + 2] = CP + 1;
-				OB = addr;
-				LB = ST;
-				ST = ST + 3;
-				CP = data[classDescAddr + 2 + n];
-			}
-			break;
-		case PUSH: // push d elements on stack
-			checkSpace(d);
-			ST = ST + d;
-			CP = CP + 1;
-			break;
-		case POP: // pop d elements off stack
-			ST = ST - d;
-			CP = CP + 1;
-			break;
-		case JUMP:
-			CP = d + content(r);
-			break;
-		case JUMPI:
-			ST = ST - 1;
-			CP = data[ST];
-			break;
-		case JUMPIF:
-			ST = ST - 1;
-			if (data[ST] == n)
-				CP = d + content(r);
-			else
-				CP = CP + 1;
-			break;
-		case HALT:
-			if (n > 0) {
-				// halt n > 0 --> snapshot machine state and continue execution
-				dump();
-				CP = CP + 1;
-			} else
-				status = halted;
-			break;
-		}
+		vm.interpretOneOperation();
 
-		if ((CP < CB) || (CP >= CT))
-			status = failedInvalidCodeAddress;
-
-		if (breakpoints.indexOf(CP) != -1) {
+		if (breakpoints.indexOf(vm.CP) != -1) {
 			debuggerStatus = DebuggerStatus.PAUSED;
-			System.out.println("Breakpoint hit: " + sourceLines.get(CP));
+			System.out.println("Breakpoint hit: " + sourceLines.get(vm.CP));
 		}
 	}
 
-	static void initMachine() {
-		// Initialize registers ...
-		ST = SB;
-		HT = HB;
-		LB = SB;
-		CP = CB;
-		OB = -1; // invalid instance addr
-		CT = Machine.CT;
-		status = running;
-	}
-
-	static void interpretProgram() {
-		// Runs the program in code store.
-		initMachine();
-		do {
-			interpretOneOperation();
-		} while (status == running);
-	}
-
 	static void runProgramFromStart() {
-		initMachine();
+		vm.initMachine();
 		continueProgram();
 	}
 
@@ -718,7 +54,7 @@ public class Interpreter {
 		debuggerStatus = DebuggerStatus.RUNNING;
 		do {
 			interpretOneOperation();
-		} while (status == running && debuggerStatus == DebuggerStatus.RUNNING);
+		} while (vm.status == MjamVM.running && debuggerStatus == DebuggerStatus.RUNNING);
 	}
 
 	static void printHelp() {
@@ -750,7 +86,7 @@ public class Interpreter {
 	}
 
 	static void debugProgram() {
-		initMachine();
+		vm.initMachine();
 
 		BufferedReader inputReader = new BufferedReader(new InputStreamReader(
 				System.in));
@@ -758,6 +94,7 @@ public class Interpreter {
 		String lastCommand = "";
 
 		while (true) {
+			vm.flushOutput();
 			System.out.print("\n: ");
 			String inputLine;
 
@@ -778,7 +115,7 @@ public class Interpreter {
 				printHelp();
 			} else if (command.equalsIgnoreCase("p")
 					|| command.equalsIgnoreCase("print")) {
-				dump();
+				vm.dump();
 			} else if (command.equalsIgnoreCase("l")
 					|| command.equalsIgnoreCase("list")) {
 				int offset = 0, size = 2;
@@ -787,14 +124,14 @@ public class Interpreter {
 				if (scanner.hasNextInt())
 					size = scanner.nextInt();
 
-				for (int i = CP + offset - size; i <= CP + offset + size; ++i) {
+				for (int i = vm.CP + offset - size; i <= vm.CP + offset + size; ++i) {
 					if (i >= 0 && i < sourceLines.size())
-						System.out.println((i == CP ? " >" : "  ")
+						System.out.println((i == vm.CP ? " >" : "  ")
 								+ sourceLines.get(i));
 				}
 			} else if (command.equalsIgnoreCase("b")
 					|| command.equalsIgnoreCase("break")) {
-				int addr = scanner.hasNextInt() ? scanner.nextInt() : CP;
+				int addr = scanner.hasNextInt() ? scanner.nextInt() : vm.CP;
 				if (!breakpoints.contains(addr))
 					breakpoints.add(addr);
 				System.out.println("Added breakpoint at "
@@ -811,7 +148,7 @@ public class Interpreter {
 				}
 			} else if (command.equalsIgnoreCase("n")
 					|| command.equalsIgnoreCase("next")) {
-				if (status == running) {
+				if (vm.status == MjamVM.running) {
 					interpretOneOperation();
 				} else {
 					System.out.println("Program is not running");
@@ -842,43 +179,447 @@ public class Interpreter {
 
 	// RUNNING
 
+	// command line options, applied to each machine as it is loaded
+	static boolean fast = false;
+	static boolean registers = false;
+	static boolean registerStatistics = false;
+	static boolean fusion = true;
+	static boolean fusionReport = false;
+	static boolean jit = false;
+	static int jitThreshold = JitCompiler.defaultThreshold;
+	static boolean jitStatistics = false;
+	static int initialDataStoreSize = MjamVM.defaultDataStoreSize;
+	static int maxDataStoreSize = MjamVM.defaultDataStoreSize;
+	static boolean offHeap = false;
+	static String dataFileName = null;
+	static boolean garbageCollect = false;
+	static boolean gcStatistics = false;
+	static boolean freeLists = false;
+	static boolean allocatorStatistics = false;
+	static boolean inlineCaches = false;
+	static boolean inlineCacheStatistics = false;
+	static String outputFileName = null;
+	static boolean profile = false;
+	static int profileLimit = 20;
+	static int sampleInterval = 0;
+	static String sampleFileName = null;
+	static boolean metrics = false;
+	static boolean jmx = false;
+	static long instructionQuota = 0;
+	static long timeQuota = 0;
+	static int heapQuota = 0;
+	static int stackQuota = 0;
+	static String snapshotFileName = null;
+	static String resumeFileName = null;
+	static boolean verified = false;
+	static String dumpFileName = null;
+	static boolean textDump = false;
+
+	static final String usage =
+			"usage: Interpreter [options] [objectFile [asmFile]]\n"
+			+ "  -f or --fast:\n"
+			+ "       run with the non-debug FastInterpreter engine\n"
+			+ "  -r or --registers:\n"
+			+ "       run with the RegisterInterpreter engine on the program translated to register code\n"
+			+ "  --register-stats:\n"
+			+ "       as --registers, and report translation and dispatch statistics when the program ends\n"
+			+ "  --no-fusion:\n"
+			+ "       do not replace common instruction sequences with superinstructions\n"
+			+ "  --fusion-report:\n"
+			+ "       as --fast, and report the superinstructions used when the program ends\n"
+			+ "  --jit:\n"
+			+ "       as --fast, and translate hot methods into JVM code\n"
+			+ "  --jit-threshold <count>:\n"
+			+ "       calls and backward jumps that make a method hot (default " + JitCompiler.defaultThreshold + ")\n"
+			+ "  --jit-stats:\n"
+			+ "       as --jit, and report compiler statistics when the program ends\n"
+			+ "  --data-initial <words>:\n"
+			+ "       initial size of the data store (default " + MjamVM.defaultDataStoreSize + ")\n"
+			+ "  --data-max <words>:\n"
+			+ "       size the data store may grow to (default " + MjamVM.defaultDataStoreSize + ")\n"
+			+ "  --off-heap:\n"
+			+ "       hold the data store in direct buffers outside the Java heap (reference engine only;\n"
+			+ "       the JVM option -XX:MaxDirectMemorySize limits its size)\n"
+			+ "  --data-file <file>:\n"
+			+ "       hold the data store in a memory-mapped file, which keeps it and the registers after the\n"
+			+ "       program stops or the JVM fails (reference engine only)\n"
+			+ "  --gc:\n"
+			+ "       collect unreachable heap objects when the data store is full\n"
+			+ "  --gc-stats:\n"
+			+ "       as --gc, and report collector statistics when the program ends\n"
+			+ "  --free-lists:\n"
+			+ "       reuse blocks released by dispose from size-class free lists\n"
+			+ "  --alloc-stats:\n"
+			+ "       as --free-lists, and report allocator statistics when the program ends\n"
+			+ "  -o or --output <file>:\n"
+			+ "       write the program's output to file instead of the console\n"
+			+ "  --profile:\n"
+			+ "       run with the reference engine, and report the instructions executed by each method,\n"
+			+ "       call edge, source line and code address when the program ends (names and lines\n"
+			+ "       are read from the .map file the compiler writes next to the object file)\n"
+			+ "  --profile-limit <rows>:\n"
+			+ "       rows in each table of the profile (default 20)\n"
+			+ "  --sample <instructions>:\n"
+			+ "       record the call stack every so many instructions (reference or fast engine), and\n"
+			+ "       write the stacks in folded format for flame graph tools when the program ends\n"
+			+ "  --sample-output <file>:\n"
+			+ "       file for the folded stacks (default: the object file name with extension .folded)\n"
+			+ "  --inline-caches:\n"
+			+ "       cache the methods CALLD finds in class descriptors at each call site\n"
+			+ "  --ic-stats:\n"
+			+ "       as --inline-caches, and report cache hits and misses when the program ends\n"
+			+ "  --metrics:\n"
+			+ "       report instructions, calls, stack and heap use, allocations and primitive calls when the program ends\n"
+			+ "  --jmx:\n"
+			+ "       as --metrics, and publish them while the program runs as MBean mJAM:type=VM,name=<objectFile>\n"
+			+ "  --max-instructions <count>:\n"
+			+ "       stop the program once it has executed this many instructions\n"
+			+ "  --max-time <ms>:\n"
+			+ "       stop the program once it has run for this many milliseconds\n"
+			+ "  --max-heap <words>:\n"
+			+ "       stop the program when its heap would grow past this many words\n"
+			+ "  --max-stack <words>:\n"
+			+ "       stop the program when its stack grows past this many words\n"
+			+ "  --snapshot <file>:\n"
+			+ "       stop the program before its first input primitive or at its first HALT with n > 0,\n"
+			+ "       and write the machine state to the file\n"
+			+ "  --resume <file>:\n"
+			+ "       carry on with a program from a machine state written by --snapshot (no object file)\n"
+			+ "  --verified:\n"
+			+ "       run the reference engine without the code address checks the load-time verifier makes unnecessary\n"
+			+ "  --dump <file>:\n"
+			+ "       file for the binary dump of the data store written when the program fails, read by\n"
+			+ "       mJAM.DumpAnalyser (default: the object file name with extension .dump)\n"
+			+ "  --text-dump:\n"
+			+ "       print the data store when the program fails, instead of writing a binary dump";
+
+	/**
+	 * Reads the options at the start of args into the option fields
+	 * @return index of the first argument that is not an option, or -1 if
+	 *         the options are invalid
+	 */
+	static int parseOptions(String[] args) {
+		int argIndex = 0;
+		String option = null;
+		try {
+			while (argIndex < args.length && args[argIndex].startsWith("-")) {
+				option = args[argIndex++];
+				if (option.equals("-f") || option.equals("--fast"))
+					fast = true;
+				else if (option.equals("-r") || option.equals("--registers"))
+					registers = true;
+				else if (option.equals("--register-stats"))
+					registers = registerStatistics = true;
+				else if (option.equals("--no-fusion"))
+					fusion = false;
+				else if (option.equals("--fusion-report"))
+					fast = fusionReport = true;
+				else if (option.equals("--jit"))
+					fast = jit = true;
+				else if (option.equals("--jit-threshold"))
+					jitThreshold = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--jit-stats"))
+					fast = jit = jitStatistics = true;
+				else if (option.equals("--data-initial"))
+					initialDataStoreSize = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--data-max"))
+					maxDataStoreSize = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--off-heap"))
+					offHeap = true;
+				else if (option.equals("--data-file"))
+					dataFileName = args[argIndex++];
+				else if (option.equals("--gc"))
+					garbageCollect = true;
+				else if (option.equals("--gc-stats"))
+					garbageCollect = gcStatistics = true;
+				else if (option.equals("--free-lists"))
+					freeLists = true;
+				else if (option.equals("--alloc-stats"))
+					freeLists = allocatorStatistics = true;
+				else if (option.equals("-o") || option.equals("--output"))
+					outputFileName = args[argIndex++];
+				else if (option.equals("--profile"))
+					profile = true;
+				else if (option.equals("--profile-limit"))
+					profileLimit = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--sample"))
+					sampleInterval = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--sample-output"))
+					sampleFileName = args[argIndex++];
+				else if (option.equals("--inline-caches"))
+					inlineCaches = true;
+				else if (option.equals("--ic-stats"))
+					inlineCaches = inlineCacheStatistics = true;
+				else if (option.equals("--metrics"))
+					metrics = true;
+				else if (option.equals("--jmx"))
+					metrics = jmx = true;
+				else if (option.equals("--max-instructions"))
+					instructionQuota = Long.parseLong(args[argIndex++]);
+				else if (option.equals("--max-time"))
+					timeQuota = Long.parseLong(args[argIndex++]);
+				else if (option.equals("--max-heap"))
+					heapQuota = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--max-stack"))
+					stackQuota = Integer.parseInt(args[argIndex++]);
+				else if (option.equals("--snapshot"))
+					snapshotFileName = args[argIndex++];
+				else if (option.equals("--resume"))
+					resumeFileName = args[argIndex++];
+				else if (option.equals("--verified"))
+					verified = true;
+				else if (option.equals("--dump"))
+					dumpFileName = args[argIndex++];
+				else if (option.equals("--text-dump"))
+					textDump = true;
+				else {
+					System.out.println("Unknown option " + option);
+					return -1;
+				}
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			System.out.println("Missing or invalid value for option " + option);
+			return -1;
+		}
+		if (sampleInterval < 0 || sampleInterval == 0 && sampleFileName != null) {
+			System.out.println("--sample needs a positive number of instructions");
+			return -1;
+		}
+		if (instructionQuota < 0 || timeQuota < 0 || heapQuota < 0 || stackQuota < 0) {
+			System.out.println("Quotas must not be negative");
+			return -1;
+		}
+		if (initialDataStoreSize <= 0 || maxDataStoreSize < initialDataStoreSize) {
+			System.out.println("Data store sizes must satisfy 0 < initial <= max");
+			return -1;
+		}
+		if ((offHeap || dataFileName != null) && (fast || registers)) {
+			System.out.println("--off-heap and --data-file need the reference engine");
+			return -1;
+		}
+		return argIndex;
+	}
+
 	public static void main(String[] args) {
 		System.out.println("********** mJAM Interpreter (Version 2.3) **********");
 
+		// options precede the file names
+		int argIndex = parseOptions(args);
+		if (argIndex < 0) {
+			System.out.println(usage);
+			return;
+		}
+
+		if (resumeFileName != null) {
+			resume(resumeFileName);
+			return;
+		}
+
 		String objectFileName;
-		if (args.length >= 1)
-			objectFileName = args[0];
+		if (args.length - argIndex >= 1)
+			objectFileName = args[argIndex];
 		else
 			objectFileName = "obj.mJAM";
 
 		String sourceFileName;
-		if (args.length >= 2) {
-			sourceFileName = args[1];
+		if (args.length - argIndex >= 2) {
+			sourceFileName = args[argIndex + 1];
 			debug(objectFileName, sourceFileName);
 		} else {
 			interpret(objectFileName);
 		}
 	}
 
+	/**
+	 * Loads an object file into a new machine configured by the current options
+	 * @return the machine, or null if the object file can not be read or is
+	 *         rejected by the verifier, whose diagnostics are written
+	 */
+	static MjamVM load(String objectFileName) {
+		ObjectFile objectFile = new ObjectFile(objectFileName);
+		Instruction[] code = objectFile.readCode();
+		if (code == null) {
+			for (String diagnostic : objectFile.getDiagnostics())
+				System.out.println(diagnostic);
+			return null;
+		}
+		MjamVM vm = new MjamVM(code, code.length);
+		DataStore store = newDataStore(initialDataStoreSize);
+		if (store == null)
+			return null;
+		vm.setDataStore(store, maxDataStoreSize);
+		return configure(vm, objectFileName);
+	}
+
+	/**
+	 * @return an empty data store of size words, of the kind chosen by the
+	 *         options, or null if its file can not be mapped
+	 */
+	static DataStore newDataStore(int size) {
+		if (dataFileName != null) {
+			try {
+				return DataStore.mapped(dataFileName, size);
+			} catch (IOException e) {
+				System.out.println("Unable to map data file " + dataFileName);
+				return null;
+			}
+		}
+		return offHeap ? DataStore.offHeap(size) : DataStore.onHeap(size);
+	}
+
+	/**
+	 * Configures a machine by the current options other than the data store
+	 * size, naming its files after objectFileName
+	 * @return the machine, or null if the code is rejected by the verifier or
+	 *         the output file can not be opened
+	 */
+	static MjamVM configure(MjamVM vm, String objectFileName) {
+		if (verified) {
+			List<String> diagnostics = vm.verify();
+			if (!diagnostics.isEmpty()) {
+				for (String diagnostic : diagnostics)
+					System.out.println(diagnostic);
+				return null;
+			}
+		}
+		vm.setFusion(fusion);
+		vm.setQuotas(instructionQuota, timeQuota, heapQuota, stackQuota);
+		if (jit)
+			vm.enableJit(jitThreshold);
+		if (garbageCollect)
+			vm.enableGarbageCollector();
+		if (freeLists)
+			vm.enableFreeLists();
+		if (inlineCaches)
+			vm.enableInlineCaches();
+		String baseName = objectFileName.endsWith(".mJAM")
+				? objectFileName.substring(0, objectFileName.length() - 4) : objectFileName + ".";
+		if (profile)
+			vm.enableProfiler().setSourceMap(SourceMap.read(baseName + "map"));
+		if (!textDump)
+			vm.setFailureDump(dumpFileName != null ? dumpFileName : baseName + "dump",
+					SourceMap.read(baseName + "map"));
+		if (sampleInterval > 0) {
+			vm.enableSampling(sampleInterval).setSourceMap(SourceMap.read(baseName + "map"));
+			if (sampleFileName == null)
+				sampleFileName = baseName + "folded";
+		}
+		if (metrics) {
+			VmMetrics published = vm.enableMetrics();
+			if (jmx) {
+				try {
+					published.register(objectFileName);
+				} catch (JMException e) {
+					System.out.println("Unable to register metrics: " + e.getMessage());
+				}
+			}
+		}
+		if (outputFileName != null) {
+			try {
+				vm.setOutputChannel(OutputChannel.toFile(outputFileName));
+			} catch (IOException e) {
+				System.out.println("Unable to open output file " + outputFileName);
+				return null;
+			}
+		}
+		return vm;
+	}
+
 	public static void interpret(String objectFileName) {
 
-		ObjectFile objectFile = new ObjectFile(objectFileName);
-		if (objectFile.read()) {
+		vm = load(objectFileName);
+		if (vm == null) {
 			System.out.println("Unable to load object file " + objectFileName);
 			return;
 		}
-		interpretProgram();
-		showStatus();
+		if (snapshotFileName != null)
+			vm.suspendAt(MjamVM.atInput | MjamVM.atSnapshotHalt);
+		if (profile)
+			vm.interpretProgram();
+		else if (registers && sampleInterval == 0)
+			vm.interpretProgramRegisters();
+		else if (fast)
+			vm.interpretProgramFast();
+		else
+			vm.interpretProgram();
+		report();
+	}
+
+	/**
+	 * Carries on with the program in a snapshot file written by --snapshot
+	 */
+	public static void resume(String fileName) {
+		VmSnapshot snapshot = VmSnapshot.read(fileName);
+		if (snapshot == null) {
+			System.out.println("Unable to read snapshot file " + fileName);
+			return;
+		}
+		DataStore store = newDataStore(snapshot.getDataStoreSize());
+		if (store == null)
+			return;
+		vm = configure(snapshot.fork(store), fileName);
+		if (vm == null)
+			return;
+		if (snapshotFileName != null)
+			vm.suspendAt(MjamVM.atInput | MjamVM.atSnapshotHalt);
+		if (profile)
+			vm.resume();
+		else if (registers && sampleInterval == 0)
+			vm.resumeRegisters();
+		else if (fast)
+			vm.resumeFast();
+		else
+			vm.resume();
+		report();
+	}
+
+	// Reports the end of a run, and exits
+	static void report() {
+		vm.showStatus();
+		if (vm.status == MjamVM.suspended && snapshotFileName != null) {
+			if (vm.snapshot().write(snapshotFileName))
+				System.out.println("Unable to write snapshot to " + snapshotFileName);
+			else
+				System.out.println("*** Snapshot written to " + snapshotFileName);
+		}
+		if (gcStatistics)
+			vm.getGarbageCollector().printStatistics(System.out);
+		if (allocatorStatistics)
+			vm.getFreeLists().printStatistics(System.out);
+		if (inlineCacheStatistics)
+			vm.getInlineCaches().printStatistics(System.out);
+		if (fusionReport)
+			vm.printFusionReport(System.out);
+		if (jitStatistics)
+			vm.getJit().printStatistics(System.out);
+		if (registerStatistics)
+			vm.printRegisterStatistics(System.out);
+		if (profile)
+			vm.getProfiler().printReport(System.out, profileLimit);
+		if (sampleInterval > 0)
+			writeSamples(vm.getSampler());
+		if (metrics)
+			vm.getMetrics().print(System.out);
 		// mJAM exit code reflects normal termination or mJAM failure
-		if (status == halted)
+		if (vm.status == MjamVM.halted || vm.status == MjamVM.suspended)
 			System.exit(0);
 		else
 			System.exit(4);
 	}
 
+	static void writeSamples(SamplingProfiler sampler) {
+		try (PrintStream out = new PrintStream(sampleFileName)) {
+			sampler.writeFolded(out);
+			System.out.println("*** Sampling: " + sampler.getSamples() + " samples of "
+					+ sampler.getInterval() + " instructions written to " + sampleFileName);
+		} catch (IOException e) {
+			System.out.println("Unable to write samples to " + sampleFileName);
+		}
+	}
+
 	public static void debug(String objectFileName, String sourceFileName) {
-		ObjectFile objectFile = new ObjectFile(objectFileName);
-		if (objectFile.read()) {
+		vm = load(objectFileName);
+		if (vm == null) {
 			System.out.println("Unable to load object file " + objectFileName);
 			return;
 		}
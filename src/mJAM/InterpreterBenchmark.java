@@ -0,0 +1,199 @@
+/**
+ * Compares the throughput of the mJAM execution engines
+ */
+package mJAM;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs each object file given on the command line with the reference
+ * interpretation loop (MjamVM.interpretProgram), FastInterpreter without
+ * superinstructions, FastInterpreter with superinstructions, the register
+ * engine, and FastInterpreter with hot methods compiled by JitCompiler, and
+ * reports instructions per second for each.  Program output is discarded.
+ *
+ * Each engine is measured in a JVM of its own, so the profile the JIT
+ * collects for one engine (the DataStore call sites shared by every engine,
+ * say) cannot slow down the next, and is warmed up by several untimed runs
+ * before the timed ones.  --in-process measures every engine in this JVM
+ * instead, one after another.
+ *
+ * usage: InterpreterBenchmark [-n runs] [-w warmups] [--in-process] objectFile ...
+ */
+public class InterpreterBenchmark {
+
+	static final String[] engines = { "reference", "fast", "fused", "registers", "jit" };
+
+	// measurements of one engine on one program
+	static class Result {
+		long instructions;
+		long nanos;
+		int status;
+		long dispatches;  // register engine only: dispatches and slow instructions
+	}
+
+	public static void main(String[] args) {
+		int runs = 5;
+		int warmups = 10;
+		boolean inProcess = false;
+		String engine = null;
+		int argIndex = 0;
+		while (argIndex < args.length && args[argIndex].startsWith("-")) {
+			String option = args[argIndex++];
+			if (option.equals("--in-process"))
+				inProcess = true;
+			else if (argIndex < args.length && option.equals("-n"))
+				runs = Integer.parseInt(args[argIndex++]);
+			else if (argIndex < args.length && option.equals("-w"))
+				warmups = Integer.parseInt(args[argIndex++]);
+			else if (argIndex < args.length && option.equals("--engine"))
+				engine = args[argIndex++];  // used by the JVM forked for one engine
+			else {
+				argIndex = args.length;
+				break;
+			}
+		}
+		if (argIndex >= args.length) {
+			System.out.println("usage: InterpreterBenchmark [-n runs] [-w warmups] [--in-process] objectFile ...");
+			return;
+		}
+
+		PrintStream console = System.out;
+		if (engine != null) {
+			// forked for one engine: report its measurements of each program
+			for (; argIndex < args.length; argIndex++) {
+				Result result = measure(args[argIndex], engine, runs, warmups);
+				if (result == null)
+					console.println("-");
+				else
+					console.println(result.instructions + " " + result.nanos + " " + result.status
+							+ " " + result.dispatches);
+			}
+			return;
+		}
+
+		console.println(String.format("%-24s %12s %14s %14s %14s %14s %14s %9s %8s", "program",
+				"instructions", "reference i/s", "fast i/s", "fused i/s", "registers i/s", "jit i/s",
+				"dispatch-", "speedup"));
+		for (; argIndex < args.length; argIndex++) {
+			String objectFileName = args[argIndex];
+			Result[] results = new Result[engines.length];
+			for (int e = 0; e < engines.length; e++)
+				results[e] = inProcess ? measure(objectFileName, engines[e], runs, warmups)
+						: fork(objectFileName, engines[e], runs, warmups);
+			if (results[0] == null) {
+				console.println("Unable to load object file " + objectFileName);
+				continue;
+			}
+
+			long instructions = results[0].instructions;
+			double[] rates = new double[engines.length];
+			for (int e = 0; e < engines.length; e++) {
+				Result result = results[e];
+				if (result == null) {
+					console.println(objectFileName + ": " + engines[e] + " run failed");
+					continue;
+				}
+				if (result.instructions != instructions)
+					console.println(objectFileName + ": " + engines[e] + " run executed "
+							+ result.instructions + " instructions, not " + instructions);
+				if (result.status != results[0].status)
+					console.println(objectFileName + ": engines disagree on final status ("
+							+ results[0].status + " vs " + result.status + " for " + engines[e] + ")");
+				rates[e] = instructions * runs / (result.nanos / 1e9);
+			}
+			long dispatches = results[3] == null ? instructions : results[3].dispatches;
+			double dispatchReduction = 100.0 * (instructions - dispatches) / Math.max(instructions, 1);
+			console.println(String.format("%-24s %12d %14.0f %14.0f %14.0f %14.0f %14.0f %8.1f%% %7.2fx",
+					objectFileName, instructions, rates[0], rates[1], rates[2], rates[3], rates[4],
+					dispatchReduction, rates[4] / rates[0]));
+		}
+	}
+
+	/**
+	 * Runs a program with one engine, warmups times untimed and then runs
+	 * times timed
+	 * @return the measurements, or null if the object file cannot be loaded
+	 */
+	static Result measure(String objectFileName, String engine, int runs, int warmups) {
+		MjamVM vm = MjamVM.load(objectFileName);
+		if (vm == null)
+			return null;
+		vm.setOutput(new PrintStream(OutputStream.nullOutputStream()));
+		vm.setFusion(engine.equals("fused") || engine.equals("jit"));
+		if (engine.equals("jit"))
+			vm.enableJit(1);  // the warm-up runs also make the program's methods hot
+
+		Result result = new Result();
+		for (int run = -warmups; run < runs; run++) {
+			long start = System.nanoTime();
+			switch (engine) {
+			case "reference":
+				vm.interpretProgram();
+				result.instructions = vm.getInstructionCount();
+				break;
+			case "registers":
+				result.instructions = vm.interpretProgramRegisters();
+				break;
+			default:
+				result.instructions = vm.interpretProgramFast();
+				break;
+			}
+			long elapsed = System.nanoTime() - start;
+			if (run >= 0)
+				result.nanos += elapsed;
+		}
+		result.status = vm.getStatus();
+		result.dispatches = result.instructions;
+		if (engine.equals("registers"))
+			result.dispatches = vm.registerCode.dispatches + vm.registerCode.slowInstructions;
+		return result;
+	}
+
+	/**
+	 * Runs measure in a JVM of its own, with this JVM's class path
+	 * @return the measurements, or null if the object file cannot be loaded
+	 *         or the JVM fails
+	 */
+	static Result fork(String objectFileName, String engine, int runs, int warmups) {
+		List<String> command = new ArrayList<>();
+		command.add(ProcessHandle.current().info().command().orElse("java"));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(InterpreterBenchmark.class.getName());
+		command.add("-n");
+		command.add(Integer.toString(runs));
+		command.add("-w");
+		command.add(Integer.toString(warmups));
+		command.add("--engine");
+		command.add(engine);
+		command.add(objectFileName);
+		try {
+			Process process = new ProcessBuilder(command)
+					.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			String line;
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(process.getInputStream()))) {
+				line = reader.readLine();
+			}
+			if (process.waitFor() != 0 || line == null || line.equals("-"))
+				return null;
+			String[] fields = line.split(" ");
+			Result result = new Result();
+			result.instructions = Long.parseLong(fields[0]);
+			result.nanos = Long.parseLong(fields[1]);
+			result.status = Integer.parseInt(fields[2]);
+			result.dispatches = Long.parseLong(fields[3]);
+			return result;
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			System.err.println(engine + " run of " + objectFileName + ": " + e);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * Minimal JVM class file writer for the mJAM JIT
+ */
+package mJAM;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Builds a class file holding a public no-argument constructor and a single
+ * method whose bytecode is written with the op/branch/mark methods below.
+ *
+ * The class file version is 49, so no StackMapTable is needed: the JVM checks
+ * the generated code with the type-inferring verifier.  Branches use 16 bit
+ * offsets; tooLarge() reports a method that outgrew them.
+ */
+final class JitClassWriter {
+
+	// opcodes used by the JIT
+	static final int ICONST_0 = 3, ICONST_1 = 4, BIPUSH = 16, SIPUSH = 17, LDC = 18,
+			ILOAD = 21, LLOAD = 22, ALOAD = 25, ALOAD_0 = 42, IALOAD = 46,
+			ISTORE = 54, LSTORE = 55, ASTORE = 58, IASTORE = 79, DUP = 89,
+			IADD = 96, LADD = 97, ISUB = 100, LSUB = 101, LMUL = 105,
+			IDIV = 108, IREM = 112, INEG = 116, IINC = 132,
+			I2L = 133, L2I = 136, LCMP = 148,
+			IFEQ = 153, IFNE = 154, IFLT = 155, IFGE = 156, IFGT = 157, IFLE = 158,
+			IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161, IF_ICMPGE = 162,
+			IF_ICMPGT = 163, IF_ICMPLE = 164, GOTO = 167,
+			LOOKUPSWITCH = 171, IRETURN = 172, VOID_RETURN = 177,
+			GETFIELD = 180, PUTFIELD = 181, INVOKEVIRTUAL = 182, INVOKESPECIAL = 183;
+
+	private final String className;
+	private final String interfaceName;
+
+	// constant pool
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	private final HashMap<String, Integer> poolIndex = new HashMap<String, Integer>();
+	private int poolCount = 1;
+
+	// bytecode of the method being written
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+	private final List<Integer> labelAddr = new ArrayList<Integer>();
+	// branch fixups: offset of the branch opcode, offset of the 16 bit operand
+	// (or -1 - offset of a 32 bit switch operand), label
+	private final List<int[]> fixups = new ArrayList<int[]>();
+
+	JitClassWriter(String className, String interfaceName) {
+		this.className = className;
+		this.interfaceName = interfaceName;
+	}
+
+	// CONSTANT POOL
+
+	private int entry(String key, int tag, int a, int b, String utf) {
+		Integer index = poolIndex.get(key);
+		if (index != null)
+			return index;
+		try {
+			poolOut.writeByte(tag);
+			if (utf != null)
+				poolOut.writeUTF(utf);
+			else if (tag == 3)
+				poolOut.writeInt(a);
+			else if (tag == 7)
+				poolOut.writeShort(a);
+			else {
+				poolOut.writeShort(a);
+				poolOut.writeShort(b);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		poolIndex.put(key, poolCount);
+		return poolCount++;
+	}
+
+	int utf8(String s) {
+		return entry("U" + s, 1, 0, 0, s);
+	}
+
+	int classRef(String name) {
+		return entry("C" + name, 7, utf8(name), 0, null);
+	}
+
+	int intConstant(int value) {
+		return entry("I" + value, 3, value, 0, null);
+	}
+
+	private int nameAndType(String name, String desc) {
+		return entry("N" + name + " " + desc, 12, utf8(name), utf8(desc), null);
+	}
+
+	int fieldRef(String owner, String name, String desc) {
+		return entry("F" + owner + "." + name + " " + desc, 9, classRef(owner),
+				nameAndType(name, desc), null);
+	}
+
+	int methodRef(String owner, String name, String desc) {
+		return entry("M" + owner + "." + name + desc, 10, classRef(owner),
+				nameAndType(name, desc), null);
+	}
+
+	// BYTECODE
+
+	int length() {
+		return code.size();
+	}
+
+	boolean tooLarge() {
+		return code.size() > Short.MAX_VALUE;
+	}
+
+	void op(int opcode) {
+		code.write(opcode);
+	}
+
+	void op(int opcode, int u1) {
+		code.write(opcode);
+		code.write(u1);
+	}
+
+	void op2(int opcode, int u2) {
+		code.write(opcode);
+		code.write(u2 >> 8);
+		code.write(u2);
+	}
+
+	void iinc(int local, int delta) {
+		if (delta < Byte.MIN_VALUE || delta > Byte.MAX_VALUE) {
+			op(ILOAD, local);
+			iconst(delta);
+			op(IADD);
+			op(ISTORE, local);
+		} else {
+			op(IINC, local);
+			code.write(delta);
+		}
+	}
+
+	/**
+	 * Push an int constant using the shortest instruction
+	 */
+	void iconst(int value) {
+		if (value >= -1 && value <= 5)
+			op(ICONST_0 + value);
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+			op(BIPUSH, value & 0xFF);
+		else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+			op2(SIPUSH, value & 0xFFFF);
+		else {
+			int index = intConstant(value);
+			if (index < 256)
+				op(LDC, index);
+			else
+				op2(LDC + 1, index); // ldc_w
+		}
+	}
+
+	int newLabel() {
+		labelAddr.add(-1);
+		return labelAddr.size() - 1;
+	}
+
+	void mark(int label) {
+		labelAddr.set(label, code.size());
+	}
+
+	boolean isMarked(int label) {
+		return labelAddr.get(label) >= 0;
+	}
+
+	void branch(int opcode, int label) {
+		fixups.add(new int[] { code.size(), code.size() + 1, label });
+		op2(opcode, 0);
+	}
+
+	/**
+	 * lookupswitch on the int on top of the operand stack
+	 * @param keys    case values in increasing order
+	 */
+	void lookupSwitch(int[] keys, int[] labels, int defaultLabel) {
+		int start = code.size();
+		op(LOOKUPSWITCH);
+		while (code.size() % 4 != 0)
+			code.write(0);
+		switchEntry(start, defaultLabel);
+		writeInt(keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			writeInt(keys[i]);
+			switchEntry(start, labels[i]);
+		}
+	}
+
+	private void switchEntry(int opcodeAddr, int label) {
+		// 32 bit offset, patched by toClassFile
+		fixups.add(new int[] { opcodeAddr, -code.size() - 1, label });
+		writeInt(0);
+	}
+
+	private void writeInt(int v) {
+		code.write(v >> 24);
+		code.write(v >> 16);
+		code.write(v >> 8);
+		code.write(v);
+	}
+
+	// CLASS FILE
+
+	/**
+	 * @return the class file, with the method written so far as
+	 *         "public methodName methodDesc"
+	 */
+	byte[] toClassFile(String methodName, String methodDesc, int maxStack, int maxLocals) {
+		byte[] bytecode = code.toByteArray();
+		for (int[] fixup : fixups) {
+			int target = labelAddr.get(fixup[2]);
+			if (target < 0)
+				throw new IllegalStateException("branch to unmarked label");
+			int offset = target - fixup[0];
+			if (fixup[1] >= 0) {
+				bytecode[fixup[1]] = (byte) (offset >> 8);
+				bytecode[fixup[1] + 1] = (byte) offset;
+			} else {
+				int at = -fixup[1] - 1;
+				bytecode[at] = (byte) (offset >> 24);
+				bytecode[at + 1] = (byte) (offset >> 16);
+				bytecode[at + 2] = (byte) (offset >> 8);
+				bytecode[at + 3] = (byte) offset;
+			}
+		}
+
+		int thisClass = classRef(className);
+		int superClass = classRef("java/lang/Object");
+		int iface = classRef(interfaceName);
+		int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+		int initName = utf8("<init>"), initDesc = utf8("()V");
+		int runName = utf8(methodName), runDesc = utf8(methodDesc);
+		int codeName = utf8("Code");
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(poolCount);
+			pool.writeTo(out);
+			out.writeShort(0x0031); // public final super
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(iface);
+			out.writeShort(0); // fields
+			out.writeShort(2); // methods
+
+			// public <init>() { super(); }
+			out.writeShort(0x0001);
+			out.writeShort(initName);
+			out.writeShort(initDesc);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(12 + 5);
+			out.writeShort(1);
+			out.writeShort(1);
+			out.writeInt(5);
+			out.writeByte(ALOAD_0);
+			out.writeByte(INVOKESPECIAL);
+			out.writeShort(objectInit);
+			out.writeByte(VOID_RETURN);
+			out.writeShort(0);
+			out.writeShort(0);
+
+			out.writeShort(0x0001);
+			out.writeShort(runName);
+			out.writeShort(runDesc);
+			out.writeShort(1);
+			out.writeShort(codeName);
+			out.writeInt(12 + bytecode.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(bytecode.length);
+			out.write(bytecode);
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+
+			out.writeShort(0); // class attributes
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,1055 @@
+/**
+ * Hot-method compiler from mJAM code to JVM bytecode
+ */
+package mJAM;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+import static mJAM.FastInterpreter.*;
+import static mJAM.JitClassWriter.*;
+
+/**
+ * Counts calls and backward jumps for each method (each CALL or CALLI target)
+ * run by FastInterpreter, and translates a method whose count reaches the
+ * threshold into a JVM class, loaded as a hidden class, that FastInterpreter
+ * then enters in place of interpreting the method.
+ *
+ * The translated method works directly on the data store of the machine and
+ * keeps the registers in JVM locals.  Every instruction checks the same
+ * conditions as the interpreter before it has any effect; when a check fails,
+ * or at an instruction the translator does not handle (CALLD, JUMPI, HALT,
+ * dynamic registers), or at a call to a method that is not compiled, the
+ * translated code stores the registers back and returns, and the interpreter
+ * carries on from that instruction.  The interpreter is therefore the only
+ * place that reports failures, and a translated method may be left and
+ * re-entered at any time.
+ *
+ * Entry points are the method start and the targets of its backward jumps,
+ * so a loop that becomes hot is entered from the interpreter at its next
+ * iteration.  Calls between compiled methods are direct JVM calls, up to
+ * maxDepth deep, and count calls and check the stack quota as the
+ * interpreter does.  A block whose instructions would take compiled code
+ * past the instructions the machine allows it (MjamVM.jitLimit) is left to
+ * the interpreter, so the run loops stop at exactly the instruction the
+ * reference engine stops at to check quotas.
+ */
+public class JitCompiler {
+
+	public final static int defaultThreshold = 1000;
+
+	// nesting of compiled methods on the JVM stack before calls are left to the interpreter
+	final static int maxDepth = 400;
+
+	private final MjamVM vm;
+	private final int threshold;
+
+	// decoded (unfused) code store
+	private final int[] plain;
+
+	// entry point address -> compiled code, and method start of each address
+	final CompiledCode[] entries;
+	private final int[] methodOf;
+	// calls and backward jumps seen, by method start; failed compilations are < 0
+	private final int[] hotness;
+
+	private int depth;
+
+	// STATISTICS
+	int methodsCompiled;
+	int methodsRejected;
+	long bytecodeSize;
+	long compileNanos;
+	long entriesFromInterpreter;
+	long exitsToInterpreter;
+	long compiledCalls;
+
+	JitCompiler(MjamVM vm, int threshold) {
+		this.vm = vm;
+		this.threshold = threshold;
+		plain = FastInterpreter.decode(vm.code, vm.CT);
+		entries = new CompiledCode[vm.CT + 1];
+		hotness = new int[vm.CT + 1];
+
+		// methods are laid out one after another, starting at the targets of CALL and CALLI
+		boolean[] start = new boolean[vm.CT];
+		start[Machine.CB] = true;
+		for (int addr = 0; addr < vm.CT; addr++) {
+			int op = plain[2 * addr] & 0xFF;
+			if (op == CALL || op == CALLI)
+				start[plain[2 * addr + 1]] = true;
+		}
+		methodOf = new int[vm.CT + 1];
+		int method = Machine.CB;
+		for (int addr = 0; addr < vm.CT; addr++) {
+			if (start[addr])
+				method = addr;
+			methodOf[addr] = method;
+		}
+		methodOf[vm.CT] = method;
+	}
+
+	// ENTRY FROM THE INTERPRETER
+
+	/**
+	 * Count a call to the method at addr
+	 * @return the compiled code to enter at addr, or null to interpret it
+	 */
+	CompiledCode enterCall(int addr) {
+		CompiledCode code = entries[addr];
+		if (code == null && hotness[addr] >= 0 && ++hotness[addr] >= threshold)
+			code = compile(addr);
+		if (code != null)
+			entriesFromInterpreter++;
+		return code;
+	}
+
+	/**
+	 * Count a backward jump to addr
+	 * @return the compiled code to enter at addr, or null to interpret it
+	 */
+	CompiledCode enterLoop(int addr) {
+		CompiledCode code = entries[addr];
+		int method = methodOf[addr];
+		if (code == null && hotness[method] >= 0 && ++hotness[method] >= threshold) {
+			compile(method);
+			code = entries[addr];
+		}
+		if (code != null)
+			entriesFromInterpreter++;
+		return code;
+	}
+
+	/**
+	 * Call from compiled code to the method at addr, whose frame has been
+	 * pushed, with the registers stored in vm
+	 * @return true if the method returned, false if the interpreter must
+	 *         carry on from vm.CP (or the call took the stack past its quota,
+	 *         and vm.status is set)
+	 */
+	boolean call(MjamVM vm, int addr) {
+		// the bookkeeping the interpreter does at each call, and its stack quota
+		if (vm.metrics != null)
+			vm.calls++;
+		if (vm.ST > vm.maxST) {
+			vm.maxST = vm.ST;
+			if (vm.stackQuota > 0 && vm.ST - MjamVM.SB > vm.stackQuota) {
+				vm.status = MjamVM.failedStackQuota;
+				return false;
+			}
+		}
+		CompiledCode code = entries[addr];
+		if (code == null) {
+			if (hotness[addr] < 0 || ++hotness[addr] < threshold || (code = compile(addr)) == null)
+				return false;
+		}
+		if (depth >= maxDepth || vm.jitInstructions >= vm.jitLimit)
+			return false;
+		compiledCalls++;
+		depth++;
+		boolean returned = code.run(vm);
+		depth--;
+		return returned;
+	}
+
+	// TRANSLATION
+
+	private int op(int addr) {
+		return plain[2 * addr] & 0xFF;
+	}
+
+	private int operand(int addr) {
+		return plain[2 * addr + 1];
+	}
+
+	private static boolean fallsThrough(int op) {
+		switch (op) {
+		case JUMP:
+		case RETURN:
+		case HALT:
+		case JUMPI:
+		case GENERIC:
+		case BAD_INSTRUCTION:
+		case BAD_ADDRESS:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	// change in stack depth made by an instruction, as far as it is known
+	private int stackEffect(int addr) {
+		int op = op(addr);
+		switch (op) {
+		case LOAD_LB: case LOAD_SB: case LOAD_OB: case LOAD_ABS:
+		case LOADA_LB: case LOADA_SB: case LOADA_OB: case LOADA_ABS:
+		case LOADL:
+			return 1;
+		case STORE_LB: case STORE_SB: case STORE_OB: case STORE_ABS:
+		case JUMPIF:
+		case P_AND: case P_OR: case P_ADD: case P_SUB: case P_MULT:
+		case P_LT: case P_LE: case P_GE: case P_GT: case P_EQ: case P_NE:
+		case P_ARRAYREF: case P_FIELDREF: case P_UARRAYREF:
+			return -1;
+		case STOREI:
+			return -2;
+		case P_ARRAYUPD: case P_FIELDUPD: case P_UARRAYUPD:
+			return -3;
+		case CALL:
+			return 3;
+		case CALLI:
+			return 2;
+		case PUSH:
+			return operand(addr);
+		case POP:
+			return -operand(addr);
+		case P_OTHER:
+			return 1; // at most (eol, eof); ends the block
+		default:
+			return 0;
+		}
+	}
+
+	// JVM locals of the translated method
+	private final static int VM = 1, DATA = 2, ST = 3, LB = 4, OB = 5, HT = 6, HOFF = 7,
+			SL = 8, HB = 9, COUNT = 10, A = 12, I = 13, ACC = 14, XCP = 16, XADJ = 17,
+			LIMIT = 18, maxLocals = 20, maxStack = 10;
+
+	private final static String vmClass = "mJAM/MjamVM", vmDesc = "LmJAM/MjamVM;";
+
+	private JitClassWriter w;
+	private int[] label;
+	private int exitLabel;
+	// exit stubs: instruction address and count adjustment, by label
+	private int[] stubAddr, stubAdjust, stubLabel;
+	private int stubCount;
+
+	/**
+	 * Translate the method starting at entry and install its entry points
+	 * @return compiled code for entry, or null if the method is not compiled
+	 */
+	CompiledCode compile(int entry) {
+		long start = System.nanoTime();
+		CompiledCode code = null;
+		try {
+			code = translate(entry);
+		} catch (Throwable e) {
+			code = null;
+		}
+		compileNanos += System.nanoTime() - start;
+		w = null;
+		if (code == null) {
+			hotness[entry] = Integer.MIN_VALUE;
+			methodsRejected++;
+		} else
+			methodsCompiled++;
+		return code;
+	}
+
+	private CompiledCode translate(int entry) throws Throwable {
+		int ct = vm.CT;
+		// region: instructions reachable from entry without leaving the method
+		boolean[] region = new boolean[ct + 1];
+		boolean[] leader = new boolean[ct + 1];
+		int[] work = new int[ct + 1];
+		int top = 0, size = 0;
+		work[top++] = entry;
+		region[entry] = true;
+		leader[entry] = true;
+		while (top > 0) {
+			int addr = work[--top];
+			size++;
+			int op = op(addr);
+			int[] next;
+			if (op == JUMP)
+				next = new int[] { operand(addr) };
+			else if (op == JUMPIF)
+				next = new int[] { operand(addr), addr + 1 };
+			else if (fallsThrough(op))
+				next = new int[] { addr + 1 };
+			else
+				next = new int[0];
+			if (op == JUMP || op == JUMPIF)
+				leader[operand(addr)] = true;
+			for (int n : next) {
+				if (n < ct && !region[n]) {
+					region[n] = true;
+					work[top++] = n;
+				}
+			}
+		}
+		if (size > 4000)
+			return null;
+		for (int addr = 0; addr < ct; addr++) {
+			if (!region[addr])
+				continue;
+			if (addr == 0 || !region[addr - 1])
+				leader[addr] = true;
+			else {
+				int prev = op(addr - 1);
+				if (!fallsThrough(prev) || prev == JUMPIF || prev == CALL || prev == CALLI
+						|| prev == P_OTHER)
+					leader[addr] = true;
+			}
+		}
+
+		// entry points: the method start and the targets of backward jumps
+		int entryCount = 0;
+		int[] entryAddrs = new int[size];
+		for (int addr = 0; addr < ct; addr++) {
+			if (!region[addr])
+				continue;
+			int op = op(addr);
+			if ((op == JUMP || op == JUMPIF) && operand(addr) <= addr)
+				entryAddrs[entryCount++] = operand(addr);
+		}
+		entryAddrs[entryCount++] = entry;
+		Arrays.sort(entryAddrs, 0, entryCount);
+		int keys = 0;
+		for (int k = 0; k < entryCount; k++)
+			if (keys == 0 || entryAddrs[keys - 1] != entryAddrs[k])
+				entryAddrs[keys++] = entryAddrs[k];
+
+		w = new JitClassWriter("mJAM/CompiledMethod" + entry, "mJAM/CompiledCode");
+		label = new int[ct + 1];
+		for (int addr = 0; addr <= ct; addr++)
+			label[addr] = region[addr] ? w.newLabel() : -1;
+		exitLabel = w.newLabel();
+		stubAddr = new int[16];
+		stubAdjust = new int[16];
+		stubLabel = new int[16];
+		stubCount = 0;
+
+		// prologue: registers into locals, then dispatch on vm.CP
+		loadRegisters(true);
+		w.op(ALOAD, VM);
+		w.op2(GETFIELD, w.fieldRef(vmClass, "HB", "I"));
+		w.op(ISTORE, HB);
+		w.op(ICONST_0);
+		w.op(I2L);
+		w.op(LSTORE, COUNT);
+		loadLimit();
+		w.op(ALOAD, VM);
+		w.op2(GETFIELD, w.fieldRef(vmClass, "CP", "I"));
+		int[] keyLabels = new int[keys];
+		int[] keyAddrs = Arrays.copyOf(entryAddrs, keys);
+		for (int k = 0; k < keys; k++)
+			keyLabels[k] = label[keyAddrs[k]];
+		int noEntry = w.newLabel();
+		w.lookupSwitch(keyAddrs, keyLabels, noEntry);
+		w.mark(noEntry);
+		w.op(ICONST_0);
+		w.op(IRETURN);
+
+		int remain = 0;
+		for (int addr = 0; addr < ct; addr++) {
+			if (!region[addr])
+				continue;
+			w.mark(label[addr]);
+			if (leader[addr]) {
+				// count the block, leaving it to the interpreter if that would
+				// take the count past the limit, and make sure the stack has
+				// room for all of it
+				int length = 1, depth = 0, growth = 0;
+				for (int a = addr;; a++) {
+					depth += stackEffect(a);
+					growth = Math.max(growth, depth);
+					if (!fallsThrough(op(a)) || !region[a + 1] || leader[a + 1])
+						break;
+					length++;
+				}
+				remain = length;
+				w.op(LLOAD, COUNT);
+				w.iconst(length);
+				w.op(I2L);
+				w.op(LADD);
+				w.op(LSTORE, COUNT);
+				w.op(LLOAD, COUNT);
+				w.op(LLOAD, LIMIT);
+				w.op(LCMP);
+				w.branch(IFGT, stub(addr, remain));
+				if (growth > 0) {
+					w.op(ILOAD, SL);
+					w.op(ILOAD, ST);
+					w.op(ISUB);
+					w.iconst(growth);
+					w.branch(IF_ICMPLT, stub(addr, remain));
+				}
+			}
+			translateInstruction(addr, remain);
+			remain--;
+			if (fallsThrough(op(addr)) && !region[addr + 1])
+				w.branch(GOTO, stub(addr + 1, 0));
+		}
+
+		// exit stubs and the common exit
+		for (int s = 0; s < stubCount; s++) {
+			w.mark(stubLabel[s]);
+			w.iconst(stubAddr[s]);
+			w.op(ISTORE, XCP);
+			w.iconst(stubAdjust[s]);
+			w.op(ISTORE, XADJ);
+			w.branch(GOTO, exitLabel);
+		}
+		w.mark(exitLabel);
+		w.op(LLOAD, COUNT);
+		w.op(ILOAD, XADJ);
+		w.op(I2L);
+		w.op(LSUB);
+		w.op(LSTORE, COUNT);
+		w.op(ALOAD, VM);
+		w.op(ILOAD, XCP);
+		w.op2(PUTFIELD, w.fieldRef(vmClass, "CP", "I"));
+		storeRegisters();
+		flushCount();
+		w.op(ALOAD, VM);
+		w.op2(GETFIELD, w.fieldRef(vmClass, "jit", "LmJAM/JitCompiler;"));
+		w.op(DUP);
+		w.op2(GETFIELD, w.fieldRef("mJAM/JitCompiler", "exitsToInterpreter", "J"));
+		w.op(ICONST_1);
+		w.op(I2L);
+		w.op(LADD);
+		w.op2(PUTFIELD, w.fieldRef("mJAM/JitCompiler", "exitsToInterpreter", "J"));
+		w.op(ICONST_0);
+		w.op(IRETURN);
+
+		if (w.tooLarge())
+			return null;
+		byte[] classFile = w.toClassFile("run", "(" + vmDesc + ")Z", maxStack, maxLocals);
+		MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+		CompiledCode code = (CompiledCode) lookup
+				.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+		bytecodeSize += classFile.length;
+		for (int k = 0; k < keys; k++)
+			entries[keyAddrs[k]] = code;
+		return code;
+	}
+
+	private int stub(int addr, int adjust) {
+		for (int s = 0; s < stubCount; s++)
+			if (stubAddr[s] == addr && stubAdjust[s] == adjust)
+				return stubLabel[s];
+		if (stubCount == stubAddr.length) {
+			stubAddr = Arrays.copyOf(stubAddr, 2 * stubCount);
+			stubAdjust = Arrays.copyOf(stubAdjust, 2 * stubCount);
+			stubLabel = Arrays.copyOf(stubLabel, 2 * stubCount);
+		}
+		stubAddr[stubCount] = addr;
+		stubAdjust[stubCount] = adjust;
+		stubLabel[stubCount] = w.newLabel();
+		return stubLabel[stubCount++];
+	}
+
+	private void getVM(String field, String desc) {
+		w.op(ALOAD, VM);
+		w.op2(GETFIELD, w.fieldRef(vmClass, field, desc));
+	}
+
+	private void putVM(String field, int local) {
+		w.op(ALOAD, VM);
+		w.op(ILOAD, local);
+		w.op2(PUTFIELD, w.fieldRef(vmClass, field, "I"));
+	}
+
+	// registers from vm into locals (LB and OB only if all is set)
+	private void loadRegisters(boolean all) {
+		getVM("words", "[I");
+		w.op(ASTORE, DATA);
+		getVM("ST", "I");
+		w.op(ISTORE, ST);
+		getVM("HT", "I");
+		w.op(ISTORE, HT);
+		getVM("heapOffset", "I");
+		w.op(ISTORE, HOFF);
+		w.op(ILOAD, HT);
+		w.op(ILOAD, HOFF);
+		w.op(ISUB);
+		w.op(ISTORE, SL);
+		if (all) {
+			getVM("LB", "I");
+			w.op(ISTORE, LB);
+			getVM("OB", "I");
+			w.op(ISTORE, OB);
+		}
+	}
+
+	private void storeRegisters() {
+		putVM("ST", ST);
+		putVM("HT", HT);
+		putVM("LB", LB);
+		putVM("OB", OB);
+	}
+
+	// add the instructions counted so far to vm.jitInstructions
+	private void flushCount() {
+		w.op(ALOAD, VM);
+		w.op(ALOAD, VM);
+		w.op2(GETFIELD, w.fieldRef(vmClass, "jitInstructions", "J"));
+		w.op(LLOAD, COUNT);
+		w.op(LADD);
+		w.op2(PUTFIELD, w.fieldRef(vmClass, "jitInstructions", "J"));
+		w.op(ICONST_0);
+		w.op(I2L);
+		w.op(LSTORE, COUNT);
+	}
+
+	// instructions compiled code may still run: vm.jitLimit - vm.jitInstructions
+	private void loadLimit() {
+		getVM("jitLimit", "J");
+		getVM("jitInstructions", "J");
+		w.op(LSUB);
+		w.op(LSTORE, LIMIT);
+	}
+
+	// push data[ST - k]
+	private void stackWord(int k) {
+		w.op(ALOAD, DATA);
+		w.op(ILOAD, ST);
+		if (k != 0) {
+			w.iconst(k);
+			w.op(ISUB);
+		}
+		w.op(IALOAD);
+	}
+
+	// push data, ST - k (ready for an iastore)
+	private void stackSlot(int k) {
+		w.op(ALOAD, DATA);
+		w.op(ILOAD, ST);
+		if (k != 0) {
+			w.iconst(k);
+			w.op(ISUB);
+		}
+	}
+
+	// push data, ST; the caller pushes the value, then push() stores it
+	private void pushSlot() {
+		w.op(ALOAD, DATA);
+		w.op(ILOAD, ST);
+	}
+
+	private void push() {
+		w.op(IASTORE);
+		w.iinc(ST, 1);
+	}
+
+	// local A = physical index of data store address in local A
+	private void physical() {
+		int skip = w.newLabel();
+		w.op(ILOAD, A);
+		w.op(ILOAD, HT);
+		w.branch(IF_ICMPLT, skip);
+		w.op(ILOAD, A);
+		w.op(ILOAD, HOFF);
+		w.op(ISUB);
+		w.op(ISTORE, A);
+		w.mark(skip);
+	}
+
+	// exit unless local A holds a heap address, then make it physical
+	private void heapRef(int exit) {
+		w.op(ILOAD, A);
+		w.iconst(Machine.nullRep);
+		w.branch(IF_ICMPEQ, exit);
+		w.op(ILOAD, A);
+		w.op(ILOAD, HT);
+		w.iconst(2);
+		w.op(IADD);
+		w.branch(IF_ICMPLT, exit);
+		w.op(ILOAD, A);
+		w.op(ILOAD, HB);
+		w.branch(IF_ICMPGT, exit);
+		w.op(ILOAD, A);
+		w.op(ILOAD, HOFF);
+		w.op(ISUB);
+		w.op(ISTORE, A);
+	}
+
+	// push data[A + k]
+	private void heapWord(int k) {
+		w.op(ALOAD, DATA);
+		w.op(ILOAD, A);
+		if (k != 0) {
+			w.iconst(k);
+			w.op(IADD);
+		}
+		w.op(IALOAD);
+	}
+
+	// exit unless local I is a valid index of the block at A (an array if array is set)
+	private void indexCheck(boolean array, int exit) {
+		if (array) {
+			heapWord(-2);
+			w.iconst(-2);
+			w.branch(IF_ICMPNE, exit);
+		}
+		w.op(ILOAD, I);
+		w.branch(IFLT, exit);
+		w.op(ILOAD, I);
+		heapWord(-1);
+		w.branch(IF_ICMPGE, exit);
+	}
+
+	// push trueRep if the int comparison ifOp holds, else falseRep
+	private void truthValue(int ifOp) {
+		int yes = w.newLabel(), done = w.newLabel();
+		w.branch(ifOp, yes);
+		w.iconst(Machine.falseRep);
+		w.branch(GOTO, done);
+		w.mark(yes);
+		w.iconst(Machine.trueRep);
+		w.mark(done);
+	}
+
+	private static int compareOp(int op) {
+		switch (op) {
+		case P_LT:
+			return IF_ICMPLT;
+		case P_LE:
+			return IF_ICMPLE;
+		case P_GE:
+			return IF_ICMPGE;
+		case P_GT:
+			return IF_ICMPGT;
+		case P_EQ:
+			return IF_ICMPEQ;
+		default:
+			return IF_ICMPNE;
+		}
+	}
+
+	/**
+	 * Emit the bytecode for the instruction at addr
+	 * @param remain  instructions of the block counted but not yet executed,
+	 *                including this one
+	 */
+	private void translateInstruction(int addr, int remain) {
+		int op = op(addr);
+		int d = operand(addr);
+		int n = (plain[2 * addr] >>> 8) & 0xFF;
+		switch (op) {
+		case LOAD_LB:
+			pushSlot();
+			w.op(ALOAD, DATA);
+			w.op(ILOAD, LB);
+			w.iconst(d);
+			w.op(IADD);
+			w.op(IALOAD);
+			push();
+			break;
+		case LOAD_SB:
+			pushSlot();
+			w.op(ALOAD, DATA);
+			w.iconst(d);
+			w.op(IALOAD);
+			push();
+			break;
+		case LOAD_OB:
+		case LOAD_ABS:
+			if (op == LOAD_OB) {
+				w.op(ILOAD, OB);
+				w.iconst(d);
+				w.op(IADD);
+			} else
+				w.iconst(d);
+			w.op(ISTORE, A);
+			physical();
+			pushSlot();
+			heapWord(0);
+			push();
+			break;
+		case LOADA_LB:
+			pushSlot();
+			w.op(ILOAD, LB);
+			w.iconst(d);
+			w.op(IADD);
+			push();
+			break;
+		case LOADA_OB:
+			pushSlot();
+			w.op(ILOAD, OB);
+			w.iconst(d);
+			w.op(IADD);
+			push();
+			break;
+		case LOADA_SB:
+		case LOADA_ABS:
+		case LOADL:
+			pushSlot();
+			w.iconst(d);
+			push();
+			break;
+		case LOADI:
+			stackWord(1);
+			w.op(ISTORE, A);
+			physical();
+			stackSlot(1);
+			heapWord(0);
+			w.op(IASTORE);
+			break;
+		case STORE_LB:
+			w.iinc(ST, -1);
+			w.op(ALOAD, DATA);
+			w.op(ILOAD, LB);
+			w.iconst(d);
+			w.op(IADD);
+			stackWord(0);
+			w.op(IASTORE);
+			break;
+		case STORE_SB:
+			w.iinc(ST, -1);
+			w.op(ALOAD, DATA);
+			w.iconst(d);
+			stackWord(0);
+			w.op(IASTORE);
+			break;
+		case STORE_OB:
+		case STORE_ABS:
+			if (op == STORE_OB) {
+				w.op(ILOAD, OB);
+				w.iconst(d);
+				w.op(IADD);
+			} else
+				w.iconst(d);
+			w.op(ISTORE, A);
+			physical();
+			w.iinc(ST, -1);
+			w.op(ALOAD, DATA);
+			w.op(ILOAD, A);
+			stackWord(0);
+			w.op(IASTORE);
+			break;
+		case STOREI:
+			stackWord(1);
+			w.op(ISTORE, A);
+			physical();
+			w.op(ALOAD, DATA);
+			w.op(ILOAD, A);
+			stackWord(2);
+			w.op(IASTORE);
+			w.iinc(ST, -2);
+			break;
+		case CALL:
+		case CALLI:
+			if (op == CALL) {
+				// frame: OB, LB, return address
+				pushSlot();
+				w.op(ILOAD, OB);
+				w.op(IASTORE);
+				stackSlot(-1);
+				w.op(ILOAD, LB);
+				w.op(IASTORE);
+				stackSlot(-2);
+				w.iconst(addr + 1);
+				w.op(IASTORE);
+				w.iconst(Machine.nullRep);
+				w.op(ISTORE, OB);
+				w.op(ILOAD, ST);
+				w.op(ISTORE, LB);
+				w.iinc(ST, 3);
+			} else {
+				// instance address on the stack is replaced by the frame
+				stackWord(1);
+				w.op(ISTORE, A);
+				stackSlot(1);
+				w.op(ILOAD, OB);
+				w.op(IASTORE);
+				pushSlot();
+				w.op(ILOAD, LB);
+				w.op(IASTORE);
+				stackSlot(-1);
+				w.iconst(addr + 1);
+				w.op(IASTORE);
+				w.op(ILOAD, A);
+				w.op(ISTORE, OB);
+				w.op(ILOAD, ST);
+				w.op(ICONST_1);
+				w.op(ISUB);
+				w.op(ISTORE, LB);
+				w.iinc(ST, 2);
+			}
+			// hand over to the callee, compiled or interpreted
+			w.iconst(d);
+			w.op(ISTORE, XCP);
+			w.op(ALOAD, VM);
+			w.op(ILOAD, XCP);
+			w.op2(PUTFIELD, w.fieldRef(vmClass, "CP", "I"));
+			storeRegisters();
+			flushCount();
+			int leave = w.newLabel();
+			getVM("jit", "LmJAM/JitCompiler;");
+			w.op(ALOAD, VM);
+			w.iconst(d);
+			w.op2(INVOKEVIRTUAL, w.methodRef("mJAM/JitCompiler", "call", "(" + vmDesc + "I)Z"));
+			w.branch(IFEQ, leave);
+			getVM("CP", "I");
+			w.iconst(addr + 1);
+			w.branch(IF_ICMPNE, leave);
+			loadRegisters(true);
+			loadLimit();
+			int resume = w.newLabel();
+			w.branch(GOTO, resume);
+			w.mark(leave);
+			w.op(ICONST_0);
+			w.op(IRETURN);
+			w.mark(resume);
+			break;
+		case RETURN:
+			// A = addr of caller args, XCP = return address
+			w.op(ILOAD, LB);
+			w.iconst(d);
+			w.op(ISUB);
+			w.op(ISTORE, A);
+			w.op(ALOAD, DATA);
+			w.op(ILOAD, LB);
+			w.op(IALOAD);
+			w.op(ISTORE, OB);
+			w.op(ALOAD, DATA);
+			w.op(ILOAD, LB);
+			w.iconst(2);
+			w.op(IADD);
+			w.op(IALOAD);
+			w.op(ISTORE, XCP);
+			w.op(ALOAD, DATA);
+			w.op(ILOAD, LB);
+			w.op(ICONST_1);
+			w.op(IADD);
+			w.op(IALOAD);
+			w.op(ISTORE, LB);
+			if (n == 1) {
+				w.op(ALOAD, DATA);
+				w.op(ILOAD, A);
+				stackWord(1);
+				w.op(IASTORE);
+			}
+			w.op(ILOAD, A);
+			w.iconst(n);
+			w.op(IADD);
+			w.op(ISTORE, ST);
+			w.op(ALOAD, VM);
+			w.op(ILOAD, XCP);
+			w.op2(PUTFIELD, w.fieldRef(vmClass, "CP", "I"));
+			storeRegisters();
+			flushCount();
+			w.op(ICONST_1);
+			w.op(IRETURN);
+			break;
+		case PUSH:
+			w.iinc(ST, d);
+			break;
+		case POP:
+			w.iinc(ST, -d);
+			break;
+		case JUMP:
+			w.branch(GOTO, label[d]);
+			break;
+		case JUMPIF:
+			w.iinc(ST, -1);
+			stackWord(0);
+			w.iconst(n);
+			w.branch(IF_ICMPEQ, label[d]);
+			break;
+
+		// primitives
+		case P_ID:
+			break;
+		case P_NOT:
+			stackSlot(1);
+			stackWord(1);
+			w.iconst(Machine.trueRep);
+			truthValue(IF_ICMPNE);
+			w.op(IASTORE);
+			break;
+		case P_AND:
+		case P_OR: {
+			w.iinc(ST, -1);
+			stackSlot(1);
+			int yes = w.newLabel(), no = w.newLabel(), done = w.newLabel();
+			stackWord(1);
+			w.iconst(Machine.trueRep);
+			w.branch(op == P_AND ? IF_ICMPNE : IF_ICMPEQ, op == P_AND ? no : yes);
+			stackWord(0);
+			w.iconst(Machine.trueRep);
+			w.branch(IF_ICMPNE, no);
+			w.mark(yes);
+			w.iconst(Machine.trueRep);
+			w.branch(GOTO, done);
+			w.mark(no);
+			w.iconst(Machine.falseRep);
+			w.mark(done);
+			w.op(IASTORE);
+			break;
+		}
+		case P_NEG:
+			stackSlot(1);
+			stackWord(1);
+			w.op(INEG);
+			w.op(IASTORE);
+			break;
+		case P_ADD:
+		case P_SUB:
+		case P_MULT:
+			stackWord(2);
+			w.op(I2L);
+			stackWord(1);
+			w.op(I2L);
+			w.op(op == P_ADD ? LADD : op == P_SUB ? LSUB : LMUL);
+			w.op(LSTORE, ACC);
+			w.op(LLOAD, ACC);
+			w.op(LLOAD, ACC);
+			w.op(L2I);
+			w.op(I2L);
+			w.op(LCMP);
+			w.branch(IFNE, stub(addr, remain));
+			w.iinc(ST, -1);
+			stackSlot(1);
+			w.op(LLOAD, ACC);
+			w.op(L2I);
+			w.op(IASTORE);
+			break;
+		case P_LT:
+		case P_LE:
+		case P_GE:
+		case P_GT:
+		case P_EQ:
+		case P_NE:
+			w.iinc(ST, -1);
+			stackSlot(1);
+			stackWord(1);
+			stackWord(0);
+			truthValue(compareOp(op));
+			w.op(IASTORE);
+			break;
+		case P_ARRAYLEN: {
+			int exit = stub(addr, remain);
+			stackWord(1);
+			w.op(ISTORE, A);
+			heapRef(exit);
+			heapWord(-2);
+			w.iconst(-2);
+			w.branch(IF_ICMPNE, exit);
+			stackSlot(1);
+			heapWord(-1);
+			w.op(IASTORE);
+			break;
+		}
+		case P_ARRAYREF:
+		case P_FIELDREF: {
+			int exit = stub(addr, remain);
+			stackWord(2);
+			w.op(ISTORE, A);
+			heapRef(exit);
+			stackWord(1);
+			w.op(ISTORE, I);
+			indexCheck(op == P_ARRAYREF, exit);
+			stackSlot(2);
+			w.op(ALOAD, DATA);
+			w.op(ILOAD, A);
+			w.op(ILOAD, I);
+			w.op(IADD);
+			w.op(IALOAD);
+			w.op(IASTORE);
+			w.iinc(ST, -1);
+			break;
+		}
+		case P_ARRAYUPD:
+		case P_FIELDUPD: {
+			int exit = stub(addr, remain);
+			stackWord(3);
+			w.op(ISTORE, A);
+			heapRef(exit);
+			stackWord(2);
+			w.op(ISTORE, I);
+			indexCheck(op == P_ARRAYUPD, exit);
+			w.op(ALOAD, DATA);
+			w.op(ILOAD, A);
+			w.op(ILOAD, I);
+			w.op(IADD);
+			stackWord(1);
+			w.op(IASTORE);
+			w.iinc(ST, -3);
+			break;
+		}
+		case P_UARRAYREF:
+			// no checks: data[ST - 2] = data[data[ST - 2] - hoff + data[ST - 1]]
+			stackSlot(2);
+			w.op(ALOAD, DATA);
+			stackWord(2);
+			w.op(ILOAD, HOFF);
+			w.op(ISUB);
+			stackWord(1);
+			w.op(IADD);
+			w.op(IALOAD);
+			w.op(IASTORE);
+			w.iinc(ST, -1);
+			break;
+		case P_UARRAYUPD:
+			w.op(ALOAD, DATA);
+			stackWord(3);
+			w.op(ILOAD, HOFF);
+			w.op(ISUB);
+			stackWord(2);
+			w.op(IADD);
+			stackWord(1);
+			w.op(IASTORE);
+			w.iinc(ST, -3);
+			break;
+		case P_OTHER:
+			if (d == Machine.Prim.div.ordinal() || d == Machine.Prim.mod.ordinal()) {
+				stackWord(1);
+				w.op(ISTORE, I);
+				w.op(ILOAD, I);
+				w.branch(IFEQ, stub(addr, remain));
+				w.iinc(ST, -1);
+				stackSlot(1);
+				stackWord(1);
+				w.op(ILOAD, I);
+				w.op(d == Machine.Prim.div.ordinal() ? IDIV : IREM);
+				w.op(IASTORE);
+				break;
+			}
+			// any other primitive is run by the machine
+			w.iconst(addr);
+			w.op(ISTORE, XCP);
+			w.op(ALOAD, VM);
+			w.op(ILOAD, XCP);
+			w.op2(PUTFIELD, w.fieldRef(vmClass, "CP", "I"));
+			putVM("ST", ST);
+			putVM("HT", HT);
+			w.op(ALOAD, VM);
+			w.iconst(d);
+			w.op2(INVOKEVIRTUAL, w.methodRef(vmClass, "callPrimitive", "(I)V"));
+			loadRegisters(false);
+			int done = w.newLabel();
+			getVM("status", "I");
+			w.branch(IFEQ, done);
+			// suspended before an input primitive, which runs when the machine
+			// resumes, or failed, past the primitive as the interpreter leaves it
+			getVM("status", "I");
+			w.iconst(MjamVM.suspended);
+			w.branch(IF_ICMPEQ, stub(addr, remain));
+			w.branch(GOTO, stub(addr + 1, remain - 1));
+			w.mark(done);
+			break;
+		default:
+			// GENERIC, HALT, JUMPI, BAD_INSTRUCTION: left to the interpreter
+			w.branch(GOTO, stub(addr, remain));
+			break;
+		}
+	}
+
+	/**
+	 * Write the JIT statistics
+	 */
+	public void printStatistics(PrintStream out) {
+		out.println("*** JIT: " + methodsCompiled + " methods compiled ("
+				+ bytecodeSize + " bytes of class files), " + methodsRejected
+				+ " rejected, compile time " + String.format("%.3f", compileNanos / 1e6) + " ms");
+		out.println("*** JIT: " + entriesFromInterpreter + " entries from the interpreter, "
+				+ compiledCalls + " calls between compiled methods, "
+				+ exitsToInterpreter + " exits to the interpreter, "
+				+ vm.jitInstructions + " instructions executed by compiled code");
+	}
+}
@@ -89,7 +89,11 @@ public final class Machine {
 	    arrayref,
 	    arrayupd,
 	    fieldref,
-	    fieldupd;
+	    fieldupd,
+	    // arrayref and arrayupd without the array and index checks, for
+	    // accesses the compiler has proved to be in bounds
+	    uarrayref,
+	    uarrayupd;
 	}
 	public static Prim [] intToPrim = Prim.values();
 
@@ -110,8 +114,12 @@ public final class Machine {
   public static Instruction[] code = new Instruction[PB];
   public static int CT = CB;
   
+  // METHOD AND SOURCE LINE ADDRESSES, marked by the code generator
+  public static SourceMap sourceMap = new SourceMap();
+
   public static void initCodeGen() {
 	  CT = CB;
+	  sourceMap = new SourceMap();
   }
   
  /**
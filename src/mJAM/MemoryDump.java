@@ -0,0 +1,217 @@
+/**
+ * Binary dump of the memory of an mJAM machine
+ */
+package mJAM;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The registers, code store, method names and live data store words (stack
+ * and heap) of one MjamVM, written to a file by write and read back by read
+ * as a view of the file mapped into memory, so a dump of a large data store
+ * is neither formatted nor copied onto the Java heap.  DumpAnalyser reports
+ * on a dump.
+ *
+ * A dump file holds big-endian ints: a header of 16 (a magic number, the
+ * format version, status, CP, CT, ST, HT, HB, LB, OB, whether the heap holds
+ * raw blocks, the number of bytes of method names, then zeros), the code
+ * store (op, n, r, d of each instruction), the method names (start address
+ * as an int and name as modified UTF-8, for each method), then the stack
+ * words SB..ST-1 and the heap words HT..HB-1.
+ */
+public class MemoryDump {
+
+	private final static int magic = 0x6D4A4455, version = 1;
+	private final static int headerBytes = 64;
+
+	// words mapped for each bulk copy of the stack or heap
+	private final static int copyWords = 1 << 24;
+
+	private final int status, CP, ST, HT, HB, LB, OB;
+	private final boolean rawHeap;
+	private final Instruction[] code;
+	private final SourceMap symbols;
+	private final DataStore stack, heap;
+
+	private MemoryDump(int[] header, Instruction[] code, SourceMap symbols, DataStore stack,
+			DataStore heap) {
+		status = header[2];
+		CP = header[3];
+		ST = header[5];
+		HT = header[6];
+		HB = header[7];
+		LB = header[8];
+		OB = header[9];
+		rawHeap = header[10] != 0;
+		this.code = code;
+		this.symbols = symbols;
+		this.stack = stack;
+		this.heap = heap;
+	}
+
+	/**
+	 * Write the memory of vm to a dump file
+	 * @param symbols  names of the methods, or null if not known
+	 * @return true if write fails
+	 */
+	public static boolean write(MjamVM vm, String fileName, SourceMap symbols) {
+		try {
+			ByteArrayOutputStream names = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(names);
+			for (int m = 0; symbols != null && m < symbols.methodCount(); m++) {
+				out.writeInt(symbols.methodAddr(m));
+				out.writeUTF(symbols.methodName(m));
+			}
+
+			ByteBuffer prefix = ByteBuffer.allocate(headerBytes + 16 * vm.CT + names.size());
+			for (int word : new int[] { magic, version, vm.status, vm.CP, vm.CT, vm.ST, vm.HT, vm.HB,
+					vm.LB, vm.OB, vm.rawHeap ? 1 : 0, names.size() })
+				prefix.putInt(word);
+			prefix.position(headerBytes);
+			for (Instruction inst : vm.code)
+				prefix.putInt(inst.op).putInt(inst.n).putInt(inst.r).putInt(inst.d);
+			prefix.put(names.toByteArray());
+			prefix.flip();
+
+			try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+					StandardOpenOption.WRITE)) {
+				long position = prefix.remaining();
+				while (prefix.hasRemaining())
+					channel.write(prefix);
+				position = copy(vm.data, MjamVM.SB, vm.ST, channel, position);
+				copy(vm.data, vm.HT - vm.heapOffset, vm.HB - vm.heapOffset, channel, position);
+			}
+		} catch (IOException e) {
+			return true;
+		}
+		return false;
+	}
+
+	// Copies words from..to-1 of data to the file from position, through
+	// a mapping of the file
+	private static long copy(DataStore data, int from, int to, FileChannel channel, long position)
+			throws IOException {
+		while (from < to) {
+			int count = Math.min(to - from, copyWords);
+			data.copyTo(from, count, channel.map(FileChannel.MapMode.READ_WRITE, position, 4L * count)
+					.asIntBuffer());
+			from += count;
+			position += 4L * count;
+		}
+		return position;
+	}
+
+	/**
+	 * @return the dump in a file written by write, or null if it can not be
+	 *         read
+	 */
+	public static MemoryDump read(String fileName) {
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			long length = channel.size();
+			if (length < headerBytes)
+				return null;
+			ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerBytes);
+			int[] header = new int[headerBytes / 4];
+			for (int i = 0; i < header.length; i++)
+				header[i] = bytes.getInt();
+			int ct = header[4], st = header[5], ht = header[6], hb = header[7], nameBytes = header[11];
+			// a failed allocation may leave HT below ST
+			if (header[0] != magic || header[1] != version || ct < 0 || ct > Machine.PB
+					|| st < MjamVM.SB || ht < MjamVM.SB || ht > hb || nameBytes < 0)
+				return null;
+			long stackPosition = headerBytes + 16L * ct + nameBytes;
+			long heapPosition = stackPosition + 4L * (st - MjamVM.SB);
+			if (heapPosition + 4L * (hb - ht) != length)
+				return null;
+
+			bytes = channel.map(FileChannel.MapMode.READ_ONLY, headerBytes, stackPosition - headerBytes);
+			Instruction[] code = new Instruction[ct];
+			for (int addr = 0; addr < ct; addr++)
+				code[addr] = new Instruction(bytes.getInt(), bytes.getInt(), bytes.getInt(), bytes.getInt());
+			byte[] names = new byte[nameBytes];
+			bytes.get(names);
+			SourceMap symbols = new SourceMap();
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(names));
+			while (in.available() > 0)
+				symbols.markMethod(in.readInt(), in.readUTF());
+
+			return new MemoryDump(header, code, symbols,
+					DataStore.view(channel, stackPosition, st - MjamVM.SB),
+					DataStore.view(channel, heapPosition, hb - ht));
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return data store word addr, which must be on the stack (SB..ST-1)
+	 *         or in the heap (HT..HB-1); as in the machine, an address in
+	 *         both is in the heap
+	 */
+	public int word(int addr) {
+		if (addr >= HT && addr < HB)
+			return heap.get(addr - HT);
+		if (addr >= MjamVM.SB && addr < ST)
+			return stack.get(addr - MjamVM.SB);
+		throw new IndexOutOfBoundsException("address " + addr + " is not on the stack or heap");
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public int getCP() {
+		return CP;
+	}
+
+	public int getST() {
+		return ST;
+	}
+
+	public int getHT() {
+		return HT;
+	}
+
+	public int getHB() {
+		return HB;
+	}
+
+	public int getLB() {
+		return LB;
+	}
+
+	public int getOB() {
+		return OB;
+	}
+
+	/**
+	 * @return true if the heap holds blocks reserved by the alloc primitive,
+	 *         which have no header, so it can not be walked block by block
+	 */
+	public boolean isRawHeap() {
+		return rawHeap;
+	}
+
+	/**
+	 * @return the code store
+	 */
+	public Instruction[] getCode() {
+		return code;
+	}
+
+	/**
+	 * @return the method names, with no source lines
+	 */
+	public SourceMap getSymbols() {
+		return symbols;
+	}
+}
@@ -0,0 +1,1625 @@
+/**
+ * An mJAM virtual machine instance
+ */
+package mJAM;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds the complete state of one mJAM machine: its own code store, data
+ * store, registers and I/O streams.  Any number of machines may run
+ * concurrently in a single JVM, each on its own thread; a single machine is
+ * not safe for use by several threads at once.
+ *
+ * Interpreter provides the command line and debugger front end over a
+ * machine of this type.
+ */
+public class MjamVM {
+
+	// machine status values
+	public final static int running = 0, halted = 1, failedDataStoreFull = 2,
+			failedInvalidCodeAddress = 3, failedInvalidInstruction = 4,
+			failedOverflow = 5, failedZeroDivide = 6, failedIOError = 7,
+			failedArrayIndex = 8, failedNullRef = 9, failedHeapRef =10,
+			failedFieldIndex = 11, failedMethodIndex = 12,
+			failedInstructionQuota = 13, failedTimeQuota = 14,
+			failedHeapQuota = 15, failedStackQuota = 16,
+			suspended = 17;
+
+	// CODE STORE
+	final Instruction[] code;
+	final int CT;
+
+	// code store as decoded by FastInterpreter, built on first use
+	private int[] decodedCode;
+
+	// superinstructions: whether decoded code is fused, the number of sites
+	// fused and the executions of each kind during the last fast run
+	private boolean fusion = true;
+	private int[] fusionSites;
+	final long[] fusionCounts = new long[Superinstructions.kinds()];
+
+	// instructions executed by the last run
+	private long instructionCount;
+
+	// hot method compiler used by interpretProgramFast, null unless enabled,
+	// the instructions executed by compiled code during the current run, and
+	// the count at which compiled code returns to the interpreter
+	JitCompiler jit;
+	long jitInstructions;
+	long jitLimit = Long.MAX_VALUE;
+
+	// code store translated to register form, built on first use
+	RegisterCode registerCode;
+
+	// DATA STORE
+	//
+	// The stack occupies words SB..ST-1 of data.  The heap occupies the top
+	// of the store, so heap address a (HT <= a < HB) is held in word
+	// a - heapOffset.  HB is fixed at the maximum data store size, while the
+	// store starts at the initial size and is enlarged on demand; heap
+	// addresses are unchanged when heap words are relocated to the top of a
+	// larger store.  The words are on the Java heap unless given another
+	// DataStore by setDataStore.
+	public final static int defaultDataStoreSize = 1024;
+
+	DataStore data = DataStore.onHeap(defaultDataStoreSize);
+	int heapOffset = 0;
+	// the words of data if it is on the Java heap, otherwise null, for the
+	// engines that index them directly (FastInterpreter, compiled code and
+	// RegisterInterpreter)
+	int[] words = data.words();
+	// whether data keeps the registers, at each checkpoint
+	private boolean recordRegisters;
+
+	// DATA STORE REGISTERS AND OTHER REGISTERS
+	final static int CB = 0, SB = 0;
+	int HB = defaultDataStoreSize; // = maximum data store size
+
+	int CP, ST, HT, LB, OB, status, temp;
+
+	long accumulator;
+
+	int currentChar;
+
+	// heap collector, null unless enabled
+	GarbageCollector collector;
+
+	// size-class free lists honouring dispose, null unless enabled
+	FreeListAllocator freeLists;
+
+	// per call-site caches of CALLD targets, null unless enabled
+	InlineCaches inlineCaches;
+
+	// counts instructions, calls and call edges of interpretProgram, null unless enabled
+	Profiler profiler;
+
+	// samples the call stack of interpretProgram and interpretProgramFast, null unless enabled
+	SamplingProfiler sampler;
+	long nextSample;
+
+	// EVENT COUNTERS
+	//
+	// Plain counters updated by the engines as they run: method calls (CALL,
+	// CALLI, CALLD), primitive calls by Machine.Prim ordinal, heap blocks
+	// allocated and their words, and the highest ST seen at a call.  They
+	// are only read by the machine's own thread, which copies them into the
+	// metrics at checkpoints and when a run ends, so all but maxST (which
+	// the stack quota also needs) are only updated while metrics are
+	// enabled; the interpreters test that once per run, not per event.
+	long calls;
+	final long[] primitiveCalls = new long[Machine.intToPrim.length];
+	long allocations, allocatedWords;
+	int maxST;
+
+	// last published counters, null unless enabled, and the instructions
+	// between publications while a program runs
+	VmMetrics metrics;
+	public final static int metricsInterval = 1 << 16;
+
+	// QUOTAS
+	//
+	// Limits on each run, 0 if none: instructions executed, wall-clock time
+	// in milliseconds, heap words (HB - HT) and stack words (ST - SB).  The
+	// time quota is checked every quotaInterval instructions, against the
+	// deadline (System.nanoTime) set when the run starts.
+	long instructionQuota, timeQuota;
+	int heapQuota, stackQuota;
+	public final static int quotaInterval = 4096;
+	private long deadline;
+
+	// SNAPSHOTS
+	//
+	// Points at which a run is suspended, once each, for a snapshot: before
+	// the first input primitive (get, geteol, getint) and at HALT with n > 0.
+	// Unlike these, whenInputBlocks suspends before every input primitive
+	// whose input channel is not ready (see InputChannel.ready).
+	public final static int atInput = 1, atSnapshotHalt = 2, whenInputBlocks = 4;
+	int suspendAt;
+	// true while stopped before an input primitive, which is not a point
+	// at which to suspend again
+	boolean atInputPrimitive;
+
+	// SLICES
+	//
+	// Instructions after which each run is suspended, 0 if none, so that
+	// VmScheduler can share a few threads between many machines.  The slice
+	// ends at the first checkpoint at or after the count.
+	long sliceInstructions;
+
+	// true once the heap holds blocks reserved by the alloc primitive, which
+	// have no header
+	boolean rawHeap;
+
+	// true once Verifier has accepted the code store, when the reference
+	// implementation checks the code pointer only where it comes from data
+	boolean verified;
+
+	// file for a MemoryDump written in place of the text dump when a run
+	// fails, null for the text dump, and the method names written with it
+	private String failureDumpFile;
+	private SourceMap failureDumpSymbols;
+
+	// I/O: buffered channels used by the I/O primitives, and the stream
+	// written by status reports and dumps
+	OutputChannel output = new OutputChannel(System.out);
+	InputChannel input = new InputChannel(System.in);
+	PrintStream out = System.out;
+
+	/**
+	 * Create a machine whose code store holds a copy of code[CB..codeTop-1]
+	 * @param code     code store
+	 * @param codeTop  address following the last instruction
+	 */
+	public MjamVM(Instruction[] code, int codeTop) {
+		this(copy(code, codeTop));
+	}
+
+	/**
+	 * Create a machine whose code store is code, shared and not copied,
+	 * as the machine never changes its code store
+	 */
+	MjamVM(Instruction[] code) {
+		this.code = code;
+		this.CT = code.length;
+		input.tie(output);
+		initMachine();
+	}
+
+	static Instruction[] copy(Instruction[] code, int codeTop) {
+		Instruction[] copy = new Instruction[codeTop];
+		for (int addr = CB; addr < codeTop; addr++) {
+			Instruction inst = code[addr];
+			copy[addr] = new Instruction(inst.op, inst.n, inst.r, inst.d);
+		}
+		return copy;
+	}
+
+	/**
+	 * Create a machine holding the program in an object file
+	 * @return the machine, or null if the object file can not be read
+	 */
+	public static MjamVM load(String objectFileName) {
+		Instruction[] code = new ObjectFile(objectFileName).readCode();
+		if (code == null)
+			return null;
+		return new MjamVM(code, code.length);
+	}
+
+	/**
+	 * Set the size of the data store, which starts with initialSize words
+	 * and grows (doubling) as the stack and heap need it, up to maxSize words.
+	 * The new store is of the same kind as the current one.
+	 * Resets the machine.
+	 * @param initialSize  initial data store size in words
+	 * @param maxSize      maximum data store size in words
+	 */
+	public void setDataStoreSize(int initialSize, int maxSize) {
+		if (initialSize <= 0 || maxSize < initialSize)
+			throw new IllegalArgumentException("data store sizes must satisfy 0 < initial ("
+					+ initialSize + ") <= max (" + maxSize + ")");
+		setDataStore(data.resize(initialSize, 0, 0), maxSize);
+	}
+
+	/**
+	 * Hold the data store in store, whose size is the initial size, growing
+	 * (doubling, in a store of the same kind) up to maxSize words.  Only the
+	 * reference engine runs a machine whose store is not DataStore.onHeap.
+	 * Resets the machine.
+	 * @param store    initial data store, which must hold only zeros
+	 * @param maxSize  maximum data store size in words
+	 */
+	public void setDataStore(DataStore store, int maxSize) {
+		if (store.size() <= 0 || maxSize < store.size())
+			throw new IllegalArgumentException("data store sizes must satisfy 0 < initial ("
+					+ store.size() + ") <= max (" + maxSize + ")");
+		data = store;
+		words = store.words();
+		HB = maxSize;
+		heapOffset = HB - store.size();
+		recordRegisters = store.recordsRegisters();
+		initMachine();
+	}
+
+	/**
+	 * @return the data store
+	 */
+	public DataStore getDataStore() {
+		return data;
+	}
+
+	/**
+	 * Collect unreachable heap blocks when the stack and heap meet, and reuse
+	 * the space they occupied for new objects and arrays
+	 * @return the collector
+	 */
+	public GarbageCollector enableGarbageCollector() {
+		if (collector == null)
+			collector = new GarbageCollector(this);
+		return collector;
+	}
+
+	/**
+	 * @return the heap collector, or null if it has not been enabled
+	 */
+	public GarbageCollector getGarbageCollector() {
+		return collector;
+	}
+
+	/**
+	 * Return heap blocks released by the dispose primitive to size-class free
+	 * lists, and reuse them for new objects, arrays and alloc blocks
+	 * @return the allocator
+	 */
+	public FreeListAllocator enableFreeLists() {
+		if (freeLists == null)
+			freeLists = new FreeListAllocator(this);
+		return freeLists;
+	}
+
+	/**
+	 * Cache the method addresses CALLD finds in class descriptors at each
+	 * call site, so repeated calls on instances of the same classes skip the
+	 * descriptor lookup and its checks
+	 * @return the caches
+	 */
+	public InlineCaches enableInlineCaches() {
+		if (inlineCaches == null)
+			inlineCaches = new InlineCaches(CT);
+		return inlineCaches;
+	}
+
+	/**
+	 * @return the CALLD inline caches, or null if they have not been enabled
+	 */
+	public InlineCaches getInlineCaches() {
+		return inlineCaches;
+	}
+
+	/**
+	 * Count the instructions executed at each code address, and the calls
+	 * and instructions of each method and call edge, when the program is
+	 * run by interpretProgram
+	 * @return the profiler
+	 */
+	public Profiler enableProfiler() {
+		if (profiler == null)
+			profiler = new Profiler(this);
+		return profiler;
+	}
+
+	/**
+	 * @return the profiler, or null if it has not been enabled
+	 */
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
+	/**
+	 * Record the call stack every interval instructions when the program is
+	 * run by interpretProgram or interpretProgramFast
+	 * @return the sampling profiler
+	 */
+	public SamplingProfiler enableSampling(int interval) {
+		if (sampler == null || sampler.getInterval() != interval)
+			sampler = new SamplingProfiler(this, interval);
+		return sampler;
+	}
+
+	/**
+	 * @return the sampling profiler, or null if it has not been enabled
+	 */
+	public SamplingProfiler getSampler() {
+		return sampler;
+	}
+
+	/**
+	 * Publish the event counters and registers of this machine every
+	 * metricsInterval instructions while a program runs, and when it ends,
+	 * for reading by other threads
+	 * @return the metrics
+	 */
+	public VmMetrics enableMetrics() {
+		if (metrics == null)
+			metrics = new VmMetrics(this);
+		return metrics;
+	}
+
+	/**
+	 * @return the metrics, or null if they have not been enabled
+	 */
+	public VmMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Limit each run of the program to the given numbers of instructions,
+	 * milliseconds, heap words and stack words; 0 sets no limit.  A run that
+	 * exceeds a quota stops with status failedInstructionQuota,
+	 * failedTimeQuota, failedHeapQuota or failedStackQuota.
+	 *
+	 * The instruction and time quotas are checked by the run loops, every
+	 * quotaInterval instructions for time; every engine, and code compiled
+	 * by the JIT, stops at the instruction the reference engine would stop
+	 * at.  The heap quota is checked as each block is allocated, after
+	 * collecting the heap if a collector is enabled.  The stack quota is
+	 * checked at each call that takes the stack to a new high, and at the
+	 * checkpoints of the run loops.
+	 */
+	public void setQuotas(long instructions, long millis, int heapWords, int stackWords) {
+		if (instructions < 0 || millis < 0 || heapWords < 0 || stackWords < 0)
+			throw new IllegalArgumentException("quotas must not be negative");
+		instructionQuota = instructions;
+		timeQuota = millis;
+		heapQuota = heapWords;
+		stackQuota = stackWords;
+	}
+
+	public long getInstructionQuota() {
+		return instructionQuota;
+	}
+
+	public long getTimeQuota() {
+		return timeQuota;
+	}
+
+	public int getHeapQuota() {
+		return heapQuota;
+	}
+
+	public int getStackQuota() {
+		return stackQuota;
+	}
+
+	/**
+	 * Suspend the next run, with status suspended, the first time it reaches
+	 * one of the given points (atInput, atSnapshotHalt, or both).  The run
+	 * stops before an input primitive, or after the HALT, so that resume or
+	 * resumeFast carries on with it, or snapshot saves the machine.
+	 */
+	public void suspendAt(int points) {
+		suspendAt = points;
+	}
+
+	/**
+	 * Suspend each run, with status suspended, once it has executed at least
+	 * instructions (0 for no limit), so that resume, resumeFast or
+	 * resumeRegisters carries on with it.  Quotas still apply to each run;
+	 * VmScheduler spreads them over the slices of a session.
+	 */
+	public void setSlice(long instructions) {
+		sliceInstructions = instructions;
+	}
+
+	/**
+	 * @return true if the machine is suspended before an input primitive
+	 */
+	public boolean isWaitingForInput() {
+		return status == suspended && atInputPrimitive;
+	}
+
+	/**
+	 * @return the state of this machine, which must not be running, for
+	 *         forking new machines or saving to a file
+	 */
+	public VmSnapshot snapshot() {
+		return new VmSnapshot(this);
+	}
+
+	/**
+	 * Verify the code store, and if it is accepted run it without the
+	 * checks of code addresses and instruction fields Verifier makes
+	 * unnecessary
+	 * @return a description of each fault found, empty if there are none
+	 */
+	public List<String> verify() {
+		List<String> diagnostics = Verifier.verify(code, CT, HB);
+		verified = diagnostics.isEmpty();
+		return diagnostics;
+	}
+
+	/**
+	 * @return true if verify has accepted the code store
+	 */
+	public boolean isVerified() {
+		return verified;
+	}
+
+	/**
+	 * Let interpretProgramFast translate methods that are called, or loop,
+	 * threshold times into JVM code
+	 * @return the compiler
+	 */
+	public JitCompiler enableJit(int threshold) {
+		if (jit == null)
+			jit = new JitCompiler(this, threshold);
+		return jit;
+	}
+
+	/**
+	 * @return the hot method compiler, or null if it has not been enabled
+	 */
+	public JitCompiler getJit() {
+		return jit;
+	}
+
+	/**
+	 * @return the free-list allocator, or null if it has not been enabled
+	 */
+	public FreeListAllocator getFreeLists() {
+		return freeLists;
+	}
+
+	/**
+	 * When showStatus reports a failure, write a binary dump (MemoryDump) to
+	 * fileName in place of the text dump, which can be slow and of little use
+	 * once the data store is large
+	 * @param fileName  dump file, or null for the text dump
+	 * @param symbols   method names written with the dump, or null
+	 */
+	public void setFailureDump(String fileName, SourceMap symbols) {
+		failureDumpFile = fileName;
+		failureDumpSymbols = symbols;
+	}
+
+	/**
+	 * @return current allocated size of the data store in words
+	 */
+	public int getDataStoreSize() {
+		return data.size();
+	}
+
+	/**
+	 * Set the stream read by the input primitives (System.in by default)
+	 */
+	public void setInput(InputStream in) {
+		setInputChannel(new InputChannel(in));
+	}
+
+	/**
+	 * Set the channel read by the input primitives
+	 */
+	public void setInputChannel(InputChannel input) {
+		this.input = input;
+		input.tie(output);
+	}
+
+	/**
+	 * Set the stream written by the output primitives and status reports
+	 * (System.out by default)
+	 */
+	public void setOutput(PrintStream out) {
+		this.out = out;
+		setOutputChannel(new OutputChannel(out));
+	}
+
+	/**
+	 * Set the channel written by the output primitives; status reports are
+	 * still written to the stream given to setOutput
+	 */
+	public void setOutputChannel(OutputChannel output) {
+		flushOutput();
+		this.output = output;
+		input.tie(output);
+	}
+
+	/**
+	 * @return the channel written by the output primitives
+	 */
+	public OutputChannel getOutputChannel() {
+		return output;
+	}
+
+	/**
+	 * Write out the output buffered by the output primitives.  Called when
+	 * a run ends and before status reports and dumps; a failure to write
+	 * turns a normal halt into failedIOError.
+	 */
+	public void flushOutput() {
+		try {
+			output.flush();
+		} catch (IOException e) {
+			if (status == running || status == halted)
+				status = failedIOError;
+		}
+	}
+
+	/**
+	 * @return current machine status (running, halted or one of the failures)
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return current content of the code pointer
+	 */
+	public int getCP() {
+		return CP;
+	}
+
+	int content(int r) {
+		// Returns the current content of register r,
+		Machine.Reg reg = Machine.intToReg[r];
+		switch (reg) {
+		case CB:
+			return CB;
+		case CT:
+			return CT;
+		case PB:
+			return Machine.PB;
+		case PT:
+			return Machine.PT;
+		case SB:
+			return SB;
+		case ST:
+			return ST;
+		case HB:
+			return HB;
+		case HT:
+			return HT;
+		case LB:
+			return LB;
+		case OB:
+			return OB;
+		case CP:
+			return CP;
+		default:
+			return 0;
+		}
+	}
+
+	// PROGRAM STATUS
+
+	public void dump() {
+		// Writes a summary of the machine state.
+		int addr, dynamicLink;
+		flushOutput();
+		out.println("");
+		out.println("At instruction " + CP
+				+ ", state of mJAM data store and registers is:");
+		out.println("");
+		if (HT == HB)
+			out.println("            |--------|          (heap is empty)");
+		else {
+			out.println("      HB--> ");
+			out.println("            |--------|");
+			for (addr = HB - 1; addr >= HT; addr--) {
+				out.print(rightPad(6, addr + ":"));
+				if (addr == OB)
+					out.print("OB--> ");
+				else if (addr == HT)
+					out.print("HT--> ");
+				else
+					out.print("      ");
+				out.println("|" + leftPad(8, String.valueOf(data.get(addr - heapOffset)))
+						+ "|");
+			}
+			out.println("            |--------|");
+		}
+		out.println("            |////////|");
+		out.println("            |////////|");
+		if (ST == SB)
+			out.println("            |--------|          (stack is empty)");
+		else {
+			dynamicLink = LB;
+			out.println("      ST--> |////////|");
+			out.println("            |--------|");
+			for (addr = ST - 1; addr >= SB; addr--) {
+				out.print(rightPad(6, addr + ": "));
+				if (addr == SB)
+					out.print("SB--> ");
+				else if (addr == LB)
+					out.print("LB--> ");
+				else
+					out.print("      ");
+				if ((addr == dynamicLink) && (dynamicLink != SB))
+					out.print("|OB="
+							+ leftPad(5, String.valueOf(data.get(addr))) + "|");
+				else if ((addr == dynamicLink + 1) && (dynamicLink != SB))
+					out.print("|DL="
+							+ leftPad(5, String.valueOf(data.get(addr))) + "|");
+				else if ((addr == dynamicLink + 2) && (dynamicLink != SB))
+					out.print("|RA="
+							+ leftPad(5, String.valueOf(data.get(addr))) + "|");
+				else
+					out.print("|"
+							+ leftPad(8, String.valueOf(data.get(addr))) + "|");
+				out.println("");
+				if (addr == dynamicLink) {
+					out.println("            |--------|");
+					dynamicLink = data.get(addr + 1);
+				}
+			}
+		}
+		out.println("");
+	}
+
+	private static String leftPad(int len, String s) {
+		int aLen = Math.max(len, s.length());
+		StringBuffer buf = new StringBuffer(s);
+		String r = buf.insert(0, "        ").toString();
+		return r.substring(r.length() - aLen, r.length());
+	}
+
+	private static String rightPad(int len, String s) {
+		int aLen = Math.max(len, s.length());
+		String r = s + "        ";
+		return r.substring(0, aLen);
+	}
+
+	public void showStatus() {
+		// Writes an indication of whether and why the program has terminated.
+		flushOutput();
+		out.println("");
+		out.print("*** ");
+		switch (status) {
+		case running:
+			out.println("Program is running.");
+			break;
+		case halted:
+			out.println("Program has halted normally.");
+			break;
+		case failedDataStoreFull:
+			out.println("Program has failed due to exhaustion of Data Store.");
+			break;
+		case failedInvalidCodeAddress:
+			out.println("Program has failed due to an invalid code address.");
+			break;
+		case failedInvalidInstruction:
+			out.println("Program has failed due to an invalid instruction.");
+			break;
+		case failedOverflow:
+			out.println("Program has failed due to overflow.");
+			break;
+		case failedZeroDivide:
+			out.println("Program has failed due to division by zero.");
+			break;
+		case failedIOError:
+			out.println("Program has failed due to an IO error.");
+			break;
+		case failedArrayIndex:
+			out.println("Program has failed due to an array index error.");
+			break;
+		case failedNullRef:
+			out.println("Program has failed due to a null pointer reference.");
+			break;
+		case failedHeapRef:
+			out.println("Program has failed due to an invalid Heap reference.");
+			break;
+		case failedFieldIndex:
+			out.println("Program has failed due to a field index error.");
+			break;
+		case failedMethodIndex:
+			out.println("Program has failed due to an improper method index in CALLD.");
+			break;
+		case failedInstructionQuota:
+			out.println("Program has failed due to exceeding its quota of " + instructionQuota + " instructions.");
+			break;
+		case failedTimeQuota:
+			out.println("Program has failed due to exceeding its quota of " + timeQuota + " ms.");
+			break;
+		case failedHeapQuota:
+			out.println("Program has failed due to exceeding its quota of " + heapQuota + " heap words.");
+			break;
+		case failedStackQuota:
+			out.println("Program has failed due to exceeding its quota of " + stackQuota + " stack words.");
+			break;
+		case suspended:
+			out.println("Program has been suspended for a snapshot at instruction " + CP + ".");
+			break;
+		default:
+			out.println("Machine is in an unknown state.");
+			break;
+		}
+		if (status == halted || status == suspended)
+			return;
+		if (failureDumpFile == null)
+			dump();
+		else if (MemoryDump.write(this, failureDumpFile, failureDumpSymbols)) {
+			out.println("Unable to write dump file " + failureDumpFile);
+			dump();
+		} else {
+			out.println("");
+			out.println("At instruction " + CP + ", state of mJAM data store and registers written to "
+					+ failureDumpFile);
+		}
+	}
+
+	// INTERPRETATION
+
+	void checkSpace(int spaceNeeded) {
+		// Signals failure if there is not enough space to expand the stack or
+		// heap by spaceNeeded, enlarging the data store if that is needed.
+		if (HT - ST < spaceNeeded)
+			status = failedDataStoreFull;
+		else if (HT - heapOffset - ST < spaceNeeded)
+			growDataStore(spaceNeeded);
+	}
+
+	void growDataStore(int spaceNeeded) {
+		// Moves the stack and heap into a larger store, with at least
+		// spaceNeeded free words between them.
+		int heapSize = HB - HT;
+		long wanted = Math.max(2L * data.size(), (long) ST + heapSize + spaceNeeded);
+		int newSize = (int) Math.min(wanted, HB);
+		data = data.resize(newSize, ST, heapSize);
+		words = data.words();
+		heapOffset = HB - newSize;
+	}
+
+	int allocate(int size) {
+		// Reserves a heap block of size words, returning the index in data of
+		// its first word.  Sets status if the data store is full.
+		int header;
+		if (metrics != null) {
+			allocations++;
+			allocatedWords += size;
+		}
+		if (freeLists != null && (header = freeLists.allocate(size)) != -1)
+			return header - heapOffset;
+		if (collector != null && (header = collector.allocate(size)) != -1)
+			return header - heapOffset;
+		checkSpace(size);
+		if (heapQuota > 0 && HB - HT + size > heapQuota && status == running)
+			status = failedHeapQuota; // the block is still reserved, as for a full data store
+		HT = HT - size;
+		return HT - heapOffset;
+	}
+
+	int physical(int addr) {
+		// Returns the index in data of data store address addr
+		return addr >= HT ? addr - heapOffset : addr;
+	}
+
+	boolean invalidHeapRef(int addr) {
+		// if addr is null ptr or outside of heap bounds, sets status to failure
+		if (addr == Machine.nullRep)
+			status = failedNullRef;
+		else if (addr < HT + 2 || addr > HB)
+			status = failedHeapRef;
+		return (status != running);
+	}
+
+	static boolean isTrue(int datum) {
+		// Tests whether the given datum represents true.
+		return (datum == Machine.trueRep);
+	}
+
+	int overflowChecked(long datum) {
+		// Signals failure if the datum is too large to fit into a single word,
+		// otherwise returns the datum as a single word.
+		if ((Machine.minintRep <= datum) && (datum <= Machine.maxintRep))
+			return (int) datum;
+		else {
+			status = failedOverflow;
+			return 0;
+		}
+	}
+
+	static int toInt(boolean b) {
+		return b ? Machine.trueRep : Machine.falseRep;
+	}
+
+	int readInt() throws IOException {
+		int temp = 0;
+		int sign = 1;
+
+		do {
+			currentChar = input.read();
+		} while (Character.isWhitespace((char) currentChar));
+
+		if ((currentChar == '-') || (currentChar == '+'))
+			do {
+				sign = (currentChar == '-') ? -1 : 1;
+				currentChar = input.read();
+			} while ((currentChar == '-') || currentChar == '+');
+
+		if (Character.isDigit((char) currentChar))
+			do {
+				temp = temp * 10 + (currentChar - '0');
+				currentChar = input.read();
+			} while (Character.isDigit((char) currentChar));
+
+		return sign * temp;
+	}
+
+	// Invoke primitive operation with argument(s) on the stack
+	// primitives are static and are not supplied an instance on the stack.
+	void callPrimitive(int id) {
+
+		int addr, size, index;
+		char ch;
+
+		Machine.Prim prim = Machine.intToPrim[id];
+		if ((suspendAt != 0 || atInputPrimitive)
+				&& (prim == Machine.Prim.get || prim == Machine.Prim.geteol || prim == Machine.Prim.getint)) {
+			if ((suspendAt & whenInputBlocks) != 0 && !input.ready(prim)) {
+				// suspend until the input arrives, however often resumed
+				atInputPrimitive = true;
+				status = suspended;
+				return;
+			} else if (atInputPrimitive)
+				atInputPrimitive = false;
+			else if ((suspendAt & atInput) != 0) {
+				// suspend before the primitive, which runs when the machine resumes
+				suspendAt &= ~atInput;
+				atInputPrimitive = true;
+				status = suspended;
+				return;
+			}
+		}
+		if (metrics != null)
+			primitiveCalls[id]++;
+		switch (prim) {
+		case id:
+			break; // nothing to be done
+		case not:
+			data.set(ST - 1, toInt(!isTrue(data.get(ST - 1))));
+			break;
+		case and:
+			ST = ST - 1;
+			data.set(ST - 1, toInt(isTrue(data.get(ST - 1)) & isTrue(data.get(ST))));
+			break;
+		case or:
+			ST = ST - 1;
+			data.set(ST - 1, toInt(isTrue(data.get(ST - 1)) | isTrue(data.get(ST))));
+			break;
+		case succ:
+			data.set(ST - 1, overflowChecked(data.get(ST - 1) + 1));
+			break;
+		case pred:
+			data.set(ST - 1, overflowChecked(data.get(ST - 1) - 1));
+			break;
+		case neg:
+			data.set(ST - 1, overflowChecked(-data.get(ST - 1)));
+			break;
+		case add:
+			ST = ST - 1;
+			accumulator = data.get(ST - 1);
+			data.set(ST - 1, overflowChecked(accumulator + data.get(ST)));
+			break;
+		case sub:
+			ST = ST - 1;
+			accumulator = data.get(ST - 1);
+			data.set(ST - 1, overflowChecked(accumulator - data.get(ST)));
+			break;
+		case mult:
+			ST = ST - 1;
+			accumulator = data.get(ST - 1);
+			data.set(ST - 1, overflowChecked(accumulator * data.get(ST)));
+			break;
+		case div:
+			ST = ST - 1;
+			accumulator = data.get(ST - 1);
+			if (data.get(ST) != 0)
+				data.set(ST - 1, (int) (accumulator / data.get(ST)));
+			else
+				status = failedZeroDivide;
+			break;
+		case mod:
+			ST = ST - 1;
+			accumulator = data.get(ST - 1);
+			if (data.get(ST) != 0)
+				data.set(ST - 1, (int) (accumulator % data.get(ST)));
+			else
+				status = failedZeroDivide;
+			break;
+		case lt:
+			ST = ST - 1;
+			data.set(ST - 1, toInt(data.get(ST - 1) < data.get(ST)));
+			break;
+		case le:
+			ST = ST - 1;
+			data.set(ST - 1, toInt(data.get(ST - 1) <= data.get(ST)));
+			break;
+		case ge:
+			ST = ST - 1;
+			data.set(ST - 1, toInt(data.get(ST - 1) >= data.get(ST)));
+			break;
+		case gt:
+			ST = ST - 1;
+			data.set(ST - 1, toInt(data.get(ST - 1) > data.get(ST)));
+			break;
+		case eq:
+			ST = ST - 1;
+			data.set(ST - 1, toInt(data.get(ST - 1) == data.get(ST)));
+			break;
+		case ne:
+			ST = ST - 1;
+			data.set(ST - 1, toInt(data.get(ST - 1) != data.get(ST)));
+			break;
+		case eol:
+			data.set(ST, toInt(currentChar == '\n'));
+			ST = ST + 1;
+			break;
+		case eof:
+			data.set(ST, toInt(currentChar == -1));
+			ST = ST + 1;
+			break;
+		case get:
+			ST = ST - 1;
+			addr = data.get(ST);
+			try {
+				currentChar = input.read();
+			} catch (IOException s) {
+				status = failedIOError;
+			}
+			data.set(physical(addr), (int) currentChar);
+			break;
+		case put:
+			ST = ST - 1;
+			ch = (char) data.get(ST);
+			try {
+				output.put(ch);
+			} catch (IOException s) {
+				status = failedIOError;
+			}
+			break;
+		case geteol:
+			try {
+				do
+					currentChar = input.read();
+				while (currentChar != '\n' && currentChar != -1);
+			} catch (IOException s) {
+				status = failedIOError;
+			}
+			break;
+		case puteol:
+			try {
+				output.putEol();
+			} catch (IOException s) {
+				status = failedIOError;
+			}
+			break;
+		case getint:
+			ST = ST - 1;
+			addr = data.get(ST);
+			try {
+				accumulator = readInt();
+			} catch (IOException s) {
+				status = failedIOError;
+			}
+			data.set(physical(addr), (int) accumulator);
+			break;
+		case putint:
+			ST = ST - 1;
+			accumulator = data.get(ST);
+			try {
+				output.putInt(accumulator);
+			} catch (IOException s) {
+				status = failedIOError;
+			}
+			break;
+		// output with prefix for tester
+		case putintnl:
+			ST = ST - 1;
+			accumulator = data.get(ST);
+			try {
+				output.putIntLine(accumulator);
+			} catch (IOException s) {
+				status = failedIOError;
+			}
+			break;
+		case alloc:
+			size = data.get(ST - 1);
+			if (freeLists != null) {
+				// block gets a header so that it can be disposed
+				addr = allocate(size + 2);
+				if (status != running)
+					break;
+				data.set(addr, FreeListAllocator.rawTag);
+				data.set(addr + 1, size);
+				data.fill(addr + 2, addr + 2 + size, 0);
+				data.set(ST - 1, addr + heapOffset + 2);
+				break;
+			}
+			rawHeap = true; // no header on this block
+			if (collector != null)
+				collector.heapParsable = false;
+			checkSpace(size);
+			HT = HT - size;
+			data.set(ST - 1, HT);
+			break;
+		case dispose:
+			ST = ST - 1;
+			if (freeLists != null)
+				freeLists.dispose(data.get(ST));
+			break;
+		case newobj:
+			// ..., class obj addr, number of fields ==> ..., new obj addr
+			size = data.get(ST - 1) + 2; // number of fields + 2 word descriptor
+			addr = allocate(size);   // reserve space, physical location of new object
+			data.set(addr, data.get(ST - 2)); // set class object addr
+			data.set(addr + 1, size - 2); // set size of object
+			data.set(ST - 2, addr + heapOffset + 2); // addr of new object instance, returned on stack
+			ST = ST - 1;             // net effect of pop 2 args, push 1 result
+			if (size > 2)
+				data.fill(addr + 2, addr + size, 0); // zero all fields of new object
+			break;
+		case newarr:
+			// ..., number of elements ==> ..., new int[] addr
+			size = data.get(ST - 1) + 2;  // array  + 2 word descriptor
+			addr = allocate(size);    // reserve space, physical location of new array
+			data.set(addr, -2);          // tag for array
+			data.set(addr + 1, size - 2); // size of array
+			data.set(ST - 1, addr + heapOffset + 2); // addr of array instance, returned on stack
+			if (size > 2)
+				data.fill(addr + 2, addr + size, 0); // zero all elements of new array
+			break;
+		case arraylen:
+			// ..., array addr a ==> ... , array.length
+			addr = data.get(ST-1);
+			if (invalidHeapRef(addr))
+				break;                   // invalid heap address
+			addr = addr - heapOffset;
+			if (data.get(addr - 2) != -2) {
+				status = failedHeapRef;  // not tagged as array in heap
+				break;
+			}
+			data.set(ST-1, data.get(addr - 1)); // return array length field
+			break;
+		case arrayref:
+			// ..., array addr a, element index i ==> ..., a[i]
+			addr = data.get(ST - 2);
+			if (invalidHeapRef(addr))
+				break;
+			addr = addr - heapOffset;
+			index = data.get(ST - 1);
+			if (data.get(addr - 2) != -2 || index < 0 || index >= data.get(addr - 1)) {
+				status = failedArrayIndex;
+				break;
+			}
+			data.set(ST - 2, data.get(addr + index));  // result element, returned on stack
+			ST = ST - 1;                        // pop two args, return one result
+			break;
+		case arrayupd:
+			// ..., array addr a, element index i, new value v ==> ...
+			// and a[i] := v
+			addr = data.get(ST - 3);
+			if (invalidHeapRef(addr))
+				break;
+			addr = addr - heapOffset;
+			index = data.get(ST - 2);
+			if (data.get(addr - 2) != -2 || index < 0 || index >= data.get(addr - 1)) {
+				status = failedArrayIndex;
+				break;
+			}
+			data.set(addr + index, data.get(ST - 1)); // update array element
+			ST = ST - 3;                       // pop 3 args, return no result
+			break;
+		case fieldref:
+			// ..., obj addr a, field index i ==> ..., value of ith field of a
+			addr = data.get(ST - 2);
+			if (invalidHeapRef(addr))
+				break;
+			addr = addr - heapOffset;
+			index = data.get(ST - 1);
+			if (index < 0 || index >= data.get(addr - 1)) {
+				status = failedFieldIndex;
+				break;
+			}
+			data.set(ST - 2, data.get(addr + index));   // field to stack top
+			ST = ST - 1;                         // pop two args, return one result
+			break;
+		case fieldupd:
+			// ..., obj addr a, field index i, new value v ==> ...
+			// and a.i := v
+			addr = data.get(ST - 3);
+			if (invalidHeapRef(addr))
+				break;
+			addr = addr - heapOffset;
+			index = data.get(ST - 2);
+			if (index < 0 || index >= data.get(addr - 1)) {
+				status = failedFieldIndex;
+				break;
+			}
+			data.set(addr + index, data.get(ST - 1));	// update field to new value
+			ST = ST - 3;						// pop 3 args, return no result
+			break;
+		case uarrayref:
+			// ..., array addr a, element index i ==> ..., a[i]
+			// a is an array and i is within its bounds
+			data.set(ST - 2, data.get(data.get(ST - 2) - heapOffset + data.get(ST - 1)));
+			ST = ST - 1;
+			break;
+		case uarrayupd:
+			// ..., array addr a, element index i, new value v ==> ...
+			// and a[i] := v, where a is an array and i is within its bounds
+			data.set(data.get(ST - 3) - heapOffset + data.get(ST - 2), data.get(ST - 1));
+			ST = ST - 3;
+			break;
+		}
+	}
+
+	/**
+	 * Execute the instruction at CP
+	 */
+	public void interpretOneOperation() {
+		// Fetch instruction ...
+		Instruction currentInstr = code[CP];
+		// Decode instruction ...
+		int op = currentInstr.op;
+		int r = currentInstr.r;
+		int n = currentInstr.n;
+		int d = currentInstr.d;
+		int addr;
+		// Execute instruction ...
+
+		Machine.Op operation = Machine.intToOp[op];
+
+		switch (operation) {
+		case LOAD:
+			addr = d + content(r);
+			checkSpace(1);
+			data.set(ST, data.get(physical(addr)));
+			ST = ST + 1;
+			CP = CP + 1;
+			break;
+		case LOADA:
+			addr = d + content(r);
+			checkSpace(1);
+			data.set(ST, addr);
+			ST = ST + 1;
+			CP = CP + 1;
+			break;
+		case LOADI:
+			ST = ST - 1;
+			addr = data.get(ST);
+			checkSpace(1);
+			data.set(ST, data.get(physical(addr)));
+			ST = ST + 1;
+			CP = CP + 1;
+			break;
+		case LOADL:
+			checkSpace(1);
+			data.set(ST, d);
+			ST = ST + 1;
+			CP = CP + 1;
+			break;
+		case STORE:
+			addr = d + content(r);
+			ST = ST - 1;
+			data.set(physical(addr), data.get(ST));
+			CP = CP + 1;
+			break;
+		case STOREI:
+			ST = ST - 1;
+			addr = data.get(ST);
+			ST = ST - 1;
+			data.set(physical(addr), data.get(ST));
+			CP = CP + 1;
+			break;
+
+		case CALL:
+			// call static method, including primitives
+			// arguments are on stack
+			addr = d + content(r);      // effective address
+			if (addr >= Machine.PB) {
+				callPrimitive(addr - Machine.PB);
+				if (status != suspended)
+					CP = CP + 1;
+			} else {
+				// static method in code segment, no instance addr on stack
+				checkSpace(3);
+				data.set(ST, OB);         // save caller OB in callee frame
+				data.set(ST + 1, LB);     // save caller LB in callee frame (dynamic link)
+				data.set(ST + 2, CP + 1); // save caller return address in callee frame
+				OB = Machine.nullRep;  // set callee OB (null since no instance)
+				LB = ST;               // set LB = start of callee frame
+				ST = ST + 3;           // set ST = end of callee frame
+				CP = addr;             // execution resumes at addr specified in CALL inst
+				countCall();
+			}
+			break;
+
+		case CALLI:
+			// call instance method
+			// arguments on stack, followed by instance address
+			addr = d + content(r);      // effective address
+			if (!verified && addr >= CT) {
+				// no instance methods outside of code segment
+				status = failedInvalidInstruction;
+				break;
+			}
+			// instance address is last arg on stack and is overwritten by frame
+			checkSpace(2);
+			temp = data.get(ST - 1);   // save instance address temporarily
+			data.set(ST - 1, OB);     // save caller OB in callee frame
+			data.set(ST, LB);         // save caller LB in callee frame (dynamic link)
+			data.set(ST + 1, CP + 1); // save caller return address in callee frame
+			OB = temp;             // set OB for callee
+			LB = ST - 1;           // set LB = start of callee frame
+			ST = ST + 2;           // set ST = end of callee frame
+			CP = addr;             // execution resumes at addr specified in CALL inst
+			countCall();
+			break;
+
+		case RETURN:
+			// d = number of method args (does not include instance addr for CALLI)
+			// n = size of result (0 or 1)
+			if (!verified && (n < 0 || n > 1)) {
+				status = failedInvalidInstruction;
+				break;
+			}
+			addr = LB - d;          // addr of caller args
+			OB = data.get(LB);          // restore caller OB, LB, CP
+			CP = data.get(LB + 2);
+			LB = data.get(LB + 1);
+			if (n == 1)
+				data.set(addr, data.get(ST - 1));  // return value if any
+			ST = addr + n;          // caller stack top
+			if ((CP < CB) || (CP >= CT))
+				status = failedInvalidCodeAddress;
+			break;
+
+		case CALLD:
+			// dynamic method dispatch of method with index d (origin 0)
+			// arguments on stack, followed by instance addr
+			{
+				addr = data.get(ST - 1);    // instance addr
+				if (invalidHeapRef(addr))
+					break;
+				int classDescAddr = data.get(addr - heapOffset - 2);
+				int target = inlineCaches == null ? -1 : inlineCaches.lookup(CP, classDescAddr);
+				if (target < 0) {
+					if (classDescAddr >= ST || classDescAddr <= SB || d >= data.get(classDescAddr + 1) || d < 0) {
+						status = failedMethodIndex;
+						break;
+					}
+					target = data.get(classDescAddr + 2 + n);
+					if (inlineCaches != null && target >= 0)
+						inlineCaches.add(CP, classDescAddr, target);
+				}
+				ST = ST - 1;
+				checkSpace(3);
+				data.set(ST, OB);
+				data.set(ST + 1, LB);
+				data.set(ST + 2, CP + 1);
+				OB = addr;
+				LB = ST;
+				ST = ST + 3;
+				CP = target;
+				countCall();
+				if ((CP < CB) || (CP >= CT))
+					status = failedInvalidCodeAddress;
+			}
+			break;
+		case PUSH: // push d elements on stack
+			checkSpace(d);
+			ST = ST + d;
+			CP = CP + 1;
+			break;
+		case POP: // pop d elements off stack
+			ST = ST - d;
+			CP = CP + 1;
+			break;
+		case JUMP:
+			CP = d + content(r);
+			break;
+		case JUMPI:
+			ST = ST - 1;
+			CP = data.get(ST);
+			if ((CP < CB) || (CP >= CT))
+				status = failedInvalidCodeAddress;
+			break;
+		case JUMPIF:
+			ST = ST - 1;
+			if (data.get(ST) == n)
+				CP = d + content(r);
+			else
+				CP = CP + 1;
+			break;
+		case HALT:
+			if (n > 0) {
+				// halt n > 0 --> snapshot machine state and continue execution
+				if ((suspendAt & atSnapshotHalt) != 0) {
+					suspendAt &= ~atSnapshotHalt;
+					status = suspended;
+				} else
+					dump();
+				CP = CP + 1;
+			} else
+				status = halted;
+			break;
+		}
+
+		// verified code reaches other addresses only by static transfers
+		// inside the code store, or by falling through to an instruction
+		if (!verified && ((CP < CB) || (CP >= CT)))
+			status = failedInvalidCodeAddress;
+	}
+
+	public void initMachine() {
+		// Initialize registers ...
+		ST = SB;
+		HT = HB;
+		LB = SB;
+		CP = CB;
+		OB = -1; // invalid instance addr
+		status = running;
+		rawHeap = false;
+		atInputPrimitive = false;
+		if (collector != null)
+			collector.reset();
+		if (freeLists != null)
+			freeLists.reset();
+		if (inlineCaches != null)
+			inlineCaches.reset();
+		startRun();
+	}
+
+	// Resets the event counters, samples and quotas for a run from the
+	// current state
+	private void startRun() {
+		if (status != running && status != suspended)
+			throw new IllegalStateException("machine has stopped with status " + status);
+		status = running;
+		if ((CP < CB) || (CP >= CT))
+			status = failedInvalidCodeAddress;
+		jitInstructions = 0;
+		calls = 0;
+		Arrays.fill(primitiveCalls, 0);
+		allocations = 0;
+		allocatedWords = 0;
+		maxST = ST;
+		if (sampler != null) {
+			sampler.reset();
+			nextSample = sampler.getInterval();
+		}
+		if (metrics != null)
+			metrics.publish(this, 0);
+		if (timeQuota > 0)
+			deadline = System.nanoTime() + timeQuota * 1000000;
+		if (recordRegisters)
+			data.record(this);
+	}
+
+	private void countCall() {
+		if (metrics != null)
+			calls++;
+		if (ST > maxST) {
+			maxST = ST;
+			if (stackQuota > 0 && ST - SB > stackQuota)
+				status = failedStackQuota;
+		}
+	}
+
+	// CHECKPOINTS
+	//
+	// The run loops stop at the count of interpreted instructions returned
+	// by nextCheckpoint, to take a sample, publish the metrics, check the
+	// quotas and record the registers with a data store that keeps them.
+	// Instructions run by compiled code are in jitInstructions.
+
+	long nextCheckpoint(long count) {
+		long next = Long.MAX_VALUE;
+		if (sampler != null)
+			next = nextSample;
+		if (metrics != null)
+			next = Math.min(next, count + metricsInterval);
+		if (instructionQuota > 0)
+			next = Math.min(next, Math.max(instructionQuota - jitInstructions, count + 1));
+		if (sliceInstructions > 0)
+			next = Math.min(next, Math.max(sliceInstructions - jitInstructions, count + 1));
+		if (timeQuota > 0 || stackQuota > 0 || recordRegisters)
+			next = Math.min(next, count + quotaInterval);
+		return next;
+	}
+
+	long checkpoint(long count) {
+		if (status != running)
+			return Long.MAX_VALUE;
+		if (instructionQuota > 0 && count + jitInstructions >= instructionQuota)
+			status = failedInstructionQuota;
+		else if (timeQuota > 0 && System.nanoTime() - deadline >= 0)
+			status = failedTimeQuota;
+		else if (stackQuota > 0 && ST - SB > stackQuota)
+			status = failedStackQuota;
+		else if (sliceInstructions > 0 && count + jitInstructions >= sliceInstructions)
+			status = suspended;
+		if (sampler != null && count >= nextSample) {
+			if (status == running)
+				sampler.sample();
+			nextSample += sampler.getInterval();
+		}
+		if (metrics != null)
+			publishMetrics(count + jitInstructions);
+		if (recordRegisters)
+			data.record(this);
+		return nextCheckpoint(count);
+	}
+
+	private void publishMetrics(long instructions) {
+		if (ST > maxST)
+			maxST = ST;
+		metrics.publish(this, instructions);
+	}
+
+	// Ends a run of count instructions
+	private void endRun(long count) {
+		flushOutput();
+		if (metrics != null)
+			publishMetrics(count);
+		if (recordRegisters)
+			data.record(this);
+	}
+
+	/**
+	 * Runs the program in code store from the start with the reference
+	 * interpretation loop
+	 * @return final machine status
+	 */
+	public int interpretProgram() {
+		initMachine();
+		runReference();
+		return status;
+	}
+
+	/**
+	 * Carries on with a suspended run, or the run of a machine forked from a
+	 * snapshot, with the reference interpretation loop
+	 * @return final machine status
+	 */
+	public int resume() {
+		startRun();
+		runReference();
+		return status;
+	}
+
+	private void runReference() {
+		long count = 0;
+		if (profiler != null) {
+			profiler.run();
+			count = profiler.total;
+		} else
+			for (long next = nextCheckpoint(0); status == running; next = checkpoint(count))
+				do {
+					interpretOneOperation();
+					count++;
+				} while (status == running && count < next);
+		if (status == suspended && atInputPrimitive)
+			count--; // the primitive runs when the machine resumes
+		instructionCount = count;
+		endRun(count);
+	}
+
+	/**
+	 * @return number of instructions executed by the last run, by any engine
+	 */
+	public long getInstructionCount() {
+		return instructionCount;
+	}
+
+	/**
+	 * Runs the program in code store from the start with FastInterpreter
+	 * @return number of instructions executed
+	 */
+	public long interpretProgramFast() {
+		initMachine();
+		return runFast();
+	}
+
+	/**
+	 * Carries on with a suspended run, or the run of a machine forked from a
+	 * snapshot, with FastInterpreter
+	 * @return number of instructions executed
+	 */
+	public long resumeFast() {
+		startRun();
+		return runFast();
+	}
+
+	private long runFast() {
+		checkWords();
+		if (decodedCode == null) {
+			decodedCode = FastInterpreter.decode(code, CT);
+			if (fusion)
+				fusionSites = Superinstructions.fuse(decodedCode, CT);
+		}
+		Arrays.fill(fusionCounts, 0);
+		long count = 0;
+		for (long next = nextCheckpoint(0); status == running; next = checkpoint(count))
+			count += FastInterpreter.run(this, decodedCode, next - count);
+		jitLimit = Long.MAX_VALUE;
+		instructionCount = count + jitInstructions;
+		endRun(instructionCount);
+		return instructionCount;
+	}
+
+	/**
+	 * Runs the program in code store from the start with RegisterInterpreter
+	 * @return number of instructions executed
+	 */
+	public long interpretProgramRegisters() {
+		initMachine();
+		return runRegisters();
+	}
+
+	/**
+	 * Carries on with a suspended run, or the run of a machine forked from a
+	 * snapshot, with RegisterInterpreter
+	 * @return number of instructions executed
+	 */
+	public long resumeRegisters() {
+		startRun();
+		return runRegisters();
+	}
+
+	private void checkWords() {
+		if (words == null)
+			throw new IllegalStateException("only the reference engine runs a data store off the Java heap");
+	}
+
+	private long runRegisters() {
+		checkWords();
+		if (registerCode == null)
+			registerCode = new RegisterCode(code, CT);
+		registerCode.dispatches = 0;
+		registerCode.slowInstructions = 0;
+		long count = 0;
+		for (long next = nextCheckpoint(0); status == running; next = checkpoint(count))
+			count += RegisterInterpreter.run(this, registerCode, next - count);
+		instructionCount = count;
+		endRun(instructionCount);
+		return instructionCount;
+	}
+
+	/**
+	 * Write the size of the register translation and the dispatches it
+	 * saved during the last run of interpretProgramRegisters
+	 */
+	public void printRegisterStatistics(PrintStream out) {
+		if (registerCode == null)
+			out.println("*** Registers: not run");
+		else
+			registerCode.printStatistics(out, instructionCount);
+	}
+
+	/**
+	 * Choose whether interpretProgramFast replaces common instruction
+	 * sequences with superinstructions (the default)
+	 */
+	public void setFusion(boolean fusion) {
+		if (fusion != this.fusion) {
+			this.fusion = fusion;
+			decodedCode = null;
+			fusionSites = null;
+		}
+	}
+
+	/**
+	 * Write the superinstructions fused into the program and the dispatches
+	 * they saved during the last run of interpretProgramFast
+	 */
+	public void printFusionReport(PrintStream out) {
+		if (fusionSites == null)
+			out.println("*** Fusion: no superinstructions (fusion disabled or not run)");
+		else
+			Superinstructions.printReport(out, fusionSites, fusionCounts, instructionCount);
+	}
+}
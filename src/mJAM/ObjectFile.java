@@ -9,10 +9,14 @@ import java.io.FileInputStream;
 import java.io.DataInputStream;
 import java.io.FileOutputStream;
 import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class ObjectFile {
 	
 	String objectFileName;
+	List<String> diagnostics = Collections.emptyList();
 
 	public ObjectFile(String objectFileName) {
 		super();
@@ -25,12 +29,20 @@ public class ObjectFile {
 	 * @return true if write fails
 	 */
 	public boolean write(){
+		return write(Arrays.copyOfRange(Machine.code, Machine.CB, Machine.CT));
+	}
+
+	/**
+	 * Write the given code (starting at CB) into a binary object file,
+	 * leaving Machine untouched
+	 * @return true if write fails
+	 */
+	public boolean write(Instruction[] code) {
 		boolean failed = false;
 		try {
 			FileOutputStream objectFile = new FileOutputStream(objectFileName);
 			DataOutputStream is = new DataOutputStream(objectFile);
-			for (int i = Machine.CB; i < Machine.CT; i++ ){
-				Instruction inst = Machine.code[i];
+			for (Instruction inst : code) {
 				is.writeInt(inst.op);
 				is.writeInt(inst.n);
 				is.writeInt(inst.r);
@@ -43,28 +55,71 @@ public class ObjectFile {
 	}
 
 	/**
-	 * Read binary object file into code store, setting CT 
+	 * Read binary object file into code store, setting CT.  The code is not
+	 * verified, so that the Disassembler can show code the interpreter would
+	 * reject.
 	 * @return true if object code read fails
 	 */
 	public boolean read() {
-		boolean failed = false;
+		Instruction[] code = readCode(false);
+		if (code == null)
+			return true;
+		Machine.CT = Machine.CB;
+		for (Instruction inst : code)
+			Machine.code[Machine.CT++] = inst;
+		return false;
+	}
+
+	/**
+	 * Read binary object file into a new code store, leaving Machine untouched
+	 * @return the instructions read (code top is the array length), or null
+	 *         if object code read fails or is rejected by Verifier
+	 */
+	public Instruction[] readCode() {
+		return readCode(true);
+	}
+
+	/**
+	 * Read binary object file into a new code store, leaving Machine
+	 * untouched, verifying the code if verify is set
+	 * @return the instructions read, or null if object code read fails or is
+	 *         rejected by Verifier
+	 */
+	public Instruction[] readCode(boolean verify) {
 		try {
 			FileInputStream objectFile = new FileInputStream(objectFileName);
 			DataInputStream is = new DataInputStream(objectFile);
-			
-			Machine.CT = Machine.CB;
-			while (is.available() > 0 && Machine.CT < Machine.PB){
+
+			Instruction[] code = new Instruction[Machine.PB];
+			int ct = Machine.CB;
+			while (is.available() > 0 && ct < Machine.PB){
 				Instruction inst = new Instruction();
 				inst.op = is.readInt();
 				inst.n = is.readInt();
 				inst.r = is.readInt();
 				inst.d = is.readInt();
-				Machine.code[Machine.CT++] = inst;
+				code[ct++] = inst;
 			}
+			boolean tooLong = is.available() > 0;
 			objectFile.close();
+			if (tooLong) {
+				diagnostics = Collections.singletonList("more than " + Machine.PB
+						+ " instructions in object file");
+				return null;
+			}
+			diagnostics = verify ? Verifier.verify(code, ct) : Collections.<String>emptyList();
+			if (!diagnostics.isEmpty())
+				return null;
+			return Arrays.copyOf(code, ct);
 		} catch (Exception e) {
-			failed = true;
-		}	
-		return failed;
+			return null;
+		}
+	}
+
+	/**
+	 * @return the faults Verifier found in the object code last read
+	 */
+	public List<String> getDiagnostics() {
+		return diagnostics;
 	}
 }
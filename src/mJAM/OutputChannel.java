@@ -0,0 +1,161 @@
+/**
+ * Buffered output for the mJAM output primitives
+ */
+package mJAM;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Collects the bytes written by put, putint, putintnl and puteol in a buffer
+ * that is written to the sink when full and when the machine halts or fails
+ * (MjamVM.flushOutput).  Integers are formatted straight into the buffer.
+ *
+ * The sink is a stream (System.out by default), a file, or an in-memory
+ * array whose contents are returned by toByteArray.
+ */
+public class OutputChannel {
+
+	public final static int defaultBufferSize = 8192;
+
+	private final static byte[] eol = System.lineSeparator().getBytes();
+	private final static byte[] intPrefix = ">>> ".getBytes();
+
+	private final OutputStream sink;
+	private final byte[] buffer;
+	private int count;
+	// bytes written to the sink
+	private long drained;
+
+	public OutputChannel(OutputStream sink) {
+		this(sink, defaultBufferSize);
+	}
+
+	public OutputChannel(OutputStream sink, int bufferSize) {
+		this.sink = sink;
+		// room for the longest putintnl
+		buffer = new byte[Math.max(bufferSize, 32)];
+	}
+
+	/**
+	 * @return a channel writing to a new (or truncated) file
+	 */
+	public static OutputChannel toFile(String fileName) throws IOException {
+		return new OutputChannel(new FileOutputStream(fileName));
+	}
+
+	/**
+	 * @return a channel keeping all output in memory
+	 */
+	public static OutputChannel inMemory() {
+		return new OutputChannel(new ByteArrayOutputStream());
+	}
+
+	/**
+	 * @return all output so far of a channel created by inMemory
+	 */
+	public byte[] toByteArray() {
+		if (!(sink instanceof ByteArrayOutputStream))
+			throw new IllegalStateException("output channel is not in memory");
+		ByteArrayOutputStream bytes = (ByteArrayOutputStream) sink;
+		bytes.write(buffer, 0, count);
+		drained += count;
+		count = 0;
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return all output so far of a channel created by inMemory, decoded
+	 *         with the default charset
+	 */
+	@Override
+	public String toString() {
+		return new String(toByteArray(), Charset.defaultCharset());
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (count + bytes > buffer.length)
+			drain();
+	}
+
+	private void drain() throws IOException {
+		if (count > 0) {
+			sink.write(buffer, 0, count);
+			drained += count;
+			count = 0;
+		}
+	}
+
+	/**
+	 * @return number of bytes written to this channel
+	 */
+	public long position() {
+		return drained + count;
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, count, bytes.length);
+		count += bytes.length;
+	}
+
+	void put(char ch) throws IOException {
+		if (ch < 0x80) {
+			ensure(1);
+			buffer[count++] = (byte) ch;
+		} else
+			write(String.valueOf(ch).getBytes());
+	}
+
+	void putInt(long value) throws IOException {
+		ensure(20);
+		if (value < 0)
+			buffer[count++] = '-';
+		else
+			value = -value;
+		// digits of the negated value, so that Long.MIN_VALUE needs no care
+		int end = count;
+		do {
+			buffer[end++] = (byte) ('0' - value % 10);
+			value /= 10;
+		} while (value != 0);
+		for (int i = count, j = end - 1; i < j; i++, j--) {
+			byte b = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = b;
+		}
+		count = end;
+	}
+
+	void putIntLine(long value) throws IOException {
+		write(intPrefix);
+		putInt(value);
+		ensure(1);
+		buffer[count++] = '\n';
+	}
+
+	void putEol() throws IOException {
+		write(eol);
+	}
+
+	/**
+	 * Write the buffered output to the sink and flush it
+	 */
+	public void flush() throws IOException {
+		if (count > 0) {
+			drain();
+			sink.flush();
+		}
+	}
+
+	/**
+	 * Flush and close the sink
+	 */
+	public void close() throws IOException {
+		drain();
+		sink.close();
+	}
+}
@@ -0,0 +1,325 @@
+/**
+ * Execution profiler for mJAM programs
+ */
+package mJAM;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Counts the instructions executed at each code address by the reference
+ * interpretation loop of one MjamVM, and the calls and instructions of each
+ * method and each call edge (caller method to callee method).
+ *
+ * A method is identified by its start address.  Calls and returns are seen
+ * as changes of LB: a CALL, CALLI or CALLD of a method raises it and the
+ * RETURN lowers it, so only those instructions reach the shadow stack of
+ * active calls.  The inclusive instructions of a method (or edge) are those
+ * executed from its outermost active call to the matching return, so a
+ * recursive method is not counted more than once.  The exclusive
+ * instructions of a method are the counts of the addresses it holds: those
+ * from its start up to the next method start in the source map, or, without
+ * a map, up to the next address that was called.
+ */
+public class Profiler {
+
+	private final MjamVM vm;
+	private SourceMap sourceMap;
+
+	// instructions executed at each address
+	final long[] counts;
+	long total;
+
+	// calls and inclusive instructions by method start address
+	private final long[] calls;
+	private final long[] inclusive;
+	private final int[] active;
+
+	// call edges: caller and callee start address, calls, inclusive instructions
+	private final HashMap<Long, Integer> edgeIndex = new HashMap<Long, Integer>();
+	private int[] edgeCaller = new int[16], edgeCallee = new int[16], edgeActive = new int[16];
+	private long[] edgeCalls = new long[16], edgeInclusive = new long[16];
+	private int edges;
+	// last edge taken from each call site
+	private final int[] siteEdge;
+
+	// shadow stack of active calls: method, edge and total on entry
+	private int[] stackMethod = new int[64], stackEdge = new int[64];
+	private long[] stackStart = new long[64];
+	private int depth;
+
+	Profiler(MjamVM vm) {
+		this.vm = vm;
+		counts = new long[vm.CT];
+		calls = new long[vm.CT];
+		inclusive = new long[vm.CT];
+		active = new int[vm.CT];
+		siteEdge = new int[vm.CT];
+	}
+
+	/**
+	 * Name methods and attribute addresses to source lines with map
+	 */
+	public void setSourceMap(SourceMap map) {
+		sourceMap = map;
+	}
+
+	private void reset() {
+		Arrays.fill(counts, 0);
+		Arrays.fill(calls, 0);
+		Arrays.fill(inclusive, 0);
+		Arrays.fill(active, 0);
+		Arrays.fill(siteEdge, -1);
+		edgeIndex.clear();
+		edges = 0;
+		depth = 0;
+		total = 0;
+	}
+
+	/**
+	 * Run the program in vm from its current state with the reference
+	 * interpretation loop, profiling it, and stopping at the checkpoints of
+	 * vm for its quotas
+	 */
+	void run() {
+		reset();
+		final MjamVM vm = this.vm;
+		final long[] counts = this.counts;
+		long total = 0;
+		// the code run from CB is the root of the calls
+		calls[Machine.CB]++;
+		active[Machine.CB]++;
+		push(Machine.CB, -1, 0);
+		long next = vm.nextCheckpoint(0);
+		do {
+			int cp = vm.CP, lb = vm.LB;
+			counts[cp]++;
+			total++;
+			vm.interpretOneOperation();
+			if (vm.LB != lb) {
+				if (vm.LB > lb)
+					enter(cp, vm.CP, total);
+				else if (depth > 1)
+					leave(total);
+			}
+			if (total >= next)
+				next = vm.checkpoint(total);
+		} while (vm.status == MjamVM.running);
+		// a halt or failure ends the calls still active
+		while (depth > 0)
+			leave(total);
+		this.total = total;
+	}
+
+	private void push(int method, int edge, long start) {
+		if (depth == stackMethod.length) {
+			stackMethod = Arrays.copyOf(stackMethod, 2 * depth);
+			stackEdge = Arrays.copyOf(stackEdge, 2 * depth);
+			stackStart = Arrays.copyOf(stackStart, 2 * depth);
+		}
+		stackMethod[depth] = method;
+		stackEdge[depth] = edge;
+		stackStart[depth++] = start;
+	}
+
+	private void enter(int site, int method, long start) {
+		if (method < 0 || method >= calls.length)
+			return; // the invalid code address fails the next instruction
+		int caller = stackMethod[depth - 1];
+		int edge = siteEdge[site];
+		if (edge < 0 || edgeCallee[edge] != method || edgeCaller[edge] != caller) {
+			Long key = ((long) caller << 32) | method;
+			Integer index = edgeIndex.get(key);
+			if (index == null) {
+				index = newEdge(caller, method);
+				edgeIndex.put(key, index);
+			}
+			edge = siteEdge[site] = index;
+		}
+		calls[method]++;
+		active[method]++;
+		edgeCalls[edge]++;
+		edgeActive[edge]++;
+		push(method, edge, start);
+	}
+
+	private int newEdge(int caller, int callee) {
+		if (edges == edgeCaller.length) {
+			edgeCaller = Arrays.copyOf(edgeCaller, 2 * edges);
+			edgeCallee = Arrays.copyOf(edgeCallee, 2 * edges);
+			edgeActive = Arrays.copyOf(edgeActive, 2 * edges);
+			edgeCalls = Arrays.copyOf(edgeCalls, 2 * edges);
+			edgeInclusive = Arrays.copyOf(edgeInclusive, 2 * edges);
+		}
+		edgeCaller[edges] = caller;
+		edgeCallee[edges] = callee;
+		return edges++;
+	}
+
+	private void leave(long end) {
+		depth--;
+		int method = stackMethod[depth], edge = stackEdge[depth];
+		long elapsed = end - stackStart[depth];
+		if (--active[method] == 0)
+			inclusive[method] += elapsed;
+		if (edge >= 0 && --edgeActive[edge] == 0)
+			edgeInclusive[edge] += elapsed;
+	}
+
+	// REPORT
+
+	/**
+	 * @return start addresses of the methods, in increasing order
+	 */
+	private int[] methodStarts() {
+		if (sourceMap != null && sourceMap.methodCount() > 0) {
+			int[] starts = new int[sourceMap.methodCount()];
+			for (int i = 0; i < starts.length; i++)
+				starts[i] = sourceMap.methodAddr(i);
+			return starts;
+		}
+		int n = 0;
+		int[] starts = new int[calls.length];
+		for (int addr = 0; addr < calls.length; addr++)
+			if (calls[addr] > 0 || addr == Machine.CB)
+				starts[n++] = addr;
+		return Arrays.copyOf(starts, n);
+	}
+
+	private String methodName(int start) {
+		String name = sourceMap == null ? null : sourceMap.methodStartingAt(start);
+		return name == null ? "method@" + start : name;
+	}
+
+	private String percent(long count) {
+		return String.format("%5.1f%%", total == 0 ? 0.0 : 100.0 * count / total);
+	}
+
+	private static Integer[] sortedBy(int n, long[] keys) {
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(keys[b], keys[a]));
+		return order;
+	}
+
+	/**
+	 * Write the profile of the last run, with at most limit rows per table
+	 */
+	public void printReport(PrintStream out, int limit) {
+		out.println("*** Profile: " + total + " instructions");
+
+		// methods
+		int[] starts = methodStarts();
+		long[] exclusive = new long[starts.length];
+		for (int m = 0; m < starts.length; m++) {
+			// method m holds the addresses up to the next method start
+			int end = m + 1 < starts.length ? starts[m + 1] : counts.length;
+			for (int addr = starts[m]; addr < end; addr++)
+				exclusive[m] += counts[addr];
+		}
+		out.println("*** Profile: methods by exclusive instructions");
+		out.println(String.format("%12s %6s %12s %6s %10s  %s", "exclusive", "", "inclusive", "",
+				"calls", "method"));
+		Integer[] order = sortedBy(starts.length, exclusive);
+		for (int i = 0; i < order.length && i < limit; i++) {
+			int m = order[i], start = starts[m];
+			if (exclusive[m] == 0 && calls[start] == 0)
+				break;
+			out.println(String.format("%12d %s %12d %s %10d  %s (%d)", exclusive[m],
+					percent(exclusive[m]), inclusive[start], percent(inclusive[start]),
+					calls[start], methodName(start), start));
+		}
+
+		// call edges
+		out.println("*** Profile: call edges by inclusive instructions");
+		out.println(String.format("%12s %6s %10s  %s", "inclusive", "", "calls", "caller -> callee"));
+		order = sortedBy(edges, edgeInclusive);
+		for (int i = 0; i < order.length && i < limit; i++) {
+			int e = order[i];
+			out.println(String.format("%12d %s %10d  %s -> %s", edgeInclusive[e],
+					percent(edgeInclusive[e]), edgeCalls[e], methodName(edgeCaller[e]),
+					methodName(edgeCallee[e])));
+		}
+
+		// source lines
+		if (sourceMap != null) {
+			HashMap<Integer, Long> lineCounts = new HashMap<Integer, Long>();
+			for (int addr = 0; addr < counts.length; addr++)
+				if (counts[addr] > 0)
+					lineCounts.merge(sourceMap.lineAt(addr), counts[addr], Long::sum);
+			List<String> text = readSource(sourceMap.getSourceFileName());
+			int[] lines = new int[lineCounts.size()];
+			long[] lineTotals = new long[lines.length];
+			int n = 0;
+			for (Integer line : lineCounts.keySet()) {
+				lines[n] = line;
+				lineTotals[n++] = lineCounts.get(line);
+			}
+			out.println("*** Profile: source lines by instructions"
+					+ (sourceMap.getSourceFileName() == null ? "" : " (" + sourceMap.getSourceFileName() + ")"));
+			out.println(String.format("%12s %6s %6s  %s", "instructions", "", "line", "source"));
+			order = sortedBy(n, lineTotals);
+			for (int i = 0; i < order.length && i < limit; i++) {
+				int line = lines[order[i]];
+				String source = line == 0 ? "(no source line)"
+						: text != null && line <= text.size() ? text.get(line - 1).trim() : "";
+				out.println(String.format("%12d %s %6d  %s", lineTotals[order[i]],
+						percent(lineTotals[order[i]]), line, source));
+			}
+		}
+
+		// addresses
+		out.println("*** Profile: code addresses by instructions");
+		out.println(String.format("%12s %6s %6s  %s", "instructions", "", "addr", "instruction"));
+		order = sortedBy(counts.length, counts);
+		for (int i = 0; i < order.length && i < limit; i++) {
+			int addr = order[i];
+			if (counts[addr] == 0)
+				break;
+			String where = methodName(starts[Math.max(0, lastAtOrBelow(starts, addr))]);
+			if (sourceMap != null && sourceMap.lineAt(addr) > 0)
+				where += " line " + sourceMap.lineAt(addr);
+			out.println(String.format("%12d %s %6d  %-24s %s", counts[addr], percent(counts[addr]),
+					addr, describe(vm.code[addr]), where));
+		}
+	}
+
+	private static int lastAtOrBelow(int[] sorted, int value) {
+		int index = Arrays.binarySearch(sorted, value);
+		return index >= 0 ? index : -index - 2;
+	}
+
+	private static String describe(Instruction inst) {
+		if (inst.op < 0 || inst.op >= Machine.intToOp.length)
+			return "op " + inst.op;
+		String op = Machine.intToOp[inst.op].toString();
+		if (inst.op == Machine.Op.CALL.ordinal() && inst.r == Machine.Reg.PB.ordinal()
+				&& inst.d >= 0 && inst.d < Machine.intToPrim.length)
+			return op + " " + Machine.intToPrim[inst.d];
+		String reg = inst.r > 0 && inst.r < Machine.intToReg.length
+				? "[" + Machine.intToReg[inst.r] + "]" : "";
+		return op + (inst.n != 0 ? " (" + inst.n + ")" : "") + " " + inst.d + reg;
+	}
+
+	private static List<String> readSource(String fileName) {
+		if (fileName == null || !new File(fileName).isFile())
+			return null;
+		List<String> lines = new ArrayList<String>();
+		try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+			String line;
+			while ((line = in.readLine()) != null)
+				lines.add(line);
+		} catch (IOException e) {
+			return null;
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,814 @@
+/**
+ * Register-form code for the RegisterInterpreter engine
+ */
+package mJAM;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import static mJAM.FastInterpreter.*;
+
+/**
+ * Translation of an mJAM program into three-address instructions over the
+ * words of the current frame, executed by RegisterInterpreter.
+ *
+ * Within a method the depth of the stack above LB is the same every time a
+ * given instruction is reached, so each stack word can be named by its offset
+ * from LB, as the locals already are.  The translator tracks the stack
+ * symbolically: LOAD d[LB] and LOADL push a reference to a frame word or a
+ * constant without producing an instruction, and the instruction consuming
+ * them reads its operands directly, writing its result to the frame word the
+ * stack machine would have pushed it to, or straight to the local of a
+ * following STORE.  A comparison followed by JUMPIF becomes a single
+ * compare-and-branch.  For example
+ *
+ *     LOAD 6[LB]; LOADL 1; CALL add; STORE 6[LB]     =>  add     6 <- 6, #1
+ *     LOAD 6[LB]; LOAD 3[LB]; CALL arraylen;         =>  arraylen 9 <- 3
+ *         CALL lt; JUMPIF (1) L12                        jlt     6, 9, L12
+ *
+ * Each register instruction records the address and stack depth at which
+ * the stack machine would be before the mJAM instructions it covers.  When a
+ * check fails (overflow, array index, data store full, ...), the machine is
+ * put back in that state and the mJAM instructions are run again by the
+ * reference implementation, which reports the failure or continues, so
+ * the register form never has to reproduce a failure itself.  Only
+ * instructions without side effects are translated while a pushed operand
+ * has not been written to the frame, so running the stack code again from
+ * the address of that push is always safe.  CALLD, JUMPI, the less common
+ * primitives and code whose depth is not statically known are left to the
+ * reference implementation in the same way.
+ */
+public final class RegisterCode {
+
+	// layout of an instruction: opcode and mJAM instructions covered, three
+	// operands, stack depth needed, then the state to restore if the
+	// instruction is abandoned (address, depth above LB, and the number of
+	// counted mJAM instructions the reference implementation will run again)
+	static final int SIZE = 8, PEAK = 4, ORIGIN = 5, DEPTH = 6, REDO = 7;
+
+	// opcodes; operands are frame offsets from LB unless noted
+	static final int
+		R_SLOW = 0,        // leave to the reference implementation
+		R_NOP = 1,
+		R_MOV = 2,         // x <- y
+		R_MOVI = 3,        // x <- #y
+		R_MOVA = 4,        // x <- LB + #y
+		R_MOVOB = 5,       // x <- OB + #y
+		R_LOADG = 6,       // x <- data[#y]
+		R_STOREG = 7,      // data[#x] <- y
+		R_LOADOB = 8,      // x <- data[OB + #y]
+		R_STOREOB = 9,     // data[OB + #x] <- y
+		R_LOADI = 10,      // x <- data[y]
+		R_STOREI = 11,     // data[x] <- y
+		R_NOT = 12, R_NEG = 13, R_AND = 14, R_OR = 15,
+		// x <- y op z, or x <- y op #z for the _C forms
+		R_ADD = 16, R_ADD_C = 17, R_SUB = 18, R_SUB_C = 19, R_MULT = 20, R_MULT_C = 21,
+		R_DIV = 22, R_DIV_C = 23, R_MOD = 24, R_MOD_C = 25,
+		R_LT = 26, R_LT_C = 27, R_LE = 28, R_LE_C = 29, R_GE = 30, R_GE_C = 31,
+		R_GT = 32, R_GT_C = 33, R_EQ = 34, R_EQ_C = 35, R_NE = 36, R_NE_C = 37,
+		// jump to z if x op y, or x op #y for the _C forms
+		R_JLT = 38, R_JLT_C = 39, R_JLE = 40, R_JLE_C = 41, R_JGE = 42, R_JGE_C = 43,
+		R_JGT = 44, R_JGT_C = 45, R_JEQ = 46, R_JEQ_C = 47, R_JNE = 48, R_JNE_C = 49,
+		R_JUMPIF = 50,     // jump to z if x == #y
+		R_JUMP = 51,       // jump to x
+		R_ARRAYLEN = 52,   // x <- length of y
+		R_ARRAYREF = 53,   // x <- y[z]
+		R_ARRAYUPD = 54,   // x[y] <- z
+		R_FIELDREF = 55, R_FIELDREF_C = 56,  // x <- y.z
+		R_FIELDUPD = 57, R_FIELDUPD_C = 58,  // x.y <- z
+		R_CALL = 59,       // frame at x, enter instruction y (address #z)
+		R_CALLI = 60,      // instance at x, frame at x, enter instruction y (address #z)
+		R_RETURN = 61,     // return x if #z == 1, popping #y arguments
+		R_HALT = 62,
+		R_UARRAYREF = 63,  // x <- y[z], unchecked
+		R_UARRAYUPD = 64;  // x[y] <- z, unchecked
+
+	private static final String[] names = {
+		"slow", "nop", "mov", "movi", "mova", "movob", "loadg", "storeg", "loadob", "storeob",
+		"loadi", "storei", "not", "neg", "and", "or",
+		"add", "add", "sub", "sub", "mult", "mult", "div", "div", "mod", "mod",
+		"lt", "lt", "le", "le", "ge", "ge", "gt", "gt", "eq", "eq", "ne", "ne",
+		"jlt", "jlt", "jle", "jle", "jge", "jge", "jgt", "jgt", "jeq", "jeq", "jne", "jne",
+		"jumpif", "jump", "arraylen", "arrayref", "arrayupd", "fieldref", "fieldref",
+		"fieldupd", "fieldupd", "call", "calli", "return", "halt", "uarrayref", "uarrayupd",
+	};
+
+	// register code
+	final int[] code;
+	final int length;
+	// entry[addr]: instruction at which execution can resume when the stack
+	// machine is at addr, or -1
+	final int[] entry;
+
+	// STATISTICS
+	int translated;
+	int instructions;
+	int slowSites;
+	// of the last run
+	long dispatches;
+	long slowInstructions;
+
+	// TRANSLATION STATE
+	private static final int UNKNOWN = Integer.MIN_VALUE;
+	// symbolic stack words: in the frame, a copy of another frame word, or a constant
+	private static final int MATERIAL = 0, SLOT = 1, CONST = 2;
+
+	private final int ct;
+	private final int[] plain;
+	private final int[] depth;
+	private final boolean[] leader;
+	private final int[] returnEffects;
+
+	private int[] out = new int[64 * SIZE];
+	private int outLength;
+
+	private int[] kind = new int[64], value = new int[64], pushedAt = new int[64];
+	private int D;        // stack depth above LB before the current instruction
+	private int pending;  // stack words not yet written to the frame
+	private int lowest;   // lowest of them
+	private int peak;     // greatest depth since the stack was last fully written
+	private boolean clean;
+
+	// last instruction emitted, the last address it covers, and whether it
+	// continues with the next instruction and leaves its result at D - 1
+	private int last = -1, lastCovers = -1;
+	private boolean lastFallsThrough, lastResult;
+
+	// operands of the instruction being translated and where it starts
+	private final int[] operand = new int[3];
+	private final boolean[] isConstant = new boolean[3];
+	private int xOrigin, xDepth, xCount;
+
+	// operand fields holding target addresses, and the depth at each target
+	private int[] targets = new int[64];
+	private int targetCount;
+
+	/**
+	 * Translate code[CB..ct-1]
+	 */
+	RegisterCode(Instruction[] program, int ct) {
+		this.ct = ct;
+		plain = FastInterpreter.decode(program, ct);
+		depth = new int[ct];
+		leader = new boolean[ct + 1];
+		returnEffects = new int[ct];
+		Arrays.fill(returnEffects, UNKNOWN + 1);
+		entry = new int[ct];
+		Arrays.fill(entry, -1);
+
+		analyseDepths();
+		translate();
+		resolve();
+		code = out;
+		length = outLength;
+		instructions = outLength / SIZE;
+	}
+
+	private int op(int addr) {
+		return plain[2 * addr] & 0xFF;
+	}
+
+	private int nField(int addr) {
+		return (plain[2 * addr] >>> 8) & 0xFF;
+	}
+
+	private int operandOf(int addr) {
+		return plain[2 * addr + 1];
+	}
+
+	private static boolean isDivide(int op, int d) {
+		return op == P_OTHER
+				&& (d == Machine.Prim.div.ordinal() || d == Machine.Prim.mod.ordinal());
+	}
+
+	// DEPTH ANALYSIS
+
+	/**
+	 * Find the stack depth above LB at each instruction reachable from the
+	 * program start (depth 0) and the start of each method (depth 3, the
+	 * link data), and mark the instructions that start a block
+	 */
+	private void analyseDepths() {
+		Arrays.fill(depth, UNKNOWN);
+		int[] work = new int[ct];
+		int top = 0;
+		top = setDepth(work, top, Machine.CB, 0);
+		leader[Machine.CB] = true;
+		for (int addr = Machine.CB; addr < ct; addr++) {
+			int op = op(addr);
+			if (op == CALL || op == CALLI) {
+				top = setDepth(work, top, operandOf(addr), Machine.linkDataSize);
+				leader[operandOf(addr)] = true;
+			}
+			switch (op) {
+			case JUMP:
+			case JUMPIF:
+				leader[operandOf(addr)] = true;
+				leader[addr + 1] = true;
+				break;
+			case CALL:
+			case CALLI:
+			case RETURN:
+			case JUMPI:
+			case HALT:
+			case GENERIC:
+			case BAD_INSTRUCTION:
+			case BAD_ADDRESS:
+				leader[addr + 1] = true;
+				break;
+			case P_OTHER:
+				if (!isDivide(op, operandOf(addr)))
+					leader[addr + 1] = true;
+				break;
+			}
+		}
+
+		while (top > 0) {
+			int addr = work[--top];
+			int d = depth[addr];
+			int op = op(addr);
+			if (op == JUMP)
+				top = setDepth(work, top, operandOf(addr), d);
+			else if (op == JUMPIF)
+				top = setDepth(work, top, operandOf(addr), d - 1);
+			int next = depthAfter(addr, d);
+			if (next != UNKNOWN)
+				top = setDepth(work, top, addr + 1, next);
+		}
+	}
+
+	private int setDepth(int[] work, int top, int addr, int d) {
+		if (addr < Machine.CB || addr >= ct || d < 0 || depth[addr] != UNKNOWN)
+			return top;
+		depth[addr] = d;
+		work[top] = addr;
+		return top + 1;
+	}
+
+	/**
+	 * @return depth after the instruction at addr when it continues with the
+	 *         next instruction, or UNKNOWN
+	 */
+	private int depthAfter(int addr, int d) {
+		int op = op(addr);
+		int operand = operandOf(addr);
+		switch (op) {
+		case LOAD_LB: case LOAD_SB: case LOAD_OB: case LOAD_ABS:
+		case LOADA_LB: case LOADA_SB: case LOADA_OB: case LOADA_ABS:
+		case LOADL:
+			return d + 1;
+		case LOADI:
+		case P_ID: case P_NOT: case P_NEG: case P_ARRAYLEN:
+			return d;
+		case STORE_LB: case STORE_SB: case STORE_OB: case STORE_ABS:
+		case JUMPIF:
+		case P_AND: case P_OR: case P_ADD: case P_SUB: case P_MULT:
+		case P_LT: case P_LE: case P_GE: case P_GT: case P_EQ: case P_NE:
+		case P_ARRAYREF: case P_FIELDREF: case P_UARRAYREF:
+			return d - 1;
+		case STOREI:
+			return d - 2;
+		case P_ARRAYUPD: case P_FIELDUPD: case P_UARRAYUPD:
+			return d - 3;
+		case PUSH:
+			return d + operand;
+		case POP:
+			return d - operand;
+		case CALL:
+		case CALLI: {
+			int effect = returnEffect(operand);
+			if (effect == UNKNOWN)
+				return UNKNOWN;
+			return d + effect - (op == CALLI ? 1 : 0);
+		}
+		case P_OTHER:
+			switch (Machine.intToPrim[operand]) {
+			case succ: case pred: case geteol: case puteol: case alloc: case newarr:
+				return d;
+			case eol: case eof:
+				return d + 1;
+			default:
+				// div, mod, get, put, getint, putint, putintnl, dispose, newobj
+				return d - 1;
+			}
+		default:
+			// RETURN, JUMP, JUMPI, HALT, GENERIC, BAD_INSTRUCTION, BAD_ADDRESS
+			return UNKNOWN;
+		}
+	}
+
+	/**
+	 * @return net change in the caller's stack depth made by a call of the
+	 *         method starting at addr and its RETURN, or UNKNOWN if its
+	 *         RETURN instructions disagree or none is found
+	 */
+	private int returnEffect(int start) {
+		if (returnEffects[start] != UNKNOWN + 1)
+			return returnEffects[start];
+		int effect = UNKNOWN + 1;
+		boolean[] seen = new boolean[ct];
+		int[] work = new int[ct];
+		int top = 0;
+		work[top++] = start;
+		while (top > 0 && effect != UNKNOWN) {
+			int addr = work[--top];
+			if (addr < Machine.CB || addr >= ct || seen[addr])
+				continue;
+			seen[addr] = true;
+			switch (op(addr)) {
+			case RETURN: {
+				int e = nField(addr) - operandOf(addr);
+				effect = (effect == UNKNOWN + 1 || effect == e) ? e : UNKNOWN;
+				break;
+			}
+			case JUMPIF:
+				work[top++] = addr + 1;
+				work[top++] = operandOf(addr);
+				break;
+			case JUMP:
+				work[top++] = operandOf(addr);
+				break;
+			case JUMPI:
+			case HALT:
+			case GENERIC:
+			case BAD_INSTRUCTION:
+			case BAD_ADDRESS:
+				break;
+			default:
+				work[top++] = addr + 1;
+				break;
+			}
+		}
+		if (effect == UNKNOWN + 1)
+			effect = UNKNOWN;
+		returnEffects[start] = effect;
+		return effect;
+	}
+
+	// TRANSLATION
+
+	private void translate() {
+		// depth with which the last instruction continues in register code, if it does
+		int fall = UNKNOWN;
+		for (int addr = Machine.CB; addr <= ct; addr++) {
+			boolean known = addr < ct && depth[addr] != UNKNOWN;
+			if (fall != UNKNOWN && (!known || depth[addr] != fall)) {
+				// runs on into code translated for another depth, or not at all
+				flushAll(addr);
+				emitSlow(addr, fall, false);
+				fall = UNKNOWN;
+			}
+			if (!known)
+				continue;
+			if (fall == UNKNOWN || leader[addr]) {
+				flushAll(addr);
+				D = depth[addr];
+				ensureCapacity(D);
+				clean = true;
+				lastFallsThrough = false;
+				lastResult = false;
+			}
+			if (pending == 0)
+				peak = D;
+			fall = translate(addr);
+			peak = Math.max(peak, D);
+		}
+	}
+
+	/**
+	 * Translate the instruction at addr, updating D
+	 * @return D if the register code continues with the next instruction,
+	 *         otherwise UNKNOWN
+	 */
+	private int translate(int addr) {
+		final int op = op(addr);
+		final int d = operandOf(addr);
+		final int n = nField(addr);
+		switch (op) {
+		case LOAD_LB:
+			if (d >= D) {
+				take(addr, 0, 0, true);
+				emit(R_MOV, D, d, 0, addr, D + 1);
+				result(1);
+			} else if (d >= 0 && kind[d] != MATERIAL)
+				push(kind[d], value[d], addr);
+			else
+				push(SLOT, d, addr);
+			return D;
+		case LOADL:
+		case LOADA_SB:
+		case LOADA_ABS:
+			push(CONST, d, addr);
+			return D;
+		case LOADA_LB:
+		case LOADA_OB:
+		case LOAD_SB:
+		case LOAD_ABS:
+		case LOAD_OB:
+			take(addr, 0, 0, true);
+			emit(op == LOADA_LB ? R_MOVA : op == LOADA_OB ? R_MOVOB
+					: op == LOAD_OB ? R_LOADOB : R_LOADG, D, d, 0, addr, D + 1);
+			result(1);
+			return D;
+		case LOADI:
+			take(addr, 1, 0, true);
+			emit(R_LOADI, D - 1, operand[0], 0, addr, peak);
+			result(0);
+			return D;
+		case STORE_LB:
+			if (pending == 0 && lastResult && lastCovers == addr - 1 && !leader[addr]) {
+				// store the result of the last instruction directly
+				out[last + 1] = d;
+				extendLast(addr);
+				lastResult = false;
+				D--;
+				return D;
+			}
+			take(addr, 1, 1, false);
+			emit(isConstant[0] ? R_MOVI : R_MOV, d, operand[0], 0, addr, peak);
+			D--;
+			return D;
+		case STORE_SB:
+		case STORE_ABS:
+		case STORE_OB:
+			take(addr, 1, 0, false);
+			emit(op == STORE_OB ? R_STOREOB : R_STOREG, d, operand[0], 0, addr, peak);
+			D--;
+			return D;
+		case STOREI:
+			take(addr, 2, 0, false);
+			emit(R_STOREI, operand[1], operand[0], 0, addr, peak);
+			D -= 2;
+			return D;
+
+		case CALL:
+			take(addr, 0, 0, false);
+			emit(R_CALL, D, d, d, addr, D + 3);
+			addTarget(last, 2, Machine.linkDataSize);
+			return UNKNOWN;
+		case CALLI:
+			take(addr, 0, 0, false);
+			emit(R_CALLI, D - 1, d, d, addr, D + 2);
+			addTarget(last, 2, Machine.linkDataSize);
+			return UNKNOWN;
+		case RETURN:
+			take(addr, n, 0, false);
+			emit(R_RETURN, n == 1 ? operand[0] : 0, d, n, addr, peak);
+			return UNKNOWN;
+		case PUSH:
+		case POP:
+		case P_ID:
+			take(addr, 0, 0, false);
+			int room = op == PUSH ? D + d : D;
+			if (pending == 0 && lastFallsThrough && lastCovers == addr - 1 && !leader[addr]) {
+				extendLast(addr);
+				out[last + PEAK] = Math.max(out[last + PEAK], room);
+			} else
+				emit(R_NOP, 0, 0, 0, addr, Math.max(peak, room));
+			lastResult = false;
+			if (op == PUSH) {
+				ensureCapacity(D + d);
+				Arrays.fill(kind, D, D + d, MATERIAL);
+				D += d;
+			} else if (op == POP)
+				D -= d;
+			return D;
+		case JUMP:
+			take(addr, 0, 0, false);
+			if (!isTarget(d, D)) {
+				emitSlow(addr, D, true);
+				return UNKNOWN;
+			}
+			emit(R_JUMP, d, 0, 0, addr, peak);
+			addTarget(last, 1, D);
+			return UNKNOWN;
+		case JUMPIF:
+			if (!isTarget(d, D - 1)) {
+				take(addr, 0, 0, false);
+				emitSlow(addr, D, true);
+				return UNKNOWN;
+			}
+			int lastOp = last >= 0 ? out[last] & 0xFF : -1;
+			if (pending == 0 && lastResult && lastCovers == addr - 1 && !leader[addr]
+					&& lastOp >= R_LT && lastOp <= R_NE_C
+					&& (n == Machine.trueRep || n == Machine.falseRep)) {
+				// compare and branch
+				int cmp = (lastOp - R_LT) >> 1;
+				if (n == Machine.falseRep)
+					cmp = negate(cmp);
+				out[last] += R_JLT + 2 * cmp + ((lastOp - R_LT) & 1) - lastOp;
+				out[last + 1] = out[last + 2];
+				out[last + 2] = out[last + 3];
+				out[last + 3] = d;
+				extendLast(addr);
+				addTarget(last, 3, D - 1);
+				lastFallsThrough = false;
+				lastResult = false;
+				D--;
+				return D;
+			}
+			take(addr, 1, 0, false);
+			emit(R_JUMPIF, operand[0], n, d, addr, peak);
+			addTarget(last, 3, D - 1);
+			D--;
+			return D;
+		case HALT:
+			take(addr, 0, 0, false);
+			emit(R_HALT, 0, 0, 0, addr, peak);
+			return UNKNOWN;
+
+		case P_NOT:
+		case P_NEG:
+		case P_ARRAYLEN:
+			take(addr, 1, 0, true);
+			emit(op == P_NOT ? R_NOT : op == P_NEG ? R_NEG : R_ARRAYLEN, D - 1, operand[0], 0,
+					addr, peak);
+			result(0);
+			return D;
+		case P_AND:
+		case P_OR:
+		case P_ARRAYREF:
+		case P_UARRAYREF:
+			take(addr, 2, 0, true);
+			emit(op == P_AND ? R_AND : op == P_OR ? R_OR : op == P_ARRAYREF ? R_ARRAYREF : R_UARRAYREF,
+					D - 2, operand[0], operand[1], addr, peak);
+			result(-1);
+			return D;
+		case P_ADD:
+		case P_MULT:
+		case P_LT: case P_LE: case P_GE: case P_GT: case P_EQ: case P_NE: {
+			// commutative, or a comparison that can be reversed: either operand may be constant
+			boolean bothConstant = kind[D - 1] == CONST && kind[D - 2] == CONST;
+			take(addr, 2, bothConstant ? 2 : 3, true);
+			int r = op == P_ADD ? R_ADD : op == P_MULT ? R_MULT : R_LT + 2 * (op - P_LT);
+			if (isConstant[1])
+				emit(r + 1, D - 2, operand[0], operand[1], addr, peak);
+			else if (isConstant[0])
+				emit((r >= R_LT ? R_LT + 2 * reverse((r - R_LT) >> 1) : r) + 1, D - 2,
+						operand[1], operand[0], addr, peak);
+			else
+				emit(r, D - 2, operand[0], operand[1], addr, peak);
+			result(-1);
+			return D;
+		}
+		case P_SUB:
+		case P_FIELDREF:
+			take(addr, 2, 2, true);
+			emit((op == P_SUB ? R_SUB : R_FIELDREF) + (isConstant[1] ? 1 : 0), D - 2,
+					operand[0], operand[1], addr, peak);
+			result(-1);
+			return D;
+		case P_ARRAYUPD:
+		case P_UARRAYUPD:
+			take(addr, 3, 0, false);
+			emit(op == P_ARRAYUPD ? R_ARRAYUPD : R_UARRAYUPD, operand[0], operand[1], operand[2],
+					addr, peak);
+			D -= 3;
+			return D;
+		case P_FIELDUPD:
+			take(addr, 3, 2, false);
+			emit(isConstant[1] ? R_FIELDUPD_C : R_FIELDUPD, operand[0], operand[1], operand[2],
+					addr, peak);
+			D -= 3;
+			return D;
+		case P_OTHER:
+			if (isDivide(op, d)) {
+				take(addr, 2, 2, true);
+				emit((d == Machine.Prim.div.ordinal() ? R_DIV : R_MOD) + (isConstant[1] ? 1 : 0),
+						D - 2, operand[0], operand[1], addr, peak);
+				result(-1);
+				return D;
+			}
+			take(addr, 0, 0, false);
+			emitSlow(addr, D, true);
+			return UNKNOWN;
+		default:
+			// GENERIC, JUMPI, BAD_INSTRUCTION, BAD_ADDRESS
+			take(addr, 0, 0, false);
+			emitSlow(addr, D, true);
+			return UNKNOWN;
+		}
+	}
+
+	// comparison index (lt, le, ge, gt, eq, ne) for not (x op y), and for y op x
+	private static int negate(int cmp) {
+		return new int[] { 2, 3, 0, 1, 5, 4 }[cmp];
+	}
+
+	private static int reverse(int cmp) {
+		return new int[] { 3, 2, 1, 0, 4, 5 }[cmp];
+	}
+
+	/**
+	 * @return true if a jump to addr with depth d can stay in register code
+	 */
+	private boolean isTarget(int addr, int d) {
+		return depth[addr] == d;
+	}
+
+	/**
+	 * Push a stack word that is not yet written to the frame
+	 */
+	private void push(int k, int v, int addr) {
+		ensureCapacity(D + 1);
+		kind[D] = k;
+		value[D] = v;
+		pushedAt[D] = addr;
+		if (pending++ == 0)
+			lowest = D;
+		D++;
+		peak = Math.max(peak, D);
+		lastResult = false;
+	}
+
+	private void ensureCapacity(int size) {
+		if (size > kind.length) {
+			int newSize = Math.max(size, 2 * kind.length);
+			kind = Arrays.copyOf(kind, newSize);
+			value = Arrays.copyOf(value, newSize);
+			pushedAt = Arrays.copyOf(pushedAt, newSize);
+		}
+	}
+
+	/**
+	 * Write the stack word at pos to the frame, before the instruction at addr
+	 */
+	private void materialize(int pos, int addr) {
+		xOrigin = pushedAt[lowest];
+		xDepth = lowest;
+		xCount = 1;
+		int k = kind[pos];
+		kind[pos] = MATERIAL;
+		if (--pending > 0)
+			while (kind[lowest] == MATERIAL)
+				lowest++;
+		emitAt(k == CONST ? R_MOVI : R_MOV, pos, value[pos], 0, addr - 1, peak, true);
+		lastResult = false;
+	}
+
+	private void flushAll(int addr) {
+		while (pending > 0)
+			materialize(lowest, addr);
+	}
+
+	/**
+	 * Take the top m stack words as operands of the instruction at addr
+	 * @param constants  bit i set if operand i (0 deepest) may be a constant
+	 * @param pure       false if the instruction has an effect other than
+	 *                   writing its result, when all stack words below its
+	 *                   operands are written to the frame first
+	 */
+	private void take(int addr, int m, int constants, boolean pure) {
+		int bottom = D - m;
+		if (!pure)
+			while (pending > 0 && lowest < bottom)
+				materialize(lowest, addr);
+		for (int i = 0; i < m; i++)
+			if (kind[bottom + i] == CONST && (constants & (1 << i)) == 0)
+				materialize(bottom + i, addr);
+
+		xOrigin = pending > 0 ? pushedAt[lowest] : addr;
+		xDepth = pending > 0 ? lowest : D;
+		xCount = 1;
+		for (int i = 0; i < m; i++) {
+			int pos = bottom + i;
+			if (kind[pos] == MATERIAL) {
+				operand[i] = pos;
+				isConstant[i] = false;
+			} else {
+				operand[i] = value[pos];
+				isConstant[i] = kind[pos] == CONST;
+				kind[pos] = MATERIAL;
+				pending--;
+				xCount++;
+			}
+		}
+	}
+
+	/**
+	 * Record that the instruction just emitted leaves its result on the
+	 * stack, changing the depth by change
+	 */
+	private void result(int change) {
+		D += change;
+		ensureCapacity(D);
+		kind[D - 1] = MATERIAL;
+		lastResult = true;
+	}
+
+	private void emit(int op, int x, int y, int z, int addr, int room) {
+		emitAt(op, x, y, z, addr, Math.max(peak, room),
+				(op < R_JLT || op > R_JUMP) && op < R_CALL);
+		lastResult = false;
+	}
+
+	private void emitAt(int op, int x, int y, int z, int covers, int room, boolean fallsThrough) {
+		if (outLength + SIZE > out.length)
+			out = Arrays.copyOf(out, 2 * out.length);
+		int at = outLength;
+		out[at] = op | (xCount << 8);
+		out[at + 1] = x;
+		out[at + 2] = y;
+		out[at + 3] = z;
+		out[at + PEAK] = room;
+		out[at + ORIGIN] = xOrigin;
+		out[at + DEPTH] = xDepth;
+		// every instruction from the origin on has been counted, except for
+		// stack words still pending
+		out[at + REDO] = covers - xOrigin + 1 - pending;
+		outLength += SIZE;
+		translated += xCount;
+		if (clean && entry[xOrigin] < 0)
+			entry[xOrigin] = at;
+		clean = pending == 0;
+		last = at;
+		lastCovers = covers;
+		lastFallsThrough = fallsThrough;
+	}
+
+	private void extendLast(int addr) {
+		out[last] += 1 << 8;
+		out[last + REDO]++;
+		lastCovers = addr;
+		translated++;
+	}
+
+	/**
+	 * Emit an instruction that leaves the stack machine at addr, depth d, to
+	 * the reference implementation
+	 * @param resumable  whether the instruction executed at addr
+	 */
+	private void emitSlow(int addr, int d, boolean resumable) {
+		xOrigin = addr;
+		xDepth = d;
+		xCount = 0;
+		if (!resumable)
+			clean = false;
+		emitAt(R_SLOW, 0, 0, 0, addr - 1, 0, false);
+		lastResult = false;
+		if (resumable)
+			slowSites++;
+	}
+
+	/**
+	 * Note that operand field of the instruction at at holds the address of
+	 * a jump or call target, to be entered with stack depth d
+	 */
+	private void addTarget(int at, int field, int d) {
+		if (targetCount + 3 > targets.length)
+			targets = Arrays.copyOf(targets, 2 * targets.length);
+		targets[targetCount++] = at + field;
+		targets[targetCount++] = d;
+	}
+
+	/**
+	 * Replace jump and call target addresses by instruction indexes
+	 */
+	private void resolve() {
+		for (int i = 0; i < targetCount; i += 2) {
+			int field = targets[i], d = targets[i + 1];
+			int addr = out[field];
+			int at = entry[addr];
+			if (at < 0 || out[at + DEPTH] != d) {
+				// not translated for this depth
+				emitSlow(addr, d, false);
+				at = outLength - SIZE;
+			}
+			out[field] = at;
+		}
+	}
+
+	// REPORTS
+
+	/**
+	 * Write the register code, one instruction per line
+	 */
+	public void print(PrintStream ps) {
+		for (int at = 0; at < length; at += SIZE) {
+			int op = code[at] & 0xFF;
+			ps.println(String.format("%5d  %4d %3d  %-9s %6d %6d %6d   covers %d", at / SIZE,
+					code[at + ORIGIN], code[at + DEPTH], names[op] + (isConstantForm(op) ? "#" : ""),
+					code[at + 1], code[at + 2], code[at + 3], code[at] >>> 8));
+		}
+	}
+
+	private static boolean isConstantForm(int op) {
+		return op >= R_ADD && op <= R_JNE_C && ((op - R_ADD) & 1) == 1
+				|| op == R_FIELDREF_C || op == R_FIELDUPD_C;
+	}
+
+	/**
+	 * Write translation statistics and the dispatches of the last run
+	 * @param instructionsRun  number of mJAM instructions executed by the run
+	 */
+	public void printStatistics(PrintStream ps, long instructionsRun) {
+		ps.println("*** Registers: " + translated + " mJAM instructions translated to "
+				+ instructions + " register instructions, " + slowSites
+				+ " left to the reference implementation");
+		ps.println("*** Registers: " + dispatches + " dispatches for " + instructionsRun
+				+ " mJAM instructions ("
+				+ String.format("%.1f", instructionsRun == 0 ? 0.0
+						: 100.0 * (instructionsRun - dispatches - slowInstructions) / instructionsRun)
+				+ "% fewer), " + slowInstructions + " run by the reference implementation");
+	}
+}
@@ -0,0 +1,425 @@
+/**
+ * Register-based execution engine for mJAM programs
+ */
+package mJAM;
+
+import static mJAM.RegisterCode.*;
+
+/**
+ * Runs a program translated by RegisterCode.  Register operands are offsets
+ * from LB, so the frame words of the stack machine serve as the registers and
+ * ST is only materialised (as LB plus the recorded depth) when the machine is
+ * handed to the reference implementation.
+ *
+ * An instruction that finds a check failing, or that needs more stack than
+ * the data store holds, restores the stack machine state recorded for it and
+ * leaves the mJAM instructions it covers to MjamVM.interpretOneOperation,
+ * which then runs until it reaches an instruction with an entry in the
+ * register code at the stack depth the register code expects there.
+ */
+public final class RegisterInterpreter {
+
+	private RegisterInterpreter() {
+	}
+
+	/**
+	 * Runs the translated program from the current register state of vm
+	 * until the program halts or fails.
+	 * @param vm       machine whose data store and registers are used
+	 * @param program  register code translated from the code store of vm
+	 * @return number of mJAM instructions executed
+	 */
+	public static long run(MjamVM vm, RegisterCode program) {
+		program.dispatches = 0;
+		program.slowInstructions = 0;
+		return run(vm, program, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Runs the translated program from the current register state of vm
+	 * until the program halts or fails, or limit instructions have been
+	 * executed, leaving vm running.  Dispatches and slow instructions
+	 * are added to the statistics of program.
+	 * @return number of mJAM instructions executed
+	 */
+	public static long run(MjamVM vm, RegisterCode program, long limit) {
+		final int[] ir = program.code;
+		final int[] entry = program.entry;
+		final int HB = vm.HB, CT = vm.CT;
+		int LB = vm.LB, OB = vm.OB, HT = vm.HT;
+		// heap address a is held in data[a - hoff]; the stack may grow up to data[SL - 1]
+		int[] data = vm.words;
+		int hoff = vm.heapOffset;
+		int SL = HT - hoff;
+		// state of the stack machine when the reference implementation takes over
+		int CP = vm.CP, ST = vm.ST;
+		long count = 0, dispatches = 0, slowInstructions = 0;
+		int pc = -1, addr, index, n;
+		long acc;
+		// whether calls are counted: only while metrics are enabled
+		final boolean counting = vm.metrics != null;
+
+		if (CP >= Machine.CB && CP < CT && entry[CP] >= 0 && ST - LB == ir[entry[CP] + DEPTH])
+			pc = entry[CP];
+
+		loop:
+		while (true) {
+			if (pc >= 0) {
+				exit: {
+					abandon: {
+						while (true) {
+							final int word = ir[pc];
+							count += word >>> 8;
+							// an instruction that would take the count past limit is
+							// abandoned, so the reference implementation runs up to
+							// exactly limit instructions, as is one without room
+							if (count > limit || LB + ir[pc + PEAK] > SL) {
+								// stopping here runs the instructions from the origin
+								// counted before this one again, so they are not counted
+								if (count - ir[pc + REDO] >= limit) {
+									count -= ir[pc + REDO];
+									stop(vm, ir, pc, LB, OB, HT, MjamVM.running);
+									break loop;
+								}
+								break abandon;
+							}
+							dispatches++;
+							switch (word & 0xFF) {
+							case R_NOP:
+								break;
+							case R_MOV:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]];
+								break;
+							case R_MOVI:
+								data[LB + ir[pc + 1]] = ir[pc + 2];
+								break;
+							case R_MOVA:
+								data[LB + ir[pc + 1]] = LB + ir[pc + 2];
+								break;
+							case R_MOVOB:
+								data[LB + ir[pc + 1]] = OB + ir[pc + 2];
+								break;
+							case R_LOADG:
+								addr = ir[pc + 2];
+								data[LB + ir[pc + 1]] = data[addr >= HT ? addr - hoff : addr];
+								break;
+							case R_STOREG:
+								addr = ir[pc + 1];
+								data[addr >= HT ? addr - hoff : addr] = data[LB + ir[pc + 2]];
+								break;
+							case R_LOADOB:
+								addr = OB + ir[pc + 2];
+								data[LB + ir[pc + 1]] = data[addr >= HT ? addr - hoff : addr];
+								break;
+							case R_STOREOB:
+								addr = OB + ir[pc + 1];
+								data[addr >= HT ? addr - hoff : addr] = data[LB + ir[pc + 2]];
+								break;
+							case R_LOADI:
+								addr = data[LB + ir[pc + 2]];
+								data[LB + ir[pc + 1]] = data[addr >= HT ? addr - hoff : addr];
+								break;
+							case R_STOREI:
+								addr = data[LB + ir[pc + 1]];
+								data[addr >= HT ? addr - hoff : addr] = data[LB + ir[pc + 2]];
+								break;
+
+							case R_NOT:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] == Machine.trueRep
+										? Machine.falseRep : Machine.trueRep;
+								break;
+							case R_NEG:
+								data[LB + ir[pc + 1]] = -data[LB + ir[pc + 2]];
+								break;
+							case R_AND:
+								data[LB + ir[pc + 1]] = (data[LB + ir[pc + 2]] == Machine.trueRep
+										& data[LB + ir[pc + 3]] == Machine.trueRep)
+										? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_OR:
+								data[LB + ir[pc + 1]] = (data[LB + ir[pc + 2]] == Machine.trueRep
+										| data[LB + ir[pc + 3]] == Machine.trueRep)
+										? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_ADD:
+								acc = (long) data[LB + ir[pc + 2]] + data[LB + ir[pc + 3]];
+								if (acc != (int) acc) break abandon;
+								data[LB + ir[pc + 1]] = (int) acc;
+								break;
+							case R_ADD_C:
+								acc = (long) data[LB + ir[pc + 2]] + ir[pc + 3];
+								if (acc != (int) acc) break abandon;
+								data[LB + ir[pc + 1]] = (int) acc;
+								break;
+							case R_SUB:
+								acc = (long) data[LB + ir[pc + 2]] - data[LB + ir[pc + 3]];
+								if (acc != (int) acc) break abandon;
+								data[LB + ir[pc + 1]] = (int) acc;
+								break;
+							case R_SUB_C:
+								acc = (long) data[LB + ir[pc + 2]] - ir[pc + 3];
+								if (acc != (int) acc) break abandon;
+								data[LB + ir[pc + 1]] = (int) acc;
+								break;
+							case R_MULT:
+								acc = (long) data[LB + ir[pc + 2]] * data[LB + ir[pc + 3]];
+								if (acc != (int) acc) break abandon;
+								data[LB + ir[pc + 1]] = (int) acc;
+								break;
+							case R_MULT_C:
+								acc = (long) data[LB + ir[pc + 2]] * ir[pc + 3];
+								if (acc != (int) acc) break abandon;
+								data[LB + ir[pc + 1]] = (int) acc;
+								break;
+							case R_DIV:
+							case R_DIV_C:
+							case R_MOD:
+							case R_MOD_C:
+								n = word & 0xFF;
+								index = (n == R_DIV_C || n == R_MOD_C) ? ir[pc + 3] : data[LB + ir[pc + 3]];
+								if (index == 0) break abandon;
+								data[LB + ir[pc + 1]] = (n == R_DIV || n == R_DIV_C)
+										? data[LB + ir[pc + 2]] / index : data[LB + ir[pc + 2]] % index;
+								break;
+							case R_LT:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] < data[LB + ir[pc + 3]] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_LT_C:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] < ir[pc + 3] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_LE:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] <= data[LB + ir[pc + 3]] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_LE_C:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] <= ir[pc + 3] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_GE:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] >= data[LB + ir[pc + 3]] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_GE_C:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] >= ir[pc + 3] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_GT:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] > data[LB + ir[pc + 3]] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_GT_C:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] > ir[pc + 3] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_EQ:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] == data[LB + ir[pc + 3]] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_EQ_C:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] == ir[pc + 3] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_NE:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] != data[LB + ir[pc + 3]] ? Machine.trueRep : Machine.falseRep;
+								break;
+							case R_NE_C:
+								data[LB + ir[pc + 1]] = data[LB + ir[pc + 2]] != ir[pc + 3] ? Machine.trueRep : Machine.falseRep;
+								break;
+
+							// branches
+							case R_JLT:
+								pc = data[LB + ir[pc + 1]] < data[LB + ir[pc + 2]] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JLT_C:
+								pc = data[LB + ir[pc + 1]] < ir[pc + 2] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JLE:
+								pc = data[LB + ir[pc + 1]] <= data[LB + ir[pc + 2]] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JLE_C:
+								pc = data[LB + ir[pc + 1]] <= ir[pc + 2] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JGE:
+								pc = data[LB + ir[pc + 1]] >= data[LB + ir[pc + 2]] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JGE_C:
+								pc = data[LB + ir[pc + 1]] >= ir[pc + 2] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JGT:
+								pc = data[LB + ir[pc + 1]] > data[LB + ir[pc + 2]] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JGT_C:
+								pc = data[LB + ir[pc + 1]] > ir[pc + 2] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JEQ:
+								pc = data[LB + ir[pc + 1]] == data[LB + ir[pc + 2]] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JEQ_C:
+								pc = data[LB + ir[pc + 1]] == ir[pc + 2] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JNE:
+								pc = data[LB + ir[pc + 1]] != data[LB + ir[pc + 2]] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JNE_C:
+								pc = data[LB + ir[pc + 1]] != ir[pc + 2] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JUMPIF:
+								pc = data[LB + ir[pc + 1]] == ir[pc + 2] ? ir[pc + 3] : pc + SIZE;
+								continue;
+							case R_JUMP:
+								pc = ir[pc + 1];
+								continue;
+
+							// objects and arrays
+							case R_ARRAYLEN:
+								addr = data[LB + ir[pc + 2]];
+								if (addr == Machine.nullRep || addr < HT + 2 || addr > HB
+										|| data[addr - hoff - 2] != -2)
+									break abandon;
+								data[LB + ir[pc + 1]] = data[addr - hoff - 1];
+								break;
+							case R_ARRAYREF:
+								addr = data[LB + ir[pc + 2]];
+								if (addr == Machine.nullRep || addr < HT + 2 || addr > HB) break abandon;
+								addr -= hoff;
+								index = data[LB + ir[pc + 3]];
+								if (data[addr - 2] != -2 || index < 0 || index >= data[addr - 1]) break abandon;
+								data[LB + ir[pc + 1]] = data[addr + index];
+								break;
+							case R_ARRAYUPD:
+								addr = data[LB + ir[pc + 1]];
+								if (addr == Machine.nullRep || addr < HT + 2 || addr > HB) break abandon;
+								addr -= hoff;
+								index = data[LB + ir[pc + 2]];
+								if (data[addr - 2] != -2 || index < 0 || index >= data[addr - 1]) break abandon;
+								data[addr + index] = data[LB + ir[pc + 3]];
+								break;
+							case R_UARRAYREF:
+								data[LB + ir[pc + 1]] = data[data[LB + ir[pc + 2]] - hoff + data[LB + ir[pc + 3]]];
+								break;
+							case R_UARRAYUPD:
+								data[data[LB + ir[pc + 1]] - hoff + data[LB + ir[pc + 2]]] = data[LB + ir[pc + 3]];
+								break;
+							case R_FIELDREF:
+							case R_FIELDREF_C:
+								addr = data[LB + ir[pc + 2]];
+								if (addr == Machine.nullRep || addr < HT + 2 || addr > HB) break abandon;
+								addr -= hoff;
+								index = (word & 0xFF) == R_FIELDREF_C ? ir[pc + 3] : data[LB + ir[pc + 3]];
+								if (index < 0 || index >= data[addr - 1]) break abandon;
+								data[LB + ir[pc + 1]] = data[addr + index];
+								break;
+							case R_FIELDUPD:
+							case R_FIELDUPD_C:
+								addr = data[LB + ir[pc + 1]];
+								if (addr == Machine.nullRep || addr < HT + 2 || addr > HB) break abandon;
+								addr -= hoff;
+								index = (word & 0xFF) == R_FIELDUPD_C ? ir[pc + 2] : data[LB + ir[pc + 2]];
+								if (index < 0 || index >= data[addr - 1]) break abandon;
+								data[addr + index] = data[LB + ir[pc + 3]];
+								break;
+
+							// calls
+							case R_CALL:
+								addr = LB + ir[pc + 1];
+								data[addr] = OB;
+								data[addr + 1] = LB;
+								data[addr + 2] = ir[pc + ORIGIN] + 1;
+								OB = Machine.nullRep;
+								LB = addr;
+								pc = ir[pc + 2];
+								if (counting) vm.calls++;
+								if (addr + 3 > vm.maxST) {
+									vm.maxST = addr + 3;
+									if (vm.stackQuota > 0 && addr + 3 - MjamVM.SB > vm.stackQuota) {
+										stop(vm, ir, pc, LB, OB, HT, MjamVM.failedStackQuota);
+										break loop;
+									}
+								}
+								continue;
+							case R_CALLI:
+								addr = LB + ir[pc + 1];
+								index = data[addr];
+								data[addr] = OB;
+								data[addr + 1] = LB;
+								data[addr + 2] = ir[pc + ORIGIN] + 1;
+								OB = index;
+								LB = addr;
+								pc = ir[pc + 2];
+								if (counting) vm.calls++;
+								if (addr + 3 > vm.maxST) {
+									vm.maxST = addr + 3;
+									if (vm.stackQuota > 0 && addr + 3 - MjamVM.SB > vm.stackQuota) {
+										stop(vm, ir, pc, LB, OB, HT, MjamVM.failedStackQuota);
+										break loop;
+									}
+								}
+								continue;
+							case R_RETURN:
+								addr = LB - ir[pc + 2];
+								index = data[LB + ir[pc + 1]];
+								n = ir[pc + 3];
+								OB = data[LB];
+								CP = data[LB + 2];
+								LB = data[LB + 1];
+								if (n == 1)
+									data[addr] = index;
+								ST = addr + n;
+								if (CP < Machine.CB || CP >= CT || (pc = entry[CP]) < 0
+										|| ST - LB != ir[pc + DEPTH])
+									break exit;
+								continue;
+							case R_HALT:
+								stop(vm, ir, pc, LB, OB, HT, MjamVM.halted);
+								break loop;
+
+							default:
+								// R_SLOW
+								break abandon;
+							}
+							pc += SIZE;
+						}
+					}
+					// back to the stack machine state before the instruction
+					count -= ir[pc + REDO];
+					CP = ir[pc + ORIGIN];
+					ST = LB + ir[pc + DEPTH];
+				}
+			}
+
+			// run with the reference implementation up to the next entry to the register code
+			vm.CP = CP;
+			vm.ST = ST;
+			vm.HT = HT;
+			vm.LB = LB;
+			vm.OB = OB;
+			if (CP < Machine.CB || CP >= CT) {
+				vm.status = MjamVM.failedInvalidCodeAddress;
+				break;
+			}
+			do {
+				vm.status = MjamVM.running;
+				vm.interpretOneOperation();
+				count++;
+				slowInstructions++;
+				if (vm.status != MjamVM.running || count >= limit) {
+					if (vm.status == MjamVM.suspended && vm.atInputPrimitive)
+						count--; // the primitive runs when the machine resumes
+					break loop;
+				}
+			} while ((pc = entry[vm.CP]) < 0 || vm.ST - vm.LB != ir[pc + DEPTH]);
+			LB = vm.LB;
+			OB = vm.OB;
+			HT = vm.HT;
+			data = vm.words;
+			hoff = vm.heapOffset;
+			SL = HT - hoff;
+		}
+
+		program.dispatches += dispatches;
+		program.slowInstructions += slowInstructions;
+		return count;
+	}
+
+	// leave vm in the stack machine state before the register instruction at pc
+	private static void stop(MjamVM vm, int[] ir, int pc, int LB, int OB, int HT, int status) {
+		vm.CP = ir[pc + ORIGIN];
+		vm.ST = LB + ir[pc + DEPTH];
+		vm.HT = HT;
+		vm.LB = LB;
+		vm.OB = OB;
+		vm.status = status;
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * Sampling profiler for mJAM programs
+ */
+package mJAM;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Records the mJAM call stack of one MjamVM every interval instructions,
+ * and writes the stacks seen in the folded format read by flame graph
+ * tools: one line per distinct stack, the method names from the outermost
+ * call inwards separated by ';', then a space and the number of samples.
+ *
+ * The stack is found by following the dynamic links from LB: the frame at
+ * LB holds the caller's LB at LB+1 and the return address at LB+2, so each
+ * caller is executing the call just before that return address.  Frames are
+ * named from the source map when there is one, else by the start address
+ * of the method, read from the CALL or CALLI that created the frame.
+ *
+ * Samples are taken by the run loops of MjamVM on instruction counts, so a
+ * program with the same input gives the same samples on every run.  The
+ * fast engine may take a sample up to 3 instructions late, after a
+ * superinstruction; code compiled by the JIT is not sampled.
+ */
+public class SamplingProfiler {
+
+	public final static int defaultInterval = 10000;
+
+	private final MjamVM vm;
+	private final int interval;
+	private SourceMap sourceMap;
+
+	// samples of each folded stack
+	private final HashMap<String, long[]> stacks = new HashMap<String, long[]>();
+	private long samples;
+
+	SamplingProfiler(MjamVM vm, int interval) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("sampling interval must be positive");
+		this.vm = vm;
+		this.interval = interval;
+	}
+
+	/**
+	 * Name frames by the methods in map
+	 */
+	public void setSourceMap(SourceMap map) {
+		sourceMap = map;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	public long getSamples() {
+		return samples;
+	}
+
+	void reset() {
+		stacks.clear();
+		samples = 0;
+	}
+
+	/**
+	 * Record the current call stack of vm
+	 */
+	void sample() {
+		List<String> frames = new ArrayList<String>();
+		DataStore data = vm.data;
+		int pc = vm.CP, lb = vm.LB;
+		// a frame at LB holds OB, the dynamic link and the return address
+		while (lb > MjamVM.SB && lb + 2 < vm.ST) {
+			int dynamicLink = data.get(lb + 1), returnAddr = data.get(lb + 2);
+			frames.add(frameName(pc, returnAddr));
+			if (dynamicLink >= lb || dynamicLink < MjamVM.SB)
+				break; // not a frame
+			pc = returnAddr - 1;
+			lb = dynamicLink;
+		}
+		if (lb <= MjamVM.SB)
+			frames.add(frameName(pc, -1));
+
+		StringBuilder stack = new StringBuilder();
+		for (int i = frames.size() - 1; i >= 0; i--) {
+			stack.append(frames.get(i));
+			if (i > 0)
+				stack.append(';');
+		}
+		long[] count = stacks.get(stack.toString());
+		if (count == null)
+			stacks.put(stack.toString(), count = new long[1]);
+		count[0]++;
+		samples++;
+	}
+
+	/**
+	 * @param pc          address the frame is executing
+	 * @param returnAddr  return address held in the frame, or -1 for the
+	 *                    code run from CB
+	 */
+	private String frameName(int pc, int returnAddr) {
+		if (sourceMap != null) {
+			int index = sourceMap.methodIndexAt(pc);
+			if (index >= 0)
+				return sourceMap.methodName(index);
+		}
+		if (returnAddr < 0)
+			return "<start>";
+		if (returnAddr > Machine.CB && returnAddr <= vm.CT) {
+			Instruction call = vm.code[returnAddr - 1];
+			if ((call.op == Machine.Op.CALL.ordinal() || call.op == Machine.Op.CALLI.ordinal())
+					&& call.r == Machine.Reg.CB.ordinal())
+				return "method@" + call.d;
+		}
+		return "code@" + pc;
+	}
+
+	/**
+	 * Write the samples in folded stack format, in stack order
+	 */
+	public void writeFolded(PrintStream out) {
+		Map<String, long[]> sorted = new TreeMap<String, long[]>(stacks);
+		for (Map.Entry<String, long[]> stack : sorted.entrySet())
+			out.println(stack.getKey() + " " + stack.getValue()[0]);
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Maps mJAM code addresses to methods and source lines
+ */
+package mJAM;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * The code address at which each method starts, with its name, and the code
+ * address at which the code of each source line starts.  An address belongs
+ * to the last method, and the last line, marked at or below it.
+ *
+ * The code generator marks methods and statements as it emits them
+ * (Machine.sourceMap); the compiler writes the map next to the object file
+ * as text lines "source name", "method addr name" and "line addr line".
+ */
+public class SourceMap {
+
+	private String sourceFileName;
+
+	// marks in increasing address order
+	private int[] methodAddrs = new int[16];
+	private String[] methodNames = new String[16];
+	private int methods;
+	private int[] lineAddrs = new int[64];
+	private int[] lineNumbers = new int[64];
+	private int lines;
+
+	public void setSourceFileName(String sourceFileName) {
+		this.sourceFileName = sourceFileName;
+	}
+
+	/**
+	 * @return name of the source file compiled, or null if not known
+	 */
+	public String getSourceFileName() {
+		return sourceFileName;
+	}
+
+	/**
+	 * Record that the method called name starts at addr.  Marks above addr
+	 * are dropped, as the code generator may have taken back code emitted
+	 * there.
+	 */
+	public void markMethod(int addr, String name) {
+		while (methods > 0 && methodAddrs[methods - 1] >= addr)
+			methods--;
+		if (methods == methodAddrs.length) {
+			methodAddrs = Arrays.copyOf(methodAddrs, 2 * methods);
+			methodNames = Arrays.copyOf(methodNames, 2 * methods);
+		}
+		methodAddrs[methods] = addr;
+		methodNames[methods++] = name;
+	}
+
+	/**
+	 * Record that the code for source line starts at addr
+	 */
+	public void markLine(int addr, int line) {
+		while (lines > 0 && lineAddrs[lines - 1] >= addr)
+			lines--;
+		if (lines > 0 && lineNumbers[lines - 1] == line)
+			return;
+		if (lines == lineAddrs.length) {
+			lineAddrs = Arrays.copyOf(lineAddrs, 2 * lines);
+			lineNumbers = Arrays.copyOf(lineNumbers, 2 * lines);
+		}
+		lineAddrs[lines] = addr;
+		lineNumbers[lines++] = line;
+	}
+
+	private static int find(int[] addrs, int count, int addr) {
+		// last index with addrs[i] <= addr, or -1
+		int lo = 0, hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (addrs[mid] <= addr)
+				lo = mid + 1;
+			else
+				hi = mid - 1;
+		}
+		return hi;
+	}
+
+	public int methodCount() {
+		return methods;
+	}
+
+	public int methodAddr(int index) {
+		return methodAddrs[index];
+	}
+
+	public String methodName(int index) {
+		return methodNames[index];
+	}
+
+	/**
+	 * @return index of the method holding addr, or -1 if none
+	 */
+	public int methodIndexAt(int addr) {
+		return find(methodAddrs, methods, addr);
+	}
+
+	/**
+	 * @return name of the method starting at addr, or null if none does
+	 */
+	public String methodStartingAt(int addr) {
+		int index = find(methodAddrs, methods, addr);
+		return index >= 0 && methodAddrs[index] == addr ? methodNames[index] : null;
+	}
+
+	/**
+	 * @return source line of the code at addr, or 0 if not known
+	 */
+	public int lineAt(int addr) {
+		int index = find(lineAddrs, lines, addr);
+		return index < 0 ? 0 : lineNumbers[index];
+	}
+
+	/**
+	 * Write the marks below codeTop to a text file
+	 * @return true if write fails
+	 */
+	public boolean write(String fileName, int codeTop) {
+		try (PrintWriter out = new PrintWriter(fileName)) {
+			if (sourceFileName != null)
+				out.println("source " + sourceFileName);
+			for (int i = 0; i < methods && methodAddrs[i] < codeTop; i++)
+				out.println("method " + methodAddrs[i] + " " + methodNames[i]);
+			for (int i = 0; i < lines && lineAddrs[i] < codeTop; i++)
+				out.println("line " + lineAddrs[i] + " " + lineNumbers[i]);
+			return out.checkError();
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * @return the map in a file written by write, or null if it can not be read
+	 */
+	public static SourceMap read(String fileName) {
+		SourceMap map = new SourceMap();
+		try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split(" ", 3);
+				if (line.startsWith("source "))
+					map.sourceFileName = line.substring(7);
+				else if (fields[0].equals("method") && fields.length == 3)
+					map.markMethod(Integer.parseInt(fields[1]), fields[2]);
+				else if (fields[0].equals("line") && fields.length == 3)
+					map.markLine(Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+			}
+		} catch (IOException | NumberFormatException e) {
+			return null;
+		}
+		return map;
+	}
+}
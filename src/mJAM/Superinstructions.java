@@ -0,0 +1,135 @@
+/**
+ * Superinstruction fusion for the FastInterpreter engine
+ */
+package mJAM;
+
+import java.io.PrintStream;
+
+import static mJAM.FastInterpreter.*;
+
+/**
+ * Load-time pass over the packed code produced by FastInterpreter.decode
+ * that replaces the commonest instruction sequences emitted by the miniJava
+ * code generator with single fused instructions, such as
+ *
+ *     LOAD d[LB]; LOADL k; CALL add; STORE d[LB]      (i = i + k)
+ *     LOAD d[LB]; LOADL k; CALL lt; JUMPIF (n) L      (loop tests)
+ *     LOADL i; CALL fieldref                          (field access)
+ *
+ * Only the opcode word of the first instruction of a sequence is rewritten.
+ * The fused instruction reads the operands of the rest of the sequence from
+ * their own (unchanged) packed words, and the rest of the sequence is left
+ * in place, so a jump into the middle of a sequence still executes the
+ * original instructions.  That is also how a fused instruction fails: if the
+ * sequence would fail, or run past the interpreter's instruction limit, only
+ * its first instruction is executed and the rest follow one at a time, so
+ * the failure is reported by the original instruction.
+ */
+public final class Superinstructions {
+
+	// fused opcodes, FIRST .. FIRST + count - 1
+	static final int FIRST = F_LB_LIT_ARITH_STORE;
+	private static final int count = F_LOAD_LB2 - FIRST + 1;
+
+	private static final String[] names = {
+		"LOAD LB; LOADL; add|sub|mult; STORE LB",
+		"LOAD LB; LOADL; compare; JUMPIF",
+		"LOAD LB; LOAD LB; compare; JUMPIF",
+		"LOAD LB; LOADL; fieldref",
+		"LOADL; compare; JUMPIF",
+		"LOADL; add|sub|mult",
+		"LOADL; fieldref",
+		"LOAD LB; LOAD LB",
+	};
+
+	// number of instructions replaced by each fused instruction
+	private static final int[] lengths = { 4, 4, 4, 3, 3, 2, 2, 2 };
+
+	private Superinstructions() {
+	}
+
+	/**
+	 * @return number of kinds of fused instruction
+	 */
+	static int kinds() {
+		return count;
+	}
+
+	private static boolean isCompare(int op) {
+		return op >= P_LT && op <= P_NE;
+	}
+
+	private static boolean isArith(int op) {
+		return op == P_ADD || op == P_SUB || op == P_MULT;
+	}
+
+	/**
+	 * Fuse instruction sequences in packed code
+	 * @param packed  code produced by FastInterpreter.decode, rewritten in place
+	 * @param ct      code top
+	 * @return number of sites fused, by kind
+	 */
+	public static int[] fuse(int[] packed, int ct) {
+		// match against the original opcodes, so sequences may overlap
+		int[] ops = new int[ct + 3];
+		for (int addr = 0; addr < ct; addr++)
+			ops[addr] = packed[2 * addr] & 0xFF;
+		for (int addr = ct; addr < ops.length; addr++)
+			ops[addr] = BAD_ADDRESS;
+
+		int[] sites = new int[count];
+		for (int addr = 0; addr < ct; addr++) {
+			int op0 = ops[addr], op1 = ops[addr + 1], op2 = ops[addr + 2], op3 = ops[addr + 3];
+			int fused, kind = 0, n = 0;
+			if (op0 == LOAD_LB && op1 == LOADL && isArith(op2) && op3 == STORE_LB) {
+				fused = F_LB_LIT_ARITH_STORE;
+				kind = op2;
+			} else if (op0 == LOAD_LB && (op1 == LOADL || op1 == LOAD_LB)
+					&& isCompare(op2) && op3 == JUMPIF) {
+				fused = op1 == LOADL ? F_LB_LIT_CMP_JUMPIF : F_LB_LB_CMP_JUMPIF;
+				kind = op2;
+				n = (packed[2 * (addr + 3)] >>> 8) & 0xFF;
+			} else if (op0 == LOAD_LB && op1 == LOADL && op2 == P_FIELDREF) {
+				fused = F_LB_LIT_FIELDREF;
+			} else if (op0 == LOADL && isCompare(op1) && op2 == JUMPIF) {
+				fused = F_LIT_CMP_JUMPIF;
+				kind = op1;
+				n = (packed[2 * (addr + 2)] >>> 8) & 0xFF;
+			} else if (op0 == LOADL && isArith(op1)) {
+				fused = F_LIT_ARITH;
+				kind = op1;
+			} else if (op0 == LOADL && op1 == P_FIELDREF) {
+				fused = F_LIT_FIELDREF;
+			} else if (op0 == LOAD_LB && op1 == LOAD_LB) {
+				fused = F_LOAD_LB2;
+			} else
+				continue;
+			packed[2 * addr] = fused | (kind << 8) | (n << 16);
+			sites[fused - FIRST]++;
+		}
+		return sites;
+	}
+
+	/**
+	 * Write a report of the fused instructions in a program and the
+	 * dispatches they saved during a run
+	 * @param sites         number of sites fused, by kind
+	 * @param executions    number of times each kind was executed
+	 * @param instructions  number of mJAM instructions executed by the run
+	 */
+	public static void printReport(PrintStream out, int[] sites, long[] executions,
+			long instructions) {
+		out.println(String.format("*** Fusion: %-40s %6s %12s %12s", "superinstruction",
+				"sites", "executions", "saved"));
+		long saved = 0;
+		for (int k = 0; k < count; k++) {
+			long kindSaved = executions[k] * (lengths[k] - 1);
+			saved += kindSaved;
+			out.println(String.format("*** Fusion: %-40s %6d %12d %12d", names[k], sites[k],
+					executions[k], kindSaved));
+		}
+		out.println("*** Fusion: " + saved + " of " + instructions + " dispatches saved ("
+				+ String.format("%.1f", instructions == 0 ? 0.0 : 100.0 * saved / instructions)
+				+ "%)");
+	}
+}
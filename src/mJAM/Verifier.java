@@ -0,0 +1,283 @@
+/**
+ * Load-time checks of mJAM object code
+ */
+package mJAM;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks each instruction of a code store once, before it is run: the
+ * operation, the registers and n and d fields it uses, that LOAD and STORE
+ * stay within the data store and do not reach below the arguments of the
+ * method or into its link data, that every JUMP,
+ * JUMPIF, CALL and CALLI goes to an instruction or primitive, that no
+ * instruction falls through the code top, and that the RETURNs of a method
+ * agree on the size of its result and the number of its arguments.
+ *
+ * Code that passes can be run without the checks these make unnecessary
+ * (see MjamVM.verify): only JUMPI, RETURN and CALLD take the code pointer
+ * from the data store, and only there can it leave the code store.
+ */
+public class Verifier {
+
+	private final Instruction[] code;
+	private final int ct;
+	private final int dataStoreSize;
+	private final List<String> diagnostics = new ArrayList<String>();
+
+	private Verifier(Instruction[] code, int ct, int dataStoreSize) {
+		this.code = code;
+		this.ct = ct;
+		this.dataStoreSize = dataStoreSize;
+	}
+
+	/**
+	 * Verify code[CB..ct-1], before the size of the data store is known
+	 * @return a description of each fault found, empty if there are none
+	 */
+	public static List<String> verify(Instruction[] code, int ct) {
+		return verify(code, ct, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Verify code[CB..ct-1] for a data store of at most dataStoreSize words
+	 * @return a description of each fault found, empty if there are none
+	 */
+	public static List<String> verify(Instruction[] code, int ct, int dataStoreSize) {
+		Verifier v = new Verifier(code, ct, dataStoreSize);
+		if (ct <= Machine.CB)
+			v.diagnostics.add("no instructions in code store");
+		else {
+			for (int addr = Machine.CB; addr < ct; addr++)
+				v.checkInstruction(addr);
+			if (v.diagnostics.isEmpty()) {
+				if (fallsThrough(code[ct - 1]))
+					v.fault(ct - 1, "execution continues past the last instruction");
+				v.checkReturns();
+			}
+		}
+		return v.diagnostics;
+	}
+
+	private void checkInstruction(int addr) {
+		Instruction inst = code[addr];
+		if (inst == null) {
+			diagnostics.add("instruction " + addr + ": missing");
+			return;
+		}
+		if (inst.op < 0 || inst.op >= Machine.intToOp.length) {
+			fault(addr, "invalid operation " + inst.op);
+			return;
+		}
+		switch (Machine.intToOp[inst.op]) {
+		case LOAD:
+		case STORE:
+			if (!validRegister(inst.r))
+				fault(addr, "invalid register " + inst.r);
+			else if (checkWords(addr, inst))
+				checkDisplacement(addr, inst);
+			break;
+		case LOADA:
+			if (!validRegister(inst.r))
+				fault(addr, "invalid register " + inst.r);
+			break;
+		case LOADI:
+		case STOREI:
+			checkWords(addr, inst);
+			break;
+		case JUMP:
+		case JUMPIF: {
+			Integer target = target(addr, inst);
+			if (target != null && (target < Machine.CB || target >= ct))
+				fault(addr, "jump to " + target + ", outside the code store " + Machine.CB
+						+ ".." + (ct - 1));
+			break;
+		}
+		case CALL: {
+			Integer target = target(addr, inst);
+			if (target != null && (target < Machine.CB || target >= ct)
+					&& (target < Machine.PB || target >= Machine.PT))
+				fault(addr, "call of " + target + ", neither an instruction (" + Machine.CB
+						+ ".." + (ct - 1) + ") nor a primitive (" + Machine.PB + ".."
+						+ (Machine.PT - 1) + ")");
+			break;
+		}
+		case CALLI: {
+			Integer target = target(addr, inst);
+			if (target != null && (target < Machine.CB || target >= ct))
+				fault(addr, "instance method call of " + target + ", outside the code store "
+						+ Machine.CB + ".." + (ct - 1));
+			break;
+		}
+		case CALLD:
+			if (inst.n < 0 || inst.d < 0)
+				fault(addr, "negative method index");
+			break;
+		case RETURN:
+			if (inst.n < 0 || inst.n > 1)
+				fault(addr, "result size " + inst.n + " is not 0 or 1");
+			if (inst.d < 0)
+				fault(addr, "negative number of arguments " + inst.d);
+			break;
+		case PUSH:
+		case POP:
+			if (inst.d < 0)
+				fault(addr, "negative number of words " + inst.d);
+			break;
+		default:
+			// LOADL, JUMPI and HALT have no fields to check
+			break;
+		}
+	}
+
+	/**
+	 * Check the n field of LOAD, STORE, LOADI or STOREI, the number of
+	 * words moved
+	 * @return true if it is accepted
+	 */
+	private boolean checkWords(int addr, Instruction inst) {
+		if (inst.n < 0)
+			fault(addr, "negative number of words " + inst.n);
+		else if (inst.n > dataStoreSize)
+			fault(addr, inst.n + " words do not fit in a data store of " + dataStoreSize + " words");
+		else
+			return true;
+		return false;
+	}
+
+	/**
+	 * Check that the words a LOAD or STORE moves (one, whatever its n) lie
+	 * within the data store, at or above SB for a static address, and
+	 * within the arguments for a negative displacement from LB
+	 */
+	private void checkDisplacement(int addr, Instruction inst) {
+		long last = (long) inst.d + words(inst) - 1;
+		Machine.Reg r = Machine.intToReg[inst.r];
+		if (Math.abs((long) inst.d) >= dataStoreSize || last >= dataStoreSize)
+			fault(addr, "words " + inst.d + ".." + last + " from " + r
+					+ " lie outside a data store of " + dataStoreSize + " words");
+		else if ((r == Machine.Reg.SB || r == Machine.Reg.ZR) && inst.d < 0)
+			fault(addr, "static address " + inst.d + " is below SB");
+		else if (r == Machine.Reg.LB && inst.d < 0 && last >= 0)
+			fault(addr, "words " + inst.d + ".." + last
+					+ " from LB reach from the arguments into the link data");
+	}
+
+	// words moved by a LOAD or STORE
+	private static int words(Instruction inst) {
+		return Math.max(inst.n, 1);
+	}
+
+	/**
+	 * @return effective address of a control transfer, or null (after
+	 *         reporting it) if it is not known before the program runs
+	 */
+	private Integer target(int addr, Instruction inst) {
+		if (!validRegister(inst.r)) {
+			fault(addr, "invalid register " + inst.r);
+			return null;
+		}
+		switch (Machine.intToReg[inst.r]) {
+		case ZR:
+		case CB:
+		case SB:
+			return inst.d;
+		case CT:
+			return inst.d + ct;
+		case CP:
+			return inst.d + addr;
+		case PB:
+			return inst.d + Machine.PB;
+		case PT:
+			return inst.d + Machine.PT;
+		default:
+			fault(addr, "target relative to " + Machine.intToReg[inst.r]
+					+ " is not known until run time");
+			return null;
+		}
+	}
+
+	private static boolean validRegister(int r) {
+		return r >= 0 && r < Machine.intToReg.length;
+	}
+
+	// whether execution can go on to the following instruction
+	private static boolean fallsThrough(Instruction inst) {
+		switch (Machine.intToOp[inst.op]) {
+		case JUMP:
+		case JUMPI:
+		case RETURN:
+			return false;
+		case HALT:
+			return inst.n > 0;
+		default:
+			return true;
+		}
+	}
+
+	// The RETURNs reachable from the start of each method, without entering
+	// the methods it calls, must have the same n and d
+	private void checkReturns() {
+		boolean[] entry = new boolean[ct];
+		for (int addr = Machine.CB; addr < ct; addr++) {
+			Machine.Op op = Machine.intToOp[code[addr].op];
+			if (op == Machine.Op.CALL || op == Machine.Op.CALLI) {
+				int target = target(addr, code[addr]);
+				if (target < ct)
+					entry[target] = true;
+			}
+		}
+
+		int[] visited = new int[ct];
+		int[] worklist = new int[ct];
+		for (int method = Machine.CB; method < ct; method++) {
+			if (!entry[method])
+				continue;
+			int first = -1, count = 0;
+			// the LOAD or STORE reaching furthest below LB
+			int lowest = -1;
+			worklist[count++] = method;
+			visited[method] = method + 1;
+			while (count > 0) {
+				int addr = worklist[--count];
+				Instruction inst = code[addr];
+				Machine.Op op = Machine.intToOp[inst.op];
+				if (op == Machine.Op.RETURN) {
+					if (first < 0)
+						first = addr;
+					else if (inst.n != code[first].n || inst.d != code[first].d) {
+						fault(addr, "returns " + inst.n + " word(s) and pops " + inst.d
+								+ " argument(s), but the RETURN at " + first + " in the method at "
+								+ method + " returns " + code[first].n + " and pops " + code[first].d);
+						return;
+					}
+				}
+				if ((op == Machine.Op.LOAD || op == Machine.Op.STORE)
+						&& inst.r == Machine.Reg.LB.ordinal() && inst.d < 0
+						&& (lowest < 0 || inst.d < code[lowest].d))
+					lowest = addr;
+				int next = fallsThrough(inst) ? addr + 1 : -1;
+				int jump = op == Machine.Op.JUMP || op == Machine.Op.JUMPIF ? target(addr, inst) : -1;
+				for (int successor : new int[] { next, jump })
+					if (successor >= Machine.CB && successor < ct && visited[successor] != method + 1) {
+						visited[successor] = method + 1;
+						worklist[count++] = successor;
+					}
+			}
+			if (first >= 0 && lowest >= 0 && -code[lowest].d > code[first].d) {
+				fault(lowest, "displacement " + code[lowest].d + " from LB is below the "
+						+ code[first].d + " argument(s) of the method at " + method);
+				return;
+			}
+		}
+	}
+
+	private void fault(int addr, String message) {
+		Instruction inst = code[addr];
+		String op = inst.op >= 0 && inst.op < Machine.intToOp.length
+				? Machine.intToOp[inst.op].toString() : "?";
+		diagnostics.add("instruction " + addr + " (" + op + " " + inst.n + " " + inst.r + " "
+				+ inst.d + "): " + message);
+	}
+}
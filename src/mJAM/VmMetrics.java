@@ -0,0 +1,190 @@
+/**
+ * Metrics published by a running mJAM machine
+ */
+package mJAM;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The event counters and registers of one MjamVM, as last published by the
+ * thread running it: every MjamVM.metricsInterval instructions, and when
+ * a run starts or ends.
+ *
+ * The machine counts into plain fields that only its own thread touches;
+ * each publication copies them into a new Snapshot and stores it in a
+ * volatile field, so any thread may read a consistent snapshot at any time
+ * without slowing the machine down.  The metrics may be registered with the
+ * platform MBean server, as mJAM:type=VM,name=name.
+ *
+ * Stack depth is ST - SB and heap used is HB - HT, in words.  The high-water
+ * stack depth is taken at calls and at publications.  Primitive calls made
+ * by code compiled by the JIT, and primitives run by the register engine,
+ * are not counted.
+ */
+public class VmMetrics implements VmMetricsMXBean {
+
+	private final static String[] statusNames = { "running", "halted", "data store full",
+			"invalid code address", "invalid instruction", "overflow", "zero divide",
+			"IO error", "array index", "null reference", "heap reference", "field index",
+			"method index", "instruction quota", "time quota", "heap quota", "stack quota",
+			"suspended" };
+
+	/**
+	 * Counters and registers of the machine at one publication
+	 */
+	public static final class Snapshot {
+		public final long instructions, calls, allocations, allocatedWords;
+		public final int stackDepth, maxStackDepth, heapUsed, status;
+		private final long[] primitiveCalls;
+
+		private Snapshot(MjamVM vm, long instructions) {
+			this.instructions = instructions;
+			calls = vm.calls;
+			allocations = vm.allocations;
+			allocatedWords = vm.allocatedWords;
+			stackDepth = vm.ST - MjamVM.SB;
+			maxStackDepth = vm.maxST - MjamVM.SB;
+			heapUsed = vm.HB - vm.HT;
+			status = vm.status;
+			primitiveCalls = vm.primitiveCalls.clone();
+		}
+
+		public long primitiveCalls(Machine.Prim prim) {
+			return primitiveCalls[prim.ordinal()];
+		}
+
+		/**
+		 * @return calls of each primitive called at least once, by name
+		 */
+		public Map<String, Long> primitiveCalls() {
+			Map<String, Long> calls = new LinkedHashMap<String, Long>();
+			for (Machine.Prim prim : Machine.intToPrim)
+				if (primitiveCalls[prim.ordinal()] > 0)
+					calls.put(prim.toString(), primitiveCalls[prim.ordinal()]);
+			return calls;
+		}
+	}
+
+	private volatile Snapshot last;
+	private ObjectName registeredName;
+
+	VmMetrics(MjamVM vm) {
+		publish(vm, 0);
+	}
+
+	/**
+	 * Called by the thread running vm
+	 */
+	void publish(MjamVM vm, long instructions) {
+		last = new Snapshot(vm, instructions);
+	}
+
+	/**
+	 * @return the last publication
+	 */
+	public Snapshot snapshot() {
+		return last;
+	}
+
+	public long getInstructions() {
+		return last.instructions;
+	}
+
+	public long getCalls() {
+		return last.calls;
+	}
+
+	public int getStackDepth() {
+		return last.stackDepth;
+	}
+
+	public int getMaxStackDepth() {
+		return last.maxStackDepth;
+	}
+
+	public int getHeapUsed() {
+		return last.heapUsed;
+	}
+
+	public long getAllocations() {
+		return last.allocations;
+	}
+
+	public long getAllocatedWords() {
+		return last.allocatedWords;
+	}
+
+	public long getAllocatedBytes() {
+		return 4 * last.allocatedWords;
+	}
+
+	public Map<String, Long> getPrimitiveCalls() {
+		return last.primitiveCalls();
+	}
+
+	public int getStatus() {
+		return last.status;
+	}
+
+	public String getStatusName() {
+		return statusName(last.status);
+	}
+
+	public boolean isRunning() {
+		return last.status == MjamVM.running;
+	}
+
+	public static String statusName(int status) {
+		return status >= 0 && status < statusNames.length ? statusNames[status] : "status " + status;
+	}
+
+	/**
+	 * Register these metrics with the platform MBean server as
+	 * mJAM:type=VM,name=name, replacing any registered under that name
+	 */
+	public void register(String name) throws JMException {
+		unregister();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("mJAM:type=VM,name=" + ObjectName.quote(name));
+		if (server.isRegistered(objectName))
+			server.unregisterMBean(objectName);
+		server.registerMBean(this, objectName);
+		registeredName = objectName;
+	}
+
+	/**
+	 * Remove these metrics from the platform MBean server, if registered
+	 */
+	public void unregister() throws JMException {
+		if (registeredName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			registeredName = null;
+		}
+	}
+
+	/**
+	 * Write the last publication
+	 */
+	public void print(PrintStream out) {
+		Snapshot s = last;
+		out.println("*** Metrics: " + s.instructions + " instructions, " + s.calls + " calls, status "
+				+ statusName(s.status));
+		out.println("*** Metrics: stack depth " + s.stackDepth + " words (high-water " + s.maxStackDepth
+				+ "), heap used " + s.heapUsed + " words");
+		out.println("*** Metrics: " + s.allocations + " allocations, " + 4 * s.allocatedWords + " bytes");
+		Map<String, Long> primitives = s.primitiveCalls();
+		if (!primitives.isEmpty()) {
+			StringBuilder line = new StringBuilder("*** Metrics: primitive calls");
+			for (Map.Entry<String, Long> prim : primitives.entrySet())
+				line.append(' ').append(prim.getKey()).append('=').append(prim.getValue());
+			out.println(line);
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * Management interface of the metrics of one mJAM machine
+ */
+package mJAM;
+
+import java.util.Map;
+
+/**
+ * Attributes of VmMetrics as seen by JMX clients.  All values are those of
+ * the last publication by the machine's thread.
+ */
+public interface VmMetricsMXBean {
+
+	long getInstructions();
+
+	long getCalls();
+
+	int getStackDepth();
+
+	int getMaxStackDepth();
+
+	int getHeapUsed();
+
+	long getAllocations();
+
+	long getAllocatedWords();
+
+	long getAllocatedBytes();
+
+	Map<String, Long> getPrimitiveCalls();
+
+	int getStatus();
+
+	String getStatusName();
+
+	boolean isRunning();
+}
@@ -0,0 +1,262 @@
+/**
+ * Time-sliced scheduling of many mJAM machines on a few threads
+ */
+package mJAM;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs any number of MjamVMs, each submitted as a Session, on a small pool
+ * of worker threads.  A session runs for a slice of at most quantum
+ * instructions at a time (see MjamVM.setSlice) and is then queued again
+ * behind the other sessions of its worker, so that a long run does not hold
+ * a thread while others wait.
+ *
+ * Each session reads a queued InputChannel, fed by Session.offer from any
+ * thread.  When the machine reaches an input primitive whose input has not
+ * arrived (see MjamVM.whenInputBlocks) it is parked, holding no thread, and
+ * queued again by the next offer or closeInput.  A parked machine has
+ * flushed its output, so a prompt written before the input primitive is
+ * seen before the reply is awaited.
+ *
+ * The workers form a ForkJoinPool in FIFO mode: a slice that ends queues
+ * the session on its own worker, and a worker with no sessions takes them
+ * from the others, so machines spread over the workers as they park and
+ * wake.  A session runs on one worker at a time, and its machine must not
+ * be used elsewhere until the session is done.  Quotas set on a machine
+ * apply to the whole session: each slice is given the instructions and
+ * running time (not counting time parked) its predecessors left.
+ */
+public class VmScheduler {
+
+	public final static long defaultQuantum = 1 << 16;
+
+	// engines for the slices of a session
+	public final static int reference = 0, fast = 1, registers = 2;
+
+	// states of a session
+	private final static int queued = 0, running = 1, parked = 2, done = 3;
+
+	private final ForkJoinPool pool;
+	private final long quantum;
+	// sessions submitted and not done
+	private final AtomicInteger live = new AtomicInteger();
+
+	/**
+	 * @param workers  threads running the machines
+	 * @param quantum  instructions in each slice
+	 */
+	public VmScheduler(int workers, long quantum) {
+		if (workers <= 0 || quantum <= 0)
+			throw new IllegalArgumentException("workers and quantum must be positive");
+		this.pool = new ForkJoinPool(workers, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		this.quantum = quantum;
+	}
+
+	/**
+	 * A machine run by the scheduler, with the queue of its input
+	 */
+	public final class Session {
+		private final MjamVM vm;
+		private final InputChannel input = InputChannel.queued();
+		private final int engine;
+		private final AtomicInteger state = new AtomicInteger(queued);
+		private final CountDownLatch finished = new CountDownLatch(1);
+		// written by the worker running the session, read once it is done
+		private long instructions, nanos;
+		private int slices, parks;
+		// the machine's instruction and time quotas for the whole session
+		private final long instructionQuota, timeQuota;
+		private RuntimeException error;
+
+		private Session(MjamVM vm, int engine) {
+			this.vm = vm;
+			this.engine = engine;
+			vm.setInputChannel(input);
+			vm.suspendAt(MjamVM.whenInputBlocks);
+			vm.setSlice(quantum);
+			instructionQuota = vm.instructionQuota;
+			timeQuota = vm.timeQuota;
+		}
+
+		/**
+		 * Add bytes to the input of the machine, waking it if it is parked
+		 */
+		public void offer(byte[] bytes) {
+			input.offer(bytes);
+			wake();
+		}
+
+		/**
+		 * Add the characters of s, encoded with the default charset, to the
+		 * input of the machine, waking it if it is parked
+		 */
+		public void offer(String s) {
+			input.offer(s);
+			wake();
+		}
+
+		/**
+		 * End the input of the machine after the bytes already offered, so
+		 * that its input primitives read end of file
+		 */
+		public void closeInput() {
+			input.close();
+			wake();
+		}
+
+		private void wake() {
+			if (state.compareAndSet(parked, queued))
+				schedule();
+		}
+
+		private void schedule() {
+			ForkJoinTask<?> slice = ForkJoinTask.adapt(this::runSlice);
+			if (ForkJoinTask.getPool() == pool)
+				slice.fork(); // on this worker's queue, from which idle workers steal
+			else
+				pool.execute(slice);
+		}
+
+		private void runSlice() {
+			state.set(running);
+			if (instructionQuota > 0)
+				vm.instructionQuota = instructionQuota - instructions;
+			if (timeQuota > 0)
+				vm.timeQuota = Math.max(1, timeQuota - nanos / 1000000);
+			long start = System.nanoTime();
+			try {
+				if (engine == registers)
+					vm.resumeRegisters();
+				else if (engine == fast)
+					vm.resumeFast();
+				else
+					vm.resume();
+			} catch (RuntimeException e) {
+				error = e;
+			}
+			nanos += System.nanoTime() - start;
+			instructions += vm.getInstructionCount();
+			slices++;
+
+			if (error != null || vm.getStatus() != MjamVM.suspended) {
+				// the status report names the quotas of the session
+				vm.instructionQuota = instructionQuota;
+				vm.timeQuota = timeQuota;
+				state.set(done);
+				live.decrementAndGet();
+				finished.countDown();
+			} else if (vm.isWaitingForInput()) {
+				parks++;
+				state.set(parked);
+				// an offer made while the slice ran found it running
+				if (input.hasOffers())
+					wake();
+			} else {
+				state.set(queued);
+				schedule();
+			}
+		}
+
+		/**
+		 * @return the machine, which must not be used until the session is done
+		 */
+		public MjamVM getVM() {
+			return vm;
+		}
+
+		/**
+		 * @return true once the machine has halted or failed
+		 */
+		public boolean isDone() {
+			return state.get() == done;
+		}
+
+		/**
+		 * @return true while the machine waits for input
+		 */
+		public boolean isParked() {
+			return state.get() == parked;
+		}
+
+		/**
+		 * Wait until the machine has halted or failed
+		 * @return final machine status
+		 */
+		public int await() throws InterruptedException {
+			finished.await();
+			if (error != null)
+				throw error;
+			return vm.getStatus();
+		}
+
+		/**
+		 * @return instructions executed over all slices, once done
+		 */
+		public long getInstructions() {
+			return instructions;
+		}
+
+		/**
+		 * @return slices run, once done
+		 */
+		public int getSlices() {
+			return slices;
+		}
+
+		/**
+		 * @return times the machine was parked waiting for input, once done
+		 */
+		public int getParks() {
+			return parks;
+		}
+	}
+
+	/**
+	 * Run a machine from its current state (from the start for a new
+	 * machine, or on from where a fork or a suspended run left off) with
+	 * the given engine; compiled code runs under fast once the machine has
+	 * enabled the JIT.  The machine's input channel is replaced by the
+	 * session's queue.
+	 * @return the session running the machine
+	 */
+	public Session submit(MjamVM vm, int engine) {
+		if (engine != reference && engine != fast && engine != registers)
+			throw new IllegalArgumentException("unknown engine " + engine);
+		Session session = new Session(vm, engine);
+		live.incrementAndGet();
+		session.schedule();
+		return session;
+	}
+
+	/**
+	 * @return sessions submitted that are not done, including parked ones
+	 */
+	public int getLiveSessions() {
+		return live.get();
+	}
+
+	/**
+	 * @return worker threads
+	 */
+	public int getWorkers() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * @return slices that idle workers have taken from others
+	 */
+	public long getSteals() {
+		return pool.getStealCount();
+	}
+
+	/**
+	 * Stop the workers; sessions not done are abandoned where they stand
+	 */
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+}
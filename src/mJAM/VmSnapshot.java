@@ -0,0 +1,228 @@
+/**
+ * Saved state of an mJAM machine
+ */
+package mJAM;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The code store, data store and registers of one MjamVM, taken when it is
+ * not running (typically suspended by MjamVM.suspendAt), from which any
+ * number of machines can be forked to carry on with the run, each with its
+ * own input and output.
+ *
+ * Only the stack (SB..ST-1) and the heap (HT..HB-1) of the data store are
+ * kept, and a fork copies them into a data store of the size the machine had.
+ * Forks share the code store, which machines never change.  The positions
+ * of the input and output channels are recorded for reference; output
+ * written before the snapshot is not repeated by a fork.  Free blocks held
+ * by a collector or free lists are not kept, so they are only found again by
+ * a collection.
+ *
+ * A snapshot is written to a binary file as ints: a magic number and format
+ * version, the code store (code top, then op, n, r, d of each instruction),
+ * HB, the data store size, CP, ST, HT, LB, OB and the last character read,
+ * then whether the heap holds raw blocks and whether the machine stopped
+ * before an input primitive (booleans), the input and output
+ * positions (longs), and finally the stack and heap words.
+ */
+public class VmSnapshot {
+
+	private final static int magic = 0x6D4A534E, version = 1;
+
+	private final Instruction[] code;
+	private final int HB, dataSize;
+	private final int CP, ST, HT, LB, OB, currentChar;
+	private final boolean rawHeap, atInputPrimitive;
+	private final long inputPosition, outputPosition;
+	// data store words SB..ST-1 and the heap words HT..HB-1
+	private final int[] stack, heap;
+
+	VmSnapshot(MjamVM vm) {
+		code = vm.code;
+		HB = vm.HB;
+		dataSize = vm.data.size();
+		CP = vm.CP;
+		ST = vm.ST;
+		HT = vm.HT;
+		LB = vm.LB;
+		OB = vm.OB;
+		currentChar = vm.currentChar;
+		rawHeap = vm.rawHeap;
+		atInputPrimitive = vm.atInputPrimitive;
+		inputPosition = vm.input.position();
+		outputPosition = vm.output.position();
+		stack = copy(vm.data, MjamVM.SB, ST);
+		heap = copy(vm.data, HT - vm.heapOffset, dataSize);
+	}
+
+	private static int[] copy(DataStore data, int from, int to) {
+		int[] words = new int[to - from];
+		for (int i = 0; i < words.length; i++)
+			words[i] = data.get(from + i);
+		return words;
+	}
+
+	private VmSnapshot(Instruction[] code, int[] registers, boolean rawHeap, boolean atInputPrimitive,
+			long inputPosition, long outputPosition, int[] stack, int[] heap) {
+		this.code = code;
+		HB = registers[0];
+		dataSize = registers[1];
+		CP = registers[2];
+		ST = registers[3];
+		HT = registers[4];
+		LB = registers[5];
+		OB = registers[6];
+		currentChar = registers[7];
+		this.rawHeap = rawHeap;
+		this.atInputPrimitive = atInputPrimitive;
+		this.inputPosition = inputPosition;
+		this.outputPosition = outputPosition;
+		this.stack = stack;
+		this.heap = heap;
+	}
+
+	/**
+	 * @return a new machine in the state of the snapshot, ready to carry on
+	 *         with MjamVM.resume or resumeFast, reading System.in and writing
+	 *         System.out until given other channels
+	 */
+	public MjamVM fork() {
+		return fork(DataStore.onHeap(dataSize));
+	}
+
+	/**
+	 * @param store  data store for the new machine, of getDataStoreSize()
+	 *               words, all zero
+	 * @return a new machine as fork(), holding its data store in store
+	 */
+	public MjamVM fork(DataStore store) {
+		if (store.size() != dataSize)
+			throw new IllegalArgumentException("data store of " + store.size() + " words for a snapshot of "
+					+ dataSize);
+		MjamVM vm = new MjamVM(code);
+		vm.setDataStore(store, HB);
+		for (int i = 0; i < stack.length; i++)
+			store.set(MjamVM.SB + i, stack[i]);
+		for (int i = 0; i < heap.length; i++)
+			store.set(dataSize - heap.length + i, heap[i]);
+		vm.CP = CP;
+		vm.ST = ST;
+		vm.HT = HT;
+		vm.LB = LB;
+		vm.OB = OB;
+		vm.currentChar = currentChar;
+		vm.rawHeap = rawHeap;
+		vm.atInputPrimitive = atInputPrimitive;
+		return vm;
+	}
+
+	/**
+	 * @return size in words of the data store of the machine
+	 */
+	public int getDataStoreSize() {
+		return dataSize;
+	}
+
+	/**
+	 * @return code address at which a fork carries on
+	 */
+	public int getCP() {
+		return CP;
+	}
+
+	/**
+	 * @return bytes the machine had read from its input channel
+	 */
+	public long getInputPosition() {
+		return inputPosition;
+	}
+
+	/**
+	 * @return bytes the machine had written to its output channel
+	 */
+	public long getOutputPosition() {
+		return outputPosition;
+	}
+
+	/**
+	 * Write the snapshot to a binary file
+	 * @return true if write fails
+	 */
+	public boolean write(String fileName) {
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(fileName)))) {
+			out.writeInt(magic);
+			out.writeInt(version);
+			out.writeInt(code.length);
+			for (Instruction inst : code) {
+				out.writeInt(inst.op);
+				out.writeInt(inst.n);
+				out.writeInt(inst.r);
+				out.writeInt(inst.d);
+			}
+			for (int register : new int[] { HB, dataSize, CP, ST, HT, LB, OB, currentChar })
+				out.writeInt(register);
+			out.writeBoolean(rawHeap);
+			out.writeBoolean(atInputPrimitive);
+			out.writeLong(inputPosition);
+			out.writeLong(outputPosition);
+			for (int word : stack)
+				out.writeInt(word);
+			for (int word : heap)
+				out.writeInt(word);
+		} catch (IOException e) {
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the snapshot in a file written by write, or null if it can not
+	 *         be read
+	 */
+	public static VmSnapshot read(String fileName) {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(fileName)))) {
+			if (in.readInt() != magic || in.readInt() != version)
+				return null;
+			int ct = in.readInt();
+			if (ct < 0 || ct > Machine.PB)
+				return null;
+			Instruction[] code = new Instruction[ct];
+			for (int addr = 0; addr < ct; addr++)
+				code[addr] = new Instruction(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+			if (!Verifier.verify(code, ct).isEmpty())
+				return null;
+			int[] registers = new int[8];
+			for (int i = 0; i < registers.length; i++)
+				registers[i] = in.readInt();
+			int hb = registers[0], dataSize = registers[1], cp = registers[2], st = registers[3],
+					ht = registers[4];
+			if (cp < Machine.CB || cp >= ct)
+				return null;
+			// the stack and heap must fit the data store without overlapping
+			if (dataSize <= 0 || dataSize > hb || st < MjamVM.SB || ht > hb || st > ht
+					|| st > dataSize || hb - ht > dataSize - st)
+				return null;
+			boolean rawHeap = in.readBoolean(), atInputPrimitive = in.readBoolean();
+			long inputPosition = in.readLong(), outputPosition = in.readLong();
+			int[] stack = new int[st - MjamVM.SB];
+			for (int i = 0; i < stack.length; i++)
+				stack[i] = in.readInt();
+			int[] heap = new int[hb - ht];
+			for (int i = 0; i < heap.length; i++)
+				heap[i] = in.readInt();
+			return new VmSnapshot(code, registers, rawHeap, atInputPrimitive, inputPosition, outputPosition,
+					stack, heap);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
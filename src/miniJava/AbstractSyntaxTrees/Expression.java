@@ -9,6 +9,7 @@ import miniJava.SyntacticAnalyzer.SourcePosition;
 
 public abstract class Expression extends AST implements Typed {
     private TypeDenoter type = null;
+    private Integer constantValue = null;
 
     public Expression(SourcePosition posn) {
         super(posn);
@@ -23,4 +24,19 @@ public abstract class Expression extends AST implements Typed {
     public void setType(TypeDenoter type) {
         this.type = type;
     }
+
+    public void setConstantValue(Integer value) {
+        this.constantValue = value;
+    }
+
+    /**
+     * Retrieves the value of this expression found by the code generator's constant folding pass.
+     * 
+     * @return null if the value isn't known at compile time (or the expression hasn't been folded
+     *         yet), Integer representation of the value otherwise. Booleans are represented by
+     *         Machine.trueRep and Machine.falseRep.
+     */
+    public Integer getConstantValue() {
+        return constantValue;
+    }
 }
@@ -0,0 +1,125 @@
+package miniJava;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import miniJava.AbstractSyntaxTrees.AST;
+import miniJava.CodeGenerator.CodeGenerator;
+import miniJava.ContextualAnalyzer.ContextualAnalyzer;
+import miniJava.SyntacticAnalyzer.Parser;
+import miniJava.SyntacticAnalyzer.Scanner;
+
+/**
+ * Measures how code generation time grows with expression nesting depth
+ *
+ * For each depth up to the maximum (30 by default), in steps of 5, a program is generated whose
+ * method prints an int expression and tests a boolean expression each nested that deep, mixing
+ * operands known at compile time with unknown ones, binary operators, short-circuiting operators
+ * and ternaries. Each program is parsed and analyzed, then its code is generated several times,
+ * and the mean code generation time is reported with the time per operator, which stays flat as
+ * the depth grows if code generation is linear in the size of the expressions. Nothing is written.
+ *
+ * usage: CodeGenBenchmark [-n runs] [maxDepth]
+ */
+public class CodeGenBenchmark {
+
+    public static void main(String[] args) {
+        int runs = 5;
+        int maxDepth = 30;
+        int argIndex = 0;
+        if (args.length >= 2 && args[0].equals("-n")) {
+            runs = Integer.parseInt(args[1]);
+            argIndex = 2;
+        }
+        if (argIndex < args.length) {
+            maxDepth = Integer.parseInt(args[argIndex++]);
+        }
+        if (argIndex != args.length || runs <= 0 || maxDepth <= 0) {
+            System.out.println("usage: CodeGenBenchmark [-n runs] [maxDepth]");
+            return;
+        }
+
+        PrintStream console = System.out;
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+
+        console.println(String.format("%6s %10s %14s %16s", "depth", "operators", "codegen ms",
+                "ns per operator"));
+        for (int depth = Math.min(5, maxDepth); depth <= maxDepth; depth += 5) {
+            String source = program(depth);
+            ErrorReporter reporter = new ErrorReporter();
+            AST ast = new Parser(new Scanner(new ByteArrayInputStream(source.getBytes()), reporter),
+                    reporter).parse();
+            if (!reporter.hasErrors()) {
+                ContextualAnalyzer.runAnalysis(ast, reporter);
+            }
+            if (reporter.hasErrors()) {
+                console.println("Generated program of depth " + depth + " is invalid");
+                return;
+            }
+
+            // The code generator reports its progress on System.out, and the first run only warms
+            // up the JVM
+            long time = 0;
+            System.setOut(sink);
+            try {
+                for (int run = 0; run <= runs; run++) {
+                    long start = System.nanoTime();
+                    CodeGenerator.generateCode(ast);
+                    long elapsed = System.nanoTime() - start;
+                    if (run > 0) {
+                        time += elapsed;
+                    }
+                }
+            } finally {
+                System.setOut(console);
+            }
+
+            // Each level of each of the two expressions adds two operators
+            int operators = 4 * depth;
+            double mean = (double) time / runs;
+            console.println(String.format("%6d %10d %14.3f %16.1f", depth, operators, mean / 1e6,
+                    mean / operators));
+        }
+    }
+
+    // A program whose method f prints an int expression and tests a boolean expression, each
+    // nested depth deep
+    private static String program(int depth) {
+        StringBuilder intExpr = new StringBuilder("p");
+        StringBuilder boolExpr = new StringBuilder("q");
+        for (int level = 1; level <= depth; level++) {
+            switch (level % 4) {
+                case 0:
+                    intExpr.insert(0, "(").append(" + " + level + ")");
+                    boolExpr.insert(0, "(").append(" && (p < " + level + "))");
+                    break;
+                case 1:
+                    intExpr.insert(0, "(" + level + " * ").append(" - (2 * 3))");
+                    boolExpr.insert(0, "((" + level + " > 2) || ").append(")");
+                    break;
+                case 2:
+                    intExpr.insert(0, "(q ? ").append(" : (" + level + " % 4))");
+                    boolExpr.insert(0, "(!").append(" == (p != 1))");
+                    break;
+                default:
+                    intExpr.insert(0, "((" + level + " - 1) * ").append(" / 2)");
+                    boolExpr.insert(0, "(q ? ").append(" : (" + level + " <= p))");
+                    break;
+            }
+        }
+        return "class Nested {\n"
+                + "    public static void main(String[] args) {\n"
+                + "        f(3, true);\n"
+                + "    }\n"
+                + "\n"
+                + "    static int f(int p, boolean q) {\n"
+                + "        System.out.println(" + intExpr + ");\n"
+                + "        if (" + boolExpr + ") {\n"
+                + "            System.out.println(1);\n"
+                + "        }\n"
+                + "        return p;\n"
+                + "    }\n"
+                + "}\n";
+    }
+}
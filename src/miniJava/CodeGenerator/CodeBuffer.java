@@ -0,0 +1,164 @@
+package miniJava.CodeGenerator;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mJAM.Instruction;
+import mJAM.Machine.Op;
+import mJAM.Machine.Prim;
+import mJAM.Machine.Reg;
+import miniJava.AbstractSyntaxTrees.MethodDecl;
+
+/**
+ * Relocatable code for one method
+ *
+ * The code generator emits each method into its own buffer, with the same emit, nextInstrAddr and
+ * patch operations as Machine, but with addresses counted from the start of the buffer, so methods
+ * can be generated independently before any of their addresses are known. The Linker then lays the
+ * buffers out in the code store and resolves two kinds of relocation:
+ * - a call emitted with emitCall is symbolic: it goes to the address the Linker assigns to its
+ *   MethodDecl
+ * - any other instruction relative to CB is a jump within the buffer, so the buffer's own address
+ *   is added to its displacement
+ *
+ * The method and line marks for the source map are recorded in the order they're made, also with
+ * addresses in the buffer, and the Linker makes them again with their final addresses.
+ */
+class CodeBuffer {
+
+    // The method whose code this is (null for code that isn't a method, like the startup code)
+    final MethodDecl method;
+
+    private final PrintStream log; // Where patch errors are printed
+
+    private Instruction[] code = new Instruction[64];
+    private MethodDecl[] callTargets = new MethodDecl[64]; // Non-null for the calls from emitCall
+    private int CT;
+
+    // Source map marks, in the order they were made
+    private final List<Integer> methodMarkAddrs = new ArrayList<>();
+    private final List<String> methodMarkNames = new ArrayList<>();
+    private final List<Integer> lineMarkAddrs = new ArrayList<>();
+    private final List<Integer> lineMarkLines = new ArrayList<>();
+
+    CodeBuffer(MethodDecl method, PrintStream log) {
+        this.method = method;
+        this.log = log;
+    }
+
+    // The emit operations below match Machine's
+
+    void emit(Op op, int d) {
+        emit(op.ordinal(), 0, 0, d, null);
+    }
+
+    void emit(Prim d) {
+        emit(Op.CALL.ordinal(), 0, Reg.PB.ordinal(), d.ordinal(), null);
+    }
+
+    void emit(Op op, Reg r, int d) {
+        emit(op.ordinal(), 0, r.ordinal(), d, null);
+    }
+
+    void emit(Op op, int n, Reg r, int d) {
+        emit(op.ordinal(), n, r.ordinal(), d, null);
+    }
+
+    /**
+     * Emit a call (op is CALL or CALLI) to target, whose address is filled in by the Linker
+     */
+    void emitCall(Op op, MethodDecl target) {
+        emit(op.ordinal(), 0, Reg.CB.ordinal(), -1, target);
+    }
+
+    private void emit(int op, int n, int r, int d, MethodDecl target) {
+        if (CT == code.length) {
+            code = Arrays.copyOf(code, 2 * CT);
+            callTargets = Arrays.copyOf(callTargets, 2 * CT);
+        }
+        code[CT] = new Instruction(op, n, r, d);
+        callTargets[CT] = target;
+        ++CT;
+    }
+
+    /**
+     * @return address (relative to the start of this buffer) of the next instruction to be
+     *         generated
+     */
+    int nextInstrAddr() {
+        return CT;
+    }
+
+    /**
+     * Take back the code emitted at addr and above
+     */
+    void discardFrom(int addr) {
+        CT = addr;
+    }
+
+    /**
+     * Update the displacement of the jump at addr to go to displacement, both addresses in this
+     * buffer
+     */
+    void patch(int addr, int displacement) {
+        // The same checks (and messages) as Machine.patch
+        if (addr < 0 || addr >= CT) {
+            log.println("patch:  address of instruction to be patched is out of range");
+            return;
+        }
+        if (displacement < 0 || displacement > CT) {
+            log.println("patch:  target address of patch is out of range");
+            return;
+        }
+        code[addr].d = displacement;
+    }
+
+    /**
+     * Record that the method called name starts at the next instruction
+     */
+    void markMethod(String name) {
+        methodMarkAddrs.add(CT);
+        methodMarkNames.add(name);
+    }
+
+    /**
+     * Record that the code for source line starts at the next instruction
+     */
+    void markLine(int line) {
+        lineMarkAddrs.add(CT);
+        lineMarkLines.add(line);
+    }
+
+    // For the Linker
+
+    int size() {
+        return CT;
+    }
+
+    Instruction instructionAt(int addr) {
+        return code[addr];
+    }
+
+    // The method called by the instruction at addr, or null if it isn't a call from emitCall
+    MethodDecl callTargetAt(int addr) {
+        return callTargets[addr];
+    }
+
+    List<Integer> methodMarkAddrs() {
+        return methodMarkAddrs;
+    }
+
+    List<String> methodMarkNames() {
+        return methodMarkNames;
+    }
+
+    List<Integer> lineMarkAddrs() {
+        return lineMarkAddrs;
+    }
+
+    List<Integer> lineMarkLines() {
+        return lineMarkLines;
+    }
+}
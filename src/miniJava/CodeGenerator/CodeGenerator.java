@@ -2,17 +2,21 @@ package miniJava.CodeGenerator;
 
 import static miniJava.SyntacticAnalyzer.Token.Kind.*;
 
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import mJAM.Instruction;
 import mJAM.Machine;
 import mJAM.Machine.Op;
 import mJAM.Machine.Prim;
 import mJAM.Machine.Reg;
+import mJAM.SourceMap;
 import miniJava.AbstractSyntaxTrees.*;
 import miniJava.AbstractSyntaxTrees.Package;
 import miniJava.ContextualAnalyzer.ContextualAnalyzer;
-import miniJava.SyntacticAnalyzer.Token.Kind;
 
 public class CodeGenerator implements Visitor<Object, Object> {
 
@@ -23,7 +27,43 @@ public class CodeGenerator implements Visitor<Object, Object> {
     // ============================================================================
 
     public static void generateCode(AST ast) {
-        new CodeGenerator(ast);
+        generateCode(ast, 1);
+    }
+
+    /**
+     * Generate code with the methods compiled on the given number of threads
+     * 
+     * Each method is compiled into its own CodeBuffer, independently of the others, and the buffers
+     * are then linked into the code store in the order of the methods in the program, so the code
+     * and source map are the same for any number of threads.
+     */
+    public static void generateCode(AST ast, int threads) {
+        Machine.initCodeGen();
+        Instruction[] code = generateCode(ast, threads, Machine.sourceMap, System.out);
+        if (code == null) {
+            throw new IllegalStateException("The program's code doesn't fit in the code store");
+        }
+
+        // Put the code in the code store
+        System.arraycopy(code, 0, Machine.code, Machine.CB, code.length);
+        Machine.CT = Machine.CB + code.length;
+    }
+
+    /**
+     * Generate code without touching Machine's code store or source map, so that any number of
+     * programs can be compiled at the same time (each with its own AST)
+     * 
+     * @param threads   the number of threads to compile methods on
+     * @param sourceMap where the method and source line addresses are marked
+     * @param log       where the code generator's messages are printed
+     * @return the code, starting at Machine.CB, or null if it doesn't fit in the code store
+     */
+    public static Instruction[] generateCode(AST ast, int threads, SourceMap sourceMap,
+            PrintStream log) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        return new CodeGenerator(ast, threads, sourceMap, log).linkedCode;
     }
 
     // ============================================================================
@@ -35,22 +75,59 @@ public class CodeGenerator implements Visitor<Object, Object> {
     /**
      * Private constructor
      * 
-     * @param ast AST root node (must be a Package!)
+     * @param ast       AST root node (must be a Package!)
+     * @param threads   the number of threads to compile methods on
+     * @param sourceMap where the method and source line addresses are marked
+     * @param log       where the code generator's messages are printed
      */
-    private CodeGenerator(AST ast) {
+    private CodeGenerator(AST ast, int threads, SourceMap sourceMap, PrintStream log) {
         if (!(ast instanceof Package)) {
             throw new IllegalArgumentException("ast must have a Package as its root");
         }
 
-        patchesToDo = new ArrayDeque<>();
+        this.threads = threads;
+        this.sourceMap = sourceMap;
+        this.log = log;
+        methodGenerators = new ArrayList<>();
         curStaticCount = 0;
         ifLayerCount = 0;
         loopLayerCount = 0;
         hasCalledPrintln = false;
+        boundsFacts = new ArrayList<>();
+        arrayAccessCount = 0;
+        uncheckedAccessCount = 0;
 
         ast.visit(this, null);
     }
 
+    /**
+     * Private constructor for the generator of a single method, which is run by generateMethod()
+     * 
+     * @param printlnMethod the program's dummy println method
+     * @param className     the name of the class the method is in
+     * @param method        the method to generate
+     * @param log           where the code generator's messages are printed
+     */
+    private CodeGenerator(MethodDecl printlnMethod, String className, MethodDecl method,
+            PrintStream log) {
+        this.printlnMethod = printlnMethod;
+        curClassName = className;
+        this.method = method;
+        this.log = log;
+        code = new CodeBuffer(method, log);
+        ifLayerCount = 0;
+        loopLayerCount = 0;
+        hasCalledPrintln = false;
+        boundsFacts = new ArrayList<>();
+        arrayAccessCount = 0;
+        uncheckedAccessCount = 0;
+    }
+
+    // Generate the code for this generator's method into its buffer
+    private void generateMethod() {
+        method.visit(this, null);
+    }
+
     // Function that handles generating method calls for both CallStmt and CallExpr
     private void emitCall(MethodCaller caller) {
         // Get the method's declaration
@@ -60,30 +137,23 @@ public class CodeGenerator implements Visitor<Object, Object> {
             hasCalledPrintln = true;
         }
 
-        // Put parameter values on the stack
+        // Put parameter values on the stack (they've been folded with the enclosing expression, or
+        // by visitCallStmt)
         for (Expression argExpr : caller.getArgList()) {
-            forcePushResult((Integer) argExpr.visit(this, true), true);
+            forcePushResult((Integer) argExpr.visit(this, null));
         }
 
         // Visit the reference- if this method isn't static, the instance address will go on stack
         caller.getMethodRef().visit(this, null);
 
-        // If the method's addr isn't yet determined, record a PatchNote
-        if (method.data == Integer.MIN_VALUE) {
-            patchesToDo.add(new PatchNote(Machine.nextInstrAddr(), method));
-        }
-
-        // Call the method
-        Machine.emit(method.isStatic ? Op.CALL : Op.CALLI, Reg.CB, method.data);
+        // Call the method (its address is filled in when the code is linked)
+        code.emitCall(method.isStatic ? Op.CALL : Op.CALLI, method);
     }
 
-    private class PatchNote {
-        int addr; // The address of the instruction that needs to be patched
-        MethodDecl decl; // The Declaration that's being accessed
-
-        PatchNote(int addr, MethodDecl decl) {
-            this.addr = addr;
-            this.decl = decl;
+    // Record the address of the code emitted next for node's source line
+    private void markLine(AST node) {
+        if (node.posn != null) {
+            code.markLine((int) node.posn.line);
         }
     }
 
@@ -119,27 +189,46 @@ public class CodeGenerator implements Visitor<Object, Object> {
         return loopLayerCount > 0;
     }
 
+    // Count an array access, and check whether the facts of the enclosing loops prove it's in bounds
+    private boolean inBounds(Reference arrayRef, Expression ixExpr) {
+        ++arrayAccessCount;
+        if (arrayRef instanceof IdRef && arrayRef.getId().getDecl() instanceof LocalDecl) {
+            LocalDecl array = (LocalDecl) arrayRef.getId().getDecl();
+            for (RangeAnalysis.Fact fact : boundsFacts) {
+                if (fact.covers(array, ixExpr)) {
+                    ++uncheckedAccessCount;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     // ============================================================================
     // 
     // Private member variables (Let's be smart and do it this way this time...)
     // 
     // ============================================================================
 
-    private Queue<PatchNote> patchesToDo;
+    private int threads;
+    private SourceMap sourceMap;
+    private PrintStream log;
+    private Instruction[] linkedCode; // The result, once the whole program is generated
+    private List<CodeGenerator> methodGenerators; // One for each method, in program order
+    private MethodDecl method; // The method being generated, for a method's generator
+    private CodeBuffer code; // Where code is being emitted
     private int curStaticCount;
     private int ifLayerCount; // Don't read directly, use inIf()
     private int loopLayerCount; // Don't read directly, use inLoop()
     private int curMethodArgCount;
     private boolean hasCalledPrintln;
     private MethodDecl printlnMethod;
+    private String curClassName;
 
-    // Used in the conditional portion of while loops, if statements, and ternary expressions when
-    // the top-level operator can short-circuit
-    // TODO needed?
-    private int firstJumpOpAddr;
-
-    // This is only changed when code is actually emitted (this includes forcePushResult)
-    private Kind lastExprWasSSBinary = null;
+    // Facts about array indexes that hold in the bodies of the loops being generated
+    private List<RangeAnalysis.Fact> boundsFacts;
+    private int arrayAccessCount;
+    private int uncheckedAccessCount;
 
     ///////////////////////////////////////////////////////////////////////////////
     //
@@ -149,9 +238,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitPackage(Package prog, Object arg) {
-        // Initialize the code generator
-        Machine.initCodeGen();
-        System.out.println("Beginning code generation...");
+        log.println("Beginning code generation...");
 
         // Save a reference to the dummy println method
         printlnMethod = prog.printlnMethod;
@@ -164,50 +251,85 @@ public class CodeGenerator implements Visitor<Object, Object> {
         // allowing us to push that many entries onto the stack before calling main
 
         // Before compiling any of the user's code, we need to emit code that calls main
-        // This will require recording our first PatchNote
+        List<CodeBuffer> buffers = new ArrayList<>();
+        code = new CodeBuffer(null, log);
+        code.markMethod("<start>");
 
         // Make space below the stack for all the static fields (if any are present)
         if (curStaticCount > 0) {
-            Machine.emit(Op.PUSH, curStaticCount);
+            code.emit(Op.PUSH, curStaticCount);
         }
         // These are all initialized to 0 since that's how real Java initializes array elements
 
         // Create empty args array
-        Machine.emit(Op.LOADL, 0);
-        Machine.emit(Prim.newarr);
-        // Record patch
-        patchesToDo.add(new PatchNote(Machine.nextInstrAddr(), prog.mainMethod));
+        code.emit(Op.LOADL, 0);
+        code.emit(Prim.newarr);
         // Call main
-        Machine.emit(Op.CALL, Reg.CB, -1);
+        code.emitCall(Op.CALL, prog.mainMethod);
         // Halt execution
-        Machine.emit(Op.HALT, 0, Reg.ZR, 0);
+        code.emit(Op.HALT, 0, Reg.ZR, 0);
+        buffers.add(code);
 
         // Generate code for each MethodDecl (pass 2)
         for (ClassDecl c : prog.classDeclList) {
             c.visit(this, 2);
         }
+        generateMethods();
+        for (CodeGenerator methodGenerator : methodGenerators) {
+            buffers.add(methodGenerator.code);
+            hasCalledPrintln |= methodGenerator.hasCalledPrintln;
+            arrayAccessCount += methodGenerator.arrayAccessCount;
+            uncheckedAccessCount += methodGenerator.uncheckedAccessCount;
+        }
 
         // Create the println method's code if it has been used
         if (hasCalledPrintln) {
-            // Record the method's code address
-            prog.printlnMethod.data = Machine.nextInstrAddr();
+            code = new CodeBuffer(prog.printlnMethod, log);
+            code.markMethod("System.out.println");
+            code.markLine(0);
             // Load the number being printed
-            Machine.emit(Op.LOAD, Reg.LB, -1);
+            code.emit(Op.LOAD, Reg.LB, -1);
             // Print
-            Machine.emit(Prim.putintnl);
+            code.emit(Prim.putintnl);
             // Return nothing
-            Machine.emit(Op.RETURN, 0, Reg.ZR, 1);
+            code.emit(Op.RETURN, 0, Reg.ZR, 1);
+            buffers.add(code);
         }
 
-        // Perform necessary patching
-        for (PatchNote patch : patchesToDo) {
-            if (patch.decl.data == Integer.MIN_VALUE) {
-                throw new IllegalStateException("Method declaration never had its data set");
+        // Lay out the code, which records each method's code address in its data field, and fill
+        // in the calls
+        linkedCode = Linker.link(buffers, sourceMap, log);
+
+        log.println("Bounds checks removed from " + uncheckedAccessCount + " of "
+                + arrayAccessCount + " array accesses");
+
+        return null;
+    }
+
+    // Run every method's generator, on a pool of threads if there's more than one
+    private void generateMethods() {
+        if (threads == 1) {
+            for (CodeGenerator methodGenerator : methodGenerators) {
+                methodGenerator.generateMethod();
             }
-            Machine.patch(patch.addr, patch.decl.data);
+            return;
         }
 
-        return null;
+        // The methods share nothing that's written while their code is generated: each generator
+        // has its own buffer and counters, and only annotates the AST nodes of its own method
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (CodeGenerator methodGenerator : methodGenerators) {
+                tasks.add(pool.submit(methodGenerator::generateMethod));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                // Rethrows anything thrown generating the method
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
     }
 
     ///////////////////////////////////////////////////////////////////////////////
@@ -236,9 +358,9 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
         // Pass 2
         if ((int) arg == 2) {
-            // Visit each MethodDecl for code generation
+            // Create a generator for each MethodDecl, to be run by generateMethods()
             for (MethodDecl method : cd.methodDeclList) {
-                method.visit(this, null);
+                methodGenerators.add(new CodeGenerator(printlnMethod, cd.name, method, log));
             }
 
             return null;
@@ -268,8 +390,9 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitMethodDecl(MethodDecl md, Object arg) {
-        // Record the starting code address for this method in its data field
-        md.data = Machine.nextInstrAddr();
+        // The method starts at the start of its buffer (the Linker records its address in data)
+        code.markMethod(curClassName + "." + md.name);
+        markLine(md);
 
         // Record the number of args for this method - used by ReturnStmts
         curMethodArgCount = md.parameterDeclList.size();
@@ -290,7 +413,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
         // Add empty return to end of void methods if not already present
         if (md.getType().typeKind == TypeKind.VOID && (md.statementList.size() == 0
                 || !(md.statementList.get(md.statementList.size() - 1) instanceof ReturnStmt))) {
-            Machine.emit(Op.RETURN, 0, Reg.ZR, curMethodArgCount);
+            code.emit(Op.RETURN, 0, Reg.ZR, curMethodArgCount);
         }
 
         return null;
@@ -357,7 +480,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
         // Pop off stack entries equal to localsOffset - arg (if its > 0)
         if (localsOffset - (int) arg > 0) {
-            Machine.emit(Op.POP, localsOffset - (int) arg);
+            code.emit(Op.POP, localsOffset - (int) arg);
         }
 
         // Return the *original* stack variable count
@@ -366,13 +489,15 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitVarDeclStmt(VarDeclStmt vds, Object arg) {
+        markLine(vds);
+
         int curLocalOffset = (int) arg;
 
         // Record this variable's offset from LB in its data field
         vds.varDecl.data = curLocalOffset;
 
         // Visit initExp, record its value in the varDecl if known, and store it on top of the stack
-        Integer val = forcePushResult((Integer) vds.initExp.visit(this, true), true);
+        Integer val = forcePushResult(visitRoot(vds.initExp));
         vds.varDecl.setValue(val);
 
         /*
@@ -390,6 +515,8 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitAssignStmt(AssignStmt as, Object arg) {
+        markLine(as);
+
         // Visit the ref in WRITE mode
         // This will return an object containing the register we need to operate relative to and
         // the offset we should use
@@ -397,17 +524,17 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
         // Put the new value on the stack (even if it's known at compile time, we don't have a way
         // to store it without first putting it on the stack)
-        Integer newVal = forcePushResult((Integer) as.valExpr.visit(this, true), true);
+        Integer newVal = forcePushResult(visitRoot(as.valExpr));
 
         // If the register is null, this is a member field of another object, and the object's addr
         // and the field's offset were already put on the stack
         // All we need to do is call the fieldupd primitive
         if (result.reg == null) {
-            Machine.emit(Prim.fieldupd);
+            code.emit(Prim.fieldupd);
         } else {
 
             // Otherwise, we just need to emit the appropriate STORE instruction
-            Machine.emit(Op.STORE, result.reg, result.offset);
+            code.emit(Op.STORE, result.reg, result.offset);
 
             // If this is reassigning a VarDecl & we aren't in a loop or an if statement, update the
             // VarDecl's value field
@@ -421,31 +548,38 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitIxAssignStmt(IxAssignStmt ias, Object arg) {
+        markLine(ias);
+
         // Visit the ref in READ mode
         // This will emit instructions that put the array's address on the stack
         ias.ref.visit(this, RefVisitMode.READ);
 
         // Visit ixExpr and force its value (the array index we're writing to) onto the stack
-        forcePushResult((Integer) ias.ixExpr.visit(this, true), true);
+        forcePushResult(visitRoot(ias.ixExpr));
 
         // Visit valExp and force its value (the value being written into the array) onto the stack
-        forcePushResult((Integer) ias.valExp.visit(this, true), true);
+        forcePushResult(visitRoot(ias.valExp));
 
         // Call the arrayupd primitive to pop the addr, index, and val off the stack and update the
-        // appropriate array entry's value
-        Machine.emit(Prim.arrayupd);
+        // appropriate array entry's value (without checking the index if it's known to be in bounds)
+        code.emit(inBounds(ias.ref, ias.ixExpr) ? Prim.uarrayupd : Prim.arrayupd);
 
         return arg;
     }
 
     @Override
     public Object visitCallStmt(CallStmt cs, Object arg) {
-        // Delegate to EmitCall
+        markLine(cs);
+
+        // Fold the arguments, then delegate to EmitCall
+        for (Expression argExpr : cs.getArgList()) {
+            ConstantFolder.fold(argExpr, inLoop());
+        }
         emitCall(cs);
 
         // Pop the returned value off the stack if present
         if (cs.getMethodRef().getType().typeKind != TypeKind.VOID) {
-            Machine.emit(Op.POP, 1);
+            code.emit(Op.POP, 1);
         }
 
         return arg;
@@ -453,16 +587,18 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitReturnStmt(ReturnStmt rs, Object arg) {
+        markLine(rs);
+
         if (rs.returnExpr != null) {
             // If a value is being returned, put it on the stack
-            forcePushResult((Integer) rs.returnExpr.visit(this, true), true);
+            forcePushResult(visitRoot(rs.returnExpr));
 
             // Emit the RETURN instruction with n=1
-            Machine.emit(Op.RETURN, 1, Reg.ZR, curMethodArgCount);
+            code.emit(Op.RETURN, 1, Reg.ZR, curMethodArgCount);
         } else {
 
             // If no value is being returned, simply emit the RETURN instruction with n=0
-            Machine.emit(Op.RETURN, 0, Reg.ZR, curMethodArgCount);
+            code.emit(Op.RETURN, 0, Reg.ZR, curMethodArgCount);
         }
 
         return arg;
@@ -470,18 +606,17 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitIfStmt(IfStmt is, Object arg) {
+        markLine(is);
+
         // TODO add optimization for == or != with one known operand
 
         // Mark that we are entering an if statement
         enterIf();
 
-        // TODO If condVal is unknown and has && or || as its top-level operator, we can optimize
-
         // TODO merge in bb564ea now that I've just removed || and && being known based on their right value?
 
-        // Visit the conditional expression- if it's not known at compile time, the value will be
-        // put on the stack
-        Integer condVal = (Integer) is.condExpr.visit(this, true);
+        // Fold the conditional without emitting any instructions
+        Integer condVal = ConstantFolder.fold(is.condExpr, inLoop());
 
         // If condVal is known, we only ever have to run one of the two branches
         if (condVal != null) {
@@ -496,59 +631,28 @@ public class CodeGenerator implements Visitor<Object, Object> {
                 is.elseStmt.visit(this, arg);
             }
         } else {
-            // If condVal is not known, it is on the stack and we must branch according to its value
-
-            int jumpSkipToElseAddr = 0;
-            int bonusJumpAddrForAND = 0;
-            boolean wasAND = false;
-
-            // First, handle jump optimizations for when the top level expr short-circuits
-            if (lastExprWasSSBinary != null) {
-                // Remove the last two emitted instructions
-                Machine.CT -= 2;
-
-                // Emit a new JUMPIF - this will be patched to go to after the then block
-                jumpSkipToElseAddr = Machine.nextInstrAddr();
-                Machine.emit(Op.JUMPIF, Machine.falseRep, Reg.CB, -1);
-
-                // Note: This is all we need to do for OR- the first jump is actually still fine, it
-                // now points to the start of the then block
-
-                if (lastExprWasSSBinary == AND) {
-                    // Record the address of the first jump, as it also needs to skip then
-                    wasAND = true;
-                    bonusJumpAddrForAND = firstJumpOpAddr;
-                }
-
-            } else {
-                // If condExpr doesn't short-circuit, start by emitting a JUMPIF instruction that
-                // skips the thenStmt if false
-                jumpSkipToElseAddr = Machine.nextInstrAddr();
-                Machine.emit(Op.JUMPIF, Machine.falseRep, Reg.CB, -1);
-            }
+            // If condVal is not known, emit jumping code for it that skips the thenStmt if it's
+            // false, and falls through to the thenStmt if it's true
+            List<Integer> skipThenJumps = new ArrayList<>();
+            emitJump(is.condExpr, false, skipThenJumps);
 
             // Emit the code for thenStmt
             // We know this isn't a solitary declaration, so we don't need to check the return
             is.thenStmt.visit(this, arg);
 
             // If there's an elseStmt, emit an instruction to skip it at the end of the thenStmt
-            int jumpSkipOverElseAddr = Machine.nextInstrAddr();
+            int jumpSkipOverElseAddr = code.nextInstrAddr();
             if (is.elseStmt != null) {
-                Machine.emit(Op.JUMP, Reg.CB, -1);
+                code.emit(Op.JUMP, Reg.CB, -1);
             }
 
-            // Patch the first jump so that it goes to the else block (or the next instruction)
-            Machine.patch(jumpSkipToElseAddr, Machine.nextInstrAddr());
-
-            // If the top-level expr was AND, we need to patch a second jump as well
-            if (wasAND) {
-                Machine.patch(bonusJumpAddrForAND, Machine.nextInstrAddr());
-            }
+            // Patch the jumps for false so that they go to the else block (or the next instruction)
+            patchJumps(skipThenJumps, code.nextInstrAddr());
 
             // If there's an elseStmt, emit its instructions and patch the second jump
             if (is.elseStmt != null) {
                 is.elseStmt.visit(this, arg);
-                Machine.patch(jumpSkipOverElseAddr, Machine.nextInstrAddr());
+                code.patch(jumpSkipOverElseAddr, code.nextInstrAddr());
             }
         }
 
@@ -560,7 +664,9 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitLoopStmt(LoopStmt ls, Object arg) {
-        int initialCT = Machine.nextInstrAddr();
+        markLine(ls);
+
+        int initialCT = code.nextInstrAddr();
         int newLocalCount = (int) arg;
 
         // Emit instructions for the initializer
@@ -572,55 +678,60 @@ public class CodeGenerator implements Visitor<Object, Object> {
             ls.getInitDecl().visit(this, newLocalCount++);
         }
 
-        // Evaluate the conditional without emitting any instructions- if we know its false, we
-        // don't have to emit anything else here; if it's unknown, we need to jump to the
-        // conditional for an initial evaluation before the body runs
-        Integer initialCondVal = (Integer) ls.condExpr.visit(this, false);
+        // Fold the conditional without emitting any instructions- if we know its false, we don't
+        // have to emit anything else here; if it's unknown, we need to jump to the conditional for
+        // an initial evaluation before the body runs
+        Integer initialCondVal = ConstantFolder.fold(ls.condExpr, inLoop());
         int jumpToCondAddr = -1;
         if (initialCondVal == null) {
-            jumpToCondAddr = Machine.nextInstrAddr();
-            Machine.emit(Op.JUMP, Reg.CB, -1);
+            jumpToCondAddr = code.nextInstrAddr();
+            code.emit(Op.JUMP, Reg.CB, -1);
         }
         if (initialCondVal == null || initialCondVal == Machine.trueRep) {
+            // Find the bounds the condition puts on array indexes in the body, which is only ever
+            // entered after the condition has been checked when it isn't known
+            int outerFactCount = boundsFacts.size();
+            if (initialCondVal == null) {
+                for (RangeAnalysis.Fact fact : RangeAnalysis.loopFacts(ls)) {
+                    fact = fact.startingAt(startValue(ls, fact.index));
+                    if (fact != null) {
+                        boundsFacts.add(fact);
+                    }
+                }
+            }
+
             // Mark that we are entering the repeated portion of a while loop
             enterLoop();
 
             // Record the current code addr and emit code for the body (which includes the update)
-            int bodyStartAddr = Machine.nextInstrAddr();
+            int bodyStartAddr = code.nextInstrAddr();
             ls.body.visit(this, newLocalCount);
+            boundsFacts.subList(outerFactCount, boundsFacts.size()).clear();
 
-            // Evaluate the conditional, leave it on the stack, then JUMPIF back to the body
+            // Evaluate the conditional and jump back to the body if it's true
             // If the conditional is known to be true here, just JUMP back instead- this loop will
             // repeat indefinitely
             // If the conditional is (somehow) now known to be false, there's no need to even emit a
             // jump instruction
             if (jumpToCondAddr != -1) {
-                Machine.patch(jumpToCondAddr, Machine.nextInstrAddr());
+                code.patch(jumpToCondAddr, code.nextInstrAddr());
             }
-            Integer condVal = (Integer) ls.condExpr.visit(this, true);
-            // If the conditional is unknown and short-circuits, we can optimize 
-            if (lastExprWasSSBinary != null && condVal == null) {
-                // Remove the last two emitted instructions
-                Machine.CT -= 2;
-
-                // Patch the middle jump to go back to the start of the body for OR
-                if (lastExprWasSSBinary == OR) {
-                    Machine.patch(firstJumpOpAddr, bodyStartAddr);
-                }
-
-                // Add a JUMPIF that takes us back to the start of the body if the final value
-                // comes out to be true
-                Machine.emit(Op.JUMPIF, Machine.trueRep, Reg.CB, bodyStartAddr);
-            } else if (condVal != null && condVal == Machine.trueRep) {
-                Machine.emit(Op.JUMP, Reg.CB, bodyStartAddr);
-            } else if (condVal == null) {
-                Machine.emit(Op.JUMPIF, Machine.trueRep, Reg.CB, bodyStartAddr);
+            markLine(ls);
+            Integer condVal = ConstantFolder.fold(ls.condExpr, inLoop());
+            if (condVal == null) {
+                // Emit jumping code for the conditional whose jumps for true all go back to the
+                // start of the body, falling through to leave the loop when it's false
+                List<Integer> repeatJumps = new ArrayList<>();
+                emitJump(ls.condExpr, true, repeatJumps);
+                patchJumps(repeatJumps, bodyStartAddr);
+            } else if (condVal == Machine.trueRep) {
+                code.emit(Op.JUMP, Reg.CB, bodyStartAddr);
             }
         }
 
         // If initialization used initDecl, that variable needs to be POPped off the stack
         if (ls.getInitDecl() != null) {
-            Machine.emit(Op.POP, 1);
+            code.emit(Op.POP, 1);
 
         }
 
@@ -628,7 +739,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
         // have side effects) we can just remove all instructions emitted for this LoopStmt
         if (initialCondVal != null && initialCondVal == Machine.falseRep
                 && ls.getInitList() == null) {
-            Machine.CT = initialCT;
+            code.discardFrom(initialCT);
         }
 
         // Mark that we are leaving a while loop
@@ -637,47 +748,142 @@ public class CodeGenerator implements Visitor<Object, Object> {
         return arg;
     }
 
+    // The value of local when loop ls starts, if it's known at compile time
+    private Integer startValue(LoopStmt ls, LocalDecl local) {
+        if (!(local instanceof VarDecl)) {
+            return null;
+        }
+        // The initializer's value is recorded even inside another loop
+        if (ls.getInitDecl() != null && ls.getInitDecl().varDecl == local) {
+            return ((VarDecl) local).getValue();
+        }
+        return inLoop() ? null : ((VarDecl) local).getValue();
+    }
+
     ///////////////////////////////////////////////////////////////////////////////
     //
     // EXPRESSIONS
     //
     ///////////////////////////////////////////////////////////////////////////////
 
-    // Note: arg == true is required for instructions to be emitted
+    // Note: arg is unused. Each expression must have been folded (see ConstantFolder) before it's
+    // visited, and visiting it emits code for whatever part of it isn't known at compile time
 
-    private Integer forcePushResult(Integer res, Object shouldEmit) {
-        if (res != null && (boolean) shouldEmit) {
-            // If something is being written here, we didn't just process a compile-time-unknown
-            // short-circuiting binary operator
-            lastExprWasSSBinary = null;
+    // Fold an expression that isn't part of another one, then visit it to emit its code
+    private Integer visitRoot(Expression e) {
+        ConstantFolder.fold(e, inLoop());
+        return (Integer) e.visit(this, null);
+    }
 
+    private Integer forcePushResult(Integer res) {
+        if (res != null) {
             // If the returned value isn't null, nothing has been emitted yet
             // Therefore, we need to LOADL that value onto the stack
-            Machine.emit(Op.LOADL, res);
+            code.emit(Op.LOADL, res);
         }
         return res;
     }
 
+    /**
+     * Emit jumping code for a folded boolean expression: code that jumps when the expression's value
+     * is jumpWhen, and falls through when it isn't, without leaving anything on the stack
+     * 
+     * Short-circuiting operators, ! and ternaries are compiled into jumps between the code for their
+     * operands, so none of their intermediate values are ever pushed. Any other expression is
+     * evaluated onto the stack and tested with a single JUMPIF.
+     * 
+     * @param jumps the addresses of the jumps emitted, to be patched once their target is known
+     */
+    private void emitJump(Expression cond, boolean jumpWhen, List<Integer> jumps) {
+        int jumpRep = boolToInt(jumpWhen);
+
+        // A known value has no code, so either always jumps or never does
+        Integer condVal = cond.getConstantValue();
+        if (condVal != null) {
+            if (condVal == jumpRep) {
+                jumps.add(code.nextInstrAddr());
+                code.emit(Op.JUMP, Reg.CB, -1);
+            }
+            return;
+        }
+
+        // !operand jumps exactly when operand has the opposite value
+        if (cond instanceof UnaryExpr && ((UnaryExpr) cond).operator.kind == NOT) {
+            emitJump(((UnaryExpr) cond).operandExpr, !jumpWhen, jumps);
+            return;
+        }
+
+        if (cond instanceof BinaryExpr) {
+            BinaryExpr be = (BinaryExpr) cond;
+            if (be.operator.kind == OR || be.operator.kind == AND) {
+                // The value that decides the operator from its left operand alone (true for ||,
+                // false for &&)
+                boolean decider = be.operator.kind == OR;
+                if (jumpWhen == decider) {
+                    // Either operand having the deciding value means the whole expression does
+                    emitJump(be.leftExpr, jumpWhen, jumps);
+                    emitJump(be.rightExpr, jumpWhen, jumps);
+                } else {
+                    // The whole expression only has the other value if both operands do, so a
+                    // deciding left operand skips the right operand and falls through
+                    List<Integer> decidedJumps = new ArrayList<>();
+                    emitJump(be.leftExpr, decider, decidedJumps);
+                    emitJump(be.rightExpr, jumpWhen, jumps);
+                    patchJumps(decidedJumps, code.nextInstrAddr());
+                }
+                return;
+            }
+        }
+
+        if (cond instanceof TernaryExpr) {
+            TernaryExpr te = (TernaryExpr) cond;
+            Integer choice = te.leftExpr.getConstantValue();
+            if (choice != null) {
+                // Only the branch a known conditional picks is ever evaluated
+                emitJump(choice == Machine.trueRep ? te.midExpr : te.rightExpr, jumpWhen, jumps);
+                return;
+            }
+
+            // Jump to the rightExpr's code if the conditional is false, and skip it after the
+            // midExpr's code falls through
+            List<Integer> rightJumps = new ArrayList<>();
+            emitJump(te.leftExpr, false, rightJumps);
+            emitJump(te.midExpr, jumpWhen, jumps);
+            int skipRightExprInstAddr = code.nextInstrAddr();
+            code.emit(Op.JUMP, Reg.CB, -1);
+            patchJumps(rightJumps, code.nextInstrAddr());
+            emitJump(te.rightExpr, jumpWhen, jumps);
+            code.patch(skipRightExprInstAddr, code.nextInstrAddr());
+            return;
+        }
+
+        // Anything else (a comparison, a reference, a call, ...) is evaluated and tested
+        cond.visit(this, null);
+        jumps.add(code.nextInstrAddr());
+        code.emit(Op.JUMPIF, jumpRep, Reg.CB, -1);
+    }
+
+    // Patch every jump in jumps to go to addr
+    private void patchJumps(List<Integer> jumps, int addr) {
+        for (int jumpAddr : jumps) {
+            code.patch(jumpAddr, addr);
+        }
+    }
+
     // Return value: null if val isn't known at compile time, Integer otherwise
     // Machine.trueRep and Machine.falseRep are used to represent true and false as Integers
 
     @Override
     public Object visitUnaryExpr(UnaryExpr ue, Object arg) {
-        // Visit the operand
-        // If the value is known at compile time, it will be returned
-        // Otherwise, instructions will be emitted that leave the value on top of the stack
-        Integer operandVal = (Integer) ue.operandExpr.visit(this, arg);
-
-        // If the operand's value is known, we can find the value of this expr
-        if (operandVal != null) {
-            if (ue.operator.kind == NOT) {
-                return operandVal == Machine.trueRep ? Machine.falseRep : Machine.trueRep;
-            }
-            return -operandVal;
+        // If the value is known at compile time, there's nothing to emit
+        if (ue.getConstantValue() != null) {
+            return ue.getConstantValue();
         }
 
-        // If not known, emit instructions for runtime calculation
-        if ((Boolean) arg) ue.operator.visit(this, null);
+        // Otherwise the operand isn't known either, so visiting it emits instructions that leave
+        // its value on top of the stack, and we emit instructions for the runtime calculation
+        ue.operandExpr.visit(this, null);
+        ue.operator.visit(this, null);
 
         return null;
     }
@@ -688,238 +894,109 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitBinaryExpr(BinaryExpr be, Object arg) {
-        // Visit left & right, but just to get their known values if they can be evaluated at
-        // compile time.
-        Integer left = (Integer) be.leftExpr.visit(this, false); // Not emitting!
-        Integer right = (Integer) be.rightExpr.visit(this, false); // Not emitting!
-
-        if (left != null && right != null) {
-            // If both operands have known values, we can calculate this expression's result and
-            // pass it up the chain
-
-            // Calculate the value w/o visiting the operator (visiting is for unknown operands) 
-            switch (be.operator.kind) {
-                case OR:
-                    return boolToInt(left == Machine.trueRep || right == Machine.trueRep);
-                case AND:
-                    return boolToInt(left == Machine.trueRep && right == Machine.trueRep);
-                case LESS_EQUAL:
-                    return boolToInt(left <= right);
-                case LESS_THAN:
-                    return boolToInt(left < right);
-                case GREATER_THAN:
-                    return boolToInt(left > right);
-                case GREATER_EQUAL:
-                    return boolToInt(left >= right);
-                case PLUS:
-                    return left + right;
-                case MINUS:
-                    return left - right;
-                case MULTIPLY:
-                    return left * right;
-                case DIVIDE:
-                    if (right == 0) {
-                        // If right is 0, leave calculation (and error) to runtime
-
-                        // Force left onto the stack
-                        forcePushResult(left, arg);
-
-                        // Visit right and force it onto the stack
-                        forcePushResult((Integer) be.rightExpr.visit(this, arg), arg);
-
-                        // Visit operator to emit the calculation instruction
-                        if ((Boolean) arg) be.operator.visit(this, null);
-
-                        return null;
-                    } else {
-                        return left / right;
-                    }
-                case MODULUS:
-                    return left % right;
-                case EQUAL_TO:
-                    return boolToInt(left == right);
-                case NOT_EQUAL:
-                    return boolToInt(left != right);
-                default:
-                    throw new IllegalStateException("It shouldn't be possible to reach this line");
-            }
+        // If the value is known at compile time (including a short-circuiting operator decided by
+        // a known left operand), there's nothing to emit
+        if (be.getConstantValue() != null) {
+            return be.getConstantValue();
         }
 
         // If the value isn't known at compile time, we need to emit code to perform the
         // calculation at runtime (this is when the value fully isn't known- for
         // short-circuiting operators, this means both operands are unknown, for other
-        // operators it doesn't matter if one or both are unknown)
-
-        // Visit the left operand
-        be.leftExpr.visit(this, arg);
-
-        // Handle the short-circuiting || operator
-        if (be.operator.kind == OR) {
-            if (left == null) {
-                // left isn't known, so it will already be on the stack
-
-                // We need to emit code that decides whether to visit right based on left's value
-
-                // Emit a JUMPIF instruction that skips the evaluation of right if left is true,
-                // but first record the addr of that instruction so we can patch in the addr it's
-                // jumping to
-                int tempFirstJumpOpAddr = Machine.nextInstrAddr();
-                if ((Boolean) arg) Machine.emit(Op.JUMPIF, Machine.trueRep, Reg.CB, -1);
-
-                // Visit right so its code can be generated
-                forcePushResult((Integer) be.rightExpr.visit(this, arg), arg);
-
-                // If right wasn't evaluated, we'll need to push a true onto the stack. If right WAS
-                // evaluated, we need to skip that instruction.
-                if ((Boolean) arg) Machine.emit(Op.JUMP, Reg.CB, Machine.nextInstrAddr() + 2);
-                if ((Boolean) arg) Machine.patch(tempFirstJumpOpAddr, Machine.nextInstrAddr());
-                if ((Boolean) arg) Machine.emit(Op.LOADL, Machine.trueRep);
-
-                // In this case, and ONLY this case, we can indicate that the code emitted on the
-                // is for the short-circuit evaluation of an OR operator just before we return
-                if ((Boolean) arg) firstJumpOpAddr = tempFirstJumpOpAddr;
-                if ((Boolean) arg) lastExprWasSSBinary = OR;
-
-                return null;
-
-            } else {
-                // If left is known at compile time, then it doesn't have any side effects and we
-                // can just select whether to go on and visit right based on left's known value 
-                if (left == Machine.trueRep) {
-                    return Machine.trueRep;
-                }
-
-                // Note: we know right isn't known, because if both left & right were known we'd
-                // running the first if statement in this method
-
-                // If left is known to be false, we can visit right and just use right's value
-                return be.rightExpr.visit(this, arg);
+        // operators it doesn't matter if one or both are unknown, or if the right is a known 0
+        // divisor)
+        Integer left = be.leftExpr.getConstantValue();
+
+        // Handle the short-circuiting || and && operators
+        if (be.operator.kind == OR || be.operator.kind == AND) {
+            // The value that decides the operator from its left operand alone (true for ||, false
+            // for &&)
+            Integer decider = boolToInt(be.operator.kind == OR);
+
+            // If left is known at compile time, then it doesn't have any side effects and it
+            // isn't the deciding value (or be would be known), so be's value is right's value
+            if (left != null) {
+                return be.rightExpr.visit(this, null);
             }
-        }
-
-        // Handle the short-circuiting && operator
-        if (be.operator.kind == AND) {
-            if (left == null) {
-                // left isn't known, so it will already be on the stack
-
-                // We need to emit code that decides whether to visit right based on left's value
-
-                // Emit a JUMPIF instruction that skips the evaluation of right if left is false,
-                // but first record the addr of that instruction so we can patch in the addr it's
-                // jumping to
-                int tempFirstJumpOpAddr = Machine.nextInstrAddr();
-                if ((Boolean) arg) Machine.emit(Op.JUMPIF, Machine.falseRep, Reg.CB, -1);
 
-                // Visit right so its code can be generated
-                forcePushResult((Integer) be.rightExpr.visit(this, arg), arg);
+            // Otherwise emit jumping code for left that skips the evaluation of right if left
+            // decides the result, then push right's value
+            List<Integer> decidedJumps = new ArrayList<>();
+            emitJump(be.leftExpr, decider == Machine.trueRep, decidedJumps);
+            forcePushResult((Integer) be.rightExpr.visit(this, null));
 
-                // If right wasn't evaluated, we'll need to push a false onto the stack. If right
-                // WAS evaluated, we need to skip that instruction.
-                if ((Boolean) arg) Machine.emit(Op.JUMP, Reg.CB, Machine.nextInstrAddr() + 2);
-                if ((Boolean) arg) Machine.patch(tempFirstJumpOpAddr, Machine.nextInstrAddr());
-                if ((Boolean) arg) Machine.emit(Op.LOADL, Machine.falseRep);
+            // If right wasn't evaluated, we'll need to push the deciding value onto the stack. If
+            // right WAS evaluated, we need to skip that instruction.
+            code.emit(Op.JUMP, Reg.CB, code.nextInstrAddr() + 2);
+            patchJumps(decidedJumps, code.nextInstrAddr());
+            code.emit(Op.LOADL, decider);
 
-                // In this case, and ONLY this case, we can indicate that the code emitted on the
-                // is for the short-circuit evaluation of an AND operator just before we return
-                if ((Boolean) arg) firstJumpOpAddr = tempFirstJumpOpAddr;
-                if ((Boolean) arg) lastExprWasSSBinary = AND;
-
-                return null;
-
-            } else {
-                // If left is known at compile time, then it doesn't have any side effects and we
-                // can just select whether to go on and visit right based on left's known value 
-                if (left == Machine.falseRep) {
-                    return Machine.falseRep;
-                }
-
-                // Note: we know right isn't known, because if both left & right were known we'd be
-                // running the first if statement in this method
-
-                // If left is known to be true, we can visit right and just use right's value
-                return be.rightExpr.visit(this, arg);
-            }
+            return null;
         }
 
-        // Current status: If left is unknown, it is on the stack. No matter what, right is not yet
-        // on the stack. We need both on the stack before dispatching to the operator to emit
-        // evaluation instructions.
+        // We need both operands on the stack before dispatching to the operator to emit evaluation
+        // instructions
 
         // Force left onto the stack
-        forcePushResult(left, arg);
+        forcePushResult((Integer) be.leftExpr.visit(this, null));
 
         // Visit right and force it onto the stack
-        forcePushResult((Integer) be.rightExpr.visit(this, arg), arg);
+        forcePushResult((Integer) be.rightExpr.visit(this, null));
 
         // Visit operator to emit the calculation instruction
-        if ((Boolean) arg) be.operator.visit(this, null);
+        be.operator.visit(this, null);
 
         return null;
     }
 
     @Override
     public Object visitTernaryExpr(TernaryExpr te, Object arg) {
-        // Visit the conditional
-        // If it's known at compile time, it'll be returned, otherwise instructions will be emitted
-        // that leave the value on the stack
-        Integer condVal = (Integer) te.leftExpr.visit(this, arg);
-
-        // If condVal is known, we simply have to emit instructions for the indicated expression
+        // If the conditional is known, we simply have to emit instructions for the indicated
+        // expression
+        Integer condVal = te.leftExpr.getConstantValue();
         if (condVal != null) {
             forcePushResult((Integer) (condVal == Machine.trueRep ? te.midExpr : te.rightExpr)
-                    .visit(this, arg), arg);
+                    .visit(this, null));
             return null;
         }
 
         // If it's not known, we need to emit code for both paths that can be chosen conditionally
-        // The conditional's value is already on the stack
 
-        // Emit JUMPIF to skip midExpr if cond is false (will need to be patched)
-        int skipMidExprInstAddr = Machine.nextInstrAddr();
-        if ((Boolean) arg) Machine.emit(Op.JUMPIF, Machine.falseRep, Reg.CB, -1);
+        // Emit jumping code for the conditional that skips midExpr if it's false (the jumps will
+        // need to be patched)
+        List<Integer> skipMidExprJumps = new ArrayList<>();
+        emitJump(te.leftExpr, false, skipMidExprJumps);
 
         // Emit instructions for evaluating midExpr
-        forcePushResult((Integer) te.midExpr.visit(this, arg), arg);
+        forcePushResult((Integer) te.midExpr.visit(this, null));
 
         // Emit a jump to skip rightExpr (this will also need to be patched)
-        int skipRightExprInstAddr = Machine.nextInstrAddr();
-        if ((Boolean) arg) Machine.emit(Op.JUMP, Reg.CB, -1);
+        int skipRightExprInstAddr = code.nextInstrAddr();
+        code.emit(Op.JUMP, Reg.CB, -1);
 
-        // Patch the first jump so it takes us here
-        if ((Boolean) arg) Machine.patch(skipMidExprInstAddr, Machine.nextInstrAddr());
+        // Patch the first jumps so they take us here
+        patchJumps(skipMidExprJumps, code.nextInstrAddr());
 
         // Emit instructions for evaluating rightExpr
-        forcePushResult((Integer) te.rightExpr.visit(this, arg), arg);
+        forcePushResult((Integer) te.rightExpr.visit(this, null));
 
         // Patch the second jump so it takes us here
-        if ((Boolean) arg) Machine.patch(skipRightExprInstAddr, Machine.nextInstrAddr());
-
-        // If something is being written here, we didn't just process a compile-time-unknown
-        // short-circuiting binary operator
-        if ((Boolean) arg) lastExprWasSSBinary = null;
+        code.patch(skipRightExprInstAddr, code.nextInstrAddr());
 
         return null;
     }
 
     @Override
     public Object visitRefExpr(RefExpr re, Object arg) {
-        // Note: If we're in a loop, no locals are considered known
-
-        // If this RefExpr is known (an IdRef that points to a VarDecl with a known value), we can
-        // just pass on that known value
-        Reference ref = re.ref;
-        if (!inLoop() && ref instanceof IdRef && ref.getId().getDecl() instanceof VarDecl
-                && ((VarDecl) ref.getId().getDecl()).getValue() != null) {
-            return ((VarDecl) re.ref.getId().getDecl()).getValue();
+        // If this RefExpr is known (an IdRef that points to a VarDecl with a known value, outside
+        // of any loop), we can just pass on that known value
+        if (re.getConstantValue() != null) {
+            return re.getConstantValue();
         }
 
         // Otherwise, visit the reference to emit code that will put its value on the stack
-        if ((Boolean) arg) re.ref.visit(this, RefVisitMode.READ);
+        re.ref.visit(this, RefVisitMode.READ);
 
-        // If something is being written here, we didn't just process a compile-time-unknown
-        // short-circuiting binary operator
-        // Handle this here, rather than in the reference
-        if ((Boolean) arg) lastExprWasSSBinary = null;
 
         // Note: array length members are handled in the QualRef visit method
 
@@ -929,17 +1006,14 @@ public class CodeGenerator implements Visitor<Object, Object> {
     @Override
     public Object visitIxExpr(IxExpr ie, Object arg) {
         // Get the array's address on the stack
-        if ((Boolean) arg) ie.ref.visit(this, RefVisitMode.READ);
+        ie.ref.visit(this, RefVisitMode.READ);
 
         // Get the array index expression on the stack
-        forcePushResult((Integer) ie.ixExpr.visit(this, arg), arg);
+        forcePushResult((Integer) ie.ixExpr.visit(this, null));
 
-        // Call the arrayref primitive
-        if ((Boolean) arg) Machine.emit(Prim.arrayref);
+        // Call the arrayref primitive (or uarrayref if the index is known to be in bounds)
+        code.emit(inBounds(ie.ref, ie.ixExpr) ? Prim.uarrayref : Prim.arrayref);
 
-        // If something is being written here, we didn't just process a compile-time-unknown
-        // short-circuiting binary operator
-        if ((Boolean) arg) lastExprWasSSBinary = null;
 
         return null;
     }
@@ -947,12 +1021,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
     @Override
     public Object visitCallExpr(CallExpr ce, Object arg) {
         // Delegate to EmitCall
-        if ((Boolean) arg) emitCall(ce);
-
-        // If something is being written here, we didn't just process a compile-time-unknown
-        // short-circuiting binary operator
-        // Handle this here, rather than in emitCall
-        if ((Boolean) arg) lastExprWasSSBinary = null;
+        emitCall(ce);
 
         // Don't need to do anything else- return value is always left on the stack 
         return null;
@@ -960,24 +1029,21 @@ public class CodeGenerator implements Visitor<Object, Object> {
 
     @Override
     public Object visitLiteralExpr(LiteralExpr le, Object arg) {
-        // Visit the literal and pass the returned value back along
-        return le.lit.visit(this, null);
+        // A literal's value is always known
+        return le.getConstantValue();
     }
 
     @Override
     public Object visitNewObjectExpr(NewObjectExpr noe, Object arg) {
         // Put -1 on the stack for the class object
-        if ((Boolean) arg) Machine.emit(Op.LOADL, -1);
+        code.emit(Op.LOADL, -1);
 
         // Put the number of nonstatic fields in the class on the stack
-        if ((Boolean) arg) Machine.emit(Op.LOADL, noe.classtype.getDecl().data);
+        code.emit(Op.LOADL, noe.classtype.getDecl().data);
 
         // Emit call to the newobj primitive, which will leave the new object's addr on the stack
-        if ((Boolean) arg) Machine.emit(Prim.newobj);
+        code.emit(Prim.newobj);
 
-        // If something is being written here, we didn't just process a compile-time-unknown
-        // short-circuiting binary operator
-        if ((Boolean) arg) lastExprWasSSBinary = null;
 
         return null;
     }
@@ -985,14 +1051,11 @@ public class CodeGenerator implements Visitor<Object, Object> {
     @Override
     public Object visitNewArrayExpr(NewArrayExpr nae, Object arg) {
         // Force the number of elements in the array to be recorded on the stack
-        forcePushResult((Integer) nae.sizeExpr.visit(this, arg), arg);
+        forcePushResult((Integer) nae.sizeExpr.visit(this, null));
 
         // Emit call to the newarr primitive, which will leave the new array's addr on the stack
-        if ((Boolean) arg) Machine.emit(Prim.newarr);
+        code.emit(Prim.newarr);
 
-        // If something is being written here, we didn't just process a compile-time-unknown
-        // short-circuiting binary operator
-        if ((Boolean) arg) lastExprWasSSBinary = null;
 
         return null;
     }
@@ -1051,7 +1114,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
         }
 
         // Put the current value of OB on the stack
-        Machine.emit(Op.LOADA, Reg.OB, 0);
+        code.emit(Op.LOADA, Reg.OB, 0);
 
         return null;
     }
@@ -1068,7 +1131,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
             FieldDecl field = (FieldDecl) decl;
 
             if (arg == RefVisitMode.READ) {
-                Machine.emit(Op.LOAD, field.isStatic ? Reg.SB : Reg.OB, field.data);
+                code.emit(Op.LOAD, field.isStatic ? Reg.SB : Reg.OB, field.data);
                 return null;
             } else if (arg == RefVisitMode.WRITE) {
                 return new RefVisitReturn(field.isStatic ? Reg.SB : Reg.OB, field.data);
@@ -1084,7 +1147,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
             // If this method isn't static, we need to record the instance's address on the stack
             // Here, the instance is this, so we just record the current value of OB
             if (!field.isStatic) {
-                Machine.emit(Op.LOADA, Reg.OB, 0);
+                code.emit(Op.LOADA, Reg.OB, 0);
             }
 
             return null;
@@ -1095,7 +1158,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
             // This value is stored relative to the current LB
             // Parameters have offset < 0, vars >= 0, but our code doesn't have to differentiate
             if (arg == RefVisitMode.READ) {
-                Machine.emit(Op.LOAD, Reg.LB, local.data);
+                code.emit(Op.LOAD, Reg.LB, local.data);
                 return null;
             } else if (arg == RefVisitMode.WRITE) {
                 return new RefVisitReturn(Reg.LB, local.data);
@@ -1124,7 +1187,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
             qr.prevRef.visit(this, RefVisitMode.READ);
 
             // Call the arraylen primitive
-            Machine.emit(Prim.arraylen);
+            code.emit(Prim.arraylen);
 
             return null;
 
@@ -1134,7 +1197,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
             if (field.isStatic) {
                 // Since this is a static field, the value is stored relative to SB
                 if (arg == RefVisitMode.READ) {
-                    Machine.emit(Op.LOAD, Reg.SB, field.data);
+                    code.emit(Op.LOAD, Reg.SB, field.data);
                     return null;
                 } else if (arg == RefVisitMode.WRITE) {
                     return new RefVisitReturn(Reg.SB, field.data);
@@ -1147,7 +1210,7 @@ public class CodeGenerator implements Visitor<Object, Object> {
                 if (qr.prevRef instanceof ThisRef) {
                     // If we're accessing a member of this, we can just load it directly
                     if (arg == RefVisitMode.READ) {
-                        Machine.emit(Op.LOAD, Reg.OB, field.data);
+                        code.emit(Op.LOAD, Reg.OB, field.data);
                         return null;
                     } else if (arg == RefVisitMode.WRITE) {
                         return new RefVisitReturn(Reg.OB, field.data);
@@ -1162,11 +1225,11 @@ public class CodeGenerator implements Visitor<Object, Object> {
                     qr.prevRef.visit(this, RefVisitMode.READ);
 
                     // Load the field offset onto the stack
-                    Machine.emit(Op.LOADL, field.data);
+                    code.emit(Op.LOADL, field.data);
 
                     if (arg == RefVisitMode.READ) {
                         // Get the field's value
-                        Machine.emit(Prim.fieldref);
+                        code.emit(Prim.fieldref);
                         return null;
                     } else if (arg == RefVisitMode.WRITE) {
                         return new RefVisitReturn(null, -1);
@@ -1232,40 +1295,40 @@ public class CodeGenerator implements Visitor<Object, Object> {
         // Emit the calculation instruction
         switch (o.kind) {
             case NOT: // Unary
-                Machine.emit(Prim.not);
+                code.emit(Prim.not);
                 break;
             case MINUS: // Can be unary
-                Machine.emit(o.operandCount == 1 ? Prim.neg : Prim.sub);
+                code.emit(o.operandCount == 1 ? Prim.neg : Prim.sub);
                 break;
             case LESS_EQUAL:
-                Machine.emit(Prim.le);
+                code.emit(Prim.le);
                 break;
             case LESS_THAN:
-                Machine.emit(Prim.lt);
+                code.emit(Prim.lt);
                 break;
             case GREATER_THAN:
-                Machine.emit(Prim.gt);
+                code.emit(Prim.gt);
                 break;
             case GREATER_EQUAL:
-                Machine.emit(Prim.ge);
+                code.emit(Prim.ge);
                 break;
             case PLUS:
-                Machine.emit(Prim.add);
+                code.emit(Prim.add);
                 break;
             case MULTIPLY:
-                Machine.emit(Prim.mult);
+                code.emit(Prim.mult);
                 break;
             case DIVIDE:
-                Machine.emit(Prim.div);
+                code.emit(Prim.div);
                 break;
             case MODULUS:
-                Machine.emit(Prim.mod);
+                code.emit(Prim.mod);
                 break;
             case EQUAL_TO:
-                Machine.emit(Prim.eq);
+                code.emit(Prim.eq);
                 break;
             case NOT_EQUAL:
-                Machine.emit(Prim.ne);
+                code.emit(Prim.ne);
                 break;
             // AND and OR are intentionally *not* handled here, as this function isn't set up to
             // handle short-circuiting operators
@@ -1273,9 +1336,6 @@ public class CodeGenerator implements Visitor<Object, Object> {
                 throw new IllegalStateException("It shouldn't be possible to reach this line");
         }
 
-        // If something is being written here, we didn't just process a compile-time-unknown
-        // short-circuiting binary operator
-        lastExprWasSSBinary = null;
 
         return null;
     }
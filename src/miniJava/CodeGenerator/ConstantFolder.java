@@ -0,0 +1,159 @@
+package miniJava.CodeGenerator;
+
+import static miniJava.SyntacticAnalyzer.Token.Kind.*;
+
+import mJAM.Machine;
+import miniJava.AbstractSyntaxTrees.*;
+
+/**
+ * Constant folding for the code generator
+ *
+ * Finds which expressions have a value known at compile time in a single bottom-up walk of an
+ * expression tree, and records each value (or null, for unknown) in its expression with
+ * Expression.setConstantValue. The code generator only ever reads these values, so each expression
+ * is visited a fixed number of times however deeply it's nested.
+ *
+ * The values of locals are the ones the code generator has recorded in each VarDecl by the time it
+ * reaches the expression, and no local is known in the repeated part of a loop, so an expression
+ * is folded just before its code is emitted (twice, for the condition of a loop: before the loop,
+ * and where it's evaluated after the body).
+ */
+class ConstantFolder {
+
+    private ConstantFolder() {
+    }
+
+    /**
+     * Fold e and every expression within it
+     *
+     * @param inLoop whether e is in the repeated part of a loop
+     * @return the value of e if it's known at compile time, null otherwise
+     */
+    static Integer fold(Expression e, boolean inLoop) {
+        Integer value = valueOf(e, inLoop);
+        e.setConstantValue(value);
+        return value;
+    }
+
+    private static Integer valueOf(Expression e, boolean inLoop) {
+        if (e instanceof LiteralExpr) {
+            Literal lit = ((LiteralExpr) e).lit;
+            if (lit instanceof IntLiteral) {
+                return Integer.parseInt(lit.spelling);
+            }
+            return boolToInt(lit.kind == TRUE);
+        }
+
+        if (e instanceof NullExpr) {
+            return Machine.nullRep;
+        }
+
+        if (e instanceof RefExpr) {
+            // Only a local variable with a known value, outside of any loop, is known
+            Reference ref = ((RefExpr) e).ref;
+            if (!inLoop && ref instanceof IdRef && ref.getId().getDecl() instanceof VarDecl) {
+                return ((VarDecl) ref.getId().getDecl()).getValue();
+            }
+            return null;
+        }
+
+        if (e instanceof UnaryExpr) {
+            UnaryExpr ue = (UnaryExpr) e;
+            Integer operand = fold(ue.operandExpr, inLoop);
+            if (operand == null) {
+                return null;
+            }
+            if (ue.operator.kind == NOT) {
+                return operand == Machine.trueRep ? Machine.falseRep : Machine.trueRep;
+            }
+            return -operand;
+        }
+
+        if (e instanceof BinaryExpr) {
+            return valueOf((BinaryExpr) e, inLoop);
+        }
+
+        if (e instanceof TernaryExpr) {
+            // The code generator emits whichever branch a known condition picks, but never treats
+            // the whole expression as known
+            TernaryExpr te = (TernaryExpr) e;
+            fold(te.leftExpr, inLoop);
+            fold(te.midExpr, inLoop);
+            fold(te.rightExpr, inLoop);
+            return null;
+        }
+
+        if (e instanceof IxExpr) {
+            fold(((IxExpr) e).ixExpr, inLoop);
+            return null;
+        }
+
+        if (e instanceof CallExpr) {
+            for (Expression arg : ((CallExpr) e).getArgList()) {
+                fold(arg, inLoop);
+            }
+            return null;
+        }
+
+        if (e instanceof NewArrayExpr) {
+            fold(((NewArrayExpr) e).sizeExpr, inLoop);
+            return null;
+        }
+
+        // NewObjectExpr
+        return null;
+    }
+
+    private static Integer valueOf(BinaryExpr be, boolean inLoop) {
+        Integer left = fold(be.leftExpr, inLoop);
+        Integer right = fold(be.rightExpr, inLoop);
+
+        if (left != null && right != null) {
+            switch (be.operator.kind) {
+                case OR:
+                    return boolToInt(left == Machine.trueRep || right == Machine.trueRep);
+                case AND:
+                    return boolToInt(left == Machine.trueRep && right == Machine.trueRep);
+                case LESS_EQUAL:
+                    return boolToInt(left <= right);
+                case LESS_THAN:
+                    return boolToInt(left < right);
+                case GREATER_THAN:
+                    return boolToInt(left > right);
+                case GREATER_EQUAL:
+                    return boolToInt(left >= right);
+                case PLUS:
+                    return left + right;
+                case MINUS:
+                    return left - right;
+                case MULTIPLY:
+                    return left * right;
+                case DIVIDE:
+                    // If right is 0, leave the calculation (and error) to runtime
+                    return right == 0 ? null : left / right;
+                case MODULUS:
+                    return right == 0 ? null : left % right;
+                case EQUAL_TO:
+                    return boolToInt(left.intValue() == right.intValue());
+                case NOT_EQUAL:
+                    return boolToInt(left.intValue() != right.intValue());
+                default:
+                    throw new IllegalStateException("It shouldn't be possible to reach this line");
+            }
+        }
+
+        // A short-circuiting operator is also known when its left operand is known and decides it,
+        // as the right operand is never evaluated
+        if (be.operator.kind == OR && left != null && left == Machine.trueRep) {
+            return Machine.trueRep;
+        }
+        if (be.operator.kind == AND && left != null && left == Machine.falseRep) {
+            return Machine.falseRep;
+        }
+        return null;
+    }
+
+    private static Integer boolToInt(boolean b) {
+        return b ? Machine.trueRep : Machine.falseRep;
+    }
+}
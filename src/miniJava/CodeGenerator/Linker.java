@@ -0,0 +1,88 @@
+package miniJava.CodeGenerator;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import mJAM.Instruction;
+import mJAM.Machine;
+import mJAM.Machine.Reg;
+import mJAM.SourceMap;
+import miniJava.AbstractSyntaxTrees.MethodDecl;
+
+/**
+ * Lays out the code buffers of a program
+ *
+ * The buffers are placed one after another from Machine.CB, in the order given, and each method's
+ * address is recorded in its MethodDecl's data field. The instructions are then copied into a new
+ * code array with their relocations resolved (see CodeBuffer), and the buffers' marks are made in
+ * the source map. As the layout only depends on the sizes of the buffers, the result is the same
+ * however (and in whatever order) the buffers were generated.
+ */
+class Linker {
+
+    private Linker() {
+    }
+
+    /**
+     * @param sourceMap where the buffers' marks are made
+     * @param log       where problems with the code are printed (with the same messages as
+     *                  Machine.emit)
+     * @return the linked code, or null if it doesn't fit in the code store
+     */
+    static Instruction[] link(List<CodeBuffer> buffers, SourceMap sourceMap, PrintStream log) {
+        // Assign each buffer its address, so that every call target is known before any code is
+        // copied
+        int[] bases = new int[buffers.size()];
+        int addr = Machine.CB;
+        for (int i = 0; i < buffers.size(); i++) {
+            CodeBuffer buffer = buffers.get(i);
+            bases[i] = addr;
+            if (buffer.method != null) {
+                buffer.method.data = addr;
+            }
+            addr += buffer.size();
+        }
+        if (addr > Machine.PB) {
+            log.println("mJAM: code segment capacity exceeded");
+            return null;
+        }
+
+        Instruction[] code = new Instruction[addr - Machine.CB];
+        for (int i = 0; i < buffers.size(); i++) {
+            CodeBuffer buffer = buffers.get(i);
+            int base = bases[i];
+
+            // Make the marks first, as each one drops the marks at and above its address that
+            // were made for code taken back
+            for (int m = 0; m < buffer.methodMarkAddrs().size(); m++) {
+                sourceMap.markMethod(base + buffer.methodMarkAddrs().get(m),
+                        buffer.methodMarkNames().get(m));
+            }
+            for (int m = 0; m < buffer.lineMarkAddrs().size(); m++) {
+                sourceMap.markLine(base + buffer.lineMarkAddrs().get(m),
+                        buffer.lineMarkLines().get(m));
+            }
+
+            for (int a = 0; a < buffer.size(); a++) {
+                Instruction inst = buffer.instructionAt(a);
+                int n = inst.n;
+                int d = inst.d;
+                MethodDecl target = buffer.callTargetAt(a);
+                if (target != null) {
+                    if (target.data == Integer.MIN_VALUE) {
+                        throw new IllegalStateException("Method declaration never had its data set");
+                    }
+                    d = target.data;
+                } else if (inst.r == Reg.CB.ordinal()) {
+                    d += base;
+                }
+                if (n > 255) {
+                    log.println("length of operand can't exceed 255 words");
+                    n = 255; // to allow code generation to continue
+                }
+                code[base + a - Machine.CB] = new Instruction(inst.op, n, inst.r, d);
+            }
+        }
+        return code;
+    }
+}
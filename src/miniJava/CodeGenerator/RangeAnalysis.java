@@ -0,0 +1,277 @@
+package miniJava.CodeGenerator;
+
+import static miniJava.SyntacticAnalyzer.Token.Kind.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import miniJava.AbstractSyntaxTrees.*;
+import miniJava.ContextualAnalyzer.ContextualAnalyzer;
+
+/**
+ * Integer range analysis of loop induction variables against array lengths
+ *
+ * The code generator uses this to find array accesses that can't go out of bounds, which it emits
+ * as the unchecked uarrayref and uarrayupd primitives. Only loops of the form
+ *
+ * <pre>
+ * for (int i = L; i + p < a.length - q; i = i + c) ... a[i + k] ...
+ * </pre>
+ *
+ * (or the equivalent while loop) are handled, where i and a are locals that the body doesn't
+ * assign other than through the updates at its end, L is known at compile time, and p, q, c and k
+ * are int literals.
+ */
+class RangeAnalysis {
+
+    // Every constant is kept within this magnitude, so that none of the arithmetic the analysis
+    // reasons about can overflow at runtime
+    private static final int LIMIT = 1 << 16;
+
+    /**
+     * Holds on each entry to a loop body: array isn't null, index >= low, and
+     * index <= array.length - 1 - slack
+     */
+    static class Fact {
+        final LocalDecl index;
+        final LocalDecl array;
+        final int slack;
+        final int low;
+
+        private Fact(LocalDecl index, LocalDecl array, int slack, int low) {
+            this.index = index;
+            this.array = array;
+            this.slack = slack;
+            this.low = low;
+        }
+
+        /**
+         * @param low the value of index when the loop starts, null if not known
+         * @return this fact with its lower bound, or null if there isn't a usable one
+         */
+        Fact startingAt(Integer low) {
+            if (low == null || low < -LIMIT || low > LIMIT) {
+                return null;
+            }
+            return new Fact(index, array, slack, low);
+        }
+
+        /**
+         * @return true if array[ixExpr] is known to be in bounds
+         */
+        boolean covers(LocalDecl array, Expression ixExpr) {
+            Term term = indexTerm(ixExpr);
+            return array == this.array && term != null && term.decl == index
+                    && term.offset >= -low && term.offset <= slack;
+        }
+    }
+
+    // decl + offset, for an int local i (i, i + k, k + i, i - k) or an array length (a.length,
+    // a.length - k)
+    private static class Term {
+        final LocalDecl decl;
+        final int offset;
+
+        Term(LocalDecl decl, int offset) {
+            this.decl = decl;
+            this.offset = offset;
+        }
+    }
+
+    private RangeAnalysis() {
+    }
+
+    /**
+     * Find the facts about indexes and array lengths that hold on each entry to the body of a loop,
+     * from the conjuncts of its condition. The lower bounds aren't set, see Fact.startingAt.
+     */
+    static List<Fact> loopFacts(LoopStmt ls) {
+        List<Fact> facts = new ArrayList<>();
+        List<Expression> conjuncts = new ArrayList<>();
+        addConjuncts(ls.condExpr, conjuncts);
+
+        for (Expression cond : conjuncts) {
+            Fact fact = compare(cond);
+            if (fact != null && onlyIncremented(ls.body, fact.index)
+                    && !assigns(ls.body, fact.array)) {
+                facts.add(fact);
+            }
+        }
+        return facts;
+    }
+
+    // Collect the operands of a chain of && operators
+    private static void addConjuncts(Expression e, List<Expression> conjuncts) {
+        if (e instanceof BinaryExpr && ((BinaryExpr) e).operator.kind == AND) {
+            addConjuncts(((BinaryExpr) e).leftExpr, conjuncts);
+            addConjuncts(((BinaryExpr) e).rightExpr, conjuncts);
+        } else {
+            conjuncts.add(e);
+        }
+    }
+
+    // Turn i + p < a.length - q (or <=, or either reversed) into a fact
+    private static Fact compare(Expression e) {
+        if (!(e instanceof BinaryExpr)) {
+            return null;
+        }
+        BinaryExpr be = (BinaryExpr) e;
+        Expression lesser, greater;
+        switch (be.operator.kind) {
+            case LESS_THAN:
+            case LESS_EQUAL:
+                lesser = be.leftExpr;
+                greater = be.rightExpr;
+                break;
+            case GREATER_THAN:
+            case GREATER_EQUAL:
+                lesser = be.rightExpr;
+                greater = be.leftExpr;
+                break;
+            default:
+                return null;
+        }
+
+        Term index = indexTerm(lesser);
+        Term length = lengthTerm(greater);
+        if (index == null || length == null) {
+            return null;
+        }
+
+        // i + p < len + r gives i + k <= len - 1 for every k <= p - r; <= allows one less
+        boolean strict = be.operator.kind == LESS_THAN || be.operator.kind == GREATER_THAN;
+        int slack = index.offset - length.offset - (strict ? 0 : 1);
+        return new Fact(index.decl, length.decl, slack, 0);
+    }
+
+    private static Term indexTerm(Expression e) {
+        LocalDecl local = local(e);
+        if (local != null) {
+            return new Term(local, 0);
+        }
+        if (!(e instanceof BinaryExpr)) {
+            return null;
+        }
+        BinaryExpr be = (BinaryExpr) e;
+        Integer k;
+        if (be.operator.kind == PLUS) {
+            if ((local = local(be.leftExpr)) != null && (k = literal(be.rightExpr)) != null) {
+                return new Term(local, k);
+            }
+            if ((local = local(be.rightExpr)) != null && (k = literal(be.leftExpr)) != null) {
+                return new Term(local, k);
+            }
+        } else if (be.operator.kind == MINUS) {
+            if ((local = local(be.leftExpr)) != null && (k = literal(be.rightExpr)) != null) {
+                return new Term(local, -k);
+            }
+        }
+        return null;
+    }
+
+    private static Term lengthTerm(Expression e) {
+        if (e instanceof RefExpr && ((RefExpr) e).ref instanceof QualRef) {
+            QualRef qr = (QualRef) ((RefExpr) e).ref;
+            if (qr.getId().getDecl() == ContextualAnalyzer.arrayLengthField
+                    && qr.prevRef instanceof IdRef
+                    && qr.prevRef.getId().getDecl() instanceof LocalDecl) {
+                return new Term((LocalDecl) qr.prevRef.getId().getDecl(), 0);
+            }
+            return null;
+        }
+
+        // Only subtract from the length, which can then never overflow
+        if (e instanceof BinaryExpr && ((BinaryExpr) e).operator.kind == MINUS) {
+            BinaryExpr be = (BinaryExpr) e;
+            Term length = lengthTerm(be.leftExpr);
+            Integer k = literal(be.rightExpr);
+            if (length != null && k != null && k >= 0) {
+                return new Term(length.decl, -k);
+            }
+        }
+        return null;
+    }
+
+    // The local variable or parameter e reads, or null
+    private static LocalDecl local(Expression e) {
+        if (e instanceof RefExpr && ((RefExpr) e).ref instanceof IdRef
+                && ((RefExpr) e).ref.getId().getDecl() instanceof LocalDecl) {
+            return (LocalDecl) ((RefExpr) e).ref.getId().getDecl();
+        }
+        return null;
+    }
+
+    // The value of an int literal within LIMIT, or null
+    private static Integer literal(Expression e) {
+        if (e instanceof LiteralExpr && ((LiteralExpr) e).lit instanceof IntLiteral) {
+            int k = Integer.parseInt(((LiteralExpr) e).lit.spelling);
+            if (k >= -LIMIT && k <= LIMIT) {
+                return k;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the only assignments to index in body are statements i = i + c (c >= 0) at
+     *         the end of it, like the update section of a for loop
+     */
+    private static boolean onlyIncremented(Statement body, LocalDecl index) {
+        StatementList sl;
+        if (body instanceof BlockStmt) {
+            sl = ((BlockStmt) body).sl;
+        } else {
+            sl = new StatementList();
+            sl.add(body);
+        }
+
+        boolean updating = false;
+        for (Statement s : sl) {
+            if (isIncrement(s, index)) {
+                updating = true;
+            } else if (updating || assigns(s, index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIncrement(Statement s, LocalDecl index) {
+        if (!(s instanceof AssignStmt) || !assigns(s, index)) {
+            return false;
+        }
+        Term term = indexTerm(((AssignStmt) s).valExpr);
+        return term != null && term.decl == index && term.offset >= 0;
+    }
+
+    // Whether s (or any statement nested in it) assigns to local
+    private static boolean assigns(Statement s, LocalDecl local) {
+        if (s instanceof AssignStmt) {
+            Reference ref = ((AssignStmt) s).ref;
+            return ref instanceof IdRef && ref.getId().getDecl() == local;
+        } else if (s instanceof BlockStmt) {
+            for (Statement nested : ((BlockStmt) s).sl) {
+                if (assigns(nested, local)) {
+                    return true;
+                }
+            }
+            return false;
+        } else if (s instanceof IfStmt) {
+            IfStmt is = (IfStmt) s;
+            return assigns(is.thenStmt, local)
+                    || (is.elseStmt != null && assigns(is.elseStmt, local));
+        } else if (s instanceof LoopStmt) {
+            LoopStmt ls = (LoopStmt) s;
+            if (ls.getInitList() != null) {
+                for (Statement init : ls.getInitList()) {
+                    if (assigns(init, local)) {
+                        return true;
+                    }
+                }
+            }
+            return assigns(ls.body, local);
+        }
+        // Declarations, calls, array element updates and returns can't change a local
+        return false;
+    }
+}
@@ -0,0 +1,136 @@
+package miniJava;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import mJAM.Instruction;
+import mJAM.SourceMap;
+import miniJava.AbstractSyntaxTrees.AST;
+import miniJava.CodeGenerator.CodeGenerator;
+import miniJava.ContextualAnalyzer.ContextualAnalyzer;
+import miniJava.SyntacticAnalyzer.Parser;
+import miniJava.SyntacticAnalyzer.Scanner;
+
+/**
+ * A single compilation of a miniJava program, from its source to mJAM code
+ *
+ * Everything a compilation changes belongs to its context: the AST (whose declarations record their
+ * offsets and addresses in data, and whose method names are mangled by contextual analysis), the
+ * error count, the code and the source map. Machine's code store and source map aren't used, and
+ * the compiler's messages are written to the context's diagnostics instead of the console, so any
+ * number of contexts can compile at the same time on different threads, e.g. on a pool compiling
+ * many programs in one JVM.
+ *
+ * The diagnostics read the same as the compiler's console output up to the end of code generation
+ * (errors, "valid miniJava program" and the code generator's messages). The code can be written
+ * with ObjectFile.write(Instruction[]) and the source map with SourceMap.write, with the length of
+ * the code as its code top.
+ *
+ * usage: new CompilationContext(source, sourceName).compile(), then getCode(), getSourceMap() and
+ * getDiagnostics()
+ */
+public class CompilationContext {
+
+    private final byte[] source;
+    private final String sourceName;
+    private int codeGenThreads = 1;
+
+    private final ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+    private boolean compiled;
+    private Instruction[] code;
+    private SourceMap sourceMap;
+
+    /**
+     * @param source     the program's source text
+     * @param sourceName the name of the source file, recorded in the source map
+     */
+    public CompilationContext(byte[] source, String sourceName) {
+        this.source = source;
+        this.sourceName = sourceName;
+    }
+
+    public CompilationContext(String source, String sourceName) {
+        this(source.getBytes(), sourceName);
+    }
+
+    /**
+     * Compile the program's methods on the given number of threads (1 by default)
+     *
+     * Contexts compiled at the same time on a pool are best left with 1, so each compilation only
+     * uses the thread it runs on.
+     */
+    public void setCodeGenThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        codeGenThreads = threads;
+    }
+
+    /**
+     * Parse, analyze and generate code for the program (only once per context)
+     *
+     * @return true if the program is valid and its code was generated
+     */
+    public boolean compile() {
+        if (compiled) {
+            throw new IllegalStateException("a CompilationContext can only compile once");
+        }
+        compiled = true;
+
+        // Both the compiler's messages and its error messages go to the diagnostics, in the order
+        // they're printed
+        PrintStream out = new PrintStream(diagnostics, true);
+        ErrorReporter reporter = new ErrorReporter(out, out);
+
+        // Run the parser & contextual analysis first
+        Parser parser = new Parser(new Scanner(new ByteArrayInputStream(source), reporter), reporter);
+        AST ast = parser.parse();
+        if (!reporter.hasErrors()) {
+            ContextualAnalyzer.runAnalysis(ast, reporter);
+        }
+
+        if (reporter.hasErrors()) {
+            reporter.message("INVALID miniJava program");
+            return false;
+        }
+        reporter.message("valid miniJava program");
+
+        // Run the code generator (which reports code that doesn't fit in the code store itself)
+        SourceMap map = new SourceMap();
+        map.setSourceFileName(sourceName);
+        code = CodeGenerator.generateCode(ast, codeGenThreads, map, out);
+        if (code == null) {
+            return false;
+        }
+        sourceMap = map;
+        return true;
+    }
+
+    /**
+     * @return the program's code, starting at Machine.CB, or null if it hasn't been compiled
+     *         successfully
+     */
+    public Instruction[] getCode() {
+        return code;
+    }
+
+    /**
+     * @return the method and source line addresses of the code, or null if it hasn't been compiled
+     *         successfully
+     */
+    public SourceMap getSourceMap() {
+        return sourceMap;
+    }
+
+    /**
+     * @return everything the compiler printed while compiling
+     */
+    public String getDiagnostics() {
+        return diagnostics.toString();
+    }
+
+    public String getSourceName() {
+        return sourceName;
+    }
+}
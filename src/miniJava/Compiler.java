@@ -5,9 +5,11 @@ import static miniJava.SyntacticAnalyzer.Token.Kind.*;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import mJAM.Disassembler;
 import mJAM.Interpreter;
+import mJAM.Machine;
 import mJAM.ObjectFile;
 import miniJava.AbstractSyntaxTrees.AST;
 import miniJava.AbstractSyntaxTrees.ASTDisplay;
@@ -21,10 +23,22 @@ public class Compiler {
         JUST_COMPILE, AUTO_RUN, AUTO_DEBUG
     }
 
+    // The number of threads methods are compiled on (see CodeGenerator.generateCode)
+    private static int codeGenThreads = 1;
+
     public static void main(String[] args) {
         RunMode mode;
         String path;
 
+        // -j/--jobs <threads> may come first, before the path and flags below
+        if (args.length >= 2 && (args[0].equals("-j") || args[0].equals("--jobs"))) {
+            codeGenThreads = Integer.parseInt(args[1]);
+            if (codeGenThreads < 1) {
+                throw new IllegalArgumentException("-j/--jobs needs at least 1 thread");
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
         switch (args.length) {
             case 0:
                 throw new IllegalArgumentException("No file path to compile provided");
@@ -118,7 +132,7 @@ public class Compiler {
         }
 
         // Run the code generator
-        CodeGenerator.generateCode(ast);
+        CodeGenerator.generateCode(ast, codeGenThreads);
 
         // Write the object file
         String objectCodeFileName = inputPath.substring(0, inputPath.length() - 4) + "mJAM";
@@ -131,6 +145,17 @@ public class Compiler {
             System.out.println("SUCCEEDED");
         }
 
+        // Write the method and source line addresses used by the profiler
+        String mapFileName = objectCodeFileName.substring(0, inputPath.length() - 4) + "map";
+        Machine.sourceMap.setSourceFileName(inputPath);
+        System.out.print("Writing source map file " + mapFileName + " ... ");
+        if (Machine.sourceMap.write(mapFileName, Machine.CT)) {
+            System.out.println("FAILED!");
+            return -1;
+        } else {
+            System.out.println("SUCCEEDED");
+        }
+
         // Create asm file corresponding to object code using disassembler 
         String asmCodeFileName = objectCodeFileName.substring(0, inputPath.length() - 4) + "asm";
         System.out.print("Writing assembly file " + asmCodeFileName + " ... ");
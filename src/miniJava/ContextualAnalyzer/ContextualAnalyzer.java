@@ -71,7 +71,7 @@ public class ContextualAnalyzer implements Visitor<ContextualAnalyzer.Identifica
     // For fatal errors (identification errors), throw this function's return
     private AnalysisError error(String e, long line) {
         err.reportError();
-        System.out.printf("*** line %d: %s%n", line, e);
+        err.message(String.format("*** line %d: %s", line, e));
         return new AnalysisError();
     }
 
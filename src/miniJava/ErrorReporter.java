@@ -1,11 +1,28 @@
 package miniJava;
 
+import java.io.PrintStream;
+
 public class ErrorReporter {
 
     private int numErrors;
+    private final PrintStream out; // For messages that aren't errors
+    private final PrintStream err; // For error messages
 
     ErrorReporter() {
+        this(System.out, System.err);
+    }
+
+    /**
+     * Create a reporter that prints to the given streams instead of the console
+     * 
+     * @param out for the compiler's other messages (including the errors found by contextual
+     *            analysis, which are printed with message())
+     * @param err for the error messages passed to reportError()
+     */
+    public ErrorReporter(PrintStream out, PrintStream err) {
         numErrors = 0;
+        this.out = out;
+        this.err = err;
     }
 
     public boolean hasErrors() {
@@ -13,11 +30,16 @@ public class ErrorReporter {
     }
 
     public void reportError(String message) {
-        System.err.println(message);
+        err.println(message);
         reportError();
     }
 
     public void reportError() {
         numErrors++;
     }
+
+    // Print a message that doesn't count as an error by itself
+    public void message(String message) {
+        out.println(message);
+    }
 }
@@ -0,0 +1,373 @@
+package miniJava;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import mJAM.Instruction;
+import mJAM.Machine;
+import mJAM.MjamVM;
+import mJAM.VmScheduler;
+
+/**
+ * Regression checks for the mJAM machine, run on programs compiled in process
+ *
+ * Each check compiles one of the small miniJava programs below with a CompilationContext, runs it
+ * on MjamVM under the configurations it compares, and reports PASS or FAIL with the measurements
+ * that decided it. The repository has no test framework, so the checks are a program of their own:
+ * it exits with status 1 if any check fails, so a build can run it. Program output is discarded.
+ *
+ * usage: VmRegression
+ */
+public class VmRegression {
+
+    // A list kept alive while arrays slightly larger than its nodes die around it, so the heap is
+    // fragmented into free blocks that the nodes must be split from
+    static final String LIST_PROGRAM = String.join("\n",
+            "class ListProgram {",
+            "    public static void main(String[] args) {",
+            "        Node head = null;",
+            "        int i = 0;",
+            "        while (i < 3000) {",
+            "            int[] junk = new int[7];",
+            "            junk[3] = i;",
+            "            if (i % KEEP == 0) {",
+            "                Node n = new Node();",
+            "                n.val = i;",
+            "                n.arr = new int[3];",
+            "                n.arr[2] = i * 2;",
+            "                n.next = head;",
+            "                head = n;",
+            "            }",
+            "            i = i + 1;",
+            "        }",
+            "        int s = 0;",
+            "        while (head != null) { s = s + head.val + head.arr[2]; head = head.next; }",
+            "        System.out.println(s);",
+            "    }",
+            "}",
+            "class Node { int val; Node next; int[] arr; }");
+
+    // Programs whose last request is one word smaller than a block the collector has freed, in a
+    // 1024 word data store: that block would leave a remainder too small for a header, so the
+    // request must go to another block (for the 63 word request, a larger one in the same class)
+    static final String[][] REMAINDER_PROGRAMS = {
+        { "127 words beside a free 128 word block",
+            "class P { public static void main(String[] a) { int[] a1 = new int[10]; int[] j = new int[126];"
+                + " int[] a2 = new int[10]; j = null; int[] big = new int[680]; int[] x = new int[125];"
+                + " x[124] = 1; System.out.println(a1.length + a2.length + big.length + x[124] + 5); } }" },
+        { "63 words beside free 64 and 80 word blocks",
+            "class P { public static void main(String[] a) { int[] a1 = new int[10]; int[] j1 = new int[62];"
+                + " int[] a2 = new int[10]; int[] j2 = new int[78]; int[] a3 = new int[10]; j1 = null; j2 = null;"
+                + " int[] big = new int[800]; int[] x = new int[61]; x[60] = 1;"
+                + " System.out.println(a1.length + a2.length + a3.length + big.length + x[60]); } }" },
+    };
+
+    // Programs that fail, each at an instruction that FastInterpreter executes inline or as part of
+    // a superinstruction, with the data store size (0 for the default) they are run with
+    static final String[][] FAILING_PROGRAMS = {
+        { "overflow in i = i + k", "0",
+            "class P { public static void main(String[] a) { int i = 2147483000; while (i > 0) { i = i + 100; } } }" },
+        { "overflow in n * k", "0",
+            "class P { public static void main(String[] a) { int n = 3; while (n > 0) { n = (n + 1) * 1000; } } }" },
+        { "null field of a local", "0",
+            "class P { int v; public static void main(String[] a) { P x = null; int k = 3; System.out.println(x.v + k); } }" },
+        { "null field of a field", "0",
+            "class P { int v; P n; public static void main(String[] a) { P x = new P(); x.n = new P(); x.n.v = 4;"
+                + " int i = 0; while (i < 1000) { x.v = x.v + x.n.v; i = i + 1; } x.n = null; System.out.println(x.n.v); } }" },
+        { "array index", "0",
+            "class P { public static void main(String[] a) { int[] x = new int[3]; int k = 0; while (k < 5) { x[k] = k; k = k + 1; } } }" },
+        { "data store full in recursion", "2000",
+            "class P { public static void main(String[] a) { P.f(0, 1); } public static int f(int x, int y) {"
+                + " if (x < y) return P.f(x + 1, y + 1); return 0; } }" },
+    };
+
+    // A loop stopped by an instruction quota at each point of its superinstructions
+    static final String LOOP_PROGRAM = "class P { int v; public static void main(String[] a) { P p = new P(); int s = 0;"
+            + " int i = 0; while (i < 100000) { if (i < s) s = s + p.v; else s = s + i * 3; i = i + 1; }"
+            + " System.out.println(s); } }";
+
+    // Programs that run into the data store size or a quota: deep recursion, allocation in a loop,
+    // and calls and allocation in a loop
+    static final String[] QUOTA_PROGRAMS = {
+        "class P { public static void main(String[] a) { System.out.println(P.depth(20000)); }"
+            + " public static int depth(int n) { if (n == 0) return 0; return 1 + P.depth(n - 1); } }",
+        "class P { public static void main(String[] a) { int i = 0; while (i < 100000) { int[] q = new int[10];"
+            + " q[0] = i; i = i + 1; } System.out.println(i); } }",
+        "class P { public static void main(String[] a) { int s = 0; int i = 0; while (i < 20000) {"
+            + " int[] q = new int[3]; q[2] = i; s = s + P.f(q); i = i + 1; } System.out.println(s); }"
+            + " public static int f(int[] q) { return q[2] % 7; } }",
+    };
+
+    // data store sizes (initial, maximum) and quotas (instructions, heap, stack) each quota
+    // program is run with, as the Interpreter's --data-initial, --data-max, --max-instructions,
+    // --max-heap and --max-stack options
+    static final int[][] QUOTA_CONFIGURATIONS = {
+        { 1024, 100000, 0, 0, 0 },
+        { 64, 4096, 0, 0, 0 },
+        { 1024, 100000, 0, 200, 0 },
+        { 1024, 100000, 0, 0, 300 },
+        { 1024, 1024, 5000, 0, 0 },
+        { 1024, 100000, 77777, 0, 0 },
+    };
+
+    // The engines compared with the reference interpretation loop; "jit" compiles every method
+    // on its first call
+    static final String[] ENGINES = { "reference", "fast", "fused", "jit", "registers" };
+
+    // The engines of a VmScheduler session, by number (VmScheduler.reference, fast, registers)
+    static final String[] SCHEDULER_ENGINES = { "reference", "fast", "registers" };
+
+    private static final PrintStream console = System.out;
+    private static final PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+    private static int failures;
+
+    public static void main(String[] args) {
+        if (args.length != 0) {
+            console.println("usage: VmRegression");
+            return;
+        }
+        checkFreeLists();
+        checkFailureParity();
+        checkQuotaParity();
+        checkScheduler();
+        console.println(failures == 0 ? "All checks passed" : failures + " checks failed");
+        if (failures != 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The size-class free lists must never need a larger data store than the collector's own first
+     * fit: the list program once failed under --gc --free-lists --data-max 8192
+     */
+    static void checkFreeLists() {
+        for (int keep : new int[] { 10, 5 }) {
+            Instruction[] code = compile(LIST_PROGRAM.replace("KEEP", Integer.toString(keep)));
+            if (keep == 10) {
+                MjamVM vm = listMachine(code, 8192, true);
+                vm.interpretProgram();
+                check("free lists: list program halts with --gc --free-lists --data-max 8192",
+                        vm.getStatus() == MjamVM.halted, "status " + vm.getStatus());
+            }
+            int collector = smallestStore(code, false);
+            int freeLists = smallestStore(code, true);
+            check("free lists: list program keeping every " + keep + "th node needs no more store",
+                    freeLists <= collector, "--gc " + collector + " words, --gc --free-lists "
+                            + freeLists + " words");
+        }
+        for (String[] program : REMAINDER_PROGRAMS) {
+            Instruction[] code = compile(program[1]);
+            String[] results = new String[2];
+            for (int freeLists = 0; freeLists < 2; freeLists++) {
+                MjamVM vm = listMachine(code, MjamVM.defaultDataStoreSize, freeLists == 1);
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                vm.setOutput(new PrintStream(output));
+                vm.interpretProgram();
+                results[freeLists] = "status " + vm.getStatus() + ", output " + output.toString().trim();
+            }
+            check("free lists: " + program[0] + " is placed as by the collector",
+                    results[1].equals(results[0]), "--gc " + results[0] + "; --gc --free-lists "
+                            + results[1]);
+        }
+    }
+
+    private static MjamVM listMachine(Instruction[] code, int storeSize, boolean freeLists) {
+        MjamVM vm = machine(code);
+        vm.setDataStoreSize(storeSize, storeSize);
+        vm.enableGarbageCollector();
+        if (freeLists) {
+            vm.enableFreeLists();
+        }
+        return vm;
+    }
+
+    /**
+     * @return the smallest data store, to within 16 words, in which the program halts with the
+     *         collector, and with the free lists if freeLists is set
+     */
+    private static int smallestStore(Instruction[] code, boolean freeLists) {
+        int fails = 256, halts = 1 << 16;
+        while (halts - fails > 16) {
+            int size = (fails + halts) / 2;
+            MjamVM vm = listMachine(code, size, freeLists);
+            if (vm.interpretProgram() == MjamVM.halted) {
+                halts = size;
+            } else {
+                fails = size;
+            }
+        }
+        return halts;
+    }
+
+    /**
+     * Every engine must leave a failing program as the reference interpretation loop does: same
+     * status, code pointer, instruction count, and the same output, status report and dump
+     */
+    static void checkFailureParity() {
+        for (String[] program : FAILING_PROGRAMS) {
+            int storeSize = Integer.parseInt(program[1]);
+            checkParity("failure parity: " + program[0], compile(program[2]), vm -> {
+                if (storeSize > 0) {
+                    vm.setDataStoreSize(storeSize, storeSize);
+                }
+            });
+        }
+        Instruction[] loop = compile(LOOP_PROGRAM);
+        for (int quota = 5000; quota < 5004; quota++) {
+            int instructions = quota;
+            checkParity("failure parity: instruction quota " + quota, loop,
+                    vm -> vm.setQuotas(instructions, 0, 0, 0));
+        }
+    }
+
+    /**
+     * Every engine must stop a program that grows the data store, or runs into a quota, where the
+     * reference interpretation loop stops it
+     */
+    static void checkQuotaParity() {
+        for (int p = 0; p < QUOTA_PROGRAMS.length; p++) {
+            Instruction[] code = compile(QUOTA_PROGRAMS[p]);
+            for (int[] c : QUOTA_CONFIGURATIONS) {
+                checkParity("quota parity: program " + (p + 1) + " with --data-initial " + c[0]
+                        + " --data-max " + c[1] + " --max-instructions " + c[2] + " --max-heap " + c[3]
+                        + " --max-stack " + c[4], code, vm -> {
+                            vm.setDataStoreSize(c[0], c[1]);
+                            vm.setQuotas(c[2], 0, c[3], c[4]);
+                        });
+            }
+        }
+    }
+
+    /**
+     * A session must end a geteol waiting for the rest of a line when its input is closed, and
+     * must apply the instruction quota to the whole session, stopping where an unsliced run stops
+     */
+    static void checkScheduler() {
+        Instruction[] skipLine = {
+            new Instruction(Machine.Op.CALL.ordinal(), 0, Machine.Reg.PB.ordinal(), Machine.Prim.geteol.ordinal()),
+            new Instruction(Machine.Op.HALT.ordinal(), 0, Machine.Reg.ZR.ordinal(), 0),
+        };
+        Instruction[] loop = compile(LOOP_PROGRAM);
+        MjamVM unsliced = machine(loop);
+        unsliced.setQuotas(5001, 0, 0, 0);
+        unsliced.interpretProgram();
+        String expected = "status " + unsliced.getStatus() + ", CP " + unsliced.getCP() + ", "
+                + unsliced.getInstructionCount() + " instructions";
+
+        VmScheduler scheduler = new VmScheduler(1, 1000);
+        try {
+            for (int engine = 0; engine < SCHEDULER_ENGINES.length; engine++) {
+                MjamVM vm = machine(skipLine);
+                VmScheduler.Session session = scheduler.submit(vm, engine);
+                session.offer("no end of line");
+                boolean parked = waitFor(session::isParked);
+                session.closeInput();
+                boolean done = waitFor(session::isDone);
+                check("scheduler: closing the input ends a pending geteol with "
+                        + SCHEDULER_ENGINES[engine], parked && done && vm.getStatus() == MjamVM.halted,
+                        "parked " + parked + ", done " + done + ", status " + vm.getStatus());
+
+                vm = machine(loop);
+                vm.setQuotas(5001, 0, 0, 0);
+                session = scheduler.submit(vm, engine);
+                done = waitFor(session::isDone);
+                String result = "status " + vm.getStatus() + ", CP " + vm.getCP() + ", "
+                        + session.getInstructions() + " instructions";
+                check("scheduler: instruction quota 5001 over slices of 1000 with "
+                        + SCHEDULER_ENGINES[engine], done && result.equals(expected),
+                        done ? result : "not done");
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Run code on every engine, configured by configure, and check each finishes as the reference
+     * interpretation loop does
+     */
+    static void checkParity(String name, Instruction[] code, Consumer<MjamVM> configure) {
+        String reference = run(code, ENGINES[0], configure);
+        for (int e = 1; e < ENGINES.length; e++) {
+            String result = run(code, ENGINES[e], configure);
+            check(name + " with " + ENGINES[e], result.equals(reference), result.equals(reference)
+                    ? reference.substring(0, reference.indexOf('\n'))
+                    : "expected " + reference + "\nbut was " + result);
+        }
+    }
+
+    /**
+     * @return the status, code pointer and instruction count after running code on engine, with
+     *         the output, status report and any dump written by the machine
+     */
+    static String run(Instruction[] code, String engine, Consumer<MjamVM> configure) {
+        MjamVM vm = machine(code);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        vm.setOutput(new PrintStream(output));
+        configure.accept(vm);
+        vm.setFusion(!engine.equals("fast"));
+        if (engine.equals("jit")) {
+            vm.enableJit(1);
+        }
+        long instructions;
+        if (engine.equals("reference")) {
+            vm.interpretProgram();
+            instructions = vm.getInstructionCount();
+        } else if (engine.equals("registers")) {
+            instructions = vm.interpretProgramRegisters();
+        } else {
+            instructions = vm.interpretProgramFast();
+        }
+        vm.showStatus();
+        return "status " + vm.getStatus() + ", CP " + vm.getCP() + ", " + instructions
+                + " instructions\n" + output;
+    }
+
+    // HELPERS
+
+    /**
+     * Compile a program, which must be valid
+     */
+    static Instruction[] compile(String source) {
+        CompilationContext context = new CompilationContext(source, "VmRegression.java");
+        if (!context.compile()) {
+            throw new IllegalStateException("check program does not compile:\n"
+                    + context.getDiagnostics());
+        }
+        return context.getCode();
+    }
+
+    /**
+     * @return a machine holding code, whose output is discarded
+     */
+    static MjamVM machine(Instruction[] code) {
+        MjamVM vm = new MjamVM(code, code.length);
+        vm.setOutput(sink);
+        return vm;
+    }
+
+    /**
+     * @return true once condition holds, false if it does not within 10 seconds
+     */
+    static boolean waitFor(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            LockSupport.parkNanos(1_000_000);
+        }
+        return true;
+    }
+
+    static void check(String name, boolean passed, String detail) {
+        console.println((passed ? "PASS " : "FAIL ") + name + " (" + detail + ")");
+        if (!passed) {
+            failures++;
+        }
+    }
+}